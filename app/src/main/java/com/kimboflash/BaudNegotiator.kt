@@ -0,0 +1,91 @@
+package com.kimboflash
+
+import android.util.Log
+import com.kimboflash.protocol.FramedChannel
+
+/**
+ * Raises the K-Line speed of an open diagnostic session.
+ *
+ * ISO 14230-3 lets StartDiagnosticSession carry a baud-rate identifier: the
+ * ECU answers 0x50 at the old speed and then switches, so the tester switches
+ * its own UART right after the positive response and checks the new speed
+ * with a TesterPresent round trip. A rate that is refused or fails the check
+ * is undone by restarting the session at [DEFAULT_BAUD], and the next lower
+ * rate is tried.
+ */
+class BaudNegotiator(private val link: FramedChannel) {
+    companion object {
+        private const val TAG = "BaudNegotiator"
+        const val DEFAULT_BAUD = 10400
+
+        /** Rates to try, fastest first, with their ISO 14230-3 identifiers. */
+        private val RATES = intArrayOf(115200, 57600, 38400, 19200)
+        private val RATE_IDS = byteArrayOf(0x05, 0x04, 0x03, 0x02)
+
+        /** Time the ECU needs to switch its UART after the positive response. */
+        private const val SWITCH_DELAY_MS = 30L
+    }
+
+    /** Baud rate in use after the last [negotiate]. */
+    var baud = DEFAULT_BAUD
+        private set
+
+    /**
+     * Tries the rates in [RATES] (up to [maxBaud]) for diagnostic [session]
+     * and returns the one that is active afterwards; [DEFAULT_BAUD] if the
+     * transport cannot change speed or the ECU refuses every rate.
+     */
+    fun negotiate(session: Int = 0x81, maxBaud: Int = RATES[0]): Int {
+        // Transports without a UART of their own (e.g. Bluetooth SPP bridges) stay as they are
+        if (!link.setBaudRate(DEFAULT_BAUD)) {
+            baud = DEFAULT_BAUD
+            return baud
+        }
+        for (i in RATES.indices) {
+            val rate = RATES[i]
+            if (rate > maxBaud) continue
+            if (tryRate(session, rate, RATE_IDS[i])) {
+                baud = rate
+                Log.i(TAG, "Session running at $rate baud")
+                return rate
+            }
+        }
+        baud = DEFAULT_BAUD
+        return baud
+    }
+
+    private fun tryRate(session: Int, rate: Int, id: Byte): Boolean {
+        try {
+            val resp = link.request(byteArrayOf(0x10, session.toByte(), id))
+            if (resp.isEmpty() || resp[0].toInt() and 0xFF != 0x50) {
+                Log.d(TAG, "$rate baud refused")
+                return false
+            }
+            Thread.sleep(SWITCH_DELAY_MS)
+            when {
+                !link.setBaudRate(rate) -> Log.d(TAG, "Transport cannot switch to $rate baud")
+                roundTrip() -> return true
+                else -> Log.w(TAG, "No round trip at $rate baud, falling back")
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Switching to $rate baud failed", e)
+        }
+        restoreDefault(session)
+        return false
+    }
+
+    private fun roundTrip(): Boolean {
+        val resp = link.request(byteArrayOf(0x3E))
+        return resp.isNotEmpty() && resp[0].toInt() and 0xFF == 0x7E
+    }
+
+    /** Puts both sides back on [DEFAULT_BAUD] with the session restarted there. */
+    private fun restoreDefault(session: Int) {
+        link.setBaudRate(DEFAULT_BAUD)
+        Thread.sleep(SWITCH_DELAY_MS)
+        val resp = link.request(byteArrayOf(0x10, session.toByte()))
+        if (resp.isEmpty() || resp[0].toInt() and 0xFF != 0x50) {
+            throw RuntimeException("ECU lost after baud rate fallback")
+        }
+    }
+}
@@ -10,13 +10,11 @@ import android.content.pm.PackageManager
 import android.os.Build
 import android.util.Log
 import androidx.core.content.ContextCompat
-import com.kimboflash.CommService
-import java.io.InputStream
-import java.io.OutputStream
+import com.kimboflash.transport.StreamTransport
 import java.util.UUID
 import kotlin.concurrent.thread
 
-class BluetoothService(private val context: Context) : CommService {
+class BluetoothService(private val context: Context) : StreamTransport(TAG) {
     companion object {
         private const val TAG     = "BluetoothService"
         private val     SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB")
@@ -27,8 +25,6 @@ class BluetoothService(private val context: Context) : CommService {
     private val adapter: BluetoothAdapter? = bluetoothManager.adapter
 
     private var socket: BluetoothSocket? = null
-    private var inStream: InputStream?  = null
-    private var outStream: OutputStream? = null
 
     fun setupBluetooth() {
         Log.d(TAG, "setupBluetooth(): adapter enabled=${adapter?.isEnabled}")
@@ -48,18 +44,12 @@ class BluetoothService(private val context: Context) : CommService {
             )
         }.all { ContextCompat.checkSelfPermission(context, it) == PackageManager.PERMISSION_GRANTED }
 
-    fun isReady(): Boolean = socket?.isConnected == true
+    fun isReady(): Boolean = socket?.isConnected == true && isOpen
 
-    override fun send(data: ByteArray) {
-        if (!isReady()) return
-        outStream?.write(data)
-    }
-
-    override fun receiveBytes(): ByteArray {
-        if (!isReady()) return ByteArray(0)
-        val buf = ByteArray(1024)
-        val len = inStream?.read(buf) ?: 0
-        return buf.copyOfRange(0, len)
+    override fun close() {
+        super.close()
+        try { socket?.close() } catch (_: Exception) { }
+        socket = null
     }
 
     fun findElmDevice(): BluetoothDevice? =
@@ -75,8 +65,7 @@ class BluetoothService(private val context: Context) : CommService {
                 socket = device.createRfcommSocketToServiceRecord(SPP_UUID)
                 adapter?.cancelDiscovery()
                 socket!!.connect()
-                inStream  = socket!!.inputStream
-                outStream = socket!!.outputStream
+                attach(socket!!.inputStream, socket!!.outputStream)
                 Log.i(TAG, "Connected to ${device.name}")
                 onConnected?.invoke()
             } catch (e: Exception) {
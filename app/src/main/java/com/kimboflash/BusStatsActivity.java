@@ -0,0 +1,74 @@
+package com.kimboflash;
+
+import androidx.appcompat.app.AppCompatActivity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.kimboflash.protocol.BusStats;
+
+import java.util.Locale;
+
+/**
+ * Live view of {@link BusStats#DEFAULT}: traffic counters, utilisation over the last
+ * second and since the last reset, and latency percentiles per service id. The report
+ * can be shared as plain text.
+ */
+public class BusStatsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_MS = 1000;
+
+    private TextView report;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private BusStats.Snapshot previous;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            BusStats.Snapshot now = BusStats.DEFAULT.snapshot();
+            double recent = previous != null ? now.utilisationSince(previous) : now.getUtilisation();
+            previous = now;
+            report.setText(String.format(Locale.US, "Last second    %.1f %%\n", recent * 100) + now);
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_bus_stats);
+        report = findViewById(R.id.report);
+        Button btnReset = findViewById(R.id.btnReset);
+        Button btnExport = findViewById(R.id.btnExport);
+
+        btnReset.setOnClickListener(v -> {
+            BusStats.DEFAULT.reset();
+            previous = null;
+            handler.removeCallbacks(refresh);
+            refresh.run();
+        });
+
+        btnExport.setOnClickListener(v -> {
+            Intent send = new Intent(Intent.ACTION_SEND);
+            send.setType("text/plain");
+            send.putExtra(Intent.EXTRA_SUBJECT, "KimboFlash bus statistics");
+            send.putExtra(Intent.EXTRA_TEXT, BusStats.DEFAULT.snapshot().toString());
+            startActivity(Intent.createChooser(send, "Export statistics"));
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+}
@@ -1,9 +1,79 @@
 package com.kimboflash
 
+import java.nio.ByteBuffer
+
 /**
  * Common interface for communication services.
+ *
+ * Every adapter (USB serial, Bluetooth SPP, Wi-Fi TCP) implements the same
+ * contract, so protocol code runs unchanged over any of them: buffers in and
+ * out, explicit timeouts per call, and received bytes either pushed to a
+ * [FrameListener] or queued in a ring buffer for [read].
  */
 interface CommService {
+    companion object {
+        const val DEFAULT_TIMEOUT_MS = 1000L
+    }
+
+    /** Receives bytes on the transport's receive thread. */
+    fun interface FrameListener {
+        /**
+         * [data] holds the bytes of one adapter read; it is only valid for
+         * the duration of the call.
+         */
+        fun onReceived(data: ByteBuffer)
+    }
+
+    val isOpen: Boolean
+
+    /**
+     * Writes the remaining bytes of [data] within [timeoutMs]; false if the
+     * transport is closed or the write did not complete in time.
+     */
+    fun write(data: ByteBuffer, timeoutMs: Long = DEFAULT_TIMEOUT_MS): Boolean
+
+    /**
+     * Moves received bytes into [dst], waiting up to [timeoutMs] for the first
+     * one. Returns the number of bytes, 0 on timeout. Bytes only queue up
+     * here while no [FrameListener] is registered.
+     */
+    fun read(dst: ByteBuffer, timeoutMs: Long = DEFAULT_TIMEOUT_MS): Int
+
+    /** Routes received bytes to [listener] instead of the read queue; null restores queuing. */
+    fun setFrameListener(listener: FrameListener?)
+
+    fun close()
+
     fun send(data: ByteArray)
+
+    /**
+     * Moves up to [length] received bytes into [dst] at [offset], waiting up
+     * to [DEFAULT_TIMEOUT_MS] for the first one; 0 on timeout. The
+     * allocation-free form of [receiveBytes].
+     */
+    fun receive(dst: ByteArray, offset: Int = 0, length: Int = dst.size - offset): Int =
+        read(ByteBuffer.wrap(dst, offset, length))
+
+    /** Blocking read of whatever arrives next; empty on timeout. Allocates; prefer [receive]. */
     fun receiveBytes(): ByteArray
+
+    /**
+     * Sends the remaining bytes of [frame] (e.g. a slot of a direct buffer).
+     */
+    fun send(frame: ByteBuffer) {
+        write(frame)
+    }
+
+    /**
+     * Switches the local line speed; false when the transport has no UART
+     * under its control (the default).
+     */
+    fun setBaudRate(baud: Int): Boolean = false
+
+    /**
+     * Drives the K-Line directly for wake-up patterns: true pulls it low,
+     * false releases it. False when the adapter has no line control (the
+     * default).
+     */
+    fun setKLineLow(low: Boolean): Boolean = false
 }
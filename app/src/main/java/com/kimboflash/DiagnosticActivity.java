@@ -4,8 +4,6 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.app.AlertDialog;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -25,10 +23,15 @@ import com.kimboflash.KLineManager;
 import com.kimboflash.KWP2000Manager;
 import com.kimboflash.DTCAdapter;
 import com.kimboflash.DTC;
+import com.kimboflash.connection.ConnectionFinder;
+import com.kimboflash.connection.ConnectionProfile;
+import com.kimboflash.connection.ConnectionProfileStore;
+import com.kimboflash.protocol.KLineInit;
+import com.kimboflash.protocol.NegativeResponseException;
+import com.kimboflash.protocol.ResponseFuture;
+import com.kimboflash.transport.Transport;
 // Java standard library
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -36,8 +39,6 @@ import java.util.List;
 
 public class DiagnosticActivity extends AppCompatActivity {
 
-    private enum ConnectionType {USB, BLUETOOTH, WIFI, NONE}
-
     private static final String TAG = "DiagnosticActivity";
 
     // Define a constant for K-Line initialization success message
@@ -55,6 +56,11 @@ public class DiagnosticActivity extends AppCompatActivity {
     private boolean kLineInitialized = false;
     private int postKLineInitAction = POST_KLINE_INIT_ACTION_NONE; // For UX improvement
 
+    // Last known good connection settings; the adapter found at start-up. The store is
+    // loaded on the detect thread, so it stays null until detection finishes.
+    private volatile ConnectionProfileStore profiles;
+    private volatile ConnectionProfile profile;
+
     private TextView status;
     private Button btnConnect, btnRead, btnClear;
     private DTCAdapter adapter;
@@ -69,6 +75,7 @@ public class DiagnosticActivity extends AppCompatActivity {
             // Initialize KLineManager and KWP2000Manager with the UsbService instance
             kLine = new KLineManager(usbService);
             kwp = new KWP2000Manager(usbService);
+            applyLineControl();
 
             bound = true;
             updateStatus("Service connected. Ready.");
@@ -78,6 +85,7 @@ public class DiagnosticActivity extends AppCompatActivity {
         @Override
         public void onServiceDisconnected(ComponentName name) {
             bound = false;
+            if (kwp != null) kwp.stopKeepAlive();
             kLineInitialized = false; // Reset K-Line status on disconnect
             updateStatus("Service disconnected.");
             updateButtonStates();
@@ -93,12 +101,16 @@ public class DiagnosticActivity extends AppCompatActivity {
                     updateStatus(serviceMsg);
                     if (KLINE_INIT_SUCCESS_MSG.equals(serviceMsg)) {
                         kLineInitialized = true;
+                        rememberWorkingInit();
+                        readVin();
                         updateStatus("K-Line initialized. Ready for commands.");
+                        startKeepAlive();
                         updateButtonStates();
                         // Optional: Automatically perform action after K-Line init
                         performPostKLineInitAction();
                     } else if (serviceMsg != null && serviceMsg.contains("K-Line initialization failed")) {
                         kLineInitialized = false;
+                        kwp.stopKeepAlive();
                         postKLineInitAction = POST_KLINE_INIT_ACTION_NONE; // Reset pending action
                         updateStatus("K-Line initialization failed. Please retry.");
                         updateButtonStates();
@@ -114,21 +126,6 @@ public class DiagnosticActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        // Adapter detection
-        ConnectionType detected = detectAdapter();
-        if (detected == ConnectionType.NONE) {
-            // …
-        }
-
-        if (conn == ConnectionType.NONE) {
-            new androidx.appcompat.app.AlertDialog.Builder(this)
-                    .setTitle("No Adapter Found")
-                    .setMessage("Connect USB, Bluetooth, or Wi-Fi adapter.")
-                    .setPositiveButton("OK", (d, w) -> finish())
-                    .show();
-            return;
-        }
-
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_diagnostic);
 
@@ -149,8 +146,7 @@ public class DiagnosticActivity extends AppCompatActivity {
                     updateStatus("Already connected. Use Reconnect if needed or handle as appropriate.");
                     // usbService.disconnect(); // Example if you want connect to also act as disconnect
                 } else {
-                    updateStatus("Searching for USB device...");
-                    usbService.findSerialPortDevice();
+                    connectAdapter();
                 }
             } else if (!bound) {
                 updateStatus("Service not bound. Please wait or restart app.");
@@ -165,11 +161,11 @@ public class DiagnosticActivity extends AppCompatActivity {
                     postKLineInitAction = POST_KLINE_INIT_ACTION_READ_DTCS;
                     // Ensure KWP2000Manager.ECU_ADDRESS is defined and correct
                     // e.g., public static final byte ECU_ADDRESS = (byte) 0x12; in KWP2000Manager
-                    kLine.perform5BaudInit(KWP2000Manager.ECU_ADDRESS);
+                    kLine.performInit(ecuAddress(), preferredInit());
                 } else {
                     updateStatus("Reading DTCs...");
                     try {
-                        kwp.readDTCs();
+                        onResponse(kwp.readDTCs());
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -185,7 +181,7 @@ public class DiagnosticActivity extends AppCompatActivity {
                     updateStatus("Initializing K-Line for Clear DTCs...");
                     // Store the action to perform after successful init
                     postKLineInitAction = POST_KLINE_INIT_ACTION_CLEAR_DTCS;
-                    kLine.perform5BaudInit(KWP2000Manager.ECU_ADDRESS);
+                    kLine.performInit(ecuAddress(), preferredInit());
                 } else {
                     showClearDtcConfirmationDialog();
                 }
@@ -194,18 +190,36 @@ public class DiagnosticActivity extends AppCompatActivity {
             }
         });
 
+        findViewById(R.id.btnStats).setOnClickListener(v ->
+                startActivity(new Intent(this, BusStatsActivity.class)));
+
         updateButtonStates();
+        detectAdapter();
         // Bind to UsbService
         Intent intent = new Intent(this, UsbService.class);
         bindService(intent, conn, Context.BIND_AUTO_CREATE);
     }
 
+    // Holds the session open between button presses; re-init is only needed if the ECU stops answering
+    private void startKeepAlive() {
+        try {
+            kwp.startKeepAlive(error -> runOnUiThread(() -> {
+                kLineInitialized = false;
+                kwp.stopKeepAlive();
+                updateStatus("ECU session lost. K-Line will be re-initialized on the next request.");
+                updateButtonStates();
+            }));
+        } catch (IOException e) {
+            Log.w(TAG, "Keepalive not started", e);
+        }
+    }
+
     private void performPostKLineInitAction() {
         switch (postKLineInitAction) {
             case POST_KLINE_INIT_ACTION_READ_DTCS:
                 updateStatus("K-Line Ready. Reading DTCs...");
                 try {
-                    kwp.readDTCs();
+                    onResponse(kwp.readDTCs());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -225,7 +239,7 @@ public class DiagnosticActivity extends AppCompatActivity {
                 .setPositiveButton("Clear", (dialog, which) -> {
                     updateStatus("Clearing DTCs...");
                     try {
-                        kwp.clearDTCs();
+                        onResponse(kwp.clearDTCs());
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -237,6 +251,7 @@ public class DiagnosticActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (kwp != null) kwp.stopKeepAlive();
         if (bound) {
             unbindService(conn);
             bound = false;
@@ -268,81 +283,50 @@ public class DiagnosticActivity extends AppCompatActivity {
             Log.w(TAG, "Received null or empty data from serial port.");
             return;
         }
+        // Raw traffic only; responses arrive matched to their request through onResponse()
+        if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Raw Data Received: " + UsbService.bytesToHex(data));
+    }
 
-        // Log raw data for debugging
-        // Log.d(TAG, "Raw Data Received: " + UsbService.bytesToHex(data)); // Assuming UsbService has bytesToHex
-
-        // More robust check for KWP2000 DTC Response (ISO 14230-3)
-        // A typical positive response to "Read DTCs By Status" (SID 0x18) is SID 0x58.
-        // Format: [FMT] [TGT] [SRC] [LEN] [SID_RESP] [DTC_COUNT_OR_OTHER_PARAMS...] [DTCs...] [CS]
-        // Assuming your KWP2000Manager constants are correct.
-        // The SID is usually the 4th or 5th byte depending on header format.
-        // If data[3] is length, then data[4] is SID.
-        // Let's assume a common structure where SID is at index 4 (after FMT, TGT, SRC, LEN)
-        // This needs to align with your KWP2000Manager.makeMsg() and actual ECU response.
-
-        // This check needs to be specific to your ECU's KWP2000 response format.
-        // For example, if your makeMsg produces a header of 4 bytes before SID:
-        // Byte 0: Format (e.g. 0x80)
-        // Byte 1: Target
-        // Byte 2: Source
-        // Byte 3: Length of (SID + Data)
-        // Then, in the response, assuming similar header:
-        // Byte 0: Format (e.g. 0x80 or echo of request's source becoming target)
-        // Byte 1: Target (Tester)
-        // Byte 2: Source (ECU)
-        // Byte 3: Length
-        // Byte 4: Response SID (e.g., 0x18 + 0x40 = 0x58)
-
-        // The original check data[3] might be if there's no explicit format/target/source in the response prefix being checked
-        // or if it refers to a specific known offset. Let's be cautious.
-        // If KWP2000Manager.POSITIVE_RESPONSE_OFFSET is 0x40, and READ_DIAGNOSTIC_TROUBLE_CODES is 0x18, then expected SID is 0x58.
-
-        // Find the actual SID in the response. This depends heavily on your KWP2000 message structure.
-        // For now, let's assume the previous logic for data[3] was based on a simplified structure
-        // or a known offset for the response SID after some initial bytes.
-        // This is a critical part to get right based on your ECU.
-
-        byte responseSid = -1;
-        if (data.length >= 5) { // Assuming at least Header (4 bytes) + SID (1 byte)
-            // This is an assumption that the SID is at index 4 of the KWP2000 frame
-            responseSid = data[4];
-        } else if (data.length >= 4 && (data[0] & 0xC0) == 0x80) {
-            // Alternative check if data[3] was SID for some reason (e.g. no target/source in simple response)
-            // This is less likely for full KWP2000 responses. The original check was on data[3].
-            // Let's stick to the previous assumption for now, but highlight it needs verification.
-            // responseSid = data[3]; // Previous logic used this
-        }
+    /** Shows the answer to a request on the UI thread once the scheduler has matched it. */
+    private void onResponse(ResponseFuture request) {
+        request.whenComplete((payload, error) -> runOnUiThread(() -> {
+            if (payload != null) {
+                handleResponse(request.getSid(), payload);
+            } else if (error instanceof NegativeResponseException) {
+                NegativeResponseException nr = (NegativeResponseException) error;
+                updateStatus(String.format("ECU rejected service %02X (code %02X).", nr.getSid(), nr.getCode()));
+            } else {
+                updateStatus("No valid response: " + error.getMessage());
+            }
+        }));
+    }
 
+    private void handleResponse(int sid, byte[] payload) {
+        int responseSid = payload[0] & 0xFF;
 
-        // Let's use a more explicit check for the positive response SID
-        if (kwp != null && responseSid == (KWP2000Manager.READ_DIAGNOSTIC_TROUBLE_CODES + KWP2000Manager.POSITIVE_RESPONSE_OFFSET)) {
+        if (kwp != null && sid == (KWP2000Manager.READ_DIAGNOSTIC_TROUBLE_CODES & 0xFF)) {
             updateStatus("DTC Response Received. Parsing...");
-            List<String> codes = kwp.parseDTCResponse(data); // kwp.parseDTCResponse should handle the full frame
+            List<String> codes = kwp.parseDTCResponse(payload);
             if (codes != null && !codes.isEmpty()) {
                 dtcList.clear(); // Clear previous DTCs
                 for (String c : codes) {
                     dtcList.add(new DTC(c, getDTCDescription(c), new Date()));
                 }
-                runOnUiThread(() -> {
-                    adapter.setItems(new ArrayList<>(dtcList)); // Update adapter with new list
-                    updateStatus("Found " + dtcList.size() + " DTC(s).");
-                });
+                adapter.setItems(new ArrayList<>(dtcList)); // Update adapter with new list
+                updateStatus("Found " + dtcList.size() + " DTC(s).");
             } else if (codes != null) { // codes is not null but empty
-                runOnUiThread(() -> {
-                    dtcList.clear();
-                    adapter.setItems(new ArrayList<>(dtcList));
-                    updateStatus("No DTCs reported by ECU.");
-                });
+                dtcList.clear();
+                adapter.setItems(new ArrayList<>(dtcList));
+                updateStatus("No DTCs reported by ECU.");
             } else { // codes is null (parsing failed)
                 updateStatus("Failed to parse DTC response.");
             }
-        } else if (responseSid != -1) {
-            // Handle other KWP2000 responses or negative responses
-            updateStatus("Received KWP2000 response (SID: " + String.format("%02X", responseSid) + "). Not a DTC list or unexpected.");
-            // Add more logic here to parse negative responses (e.g., if SID is 0x7F)
-        } else if (data.length > 0) {
-            updateStatus("Received data, but could not identify as DTC response. Length: " + data.length);
+        } else if (sid == (KWP2000Manager.CLEAR_DIAGNOSTIC_INFORMATION & 0xFF)) {
+            dtcList.clear();
+            adapter.setItems(new ArrayList<>(dtcList));
+            updateStatus("DTCs cleared.");
+        } else {
+            updateStatus("Received KWP2000 response (SID: " + String.format("%02X", responseSid) + ").");
         }
     }
 
@@ -352,33 +336,137 @@ public class DiagnosticActivity extends AppCompatActivity {
         return "Description for " + code;
     }
 
-    private ConnectionType detectAdapter() {
-        // 1) USB
-        if (usbService != null && usbService.getSerialPort() != null && usbService.isConnected()) {
-            return ConnectionType.USB;
-        }
+    /**
+     * Probes USB, Bluetooth and Wi-Fi in parallel off the main thread, taking the last
+     * known good adapter as soon as it shows up.
+     */
+    private void detectAdapter() {
+        Context app = getApplicationContext();
+        new Thread(() -> {
+            // Reads the profile file, so not on the main thread
+            ConnectionProfileStore store = profiles;
+            if (store == null) profiles = store = new ConnectionProfileStore(app);
+            ConnectionProfile found = new ConnectionFinder(app, store).find();
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                if (found == null) {
+                    new androidx.appcompat.app.AlertDialog.Builder(this)
+                            .setTitle("No Adapter Found")
+                            .setMessage("Connect USB, Bluetooth, or Wi-Fi adapter.")
+                            .setPositiveButton("OK", (d, w) -> finish())
+                            .show();
+                    return;
+                }
+                profile = found;
+                applyLineControl();
+                updateStatus(found.getKind() + " adapter found" +
+                        (found.getInitMethod() != null ? " (last init: " + found.getInitMethod() + ")" : "") + ".");
+            });
+        }, "adapter-detect").start();
+    }
 
-        // 2) Bluetooth
-        BluetoothAdapter blue = BluetoothAdapter.getDefaultAdapter();
-        if (blue != null && blue.isEnabled()) {
-            for (BluetoothDevice dev : blue.getBondedDevices()) {
-                // Consider making "MyKwpAdapter" a constant or more robust check
-                if ("MyKwpAdapter".equals(dev.getName())) { // Example name
-                    // You might need to attempt a connection here to be sure
-                    return ConnectionType.BLUETOOTH;
+    /**
+     * Connects through the adapter detection picked, at its saved line speed: USB through
+     * the service's port, Bluetooth and Wi-Fi by opening their socket off the main thread
+     * and handing it to the service. Without a profile the USB search runs as before.
+     */
+    private void connectAdapter() {
+        ConnectionProfile p = profile;
+        if (p == null || p.getKind() == ConnectionProfile.Kind.USB) {
+            if (p != null) usbService.setConnectBaud(p.getBaud());
+            updateStatus("Searching for USB device...");
+            usbService.findSerialPortDevice();
+            return;
+        }
+        updateStatus("Connecting to " + p.getKind() + " adapter " + p.getEndpoint() + "...");
+        new Thread(() -> {
+            Transport link = openStreamAdapter(p);
+            runOnUiThread(() -> {
+                if (link == null) {
+                    updateStatus("Could not connect to " + p.getEndpoint() + ".");
+                    return;
                 }
-            }
+                if (isFinishing() || usbService == null) {
+                    link.close();
+                    return;
+                }
+                usbService.attachTransport(link);
+                updateButtonStates();
+            });
+        }, "adapter-connect").start();
+    }
+
+    /** Opens the Bluetooth or Wi-Fi adapter of {@code p}; blocks, null if it did not connect. */
+    private static Transport openStreamAdapter(ConnectionProfile p) {
+        String endpoint = p.getEndpoint();
+        if (p.getKind() == ConnectionProfile.Kind.BLUETOOTH) {
+            BluetoothSerialService bt = new BluetoothSerialService();
+            return bt.connect(endpoint) ? bt : null;
+        }
+        int colon = endpoint.lastIndexOf(':');
+        int port;
+        try {
+            port = Integer.parseInt(endpoint.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad Wi-Fi endpoint " + endpoint);
+            return null;
         }
+        WifiSerialService wifi = new WifiSerialService();
+        return wifi.connect(endpoint.substring(0, colon), port) ? wifi : null;
+    }
 
-        // 3) Wi-Fi
-        try (Socket s = new Socket()) {
-            // Make IP and Port configurable or constants
-            s.connect(new InetSocketAddress("192.168.0.10", 35000), 200); // 200ms timeout
-            return ConnectionType.WIFI;
-        } catch (IOException ignored) {
-            // Log the exception for debugging if needed
+    /** Hands the profile's K-Line control settings to the USB port once both are known. */
+    private void applyLineControl() {
+        ConnectionProfile p = profile;
+        if (p != null && usbService != null && p.getKind() == ConnectionProfile.Kind.USB) {
+            usbService.setLineControl(p.getLineMode(), p.getLineInverted());
         }
+    }
+
+    private byte ecuAddress() {
+        ConnectionProfile p = profile;
+        return p != null ? (byte) p.getEcuAddress() : KWP2000Manager.ECU_ADDRESS;
+    }
+
+    private KLineInit.Method preferredInit() {
+        ConnectionProfile p = profile;
+        return p != null ? p.getInitMethod() : null;
+    }
+
+    /** Saves the init that just worked, so the next connect to this adapter starts with it. */
+    private void rememberWorkingInit() {
+        ConnectionProfile p = profile;
+        KLineInit.Result r = kLine != null ? kLine.getLastResult() : null;
+        if (p == null || r == null || !r.getSuccess() || usbService == null) return;
+        saveProfile(new ConnectionProfile(p.getAdapterId(), p.getKind(), p.getEndpoint(),
+                r.getBaud(), r.getMethod(), ecuAddress() & 0xFF, p.getVin(), System.currentTimeMillis(),
+                usbService.getLineMode(), usbService.isLineInverted()));
+    }
+
+    /** Asks the ECU for its VIN after init and stores it with the profile, as a second lookup key. */
+    private void readVin() {
+        if (kwp == null) return;
+        try {
+            kwp.readVin().whenComplete((payload, error) -> {
+                String vin = KWP2000Manager.parseVin(payload);
+                ConnectionProfile p = profile;
+                if (vin == null || p == null || vin.equals(p.getVin())) {
+                    if (vin == null) Log.i(TAG, "No VIN in the ECU's answer", error);
+                    return;
+                }
+                runOnUiThread(() -> updateStatus("VIN " + vin + "."));
+                saveProfile(new ConnectionProfile(p.getAdapterId(), p.getKind(), p.getEndpoint(),
+                        p.getBaud(), p.getInitMethod(), p.getEcuAddress(), vin, p.getLastUsed(),
+                        p.getLineMode(), p.getLineInverted()));
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "VIN not read", e);
+        }
+    }
 
-        return ConnectionType.NONE;
+    private void saveProfile(ConnectionProfile updated) {
+        profile = updated;
+        ConnectionProfileStore store = profiles;
+        if (store != null) new Thread(() -> store.save(updated), "profile-save").start();
     }
 }
\ No newline at end of file
@@ -1,16 +1,35 @@
 package com.kimboflash
 
+import android.util.Log
+import com.kimboflash.protocol.BusStats
+import com.kimboflash.protocol.FramedChannel
+import com.kimboflash.rom.RomImage
 import java.io.File
+import java.nio.ByteBuffer
 import kotlin.concurrent.thread
 
 /**
  * Handles ECU communication over Bluetooth or USB and
  * implements a basic DS2/KWP2000 flash sequence.
+ *
+ * Requests and answers go through a [FramedChannel], which frames them,
+ * reassembles answers however the adapter chunks them, and times every
+ * request/answer pair per service id into [stats].
  */
 class EcuFlashService(
     private val btService: CommService,
-    private val usbService: CommService
+    private val usbService: CommService,
+    private val stats: BusStats = BusStats.DEFAULT
 ) {
+    companion object {
+        private const val TAG = "EcuFlashService"
+        /** Data bytes per 0x36 frame when the ECU does not report a block length. */
+        private const val DEFAULT_BLOCK = 128
+        /** Largest K-Line frame payload: SID + counter + data within one length byte. */
+        private const val MAX_FRAME = 255
+        private const val PREP_TIMEOUT_MS = 2000L
+    }
+
     enum class CommType { BLUETOOTH, USB }
     var currentCommType = CommType.BLUETOOTH
         private set
@@ -18,64 +37,181 @@ class EcuFlashService(
     fun useUsbCommunication()     { currentCommType = CommType.USB }
     fun useBluetoothCommunication() { currentCommType = CommType.BLUETOOTH }
 
+    /** Effective payload throughput of one read or write phase. */
+    class Throughput(val operation: String, val bytes: Long, val nanos: Long, val baud: Int) {
+        val bytesPerSecond: Double get() = if (nanos == 0L) 0.0 else bytes * 1e9 / nanos
+
+        override fun toString() = "%s: %d bytes in %.1f s, %.0f B/s at %d baud"
+            .format(operation, bytes, nanos / 1e9, bytesPerSecond, baud)
+    }
+
+    /** Throughput of the last flash or read-back, for the UI and the log. */
+    @Volatile
+    var lastThroughput: Throughput? = null
+        private set
+
+    /** Fastest line speed to negotiate after session start; [BaudNegotiator.DEFAULT_BAUD] disables it. */
+    var maxBaud = 115200
+
+    private var sessionBaud = BaudNegotiator.DEFAULT_BAUD
+
+    /** Frame slots of the last transfer, kept so repeated flashes reuse the same direct buffer. */
+    private var frameBuffer: ByteBuffer? = null
+
     /**
-     * Flash the .bin file at [path] to the ECU using a KWP2000/DS2 sequence.
+     * Flash the .bin file at [path] to the ECU using a KWP2000/DS2 sequence,
+     * starting at ECU memory [address]. The whole image is erased and
+     * written: there is no verified MS4x sector layout or ranged erase to
+     * limit a flash to the sectors that changed.
      */
-    fun writeTuneFile(path: String, callback: (Boolean) -> Unit) {
+    fun writeTuneFile(path: String, address: Int = 0, callback: (Boolean) -> Unit) {
         thread {
             try {
-                val data = File(path).readBytes()
-                val svc = if (currentCommType == CommType.BLUETOOTH) btService else usbService
-
-                // 1) Start Diagnostic Session
-                svc.send(byteArrayOf(0x10.toByte(), 0x81.toByte()))
-                waitForPositive(svc, 0x50)
-
-                // 2) Security Access (seed/key)
-                svc.send(byteArrayOf(0x27.toByte(), 0x01.toByte()))
-                val seed = waitForSeed(svc)
-                val key  = computeBmwKey(seed)
-                svc.send(byteArrayOf(0x27.toByte(), 0x02.toByte()) + key)
-                waitForPositive(svc, 0x67)
-
-                // 3) Optional: erase routine
-                svc.send(byteArrayOf(0x31.toByte(), 0x01.toByte(), 0xFF.toByte()))
-                waitForPositive(svc, 0x71)
-
-                // 4) Transfer Data in chunks
-                val chunkSize = 128
-                var counter: Byte = 1
-                var offset = 0
-                while (offset < data.size) {
-                    val end = (offset + chunkSize).coerceAtMost(data.size)
-                    val chunk = data.copyOfRange(offset, end)
-                    val msg = byteArrayOf(0x36.toByte(), counter) + chunk
-                    svc.send(msg)
-                    waitForSpecificResponse(svc, 0x76, counter)
-                    counter = (counter + 1).toByte()
-                    offset = end
+                val link = FramedChannel(if (currentCommType == CommType.BLUETOOTH) btService else usbService, stats = stats)
+
+                // 1) - 2) Diagnostic session and security access
+                openSession(link)
+
+                RomImage.map(File(path), writable = false).use { image ->
+                    // 3) Optional: erase routine
+                    link.send(byteArrayOf(0x31.toByte(), 0x01.toByte(), 0xFF.toByte()))
+                    waitForPositive(link, 0x71)
+
+                    // 4) - 6) Download the whole image
+                    download(link, image, address)
                 }
 
-                // 5) Request Transfer Exit
-                svc.send(byteArrayOf(0x37.toByte()))
-                waitForPositive(svc, 0x77)
+                callback(true)
+            } catch (e: Exception) {
+                Log.e(TAG, "Flash failed", e)
+                callback(false)
+            } finally {
+                closeSession()
+            }
+        }
+    }
 
+    /**
+     * Backs up [size] bytes of ECU memory at [address] into the file at
+     * [path]. A previous interrupted backup to the same file is resumed; see
+     * [RomReader]. [progress] receives live bytes per second.
+     */
+    fun readRom(
+        path: String,
+        address: Int,
+        size: Int,
+        progress: RomReader.Progress? = null,
+        callback: (Boolean) -> Unit
+    ) {
+        thread {
+            try {
+                val link = FramedChannel(if (currentCommType == CommType.BLUETOOTH) btService else usbService, stats = stats)
+                openSession(link)
+                val t0 = System.nanoTime()
+                // Resumed segments were not transferred now and must not inflate the rate
+                val read = RomReader(link).read(File(path), address, size, RomReader.MAX_SEGMENT, progress)
+                report(Throughput("Read", read, System.nanoTime() - t0, sessionBaud))
                 callback(true)
-            } catch (_: Exception) {
+            } catch (e: Exception) {
+                Log.e(TAG, "ROM read failed", e)
                 callback(false)
+            } finally {
+                closeSession()
+            }
+        }
+    }
+
+    /** Start Diagnostic Session at the fastest agreed speed, then Security Access (seed/key). */
+    private fun openSession(link: FramedChannel) {
+        link.send(byteArrayOf(0x10.toByte(), 0x81.toByte()))
+        waitForPositive(link, 0x50)
+        sessionBaud = BaudNegotiator(link).negotiate(0x81, maxBaud)
+
+        link.send(byteArrayOf(0x27.toByte(), 0x01.toByte()))
+        val seed = waitForSeed(link)
+        val key  = computeBmwKey(seed)
+        link.send(byteArrayOf(0x27.toByte(), 0x02.toByte()) + key)
+        waitForPositive(link, 0x67)
+    }
+
+    /** Leaves the adapter at the speed the next session's init expects. */
+    private fun closeSession() {
+        val svc = if (currentCommType == CommType.BLUETOOTH) btService else usbService
+        if (sessionBaud != BaudNegotiator.DEFAULT_BAUD) svc.setBaudRate(BaudNegotiator.DEFAULT_BAUD)
+        sessionBaud = BaudNegotiator.DEFAULT_BAUD
+    }
+
+    /** RequestDownload, TransferData and RequestTransferExit for the whole [image]. */
+    private fun download(link: FramedChannel, image: RomImage, address: Int) {
+        val t0 = System.nanoTime()
+        // Request Download, which also tells us the largest block the ECU takes
+        val blockSize = requestDownload(link, address, image.size)
+
+        // Transfer Data, with the next frames prepared while waiting for each ack
+        transfer(link, image, blockSize)
+
+        // Request Transfer Exit
+        link.send(byteArrayOf(0x37.toByte()))
+        waitForPositive(link, 0x77)
+        report(Throughput("Write", image.size.toLong(), System.nanoTime() - t0, sessionBaud))
+    }
+
+    private fun report(t: Throughput) {
+        lastThroughput = t
+        Log.i(TAG, t.toString())
+    }
+
+    /**
+     * Sends RequestDownload for [size] bytes at [address] and returns the data
+     * bytes per TransferData frame. The 0x74 response carries the maximum block
+     * length (SID and counter included) in one or two bytes.
+     */
+    private fun requestDownload(link: FramedChannel, address: Int, size: Int): Int {
+        link.send(byteArrayOf(
+            0x34.toByte(),
+            (address shr 16).toByte(), (address shr 8).toByte(), address.toByte(),
+            0x00,
+            (size shr 16).toByte(), (size shr 8).toByte(), size.toByte()
+        ))
+        val resp = link.receive()
+        if (resp.isEmpty() || resp[0].toInt() != 0x74) {
+            throw RuntimeException("RequestDownload rejected")
+        }
+        val maxLength = when (resp.size) {
+            2 -> resp[1].toInt() and 0xFF
+            3 -> ((resp[1].toInt() and 0xFF) shl 8) or (resp[2].toInt() and 0xFF)
+            else -> 0
+        }
+        val block = if (maxLength > 2) minOf(maxLength, MAX_FRAME) - 2 else DEFAULT_BLOCK
+        Log.i(TAG, "Transfer block size $block (ECU max length $maxLength)")
+        return block
+    }
+
+    private fun transfer(link: FramedChannel, image: RomImage, blockSize: Int) {
+        TransferPipeline(image, blockSize, frameBuffer).use { pipeline ->
+            frameBuffer = pipeline.buffer
+            for (f in 0 until pipeline.frameCount) {
+                val slot = pipeline.next(PREP_TIMEOUT_MS)
+                val counter = pipeline.counter(slot)
+                link.send(pipeline.frame(slot))
+                // The slot's bytes are on the wire; let the producer refill it during the ack wait
+                pipeline.release(slot)
+                waitForSpecificResponse(link, 0x76, counter)
             }
+            Log.i(TAG, "Transferred ${pipeline.frameCount} frames, data sum 0x${pipeline.dataSum.toString(16)}")
         }
     }
 
-    private fun waitForPositive(svc: CommService, serviceId: Int) {
-        val resp = svc.receiveBytes()
-        if (resp.isEmpty() || resp[0].toInt() != (serviceId + 0x40)) {
+    /** Expects the positive response [code], e.g. 0x50 for StartDiagnosticSession. */
+    private fun waitForPositive(link: FramedChannel, code: Int) {
+        val resp = link.receive()
+        if (resp.isEmpty() || resp[0].toInt() and 0xFF != code) {
             throw RuntimeException("Unexpected positive response")
         }
     }
 
-    private fun waitForSeed(svc: CommService): ByteArray {
-        val resp = svc.receiveBytes()
+    private fun waitForSeed(link: FramedChannel): ByteArray {
+        val resp = link.receive()
         if (resp.size < 3 || resp[0].toInt() != 0x67 || resp[1].toInt() != 0x01) {
             throw RuntimeException("Invalid seed response")
         }
@@ -89,8 +225,8 @@ class EcuFlashService(
         }
     }
 
-    private fun waitForSpecificResponse(svc: CommService, code: Int, counter: Byte) {
-        val resp = svc.receiveBytes()
+    private fun waitForSpecificResponse(link: FramedChannel, code: Int, counter: Byte) {
+        val resp = link.receive()
         if (resp.size < 2 || resp[0].toInt() != code || resp[1] != counter) {
             throw RuntimeException("Unexpected transfer response")
         }
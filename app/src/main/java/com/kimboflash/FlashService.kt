@@ -1,16 +1,129 @@
 package com.kimboflash
 
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import com.kimboflash.connection.ConnectionFinder
+import com.kimboflash.connection.ConnectionProfile
+import com.kimboflash.connection.ConnectionProfileStore
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+/**
+ * Which adapters are reachable, found without ever blocking the caller.
+ *
+ * [refresh] runs [ConnectionFinder.scan] on a background thread; each probe
+ * publishes its result into [state] the moment it finishes, and listeners
+ * hear about every change on the main thread. A probe that has not answered
+ * within [PROBE_TIMEOUT_MS] counts as nothing found, so the screen never
+ * waits on a stuck socket or Bluetooth stack.
+ *
+ * Results are cached for [MAX_AGE_MS]: returning to a screen shows them
+ * again without reconnecting to every Wi-Fi endpoint; [refresh] with
+ * `force` rescans on demand.
+ */
 object FlashService {
-    fun isBluetoothConnected(): Boolean {
-        // TODO: actual Bluetooth connection detection
-        return false
+    const val PROBE_TIMEOUT_MS = 1500L
+    const val MAX_AGE_MS = 30_000L
+
+    /** Snapshot of the last discovery; replaced, never mutated. */
+    class State(
+        val usb: List<ConnectionProfile> = emptyList(),
+        val bluetooth: List<ConnectionProfile> = emptyList(),
+        val wifi: List<ConnectionProfile> = emptyList(),
+        /** Probes still running. */
+        val pending: Int = 0
+    ) {
+        val scanning: Boolean get() = pending > 0
+        val connected: Boolean get() = usb.isNotEmpty() || bluetooth.isNotEmpty() || wifi.isNotEmpty()
     }
-    fun isUsbConnected(): Boolean {
-        // TODO: actual USB connection detection
-        return false
+
+    fun interface Listener {
+        fun onStateChanged(state: State)
+    }
+
+    @Volatile
+    var state = State()
+        private set
+
+    /** Wi-Fi adapter endpoints ("host:port") probed besides the ones saved in profiles. */
+    @Volatile
+    var wifiEndpoints: List<String> = listOf(ConnectionFinder.DEFAULT_WIFI_ENDPOINT)
+
+    private val listeners = CopyOnWriteArrayList<Listener>()
+    private val main = Handler(Looper.getMainLooper())
+    private val pool = Executors.newSingleThreadExecutor { r -> Thread(r, "discovery").apply { isDaemon = true } }
+    /** Bumped per refresh, so late results of an older run are ignored. */
+    private var generation = 0
+    /** Monotonic time the last run finished; 0 before the first. */
+    private var finishedAt = 0L
+    /** Loaded on the discovery thread by the first run. */
+    private var store: ConnectionProfileStore? = null
+
+    fun addListener(listener: Listener) {
+        listeners.add(listener)
     }
-    fun isWifiConnected(): Boolean {
-        // TODO: actual Wi-Fi connection detection
-        return false
+
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
     }
+
+    /**
+     * Starts a new discovery run and returns at once; ignored while one is
+     * still running, and unless [force] also while the last result is
+     * younger than [MAX_AGE_MS].
+     */
+    @JvmOverloads
+    fun refresh(context: Context, force: Boolean = false) {
+        val app = context.applicationContext
+        val run: Int
+        synchronized(this) {
+            if (state.scanning) return
+            if (!force && finishedAt != 0L && SystemClock.elapsedRealtime() - finishedAt < MAX_AGE_MS) return
+            run = ++generation
+            // One pending slot for the setup below, which reads the profile file
+            state = State(state.usb, state.bluetooth, state.wifi, 1)
+        }
+        publish()
+
+        pool.execute {
+            val profiles = store ?: ConnectionProfileStore(app).also { store = it }
+            val finder = ConnectionFinder(app, profiles)
+            val endpoints = finder.wifiEndpoints(wifiEndpoints)
+            // Wi-Fi results accumulate over the endpoint probes, so clear the old ones first
+            update(run) { s -> State(s.usb, s.bluetooth, emptyList(), s.pending - 1 + 2 + endpoints.size) }
+            finder.scan(endpoints, PROBE_TIMEOUT_MS) { kind, found ->
+                update(run) { s ->
+                    when (kind) {
+                        ConnectionProfile.Kind.USB -> State(found, s.bluetooth, s.wifi, s.pending - 1)
+                        ConnectionProfile.Kind.BLUETOOTH -> State(s.usb, found, s.wifi, s.pending - 1)
+                        ConnectionProfile.Kind.WIFI -> State(s.usb, s.bluetooth, s.wifi + found, s.pending - 1)
+                    }
+                }
+            }
+            synchronized(this) {
+                if (run == generation) finishedAt = SystemClock.elapsedRealtime()
+            }
+        }
+    }
+
+    private fun update(run: Int, change: (State) -> State) {
+        synchronized(this) {
+            if (run != generation) return
+            state = change(state)
+        }
+        publish()
+    }
+
+    private fun publish() {
+        val s = state
+        main.post { for (l in listeners) l.onStateChanged(s) }
+    }
+
+    fun isBluetoothConnected(): Boolean = state.bluetooth.isNotEmpty()
+
+    fun isUsbConnected(): Boolean = state.usb.isNotEmpty()
+
+    fun isWifiConnected(): Boolean = state.wifi.isNotEmpty()
 }
@@ -1,10 +1,17 @@
 package com.kimboflash;
 
-// Removed: import android.os.Handler; // No longer directly used here
 import android.util.Log;
 
+import com.kimboflash.protocol.KLineInit;
+import com.kimboflash.transport.UsbTransport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Handles K-Line initialization (5-baud and fast init) for KWP2000 ECUs.
+ * The timing itself lives in {@link KLineInit}; this class runs it on one
+ * long-lived init thread and reports the outcome to the UI.
  */
 public class KLineManager {
     private static final String TAG = "KLineManager";
@@ -23,23 +30,16 @@ public class KLineManager {
     private static final byte DEFAULT_ECU_ADDRESS = (byte) 0x12;  // Default Target: ECU (e.g., DME)
     private static final byte DEFAULT_TESTER_ADDRESS = (byte) 0xF1; // Default Source: tester
 
-    // Baud rates
-    private static final int KLINE_BAUD_FAST = 10400;  // 10.4 kbps (standard K-Line)
-    private static final int KLINE_BAUD_5 = 5;         // 5 baud (for 5-baud init, bit time 200ms)
-
-    // Timing guard intervals (ms)
-    // P1: Min time between init sequence completion and first request. (ISO 14230-2: 0-20ms)
-    // P2: Max time for ECU to respond to request (ISO 14230-2: 25-50ms for physical)
-    // P3: Min time between end of ECU response and start of new request (ISO 14230-2: min 55ms)
-    // P4: Inter-byte time for ECU response (ISO 14230-2: 0-20ms)
-    private static final int DELAY_AFTER_5_BAUD_INIT_BITS = 50; // Delay after sending 5-baud bits before switching baud
-    private static final int DELAY_AFTER_BAUD_SWITCH = 25; // Delay after switching to fast baud before expecting sync
-    private static final int DELAY_MIN_AFTER_INIT_SUCCESS = 55; // P3 minimum, effectively. Or P1 if no sync byte expected.
-
-    // Durations for Fast Init
-    private static final int FAST_INIT_LOW_DURATION_MS = 25;
-    private static final int FAST_INIT_HIGH_DURATION_MS = 25;
+    // Edge timing is sensitive to scheduling, so inits run on one high-priority thread
+    private final ExecutorService initThread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "kline-init");
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.setDaemon(true);
+        return t;
+    });
 
+    // Last init outcome, for diagnostics
+    private volatile KLineInit.Result lastResult;
 
     /**
      * Constructor for KLineManager.
@@ -49,240 +49,112 @@ public class KLineManager {
         this.usbService = usbService;
     }
 
+    public KLineInit.Result getLastResult() {
+        return lastResult;
+    }
+
     /**
-     * Perform the classic 5-baud initialization to wake up an ECU.
-     * - Drives K-line low/high manually at ~5 baud to send the ECU's address byte.
-     * - Then switches the adapter to the standard K-Line baud rate (10.4kbps).
-     * - Waits for the ECU to send sync bytes (e.g., 0x55, KeyBytes).
+     * Perform the classic 5-baud initialization to wake up an ECU: the address byte at
+     * 5 baud, then sync and key bytes from the ECU and the inverted handshake bytes.
      *
      * @param ecuAddress The logical address of the ECU to initialize.
      */
     public void perform5BaudInit(final byte ecuAddress) {
-        new Thread(() -> {
-            boolean success = false;
+        initThread.execute(() -> {
+            postStatus("Starting 5-baud init for address 0x" + String.format("%02X", ecuAddress) + "...");
+            CommService port = claim();
+            if (port == null) {
+                postStatus(KLINE_INIT_FAILED_MSG + ": USB not connected or port not open.");
+                return;
+            }
             try {
-                postStatus("Starting 5-baud init for address 0x" + String.format("%02X", ecuAddress) + "...");
-
-                // Ensure USB port is open and ready
-                if (!usbService.isConnected() || !usbService.isSerialPortOpen()) {
-                    postStatus(KLINE_INIT_FAILED_MSG + ": USB not connected or port not open.");
-                    return;
-                }
-
-                // Send the address byte using 5-baud timing
-                send5BaudByte(ecuAddress);
-                Thread.sleep(DELAY_AFTER_5_BAUD_INIT_BITS); // Small delay after bits are sent
-
-                // Tell the adapter to switch to the fast K-Line baud rate
-                if (!usbService.setBaudRate(KLINE_BAUD_FAST)) {
-                    postStatus(KLINE_INIT_FAILED_MSG + ": Failed to set fast baud rate.");
-                    return;
-                }
-                Thread.sleep(DELAY_AFTER_BAUD_SWITCH); // Give adapter time to switch and ECU to prepare
-
-                postStatus("Switched to " + KLINE_BAUD_FAST + "bps. Waiting for ECU sync...");
-
-                // At this point, the UsbService should be configured to read incoming data.
-                // The ECU should respond with:
-                // 1. Sync byte (0x55)
-                // 2. Key Byte 1 (KB1)
-                // 3. Key Byte 2 (KB2)
-                // 4. Inverted Key Byte 2 (optional, or sometimes inverted address)
-                // The UsbService's read callback (in DiagnosticActivity) will receive these.
-                // Actual success is determined by receiving and validating these bytes.
-                // For this KLineManager, we assume the setup is done.
-                // A more complete implementation here might involve a loop reading bytes with timeouts.
-                // However, since UsbService handles reads, we'll just indicate setup completion.
-
-                // For now, we'll assume setting up for read is success from KLineManager's perspective.
-                // The DiagnosticActivity will verify the actual sync bytes.
-                success = true; // Placeholder for now. Actual success is verified by receiving sync bytes.
-                postStatus(KLINE_INIT_SUCCESS_MSG); // DiagnosticActivity will confirm with received data.
-                Thread.sleep(DELAY_MIN_AFTER_INIT_SUCCESS);
-
-
-            } catch (InterruptedException e) {
-                Log.e(TAG, "5-baud init interrupted", e);
-                postStatus(KLINE_INIT_FAILED_MSG + ": Interrupted.");
-                Thread.currentThread().interrupt(); // Preserve interrupt status
-            } catch (Exception e) { // Catch other potential exceptions from usbService calls
+                KLineInit.Result r = new KLineInit(port).fiveBaudInit(ecuAddress & 0xFF);
+                lastResult = r;
+                postStatus(r.getSuccess() ? KLINE_INIT_SUCCESS_MSG : KLINE_INIT_FAILED_MSG + ": " + r.getMessage());
+            } catch (Exception e) {
                 Log.e(TAG, "Error during 5-baud init", e);
                 postStatus(KLINE_INIT_FAILED_MSG + ": " + e.getMessage());
             } finally {
-                if (!success) {
-                    // Consider any cleanup if needed, e.g., resetting baud rate if applicable
-                }
+                usbService.releaseRawTransport();
             }
-        }).start();
+        });
     }
 
     /**
-     * Sends a byte by manually toggling the K-Line at approximately 5 baud.
-     * Sends: 1 start bit (LOW), 8 data bits (LSB first), 1 stop bit (HIGH).
-     * Each bit duration is ~200ms.
-     *
-     * @param dataByte The byte to send.
-     * @throws InterruptedException if the thread is interrupted.
+     * Fast initialization (ISO 14230-2 "fast init"): 25 ms low, 25 ms high, then
+     * StartCommunication at 10400 baud.
      */
-    private void send5BaudByte(byte dataByte) throws InterruptedException {
-        // Method assumes K-Line HIGH is idle.
-        // A LOW signal is produced by UsbService.lineStateLow() or writing 0x00 at a special baud.
-        // A HIGH signal is produced by UsbService.lineStateHigh() or writing 0xFF at a special baud.
-        // This needs to be coordinated with how UsbService implements direct line control.
-
-        // For FTDI, setting baud to 0 and writing can control lines.
-        // Let's assume usbService.setBaudRate(KLINE_BAUD_5) and usbService.write() works for bit banging
-        // by the underlying usb-serial-for-android library for very low baud rates.
-        // If not, UsbService needs dedicated line control methods.
-
-        Log.d(TAG, "Sending 5-baud byte: 0x" + String.format("%02X", dataByte));
-
-        if (!usbService.setBaudRate(KLINE_BAUD_5)) { // Crucial for some adapters to allow bit-banging via write
-            Log.e(TAG, "Failed to set 5 baud rate for bit banging.");
-            postStatus(KLINE_INIT_FAILED_MSG + ": Failed to set 5-baud.");
-            throw new RuntimeException("Failed to set 5 baud rate for bit banging.");
-        }
-        Thread.sleep(50); // Small delay for baud rate change to take effect
-
-        // Start bit (LOW)
-        usbService.write(new byte[]{0x00}); // Assuming 0x00 at 5 baud = LOW for 200ms
-        Log.d(TAG, "5-baud: Start bit (0)");
-        Thread.sleep(200);
-
-        // Data bits (8 bits, LSB first)
-        for (int i = 0; i < 8; i++) {
-            byte bit = (byte) ((dataByte >> i) & 0x01);
-            usbService.write(new byte[]{bit}); // 0x00 for LOW, 0x01 for HIGH (at 5 baud)
-            Log.d(TAG, "5-baud: Data bit " + i + " = " + bit);
-            Thread.sleep(200);
-        }
-
-        // Stop bit (HIGH)
-        usbService.write(new byte[]{0x01}); // Assuming 0x01 at 5 baud = HIGH for 200ms
-        Log.d(TAG, "5-baud: Stop bit (1)");
-        Thread.sleep(200);
+    public void performFastInit() {
+        initThread.execute(() -> {
+            postStatus("Starting fast K-Line initialization...");
+            CommService port = claim();
+            if (port == null) {
+                postStatus(KLINE_FAST_INIT_FAILED_MSG + ": USB not connected or port not open.");
+                return;
+            }
+            try {
+                KLineInit.Result r = new KLineInit(port).fastInit(DEFAULT_ECU_ADDRESS & 0xFF, DEFAULT_TESTER_ADDRESS & 0xFF);
+                lastResult = r;
+                postStatus(r.getSuccess() ? KLINE_FAST_INIT_SUCCESS_MSG : KLINE_FAST_INIT_FAILED_MSG + ": " + r.getMessage());
+            } catch (Exception e) {
+                Log.e(TAG, "Error during fast init", e);
+                postStatus(KLINE_FAST_INIT_FAILED_MSG + ": " + e.getMessage());
+            } finally {
+                usbService.releaseRawTransport();
+            }
+        });
     }
 
-
     /**
-     * Fast initialization (ISO 14230-2 "fast init"):
-     * - Pull K-line low for 25ms.
-     * - Pull K-line high for 25ms.
-     * - Send StartCommunication KWP2000 frame at normal K-Line baud rate.
+     * Wakes the ECU with {@code preferred} first (the method a saved connection profile
+     * says worked last time) and falls back to the other one. If neither works through the
+     * cable's line control, both are tried once more with the UART fallbacks, and the port
+     * keeps {@link UsbTransport.LineMode#NONE} if that succeeds. Posts the 5-baud
+     * success/failure messages either way; {@link #getLastResult()} tells which won.
      */
-    public void performFastInit() {
-        new Thread(() -> {
-            boolean success = false;
+    public void performInit(final byte ecuAddress, final KLineInit.Method preferred) {
+        initThread.execute(() -> {
+            postStatus("Starting K-Line init for address 0x" + String.format("%02X", ecuAddress) + "...");
+            CommService port = claim();
+            if (port == null) {
+                postStatus(KLINE_INIT_FAILED_MSG + ": USB not connected or port not open.");
+                return;
+            }
             try {
-                postStatus("Starting fast K-Line initialization...");
-
-                if (!usbService.isConnected() || !usbService.isSerialPortOpen()) {
-                    postStatus(KLINE_FAST_INIT_FAILED_MSG + ": USB not connected or port not open.");
-                    return;
-                }
-
-                // Step 1: Set K-Line to normal communication speed
-                if (!usbService.setBaudRate(KLINE_BAUD_FAST)) {
-                    postStatus(KLINE_FAST_INIT_FAILED_MSG + ": Failed to set fast baud for init pulse.");
-                    return;
-                }
-                Thread.sleep(50); // Allow baud rate to settle
-
-                // Step 2: Pull K-line LOW for FAST_INIT_LOW_DURATION_MS
-                // This requires UsbService to have a way to control the K-Line state directly.
-                // e.g., using DTR/RTS or specific commands if the adapter supports it.
-                Log.d(TAG, "Fast Init: K-Line LOW for " + FAST_INIT_LOW_DURATION_MS + "ms");
-                if (!usbService.lineStateLow()) { // Assumes this method holds the line low
-                    postStatus(KLINE_FAST_INIT_FAILED_MSG + ": Failed to set K-Line LOW.");
-                    return;
-                }
-                Thread.sleep(FAST_INIT_LOW_DURATION_MS);
-
-                // Step 3: Pull K-line HIGH for FAST_INIT_HIGH_DURATION_MS
-                Log.d(TAG, "Fast Init: K-Line HIGH for " + FAST_INIT_HIGH_DURATION_MS + "ms");
-                if (!usbService.lineStateHigh()) { // Assumes this method releases/sets the line high
-                    postStatus(KLINE_FAST_INIT_FAILED_MSG + ": Failed to set K-Line HIGH.");
-                    // Attempt to restore baud rate before failing
-                    usbService.setBaudRate(KLINE_BAUD_FAST);
-                    return;
-                }
-                Thread.sleep(FAST_INIT_HIGH_DURATION_MS);
-
-                // Step 4: Ensure baud rate is KLINE_BAUD_FAST for sending StartCommunication
-                // (Already set, but good to ensure or re-set if lineStateHigh changed it)
-                if (!usbService.setBaudRate(KLINE_BAUD_FAST)) {
-                    postStatus(KLINE_FAST_INIT_FAILED_MSG + ": Failed to re-set fast baud for StartComm.");
-                    return;
-                }
-                Thread.sleep(DELAY_AFTER_BAUD_SWITCH);
-
-
-                // Step 5: Build & send StartCommunication (Service ID 0x81) KWP2000 frame.
-                // Frame format: [Fmt] [Tgt] [Src] [SID] [SessionType] [ChkSum]
-                // Or if length is included by format byte: [Fmt+Len] [Tgt] [Src] [SID] [SessionType] [ChkSum]
-                // A common StartCommunication frame:
-                byte[] startCommFrame = {
-                        (byte) 0xC1,          // Format: Physical Addr, Target, Source, Length included (1 byte: SID)
-                        // This implies the next byte is Target, then Source, then SID.
-                        // This is a guess. The format byte for KWP2000 StartComm can vary.
-                        // Another common one for raw K-Line might be simpler if addresses are implicit after init.
-                        DEFAULT_ECU_ADDRESS,    // Target ECU address
-                        DEFAULT_TESTER_ADDRESS, // Tester source address
-                        (byte) 0x81,          // SID: StartDiagnosticSession
-                        // (byte) 0x01,       // Optional: DiagnosticMode / SessionType (e.g., 0x01 for default)
-                        // If 0xC1 format is used, it means length of SID + Data = 1 (only SID).
-                        // So, session type might not be part of this simple 0xC1 frame.
-                        // A more explicit frame with length byte:
-                        // [0x80] [TGT] [SRC] [LEN=2] [0x81] [0x01] [CS]
-                };
-
-                // Let's use a common KWP2000 structure for StartCommunication:
-                // Header (Format, Target, Source), Length (of SID + Session Data), SID, Session Data, Checksum
-                byte sessionType = (byte) 0x01; // Default session
-                byte sidStartComm = (byte) 0x81;
-                byte[] dataPayload = new byte[]{sessionType};
-                int dataLength = dataPayload.length;
-
-                byte[] frame = new byte[3 + 1 + 1 + dataLength + 1]; // FMT,TGT,SRC + LEN + SID + Data + CS
-                int idx = 0;
-                frame[idx++] = (byte) 0x80; // Format: Physical, TGT, SRC, explicit LEN byte follows
-                frame[idx++] = DEFAULT_ECU_ADDRESS;
-                frame[idx++] = DEFAULT_TESTER_ADDRESS;
-                frame[idx++] = (byte) (1 + dataLength); // Length of SID + dataPayload
-
-                frame[idx++] = sidStartComm;
-                System.arraycopy(dataPayload, 0, frame, idx, dataLength);
-                idx += dataLength;
-
-                byte checksum = 0;
-                for (int i = 0; i < idx; i++) {
-                    checksum += frame[i];
+                KLineInit init = new KLineInit(port);
+                KLineInit.Result r = initWith(init, ecuAddress, preferred);
+                UsbTransport.LineMode mode = usbService.getLineMode();
+                boolean inverted = usbService.isLineInverted();
+                if (!r.getSuccess() && mode != UsbTransport.LineMode.NONE) {
+                    postStatus("Init via " + mode + " failed, trying without line control...");
+                    usbService.setLineControl(UsbTransport.LineMode.NONE, false);
+                    r = initWith(init, ecuAddress, preferred);
+                    if (!r.getSuccess()) usbService.setLineControl(mode, inverted);
                 }
-                frame[idx] = checksum;
-
-                Log.d(TAG, "Fast Init: Sending StartCommunication frame.");
-                usbService.write(frame);
-                postStatus("StartCommunication frame sent, waiting for positive response...");
-                // The ECU should respond with a positive response (e.g., SID 0xC1) or negative.
-                // DiagnosticActivity's handler will process this response.
-                success = true; // Assume success for now, actual success confirmed by ECU response
-                postStatus(KLINE_FAST_INIT_SUCCESS_MSG); // DiagnosticActivity confirms with received data
-                Thread.sleep(DELAY_MIN_AFTER_INIT_SUCCESS);
-
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Fast init interrupted", e);
-                postStatus(KLINE_FAST_INIT_FAILED_MSG + ": Interrupted.");
-                Thread.currentThread().interrupt();
+                lastResult = r;
+                postStatus(r.getSuccess() ? KLINE_INIT_SUCCESS_MSG : KLINE_INIT_FAILED_MSG + ": " + r.getMessage());
             } catch (Exception e) {
-                Log.e(TAG, "Error during fast init", e);
-                postStatus(KLINE_FAST_INIT_FAILED_MSG + ": " + e.getMessage());
+                Log.e(TAG, "Error during K-Line init", e);
+                postStatus(KLINE_INIT_FAILED_MSG + ": " + e.getMessage());
             } finally {
-                if (!success) {
-                    // Ensure K-Line is returned to a known state (e.g., normal baud)
-                    usbService.setBaudRate(KLINE_BAUD_FAST);
-                }
+                usbService.releaseRawTransport();
             }
-        }).start();
+        });
+    }
+
+    /** One fast init then 5-baud when fast init worked last time, otherwise 5-baud alone. */
+    private KLineInit.Result initWith(KLineInit init, byte ecuAddress, KLineInit.Method preferred) {
+        if (preferred != KLineInit.Method.FAST) return init.fiveBaudInit(ecuAddress & 0xFF);
+        KLineInit.Result r = init.fastInit(ecuAddress & 0xFF, DEFAULT_TESTER_ADDRESS & 0xFF, 1);
+        if (r.getSuccess()) return r;
+        postStatus("Fast init failed, falling back to 5-baud init...");
+        return init.fiveBaudInit(ecuAddress & 0xFF);
+    }
+
+    /** The port in raw mode, or null when not connected. */
+    private CommService claim() {
+        if (!usbService.isConnected() || !usbService.isSerialPortOpen()) return null;
+        return usbService.claimRawTransport();
     }
 
     /**
@@ -296,4 +168,4 @@ public class KLineManager {
             usbService.sendServiceMessage(msg);
         }
     }
-}
\ No newline at end of file
+}
@@ -3,14 +3,27 @@ package com.kimboflash;
 import android.util.Log;
 // Import ArrayList if you are using it in parseDTCResponse
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 // These imports are only needed if performFastInit remains here AND
 // UsbService doesn't provide abstracted methods for these operations.
 // It's better if KWP2000Manager uses methods from UsbService rather than directly accessing UsbSerialDevice.
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
+import com.kimboflash.logger.LogSchedule;
+import com.kimboflash.logger.LoggerEngine;
+import com.kimboflash.logger.LoggerParam;
+import com.kimboflash.protocol.BusStats;
+import com.kimboflash.protocol.FrameDecoder;
+import com.kimboflash.protocol.KeepAlive;
+import com.kimboflash.protocol.RequestScheduler;
+import com.kimboflash.protocol.ResponseFuture;
+import com.kimboflash.transport.LineSettings;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Handles KWP2000 communication, including message creation and parsing for DTCs.
@@ -26,11 +39,22 @@ public class KWP2000Manager {
     public static final byte ECU_ADDRESS    = (byte) 0x12; // Example, ensure correct for your ECU
     public static final byte TESTER_ADDRESS = (byte) 0xF1; // Example
 
+    public static final byte CLEAR_DIAGNOSTIC_INFORMATION = (byte) 0x14;
+    // ReadEcuIdentification with option 0x90: the VIN
+    public static final byte READ_ECU_IDENTIFICATION = (byte) 0x1A;
+    public static final byte IDENTIFICATION_VIN = (byte) 0x90;
+    private static final int VIN_LENGTH = 17;
+
     // mCallback and NORMAL_BAUD are needed if performFastInit is here and uses them directly.
     // It's better if KLineManager handles this.
     private UsbSerialInterface.UsbReadCallback mCallback; // Should be set if performFastInit uses it
     private static final int NORMAL_BAUD = 10400;         // Standard K-Line baud rate
 
+    private KeepAlive keepAlive;
+    private LoggerEngine logger;
+    // Port format before startLogging switched it, put back by stopLogging
+    private LineSettings restoreLine;
+
     // Constructor
     public KWP2000Manager(UsbService service) {
         this.usbService = service;
@@ -53,46 +77,56 @@ public class KWP2000Manager {
      */
 
     /**
-     * Parses a KWP2000 response byte array to extract DTCs.
-     * This is a placeholder and needs actual KWP2000 parsing logic.
+     * Parses the answer to ReadDiagnosticTroubleCodesByStatus (0x58) into fault codes.
      *
-     * @param resp The byte array received from the ECU.
-     * @return A list of DTC strings.
+     * <p>ISO 14230-3 layout: 0x58, the number of DTCs, then per DTC two code bytes and
+     * one status byte.
+     *
+     * @param resp The response payload as completed by {@link ResponseFuture}: response SID
+     *             first, no header or checksum.
+     * @return Fault codes as four hex digits, empty when none are stored; null when the
+     *         answer is not a DTC list in this layout.
      */
     public List<String> parseDTCResponse(byte[] resp) {
-        List<String> dtcs = new ArrayList<>();
-        Log.d(TAG, "parseDTCResponse called. Received " + (resp != null ? resp.length : 0) + " bytes.");
-        if (resp == null || resp.length < 5) { // Basic check for header + SID + potential data
-            Log.w(TAG, "Response too short to be a valid DTC response.");
-            return dtcs;
+        int expectedSid = (READ_DIAGNOSTIC_TROUBLE_CODES + POSITIVE_RESPONSE_OFFSET) & 0xFF;
+        if (resp == null || resp.length < 2 || (resp[0] & 0xFF) != expectedSid) {
+            Log.w(TAG, "Not a positive ReadDTCs response.");
+            return null;
+        }
+        int count = resp[1] & 0xFF;
+        if (resp.length != 2 + 3 * count) {
+            Log.w(TAG, "DTC response of " + resp.length + " bytes does not hold " + count + " DTCs.");
+            return null;
+        }
+        List<String> dtcs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int p = 2 + 3 * i;
+            dtcs.add(String.format(Locale.US, "%02X%02X", resp[p] & 0xFF, resp[p + 1] & 0xFF));
         }
-
-        // Example: Basic check for positive response to READ_DIAGNOSTIC_TROUBLE_CODES
-        // Assuming format [FMT] [TGT] [SRC] [LEN] [SID_RESP] [DTC_COUNT] [DTC1_HI] [DTC1_LO] [STATUS1] ...
-        // SID_RESP would be READ_DIAGNOSTIC_TROUBLE_CODES + POSITIVE_RESPONSE_OFFSET (e.g., 0x18 + 0x40 = 0x58)
-        // This structure is highly dependent on your ECU and KWP2000 variant.
-        // byte expectedSidResponse = (byte) (READ_DIAGNOSTIC_TROUBLE_CODES + POSITIVE_RESPONSE_OFFSET);
-        // if (resp[4] == expectedSidResponse) { // Assuming SID is at index 4
-        //    int dtcCount = resp[5]; // Assuming DTC count is at index 5
-        //    int currentIndex = 6;
-        //    for (int i = 0; i < dtcCount; i++) {
-        //        if (currentIndex + 2 < resp.length) { // Need at least 2 bytes for DTC + 1 for status
-        //            // This is a simplified ISO 15031-6 / SAE J2012 format for P, C, B, U codes
-        //            // Actual KWP2000 DTC format can vary.
-        //            dtcs.add(String.format("P%02X%02X", resp[currentIndex], resp[currentIndex+1]));
-        //            currentIndex += 3; // Assuming DTC (2 bytes) + Status (1 byte)
-        //        } else {
-        //            Log.w(TAG, "Malformed DTC data in response.");
-        //            break;
-        //        }
-        //    }
-        // } else {
-        //    Log.w(TAG, "Not a positive response for Read DTCs or unexpected SID: " + String.format("%02X", resp[4]));
-        // }
-        Log.d(TAG, "parseDTCResponse needs to be implemented with actual KWP2000 DTC parsing logic for your ECU!");
         return dtcs;
     }
 
+    /**
+     * Finds the VIN in the answer to ReadEcuIdentification 0x90 (0x5A 0x90 ...). ECUs pad
+     * or prefix the field differently, so rather than read it from a fixed offset this
+     * takes the first run of 17 VIN characters (digits and capitals other than I, O and Q).
+     *
+     * @return The VIN, or null when the answer holds none.
+     */
+    public static String parseVin(byte[] resp) {
+        int expectedSid = (READ_ECU_IDENTIFICATION + POSITIVE_RESPONSE_OFFSET) & 0xFF;
+        if (resp == null || resp.length < 2 + VIN_LENGTH || (resp[0] & 0xFF) != expectedSid
+                || resp[1] != IDENTIFICATION_VIN) return null;
+        int run = 0;
+        for (int i = 2; i < resp.length; i++) {
+            char c = (char) (resp[i] & 0xFF);
+            boolean vinChar = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z' && c != 'I' && c != 'O' && c != 'Q');
+            run = vinChar ? run + 1 : 0;
+            if (run == VIN_LENGTH) return new String(resp, i - VIN_LENGTH + 1, VIN_LENGTH, StandardCharsets.US_ASCII);
+        }
+        return null;
+    }
+
     /**
      * Creates a KWP2000 message frame.
      * This is a basic example and might need adjustments for specific KWP2000 variants (e.g., checksum calculation, header format).
@@ -204,49 +238,15 @@ public class KWP2000Manager {
     }
 
     /**
-     * Performs the fast init: K-line low for 25 ms, high for 25 ms.
-     * NOTE: This method is likely better placed in KLineManager.
-     * If kept here, it needs access to the UsbSerialDevice directly or UsbService needs
-     * more granular control methods (setDTR, setBaudRate, read).
+     * Performs the fast init: K-line low for 25 ms, high for 25 ms, then StartCommunication.
+     * The timing is done by {@link KLineManager}; this only forwards to it.
      */
     public void performFastInit() {
-        Log.d(TAG, "Attempting Fast Init via KWP2000Manager. This should ideally be in KLineManager.");
         if (usbService == null) {
             Log.e(TAG, "UsbService is null in performFastInit");
             return;
         }
-        // This direct manipulation of UsbSerialDevice from KWP2000Manager is not ideal.
-        // UsbService should provide abstractions for these operations.
-        new Thread(() -> {
-            try {
-                // To do this correctly, UsbService needs to provide methods like:
-                // usbService.setDtr(true/false);
-                // usbService.setCustomBaudRate(baud);
-                // usbService.startReading(callback);
-                // usbService.getSerialPort() should ideally not be exposed directly.
-
-                // Assuming UsbService has methods like lineStateLow(), lineStateHigh(), setBaudRate()
-                // and a way to pass the callback for reading.
-
-                Log.i(TAG, "Fast Init: Setting K-Line Low (DTR True)");
-                usbService.lineStateHigh(); // Assuming DTR true = K-Line Low for your adapter
-                Thread.sleep(25);
-                Log.i(TAG, "Fast Init: Setting K-Line High (DTR False)");
-                usbService.lineStateLow();  // Assuming DTR false = K-Line High for your adapter
-                Thread.sleep(25);
-
-                Log.i(TAG, "Fast Init: Setting baud rate to " + NORMAL_BAUD);
-                usbService.setBaudRate(NORMAL_BAUD);
-                // Reading should be managed by UsbService or started with a specific callback.
-                // If mCallback is a member of KWP2000Manager and set:
-                // usbService.read(this.mCallback); // This assumes UsbService has a read method taking a callback.
-
-                Log.i(TAG, "Fast init sequence sent, K-Line should be active at " + NORMAL_BAUD + " baud.");
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error in fast init", e);
-            }
-        }).start();
+        usbService.performFastInit();
     }
 
 
@@ -260,71 +260,38 @@ public class KWP2000Manager {
         UsbSerialDevice port = usbService.getSerialPort();
         if (port == null) throw new IOException("Serial port not open");
         port.write(frame);
+        BusStats.DEFAULT.bytesOut(frame.length);
         if (callback != null) port.read(callback);
     }
 
 
-    // KWP2000 Diagnostic and Memory Methods
-    public void init5Baud(int address, UsbSerialInterface.UsbReadCallback callback) throws InterruptedException {
-        new Thread(() -> {
-            try {
-                UsbSerialDevice port = usbService.getSerialPort();
-                if (port == null) return;
-                port.setBaudRate(300);
-                int[] bits = new int[10];
-                bits[0] = 0;
-                for (int i = 0; i < 8; i++) bits[i+1] = (address >> i) & 1;
-                bits[9] = 1;
-                for (int b : bits) {
-                    port.setDTR(b == 0);
-                    Thread.sleep(200);
-                }
-                port.setDTR(false);
-                port.setBaudRate(NORMAL_BAUD);
-                port.read(callback);
-            } catch (Exception e) {
-                Log.e(TAG, "5-baud init error", e);
-            }
-        }).start();
-    }
-
-    public void initFast(UsbSerialInterface.UsbReadCallback callback) throws InterruptedException {
-        new Thread(() -> {
-            try {
-                UsbSerialDevice port = usbService.getSerialPort();
-                if (port == null) return;
-                port.setDTR(true);
-                Thread.sleep(25);
-                port.setDTR(false);
-                Thread.sleep(25);
-                port.setBaudRate(NORMAL_BAUD);
-                port.read(callback);
-            } catch (Exception e) {
-                Log.e(TAG, "Fast init error", e);
-            }
-        }).start();
+    /**
+     * Queues a request on UsbService's {@link RequestScheduler}, which frames it, skips the
+     * K-Line echo and matches the response by SID. A non-null callback gets the positive
+     * response payload (response SID first); failures only complete the returned future.
+     */
+    private ResponseFuture sendService(byte sid, byte[] data, UsbSerialInterface.UsbReadCallback callback) throws IOException {
+        RequestScheduler scheduler = kwpScheduler();
+        ResponseFuture response = scheduler.submit(sid & 0xFF, data);
+        if (callback != null) {
+            response.whenComplete((payload, error) -> {
+                if (payload != null) callback.onReceivedData(payload);
+            });
+        }
+        return response;
     }
 
-
-
-
-
-
-
-    private void sendService(byte sid, byte[] data, UsbSerialInterface.UsbReadCallback callback) throws IOException {
-        int length = 1 + data.length;
-        byte[] frame = new byte[2 + data.length + 1];
-        frame[0] = (byte)ECU_ADDRESS;
-        frame[1] = (byte)length;
-        frame[2] = sid;
-        System.arraycopy(data, 0, frame, 3, data.length);
-        byte checksum = 0;
-        for (int i = 0; i < frame.length - 1; i++) checksum ^= frame[i];
-        frame[frame.length - 1] = checksum;
-        UsbSerialDevice port = usbService.getSerialPort();
-        if (port == null) throw new IOException("Port not open");
-        port.write(frame);
-        if (callback != null) port.read(callback);
+    /**
+     * The port's scheduler in the KWP2000 session format. Fails rather than switch
+     * while the DS2 logger owns the port.
+     */
+    private RequestScheduler kwpScheduler() throws IOException {
+        if (usbService.getSessionFormat() != FrameDecoder.Format.KWP2000) {
+            throw new IOException("Port is in a DS2 logging session");
+        }
+        RequestScheduler scheduler = usbService.getScheduler();
+        if (scheduler == null) throw new IOException("Port not open");
+        return scheduler;
     }
 
     private byte[] concat(byte[]... arrays) {
@@ -340,55 +307,141 @@ public class KWP2000Manager {
     }
 
     // KWP2000 Diagnostic and Memory Methods
-    public void readDTCs(UsbSerialInterface.UsbReadCallback callback) throws IOException {
-        sendService((byte)0x18, new byte[]{}, callback);
+    // Status 0x02 with group 0xFF00: every stored DTC with its status
+    public ResponseFuture readDTCs(UsbSerialInterface.UsbReadCallback callback) throws IOException {
+        return sendService(READ_DIAGNOSTIC_TROUBLE_CODES, new byte[]{0x02, (byte) 0xFF, 0x00}, callback);
+    }
+
+    // Group 0xFF00: all DTCs
+    public ResponseFuture clearDTCs(UsbSerialInterface.UsbReadCallback callback) throws IOException {
+        return sendService(CLEAR_DIAGNOSTIC_INFORMATION, new byte[]{(byte) 0xFF, 0x00}, callback);
     }
 
-    public void clearDTCs(UsbSerialInterface.UsbReadCallback callback) throws IOException {
-        sendService((byte)0x14, new byte[]{(byte)0xFF}, callback);
+    public ResponseFuture testerPresent() throws IOException {
+        return sendService((byte)0x3E, new byte[]{}, null);
+    }
+
+    /**
+     * Sends TesterPresent whenever the bus has been idle for part of the ECU's S3 timeout,
+     * so the current session survives pauses. Replaces a keepalive already running.
+     */
+    public synchronized void startKeepAlive(KeepAlive.Listener onSessionLost) throws IOException {
+        RequestScheduler scheduler = kwpScheduler();
+        stopKeepAlive();
+        keepAlive = new KeepAlive(scheduler, KeepAlive.DEFAULT_S3_MS, KeepAlive.DEFAULT_FRACTION, onSessionLost);
     }
 
-    public void testerPresent() throws IOException {
-        sendService((byte)0x3E, new byte[]{}, null);
+    public synchronized void stopKeepAlive() {
+        if (keepAlive != null) {
+            keepAlive.close();
+            keepAlive = null;
+        }
     }
 
-    public void readMemory(int address, int size, UsbSerialInterface.UsbReadCallback callback) throws IOException {
+    public ResponseFuture readMemory(int address, int size, UsbSerialInterface.UsbReadCallback callback) throws IOException {
         byte[] addrBytes = new byte[]{
             (byte)((address >> 16) & 0xFF),
             (byte)((address >> 8) & 0xFF),
             (byte)(address & 0xFF)
         };
         byte[] sizeBytes = new byte[]{ (byte)((size >> 8)&0xFF), (byte)(size &0xFF) };
-        sendService((byte)0x23, concat(addrBytes, sizeBytes), callback);
+        return sendService((byte)0x23, concat(addrBytes, sizeBytes), callback);
     }
 
-    public void writeMemory(int address, byte[] data, UsbSerialInterface.UsbReadCallback callback) throws IOException {
+    public ResponseFuture writeMemory(int address, byte[] data, UsbSerialInterface.UsbReadCallback callback) throws IOException {
         byte[] addrBytes = new byte[]{
             (byte)((address >> 16) & 0xFF),
             (byte)((address >> 8) & 0xFF),
             (byte)(address & 0xFF)
         };
         byte[] sizeBytes = new byte[]{ (byte)((data.length >> 8)&0xFF), (byte)(data.length &0xFF) };
-        sendService((byte)0x34, concat(addrBytes, sizeBytes, data), callback);
+        return sendService((byte)0x34, concat(addrBytes, sizeBytes, data), callback);
+    }
+
+    /**
+     * Starts logging {@code params} as fast as the line allows: they are packed into as
+     * few block and memory reads as pay off (see {@link com.kimboflash.logger.LogPlan}) and read in a loop until
+     * {@link #stopLogging()}. Replaces a logger already running.
+     */
+    public LoggerEngine startLogging(List<LoggerParam> params, LoggerEngine.Listener listener) throws IOException {
+        return startLogging(params, false, listener);
     }
 
-    public void startLogging(int[] pids, UsbSerialInterface.UsbReadCallback callback) throws IOException {
-        byte[] payload = new byte[pids.length * 2];
-        for (int i = 0; i < pids.length; i++) {
-            payload[2*i] = (byte)((pids[i] >> 8) & 0xFF);
-            payload[2*i+1] = (byte)(pids[i] & 0xFF);
+    /**
+     * Like {@link #startLogging(List, LoggerEngine.Listener)}; with {@code telegram} the memory
+     * values are read as one MS43 430069 telegram, falling back to memory reads if the ECU
+     * refuses it.
+     */
+    public LoggerEngine startLogging(List<LoggerParam> params, boolean telegram,
+                                     LoggerEngine.Listener listener) throws IOException {
+        return startLogging(params, Collections.<String, Double>emptyMap(), telegram, listener);
+    }
+
+    /**
+     * Logs {@code params} at their target {@code rates} (Hz by ecuparam id, see
+     * {@link LogSchedule#ms43Rates}); channels without a rate are read every cycle and get
+     * the bus first, slower ones are interleaved into the time left.
+     */
+    public LoggerEngine startLogging(List<LoggerParam> params, Map<String, Double> rates, boolean telegram,
+                                     LoggerEngine.Listener listener) throws IOException {
+        return startLogging(params, rates, telegram, null, listener);
+    }
+
+    /**
+     * Like {@link #startLogging(List, Map, boolean, LoggerEngine.Listener)}, with the port
+     * switched to {@code line} (the logger definition's format, 9600 8E1 for DS2) while
+     * logging; {@link #stopLogging()} restores the format it had before. A null
+     * {@code line} leaves the port as it is.
+     */
+    public synchronized LoggerEngine startLogging(List<LoggerParam> params, Map<String, Double> rates, boolean telegram,
+                                                  LineSettings line, LoggerEngine.Listener listener) throws IOException {
+        stopLogging();
+        usbService.setSessionFormat(FrameDecoder.Format.DS2);
+        if (line != null && !line.equals(usbService.getLineSettings())) {
+            LineSettings previous = usbService.getLineSettings();
+            if (!usbService.setLineSettings(line)) {
+                stopLogging();
+                throw new IOException("Port cannot run at " + line);
+            }
+            restoreLine = previous;
         }
-        sendService((byte)0x22, payload, callback);
+        RequestScheduler scheduler = usbService.getScheduler();
+        if (scheduler == null) {
+            stopLogging();
+            throw new IOException("Port not open");
+        }
+        LogSchedule schedule = LogSchedule.build(params, rates, scheduler.getTiming(), scheduler.getBaud(), telegram);
+        Log.d(TAG, "Logging " + schedule.getSize() + " values in " + schedule.tierRates().length + " rate tiers"
+                + (telegram ? " (telegram)" : ""));
+        logger = new LoggerEngine(scheduler, schedule, listener);
+        return logger;
     }
 
+    public synchronized void stopLogging() {
+        if (logger != null) {
+            logger.close();
+            logger = null;
+        }
+        if (restoreLine != null) {
+            usbService.setLineSettings(restoreLine);
+            restoreLine = null;
+        }
+        usbService.setSessionFormat(FrameDecoder.Format.KWP2000);
+    }
+
+
+    /** Reads the VIN identification; pass the answer to {@link #parseVin(byte[])}. */
+    public ResponseFuture readVin() throws IOException {
+        return sendService(READ_ECU_IDENTIFICATION, new byte[]{IDENTIFICATION_VIN}, null);
+    }
 
     // Convenience overloads without callback
-    public void readDTCs() throws IOException {
-        readDTCs(null);
+    public ResponseFuture readDTCs() throws IOException {
+        return readDTCs(null);
     }
 
-    public void clearDTCs() throws IOException {
-        clearDTCs(null);
+    public ResponseFuture clearDTCs() throws IOException {
+        return clearDTCs(null);
     }
 
     }
@@ -11,6 +11,9 @@ import com.kimboflash.databinding.ActivityMainBinding
 class MainActivity : AppCompatActivity() {
     private lateinit var binding: ActivityMainBinding
 
+    // Discovery results arrive on the main thread as each probe finishes
+    private val discoveryListener = FlashService.Listener { render(it) }
+
     // Register a file picker callback
     private val binFilePicker = registerForActivityResult(
         ActivityResultContracts.StartActivityForResult()
@@ -34,6 +37,8 @@ class MainActivity : AppCompatActivity() {
         setContentView(binding.root)
 
         detectConnection()
+        // Cached results are shown on resume; tapping the status probes again
+        binding.textViewStatus.setOnClickListener { FlashService.refresh(applicationContext, true) }
 
         // Launch file picker when ECU TUNING card is clicked
         binding.cardTuning.setOnClickListener {
@@ -44,17 +49,36 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+        FlashService.addListener(discoveryListener)
+        render(FlashService.state)
+        // No-op while the last discovery is recent, so resuming does not reconnect to every adapter
+        FlashService.refresh(applicationContext)
+    }
+
+    override fun onPause() {
+        FlashService.removeListener(discoveryListener)
+        super.onPause()
+    }
+
+    /** Shows the last known state right away; the probes run in the background. */
     private fun detectConnection() {
+        render(FlashService.state)
+    }
+
+    private fun render(state: FlashService.State) {
         val statusText = when {
-            FlashService.isBluetoothConnected() -> getString(R.string.status_connected_bluetooth)
-            FlashService.isUsbConnected()       -> getString(R.string.status_connected_usb)
-            FlashService.isWifiConnected()      -> getString(R.string.status_connected_wifi)
-            else                                -> getString(R.string.status_disconnected)
+            state.bluetooth.isNotEmpty() -> getString(R.string.status_connected_bluetooth)
+            state.usb.isNotEmpty()       -> getString(R.string.status_connected_usb)
+            state.wifi.isNotEmpty()      -> getString(R.string.status_connected_wifi)
+            state.scanning               -> getString(R.string.status_searching)
+            else                         -> getString(R.string.status_disconnected)
         }
 
         binding.textViewStatus.text = statusText
 
-        val connected = statusText != getString(R.string.status_disconnected)
+        val connected = state.connected
         binding.cardRead.isEnabled = connected
         binding.cardWrite.isEnabled = connected
         binding.cardErrors.isEnabled = connected
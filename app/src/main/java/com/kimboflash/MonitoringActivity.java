@@ -1,6 +1,298 @@
 package com.kimboflash;
 
-import android.app.Activity;
+import androidx.appcompat.app.AppCompatActivity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.widget.TextView;
 
-public class MonitoringActivity extends Activity {
+import com.kimboflash.gauge.GaugeView;
+import com.kimboflash.gauge.SampleQueue;
+import com.kimboflash.logger.LogReader;
+import com.kimboflash.logger.LogSchedule;
+import com.kimboflash.logger.LogWriter;
+import com.kimboflash.logger.LoggerDefinitionLoader;
+import com.kimboflash.logger.LoggerEngine;
+import com.kimboflash.logger.LoggerParam;
+import com.kimboflash.transport.LineSettings;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Live dashboard: logs the MS43 channels and shows them as gauges.
+ *
+ * The logger thread hands every frame to a {@link SampleQueue} and the {@link GaugeView}
+ * draws from it on its own thread, so neither the UI thread nor the logger waits on the
+ * other. The UI thread only handles the connection and a once-a-second status line.
+ *
+ * <p>The same frames are recorded by a {@link LogWriter} into the app's "logs" folder, one
+ * file per logging run. A long press on the status line exports the latest recording as
+ * CSV next to it through {@link LogReader}.
+ */
+public class MonitoringActivity extends AppCompatActivity {
+
+    private static final String TAG = "MonitoringActivity";
+
+    /** Channels shown; more gauges than this get too small to read on a phone. */
+    private static final int MAX_CHANNELS = 24;
+    /** Frames buffered between the logger and the renderer, about a second at full speed. */
+    private static final int QUEUE_FRAMES = 64;
+    private static final long STATUS_INTERVAL_MS = 1000;
+    /** DS2 line format when the definition declares none. */
+    private static final LineSettings DS2_LINE = new LineSettings(9600, 8, 1, LineSettings.Parity.EVEN);
+
+    private UsbService usbService;
+    private KWP2000Manager kwp;
+    private boolean bound = false;
+
+    private TextView status;
+    private GaugeView gauges;
+    private volatile List<LoggerParam> params;
+    // The definition's DS2 line format, applied while logging
+    private volatile LineSettings line;
+    private SampleQueue queue;
+    private LoggerEngine logger;
+    private volatile LogWriter recorder;
+
+    // Every frame goes to the gauges and, while recording, to the log file
+    private final LoggerEngine.Listener frames = (timeNanos, values) -> {
+        queue.onFrame(timeNanos, values);
+        LogWriter w = recorder;
+        if (w != null) w.onFrame(timeNanos, values);
+    };
+
+    private final ServiceConnection conn = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            usbService = ((UsbService.UsbBinder) binder).getService();
+            usbService.setHandler(mHandler);
+            kwp = new KWP2000Manager(usbService);
+            bound = true;
+            connect();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            bound = false;
+            stopLogging();
+            updateStatus("Service disconnected.");
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != UsbService.MESSAGE_FROM_SERVICE) return;
+            String serviceMsg = msg.getData().getString("msg");
+            updateStatus(serviceMsg);
+            if (serviceMsg != null && serviceMsg.startsWith("Serial port connected")) {
+                connect();
+            } else if (serviceMsg != null && serviceMsg.contains("failed")) {
+                stopLogging();
+            }
+        }
+    };
+
+    private final Runnable statusTick = new Runnable() {
+        @Override
+        public void run() {
+            LoggerEngine l = logger;
+            if (l == null) return;
+            gauges.setSamplesPerSecond(l.getSamplesPerSecond());
+            status.setText(String.format("%.1f frames/s, %d errors, %d dropped",
+                    l.getFramesPerSecond(), l.getErrors(), queue.getDropped()));
+            mHandler.postDelayed(this, STATUS_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_monitoring);
+        status = findViewById(R.id.status);
+        gauges = findViewById(R.id.gauges);
+        status.setOnLongClickListener(v -> {
+            exportLastLog();
+            return true;
+        });
+
+        loadChannels();
+        Intent intent = new Intent(this, UsbService.class);
+        bindService(intent, conn, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        stopLogging();
+        if (bound) {
+            unbindService(conn);
+            bound = false;
+        }
+    }
+
+    /** Parses the logger definition off the main thread; logging starts once both it and the service are ready. */
+    private void loadChannels() {
+        new Thread(() -> {
+            List<LoggerParam> picked = new ArrayList<>();
+            LineSettings format = null;
+            try (InputStream in = getAssets().open(LoggerDefinitionLoader.MS43_LOGGER_ASSET)) {
+                LoggerDefinitionLoader.Definition def =
+                        LoggerDefinitionLoader.INSTANCE.loadDefinition(in, LoggerDefinitionLoader.MS43_430069);
+                format = def.getLine();
+                for (LoggerParam p : def.getParams()) {
+                    // Switches are no use as dials; "z" entries are the definition's diagnostics
+                    if (p.isBlock() || p.getId().startsWith("z") || p.getGaugeMax() <= p.getGaugeMin()) continue;
+                    picked.add(p);
+                    if (picked.size() == MAX_CHANNELS) break;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Logger definition not loaded", e);
+            }
+            LineSettings loadedFormat = format;
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                line = loadedFormat != null ? loadedFormat : DS2_LINE;
+                if (picked.isEmpty()) {
+                    updateStatus("No loggable channels found.");
+                    return;
+                }
+                List<GaugeView.Channel> channels = new ArrayList<>(picked.size());
+                for (LoggerParam p : picked) {
+                    channels.add(new GaugeView.Channel(p.getName(), p.getUnits(),
+                            (float) p.getGaugeMin(), (float) p.getGaugeMax(), decimals(p.getFormat())));
+                }
+                queue = new SampleQueue(picked.size(), QUEUE_FRAMES);
+                gauges.bind(channels, queue);
+                params = picked;
+                connect();
+            });
+        }, "logger-definition").start();
+    }
+
+    /**
+     * Starts logging once the service is bound, the port is open and the channels are
+     * known. DS2 needs no wake-up, so there is no K-Line init: the port is switched to the
+     * definition's format (9600 8E1) and the first request goes straight out.
+     */
+    private void connect() {
+        if (!bound || params == null) return;
+        if (!usbService.isConnected()) {
+            updateStatus("Searching for USB device...");
+            usbService.findSerialPortDevice();
+            return;
+        }
+        startLogging();
+    }
+
+    private void startLogging() {
+        List<LoggerParam> p = params;
+        if (p == null || kwp == null) return;
+        try {
+            startRecording(p);
+            logger = kwp.startLogging(p, LogSchedule.ms43Rates(p), true, line, frames);
+            updateStatus("Logging " + p.size() + " channels.");
+            mHandler.removeCallbacks(statusTick);
+            mHandler.postDelayed(statusTick, STATUS_INTERVAL_MS);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Logging not started", e);
+            stopRecording();
+            updateStatus("Logging not started: " + e.getMessage());
+        }
+    }
+
+    private void stopLogging() {
+        mHandler.removeCallbacks(statusTick);
+        if (kwp != null) kwp.stopLogging();
+        logger = null;
+        // The engine is closed, so no frame is delivered while the index is written
+        stopRecording();
+    }
+
+    private File logDir() {
+        File base = getExternalFilesDir(null);
+        File dir = new File(base != null ? base : getFilesDir(), "logs");
+        if (!dir.isDirectory() && !dir.mkdirs()) Log.w(TAG, "Cannot create " + dir);
+        return dir;
+    }
+
+    /** Opens a new log file for the channels of this run; logging goes on without one if it fails. */
+    private void startRecording(List<LoggerParam> p) {
+        stopRecording();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".kflg";
+        try {
+            recorder = new LogWriter(new File(logDir(), name), p);
+        } catch (Exception e) {
+            Log.e(TAG, "Not recording", e);
+        }
+    }
+
+    private void stopRecording() {
+        LogWriter w = recorder;
+        recorder = null;
+        if (w != null) w.close();
+    }
+
+    /** Exports the newest finished recording as CSV, off the UI thread. */
+    private void exportLastLog() {
+        LogWriter active = recorder;
+        new Thread(() -> {
+            File latest = null;
+            File[] logs = logDir().listFiles((d, n) -> n.endsWith(".kflg"));
+            if (logs != null) {
+                for (File f : logs) {
+                    if (active != null && f.equals(active.getFile())) continue;
+                    if (latest == null || f.lastModified() > latest.lastModified()) latest = f;
+                }
+            }
+            String message;
+            if (latest == null) {
+                message = "No finished log to export.";
+            } else {
+                File csv = new File(latest.getParentFile(), latest.getName().replace(".kflg", ".csv"));
+                try (LogReader reader = new LogReader(latest);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8))) {
+                    reader.exportCsv(out);
+                    message = "Exported " + reader.getRowCount() + " rows to " + csv.getPath();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Export failed", e);
+                    message = "Export failed: " + e.getMessage();
+                }
+            }
+            String shown = message;
+            runOnUiThread(() -> updateStatus(shown));
+        }, "log-export").start();
+    }
+
+    /** Digits after the point of a DecimalFormat pattern such as "0.00". */
+    private static int decimals(String format) {
+        int dot = format.indexOf('.');
+        return dot < 0 ? 0 : Math.min(format.length() - dot - 1, 4);
+    }
+
+    private void updateStatus(String message) {
+        if (message != null) {
+            Log.d(TAG, message);
+            status.setText(message);
+        }
+    }
 }
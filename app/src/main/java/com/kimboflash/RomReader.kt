@@ -0,0 +1,156 @@
+package com.kimboflash
+
+import android.util.Log
+import com.kimboflash.protocol.FramedChannel
+import com.kimboflash.rom.RomImage
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.util.zip.CRC32
+
+/**
+ * Dumps ECU memory into a file with ReadMemoryByAddress (0x23).
+ *
+ * The output file is sized up front and mapped, so every response is copied
+ * straight into place. Each segment (one request) gets a CRC32 record in a
+ * sidecar journal next to the output; after a dropped connection [read]
+ * re-checks the journal against the file and continues at the first segment
+ * that is missing or does not match, instead of starting over.
+ *
+ * Journal layout (big-endian): magic, address, size, segment size, then one
+ * (segment index, CRC32) pair per completed segment.
+ */
+class RomReader(private val link: FramedChannel) {
+    companion object {
+        private const val TAG = "RomReader"
+        private const val JOURNAL_MAGIC = 0x4B464A31 // "KFJ1"
+        /** Largest 0x23 reply that fits one K-Line frame: 0x63 plus 254 data bytes. */
+        const val MAX_SEGMENT = 0xFE
+        private const val RETRIES = 3
+    }
+
+    fun interface Progress {
+        /** Called after every segment; [bytesPerSecond] covers this run only. */
+        fun onProgress(done: Long, total: Long, bytesPerSecond: Double)
+    }
+
+    /** Journal file kept next to [output]. */
+    fun journalFor(output: File) = File(output.path + ".journal")
+
+    /**
+     * Reads [size] bytes starting at ECU [address] into [output], resuming a
+     * previous partial read of the same range. Returns the bytes read from
+     * the ECU in this call, not counting resumed ones. Throws once a segment
+     * still fails after retries; calling again later picks up from there.
+     */
+    fun read(output: File, address: Int, size: Int, segment: Int = MAX_SEGMENT, progress: Progress? = null): Long {
+        require(segment in 1..MAX_SEGMENT) { "Segment size $segment out of range" }
+        val segments = (size + segment - 1) / segment
+        val journal = journalFor(output)
+
+        RandomAccessFile(output, "rw").use { it.setLength(size.toLong()) }
+        var readThisRun = 0L
+        RomImage.map(output).use { image ->
+            val first = resumePoint(image, journal, address, size, segment)
+            if (first == 0) startJournal(journal, address, size, segment)
+            else Log.i(TAG, "Resuming at segment $first of $segments")
+
+            DataOutputStream(FileOutputStream(journal, true)).use { log ->
+                val crc = CRC32()
+                val t0 = System.nanoTime()
+                for (s in first until segments) {
+                    val offset = s * segment
+                    val n = minOf(segment, size - offset)
+                    val resp = readSegment(address + offset, n)
+                    image.write(offset, resp, 1, n)
+                    crc.reset()
+                    crc.update(resp, 1, n)
+                    log.writeInt(s)
+                    log.writeInt(crc.value.toInt())
+                    log.flush()
+
+                    readThisRun += n
+                    val elapsed = System.nanoTime() - t0
+                    progress?.onProgress(offset.toLong() + n, size.toLong(), if (elapsed == 0L) 0.0 else readThisRun * 1e9 / elapsed)
+                }
+            }
+        }
+        return readThisRun
+    }
+
+    private fun readSegment(address: Int, n: Int): ByteArray {
+        var last: Exception? = null
+        repeat(RETRIES) {
+            try {
+                val resp = link.request(byteArrayOf(0x23, (address shr 16).toByte(), (address shr 8).toByte(), address.toByte(), n.toByte()))
+                if (resp.size == n + 1 && resp[0].toInt() and 0xFF == 0x63) return resp
+                last = RuntimeException("Unexpected ReadMemoryByAddress response at 0x${address.toString(16)}")
+            } catch (e: Exception) {
+                last = e
+            }
+        }
+        throw last ?: RuntimeException("Read failed")
+    }
+
+    /**
+     * Number of leading segments already in [image] with a matching journal
+     * CRC; 0 when there is no usable journal for this exact range.
+     */
+    private fun resumePoint(image: RomImage, journal: File, address: Int, size: Int, segment: Int): Int {
+        if (!journal.exists()) return 0
+        val good = HashMap<Int, Int>()
+        try {
+            DataInputStream(journal.inputStream().buffered()).use { input ->
+                if (input.readInt() != JOURNAL_MAGIC || input.readInt() != address ||
+                    input.readInt() != size || input.readInt() != segment) return 0
+                while (true) {
+                    val s = try { input.readInt() } catch (_: EOFException) { break }
+                    val c = try { input.readInt() } catch (_: EOFException) { break }
+                    good[s] = c
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Ignoring unreadable journal", e)
+            return 0
+        }
+
+        val crc = CRC32()
+        val scratch = ByteArray(segment)
+        var s = 0
+        while (true) {
+            val expected = good[s] ?: break
+            val offset = s * segment
+            val n = minOf(segment, size - offset)
+            image.read(offset, scratch, 0, n)
+            crc.reset()
+            crc.update(scratch, 0, n)
+            if (crc.value.toInt() != expected) break
+            s++
+        }
+        // Drop records past the resume point so the journal stays in order
+        if (s > 0) rewriteJournal(journal, address, size, segment, good, s)
+        return s
+    }
+
+    private fun startJournal(journal: File, address: Int, size: Int, segment: Int) {
+        DataOutputStream(FileOutputStream(journal)).use { out ->
+            out.writeInt(JOURNAL_MAGIC)
+            out.writeInt(address)
+            out.writeInt(size)
+            out.writeInt(segment)
+        }
+    }
+
+    private fun rewriteJournal(journal: File, address: Int, size: Int, segment: Int, crcs: Map<Int, Int>, count: Int) {
+        startJournal(journal, address, size, segment)
+        DataOutputStream(FileOutputStream(journal, true).buffered()).use { out ->
+            for (s in 0 until count) {
+                out.writeInt(s)
+                out.writeInt(crcs.getValue(s))
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.kimboflash
+
+import com.kimboflash.rom.RomImage
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Builds the TransferData (0x36) frames of a flash image on a background
+ * thread while the sender is waiting for the previous 0x76 ack.
+ *
+ * Frames live in fixed slots of one direct buffer that the caller keeps and
+ * reuses across flashes; a slot is handed back to the producer as soon as it
+ * has been sent, so preparing the next frames never allocates.
+ */
+internal class TransferPipeline(
+    private val image: RomImage,
+    /** Data bytes per frame (negotiated block length minus SID and counter). */
+    val blockSize: Int,
+    buffer: ByteBuffer?
+) : AutoCloseable {
+    companion object {
+        const val SLOTS = 8
+        private const val HEADER = 2
+
+        fun bufferSize(blockSize: Int) = SLOTS * (blockSize + HEADER)
+    }
+
+    /** The direct buffer backing the slots; pass it to the next pipeline to reuse it. */
+    val buffer: ByteBuffer =
+        if (buffer != null && buffer.isDirect && buffer.capacity() >= bufferSize(blockSize)) buffer
+        else ByteBuffer.allocateDirect(bufferSize(blockSize))
+
+    val frameCount = (image.size + blockSize - 1) / blockSize
+
+    /** Running byte sum of everything prepared so far, for the transfer log. */
+    @Volatile
+    var dataSum = 0L
+        private set
+
+    private val free = ArrayBlockingQueue<Int>(SLOTS)
+    private val ready = ArrayBlockingQueue<Int>(SLOTS)
+    private val slotViews = Array(SLOTS) { i ->
+        val view = this.buffer.duplicate()
+        view.position(i * (blockSize + HEADER))
+        view.limit((i + 1) * (blockSize + HEADER))
+        view.slice()
+    }
+
+    @Volatile
+    private var failure: Throwable? = null
+    @Volatile
+    private var closed = false
+    private val producer: Thread
+
+    init {
+        for (i in 0 until SLOTS) free.add(i)
+        producer = Thread({ produce() }, "transfer-prep").apply { start() }
+    }
+
+    private fun produce() {
+        try {
+            var counter = 1
+            var sum = 0L
+            for (f in 0 until frameCount) {
+                val slot = free.take()
+                if (closed) return
+                val offset = f * blockSize
+                val n = minOf(blockSize, image.size - offset)
+                val frame = slotViews[slot]
+                frame.clear()
+                frame.put(0x36.toByte())
+                frame.put(counter.toByte())
+                val data = image.slice(offset, n)
+                while (data.hasRemaining()) sum += data.get().toInt() and 0xFF
+                data.rewind()
+                frame.put(data)
+                frame.flip()
+                dataSum = sum
+                counter = (counter + 1) and 0xFF
+                ready.put(slot)
+            }
+        } catch (_: InterruptedException) {
+        } catch (e: Throwable) {
+            failure = e
+        }
+    }
+
+    /**
+     * Waits for the next prepared frame; the returned buffer is valid until
+     * [release] is called with the same slot.
+     */
+    fun next(timeoutMs: Long): Int {
+        val slot = ready.poll(timeoutMs, TimeUnit.MILLISECONDS)
+        failure?.let { throw RuntimeException("Frame preparation failed", it) }
+        return slot ?: throw RuntimeException("Frame preparation timed out")
+    }
+
+    fun frame(slot: Int): ByteBuffer = slotViews[slot].duplicate()
+
+    /** Counter byte carried by the frame in [slot]. */
+    fun counter(slot: Int): Byte = slotViews[slot].get(1)
+
+    fun release(slot: Int) {
+        free.put(slot)
+    }
+
+    override fun close() {
+        closed = true
+        producer.interrupt()
+    }
+}
@@ -9,30 +9,43 @@ import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
 import com.kimboflash.databinding.ActivityTuningBinding
+import com.kimboflash.defs.DefinitionCache
+import com.kimboflash.defs.DefinitionIndex
+import com.kimboflash.defs.EcuIdentifier
 import com.kimboflash.patch.PatchManager
+import com.kimboflash.rom.RomImage
 import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
+import java.io.FileNotFoundException
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
 
 class TuningActivity : AppCompatActivity() {
     private lateinit var binding: ActivityTuningBinding
     private var binFile: File? = null
+    private var binUri: Uri? = null
+
+    @Volatile
+    private var definitions: Map<String, List<DefinitionIndex>> = emptyMap()
+
+    @Volatile
+    private var identifier: EcuIdentifier? = null
+
+    // Counted down once the definitions are loaded, or failed to load
+    private val identified = CountDownLatch(1)
 
     private val binPickerLauncher = registerForActivityResult(
         ActivityResultContracts.StartActivityForResult()
     ) { result ->
         if (result.resultCode == RESULT_OK) {
             result.data?.data?.let { uri: Uri ->
-                contentResolver.openInputStream(uri).use { input ->
-                    val tmp = File(cacheDir, "selected.bin")
-                    FileOutputStream(tmp).use { output -> input?.copyTo(output) }
-                    binFile = tmp
-                    Toast.makeText(
-                        this,
-                        getString(R.string.file_selected, tmp.name),
-                        Toast.LENGTH_SHORT
-                    ).show()
-                }
+                // Mapped through its descriptor when patching, not copied into cacheDir
+                binUri = uri
+                binFile = null
+                Toast.makeText(
+                    this,
+                    getString(R.string.file_selected, uri.lastPathSegment),
+                    Toast.LENGTH_SHORT
+                ).show()
             }
         }
     }
@@ -42,6 +55,19 @@ class TuningActivity : AppCompatActivity() {
         binding = ActivityTuningBinding.inflate(layoutInflater)
         setContentView(binding.root)
 
+        // MainActivity already copied the picked file into cacheDir
+        intent.getStringExtra("binPath")?.let { binFile = File(it) }
+
+        // Map the compiled ECU definitions (compiles them on first run) off the UI thread
+        thread(name = "definitions") {
+            try {
+                definitions = DefinitionCache.get(applicationContext).loadAll()
+                identifier = EcuIdentifier(definitions)
+            } finally {
+                identified.countDown()
+            }
+        }
+
         // Initialize labels
         binding.textIgnitionAdvance.text = getString(
             R.string.ignition_advance,
@@ -76,8 +102,12 @@ class TuningActivity : AppCompatActivity() {
 
         // File Select
         binding.btnSelect.setOnClickListener {
-            val intent = Intent(Intent.ACTION_GET_CONTENT)
-                .apply { type = "application/octet-stream" }
+            // OPEN_DOCUMENT grants write access, which the in-place patch needs
+            val intent = Intent(Intent.ACTION_OPEN_DOCUMENT)
+                .apply {
+                    type = "application/octet-stream"
+                    addCategory(Intent.CATEGORY_OPENABLE)
+                }
             binPickerLauncher.launch(
                 Intent.createChooser(intent, getString(R.string.select_bin))
             )
@@ -85,25 +115,81 @@ class TuningActivity : AppCompatActivity() {
 
         // Apply patches
         binding.btnApply.setOnClickListener {
-            val bin = binFile
-            if (bin == null) {
+            if (binFile == null && binUri == null) {
                 Toast.makeText(this, getString(R.string.error_no_file), Toast.LENGTH_SHORT).show()
                 return@setOnClickListener
             }
+            applyPatches(readSelection())
+        }
+    }
 
-            val pm = PatchManager().apply {
-                FileInputStream(bin).use(::loadBin)
-                applyPopsBangs(binding.cbPopsBangs.isChecked)
-                applyIgnitionCutMs42(binding.cbIgnitionCut42.isChecked)
-                applyIgnitionCutMs43(binding.cbIgnitionCut43.isChecked)
-                applyLaunchControl(binding.cbLaunchControl.isChecked)
-                applyNoLiftShift(binding.cbNoLiftShift.isChecked)
-                applyRollingAntiLag(binding.cbRollingAntiLag.isChecked)
-                applyIgnitionAdvance(binding.seekIgnitionAdvance.progress)
-                applyFuelMixture(binding.seekFuelMixture.progress)
+    /** The patch choices, read on the UI thread before patching moves off it. */
+    private class Selection(
+        val popsBangs: Boolean,
+        val ignitionCut42: Boolean,
+        val ignitionCut43: Boolean,
+        val launchControl: Boolean,
+        val noLiftShift: Boolean,
+        val rollingAntiLag: Boolean,
+        val ignitionAdvance: Int,
+        val fuelMixture: Int
+    )
+
+    private fun readSelection() = Selection(
+        binding.cbPopsBangs.isChecked,
+        binding.cbIgnitionCut42.isChecked,
+        binding.cbIgnitionCut43.isChecked,
+        binding.cbLaunchControl.isChecked,
+        binding.cbNoLiftShift.isChecked,
+        binding.cbRollingAntiLag.isChecked,
+        binding.seekIgnitionAdvance.progress,
+        binding.seekFuelMixture.progress
+    )
+
+    /** Maps the picked file in place instead of reading it onto the heap. */
+    private fun openImage(): RomImage {
+        binFile?.let { return RomImage.map(it) }
+        val pfd = contentResolver.openFileDescriptor(binUri!!, "rw")
+            ?: throw FileNotFoundException(binUri.toString())
+        return RomImage.map(pfd.fileDescriptor, pfd)
+    }
+
+    private fun applyPatches(selection: Selection) {
+        binding.btnApply.isEnabled = false
+        thread(name = "apply-patches") {
+            // The checksum layout comes from the identified definition, so wait for it
+            identified.await()
+            val message = try {
+                val id = identifier
+                if (id == null) {
+                    getString(R.string.error_definitions_not_loaded)
+                } else {
+                    openImage().use { image ->
+                        val match = id.bestDefinition(image)
+                        val checksummed = PatchManager().run {
+                            load(image, match?.definition)
+                            applyPopsBangs(selection.popsBangs)
+                            applyIgnitionCutMs42(selection.ignitionCut42)
+                            applyIgnitionCutMs43(selection.ignitionCut43)
+                            applyLaunchControl(selection.launchControl)
+                            applyNoLiftShift(selection.noLiftShift)
+                            applyRollingAntiLag(selection.rollingAntiLag)
+                            applyIgnitionAdvance(selection.ignitionAdvance)
+                            applyFuelMixture(selection.fuelMixture)
+                            save()
+                        }
+                        val applied = getString(if (checksummed) R.string.patches_applied else R.string.patches_applied_no_checksum)
+                        if (match == null) getString(R.string.ecu_not_identified) + "\n" + applied else applied
+                    }
+                }
+            } catch (e: Exception) {
+                getString(R.string.error_apply_failed, e.message)
+            }
+            runOnUiThread {
+                if (isDestroyed) return@runOnUiThread
+                binding.btnApply.isEnabled = true
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show()
             }
-            FileOutputStream(bin).use(pm::saveBin)
-            Toast.makeText(this, getString(R.string.patches_applied), Toast.LENGTH_LONG).show()
         }
     }
 
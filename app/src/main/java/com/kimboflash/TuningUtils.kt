@@ -1,26 +1,29 @@
-
 package com.kimboflash
 
+import com.kimboflash.rom.RomImage
+
 object TuningUtils {
 
-    fun getByteValue(data: ByteArray, offset: Int): Int = data[offset].toInt() and 0xFF
+    fun getByteValue(image: RomImage, offset: Int): Int = image.uint8(offset)
 
-    fun setByteValue(data: ByteArray, offset: Int, value: Int) {
-        data[offset] = value.toByte()
+    fun setByteValue(image: RomImage, offset: Int, value: Int) {
+        image.setUint8(offset, value)
     }
 
-    fun applyChecksums(data: ByteArray) {
-        // Simpele MS4X-style checksum logica (voorbeeld)
+    /**
+     * The fixed MS4x-style byte sum (0x0000..0x1F7FF into 0x1F800) callers
+     * relied on before the checksum engine; a fallback, not a verified layout.
+     */
+    fun applyChecksums(image: RomImage) {
         val checksumOffset = 0x1F800
         val rangeStart = 0x0000
         val rangeEnd = 0x1F7FF
         var sum = 0
 
         for (i in rangeStart..rangeEnd) {
-            sum = (sum + (data[i].toInt() and 0xFF)) and 0xFFFF
+            sum = (sum + image.uint8(i)) and 0xFFFF
         }
 
-        data[checksumOffset] = (sum shr 8).toByte()
-        data[checksumOffset + 1] = (sum and 0xFF).toByte()
+        image.setUint16(checksumOffset, sum, littleEndian = false)
     }
 }
@@ -17,8 +17,16 @@ import android.util.Log;
 
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
+import com.kimboflash.protocol.BusStats;
+import com.kimboflash.protocol.FrameDecoder;
+import com.kimboflash.protocol.RequestScheduler;
+import com.kimboflash.transport.LineSettings;
+import com.kimboflash.transport.Transport;
+import com.kimboflash.transport.UsbTransport;
 
 // Removed explicit import for java.io.IOException as it's not directly caught for open/close
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -31,24 +39,108 @@ public class UsbService extends Service {
         return this.serialPort; // adjust field name if needed
     }
 
+    /**
+     * The connected port as a {@link CommService}, for protocol code that runs
+     * over any adapter; null while disconnected. While a UI handler is set the
+     * transport's listener feeds the UI, so protocol code that wants the bytes
+     * registers its own listener (or clears it to use read()).
+     */
+    public CommService getTransport() {
+        return transport;
+    }
+
+    /**
+     * Request scheduler over the connected port, created on first use; null
+     * while disconnected. It takes over the transport's listener and passes
+     * the raw bytes on to the UI feed, and frames in the {@link #getSessionFormat()
+     * session format}.
+     */
+    public synchronized RequestScheduler getScheduler() {
+        Transport t = transport;
+        if (t == null) return null;
+        if (scheduler == null) {
+            scheduler = new RequestScheduler(t, sessionFormat,
+                    KWP2000Manager.ECU_ADDRESS & 0xFF, RequestScheduler.TESTER_ADDRESS, uiFeed);
+            scheduler.setBaud(lineSettings.getBaud());
+            scheduler.setBitsPerByte(lineSettings.getBitsPerByte());
+        }
+        return scheduler;
+    }
+
+    /**
+     * Hands the port over for raw byte access (K-Line init): stops the
+     * scheduler and clears the listener, so {@link CommService#read} sees
+     * every byte. Pair with {@link #releaseRawTransport()}.
+     */
+    public synchronized CommService claimRawTransport() {
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+        }
+        Transport t = transport;
+        if (t != null) t.setFrameListener(null);
+        return t;
+    }
+
+    /**
+     * Sets the frame format of the session on the port: KWP2000 after a K-Line
+     * init, for diagnostics and flashing, or DS2 for the 9600 8E1 logger. A
+     * scheduler running in the other format is closed; the next
+     * {@link #getScheduler()} starts one in {@code format}.
+     */
+    public synchronized void setSessionFormat(FrameDecoder.Format format) {
+        if (format == sessionFormat) return;
+        sessionFormat = format;
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+            Transport t = transport;
+            if (t != null) t.setFrameListener(mHandler != null ? uiFeed : null);
+        }
+    }
+
+    public FrameDecoder.Format getSessionFormat() {
+        return sessionFormat;
+    }
+
+    /** Gives the port back to the UI feed; the next {@link #getScheduler()} starts a new scheduler. */
+    public synchronized void releaseRawTransport() {
+        Transport t = transport;
+        if (t != null && scheduler == null && mHandler != null) {
+            t.setFrameListener(uiFeed);
+        }
+    }
+
     public static final String ACTION_USB_PERMISSION = "com.kimboflash.USB_PERMISSION";
 
     public static final int MESSAGE_FROM_SERVICE = 0;
     public static final int MESSAGE_FROM_SERIAL_PORT = 1;
     private static final String TAG = "UsbService";
     private static final int DEFAULT_BAUD = 10400; // Standard K-Line baud rate
+    private static final long UI_INTERVAL_MS = 50;  // Max 20 UI updates per second
+    private static final int UI_BUFFER_SIZE = 4096;
 
     private UsbManager usbManager;
     private UsbDevice device;
     private UsbDeviceConnection connection;
     private UsbSerialDevice serialPort;
     private boolean serialPortConnected = false;
+    /** The USB port's {@link UsbTransport}, or a Bluetooth/Wi-Fi link from {@link #attachTransport}. */
+    private volatile Transport transport;
+    private volatile int connectBaud = DEFAULT_BAUD;
+    /** Format the open port runs at; 8N1 at {@link #connectBaud} after every connect. */
+    private volatile LineSettings lineSettings = LineSettings.KLINE;
+    private volatile UsbTransport.LineMode lineMode = UsbTransport.LineMode.BREAK;
+    private volatile boolean lineInverted;
+    private volatile RequestScheduler scheduler;
+    /** Frame format of {@link #scheduler}; KWP2000 unless the DS2 logger switched it. */
+    private volatile FrameDecoder.Format sessionFormat = FrameDecoder.Format.KWP2000;
 
     private final IBinder binder = new UsbBinder();
     private volatile Handler mHandler;
 
+    // Requests queued before the port was connected
     private final ConcurrentLinkedQueue<byte[]> commandQueue = new ConcurrentLinkedQueue<>();
-    private volatile boolean isProcessingCommands = false;
 
     private KLineManager kLineManager;
 
@@ -80,6 +172,11 @@ public class UsbService extends Service {
 
     public void setHandler(Handler handler) {
         this.mHandler = handler;
+        Transport t = transport;
+        // A running scheduler owns the listener and taps the UI feed itself
+        if (t != null && scheduler == null) {
+            t.setFrameListener(handler != null ? uiFeed : null);
+        }
         if (handler == null) {
             Log.d(TAG, "UI Handler has been unset.");
         } else {
@@ -191,24 +288,54 @@ public class UsbService extends Service {
         // No try-catch for IOException as serialPort.open() does not declare it.
 
         Log.i(TAG, "Serial port opened. Configuring parameters...");
-        serialPort.setBaudRate(DEFAULT_BAUD);
+        serialPort.setBaudRate(connectBaud);
         serialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
         serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
         serialPort.setParity(UsbSerialInterface.PARITY_NONE);
         serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+        lineSettings = new LineSettings(connectBaud);
+        UsbTransport usb = new UsbTransport(serialPort);
+        usb.setLineMode(lineMode);
+        usb.setLineInverted(lineInverted);
+        transport = usb;
+        if (mHandler != null) {
+            transport.setFrameListener(uiFeed);
+        }
         serialPort.read(mCallback);
 
         serialPortConnected = true;
         sendServiceMessage("Serial port connected and configured successfully.");
         Log.i(TAG, "Serial port fully connected and configured for " + device.getDeviceName());
 
-        if (!isProcessingCommands && !commandQueue.isEmpty()) {
-            isProcessingCommands = true;
-            processNextCommand();
-        }
+        flushCommandQueue();
         return true;
     }
 
+    /**
+     * Line speed the USB port is opened at, usually the saved profile's; takes effect on
+     * the next connect.
+     */
+    public void setConnectBaud(int baud) {
+        connectBaud = baud;
+    }
+
+    /**
+     * Runs the session over an already connected Bluetooth or Wi-Fi adapter instead of
+     * the USB port: scheduler, raw access and the UI feed all use {@code t} until
+     * {@link #disconnectFromDevice()}, which also closes it.
+     */
+    public synchronized void attachTransport(Transport t) {
+        disconnectFromDeviceInternal();
+        device = null;
+        lineSettings = LineSettings.KLINE;
+        transport = t;
+        if (mHandler != null) {
+            t.setFrameListener(uiFeed);
+        }
+        sendServiceMessage("Adapter connected.");
+        flushCommandQueue();
+    }
+
     public synchronized void disconnectFromDevice() {
         sendServiceMessage("Disconnecting from device...");
         Log.i(TAG, "disconnectFromDevice() called publicly.");
@@ -220,9 +347,19 @@ public class UsbService extends Service {
 
     private synchronized void disconnectFromDeviceInternal() {
         Log.d(TAG, "disconnectFromDeviceInternal() called.");
-        isProcessingCommands = false;
         commandQueue.clear();
 
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+        }
+        // The next connection starts with a K-Line init, i.e. a KWP2000 session
+        sessionFormat = FrameDecoder.Format.KWP2000;
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+
         if (serialPort != null) {
             try {
                 Log.d(TAG, "Closing serial port object...");
@@ -256,10 +393,23 @@ public class UsbService extends Service {
             Log.w(TAG, "Attempted to write when serial port not connected.");
             return;
         }
-        Log.d(TAG, "Writing data: " + bytesToHex(data));
+        // The hex dump allocates; only build it when debug logging is on
+        if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Writing data: " + bytesToHex(data));
+        if (serialPort == null) {
+            // Attached Bluetooth/Wi-Fi link; the transport counts its own bytes
+            transport.send(data);
+            return;
+        }
         serialPort.write(data);
+        // Bypasses the transport, so counted here
+        BusStats.DEFAULT.bytesOut(data.length);
     }
 
+    /**
+     * Queues a request payload (service id first) on the request scheduler.
+     * Responses are matched to their request there; while disconnected the
+     * payload waits here and is submitted on connect.
+     */
     public void queueCommand(byte[] cmd) {
         if (cmd == null || cmd.length == 0) {
             Log.w(TAG, "Attempted to queue null or empty command.");
@@ -267,49 +417,78 @@ public class UsbService extends Service {
         }
         commandQueue.add(cmd);
         Log.d(TAG, "Command queued: " + bytesToHex(cmd) + " (Queue size: " + commandQueue.size() + ")");
-        if (!isProcessingCommands && isConnected()) {
-            isProcessingCommands = true;
-            processNextCommand();
-        } else if (!isConnected()) {
+        if (isConnected()) {
+            flushCommandQueue();
+        } else {
             sendServiceMessage("Command queued, but port not connected. Will send upon connection.");
         }
     }
 
-    private synchronized void processNextCommand() {
-        if (!isConnected()) {
-            isProcessingCommands = false;
-            Log.w(TAG, "Cannot process command: Serial port not connected.");
-            return;
-        }
-        byte[] cmd = commandQueue.poll();
-        if (cmd != null) {
-            Log.i(TAG, "Processing next command: " + bytesToHex(cmd));
-            write(cmd);
-        } else {
-            isProcessingCommands = false;
-            Log.d(TAG, "Command queue empty.");
+    private void flushCommandQueue() {
+        if (commandQueue.isEmpty()) return;
+        RequestScheduler s = getScheduler();
+        if (s == null) return;
+        byte[] cmd;
+        while ((cmd = commandQueue.poll()) != null) {
+            s.submit(cmd[0] & 0xFF, Arrays.copyOfRange(cmd, 1, cmd.length));
         }
     }
 
+    /**
+     * Runs on the USB read thread for every chunk: copies it into the
+     * transport's ring buffer and nothing else. No per-chunk allocation,
+     * logging or main-thread messages; the UI gets batches from {@link UiFeed}.
+     */
     private final UsbSerialInterface.UsbReadCallback mCallback = data -> {
-        if (data != null && data.length > 0) {
-            Log.d(TAG, "Data received: " + bytesToHex(data) + " (Length: " + data.length + ")");
-            if (mHandler != null) {
-                Message msg = mHandler.obtainMessage(MESSAGE_FROM_SERIAL_PORT);
-                Bundle b = new Bundle();
-                b.putByteArray("data", data);
-                msg.setData(b);
-                mHandler.sendMessage(msg);
-            } else {
-                Log.w(TAG, "mHandler is null, cannot send received data to UI.");
+        Transport t = transport;
+        if (t != null && data != null && data.length > 0) {
+            t.deliver(data, 0, data.length);
+        }
+    };
+
+    /**
+     * Coalesces received bytes for the UI handler: the protocol thread appends
+     * to one preallocated buffer and at most one message per
+     * {@link #UI_INTERVAL_MS} reaches the main thread.
+     */
+    private final class UiFeed implements CommService.FrameListener, Runnable {
+        private final byte[] pending = new byte[UI_BUFFER_SIZE];
+        private int pendingLength;
+        private boolean scheduled;
+
+        @Override
+        public void onReceived(ByteBuffer data) {
+            Handler h = mHandler;
+            if (h == null) return;
+            synchronized (this) {
+                int n = Math.min(data.remaining(), pending.length - pendingLength);
+                data.get(pending, pendingLength, n);
+                pendingLength += n;
+                if (scheduled) return;
+                scheduled = true;
             }
-        } else {
-            Log.d(TAG, "Empty or null data received from serial port's read callback.");
+            h.postDelayed(this, UI_INTERVAL_MS);
         }
-        if (isProcessingCommands) {
-            processNextCommand();
+
+        @Override
+        public void run() {
+            byte[] batch;
+            synchronized (this) {
+                batch = Arrays.copyOf(pending, pendingLength);
+                pendingLength = 0;
+                scheduled = false;
+            }
+            Handler h = mHandler;
+            if (h == null || batch.length == 0) return;
+            Message msg = h.obtainMessage(MESSAGE_FROM_SERIAL_PORT);
+            Bundle b = new Bundle();
+            b.putByteArray("data", batch);
+            msg.setData(b);
+            h.dispatchMessage(msg);
         }
-    };
+    }
+
+    private final UiFeed uiFeed = new UiFeed();
 
     public synchronized boolean setBaudRate(int baudRate) {
         if (!isConnected()) {
@@ -317,8 +496,13 @@ public class UsbService extends Service {
             sendServiceMessage("Cannot set baud rate: Serial port not connected.");
             return false;
         }
+        if (serialPort == null) {
+            // Bluetooth/Wi-Fi adapters set their K-Line speed themselves
+            return transport.setBaudRate(baudRate);
+        }
         try {
             serialPort.setBaudRate(baudRate);
+            lineSettings = lineSettings.withBaud(baudRate);
             Log.i(TAG, "Attempted to set baud rate to " + baudRate);
             return true;
         } catch (Exception e) {
@@ -328,38 +512,96 @@ public class UsbService extends Service {
         }
     }
 
-    public synchronized boolean lineStateLow() {
-        if (!isConnected()) {
-            Log.w(TAG, "Cannot set line state: Serial port not connected.");
+    /**
+     * Reprograms the port's UART format, e.g. to 9600 8E1 for DS2 logging; bytes received
+     * in the old format are dropped. Bluetooth and Wi-Fi adapters only take 8N1, and only
+     * the speed is passed on to them.
+     */
+    public synchronized boolean setLineSettings(LineSettings settings) {
+        Transport t = transport;
+        if (t == null || !isConnected()) {
+            Log.w(TAG, "Cannot set line format: port not connected.");
             return false;
         }
-        try {
-            // TODO: serialPort.setDTR(true_or_false); or serialPort.setRTS(true_or_false);
-            Log.i(TAG, "K-Line state set to LOW (Implement actual hardware control).");
-            sendServiceMessage("K-Line state set to LOW (Implement actual hardware control).");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting K-Line state to LOW", e);
-            return false;
+        if (serialPort == null) {
+            if (settings.getDataBits() != 8 || settings.getStopBits() != 1
+                    || settings.getParity() != LineSettings.Parity.NONE || !t.setBaudRate(settings.getBaud())) {
+                sendServiceMessage("Adapter cannot run at " + settings + ".");
+                return false;
+            }
+        } else {
+            try {
+                // Through the transport, which also drops bytes still queued at the old format
+                t.setBaudRate(settings.getBaud());
+                serialPort.setDataBits(settings.getDataBits() == 7
+                        ? UsbSerialInterface.DATA_BITS_7 : UsbSerialInterface.DATA_BITS_8);
+                serialPort.setStopBits(settings.getStopBits() == 2
+                        ? UsbSerialInterface.STOP_BITS_2 : UsbSerialInterface.STOP_BITS_1);
+                serialPort.setParity(usbParity(settings.getParity()));
+            } catch (Exception e) {
+                Log.e(TAG, "Error setting line format " + settings, e);
+                sendServiceMessage("Error setting line format: " + e.getMessage());
+                return false;
+            }
+        }
+        lineSettings = settings;
+        if (scheduler != null) {
+            scheduler.setBaud(settings.getBaud());
+            scheduler.setBitsPerByte(settings.getBitsPerByte());
         }
+        Log.i(TAG, "Line format set to " + settings);
+        return true;
     }
 
-    public synchronized boolean lineStateHigh() {
-        if (!isConnected()) {
-            Log.w(TAG, "Cannot set line state: Serial port not connected.");
-            return false;
+    public LineSettings getLineSettings() {
+        return lineSettings;
+    }
+
+    private static int usbParity(LineSettings.Parity parity) {
+        switch (parity) {
+            case ODD:
+                return UsbSerialInterface.PARITY_ODD;
+            case EVEN:
+                return UsbSerialInterface.PARITY_EVEN;
+            default:
+                return UsbSerialInterface.PARITY_NONE;
         }
-        try {
-            // TODO: serialPort.setDTR(true_or_false); or serialPort.setRTS(true_or_false);
-            Log.i(TAG, "K-Line state set to HIGH (Implement actual hardware control).");
-            sendServiceMessage("K-Line state set to HIGH (Implement actual hardware control).");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting K-Line state to HIGH", e);
-            return false;
+    }
+
+    /**
+     * How the cable drives the K-Line, usually from the adapter's saved profile; applies to
+     * the open port and to every later connect.
+     */
+    public void setLineControl(UsbTransport.LineMode mode, boolean inverted) {
+        lineMode = mode;
+        lineInverted = inverted;
+        Transport t = transport;
+        if (t instanceof UsbTransport) {
+            ((UsbTransport) t).setLineMode(mode);
+            ((UsbTransport) t).setLineInverted(inverted);
         }
     }
 
+    public UsbTransport.LineMode getLineMode() {
+        return lineMode;
+    }
+
+    public boolean isLineInverted() {
+        return lineInverted;
+    }
+
+    /** Pulls the K-Line low through the cable's line-control signal; false if it has none. */
+    public boolean lineStateLow() {
+        Transport t = transport;
+        return t != null && t.setKLineLow(true);
+    }
+
+    /** Releases the K-Line (idle high). */
+    public boolean lineStateHigh() {
+        Transport t = transport;
+        return t != null && t.setKLineLow(false);
+    }
+
     public void perform5BaudInit(byte address) {
         if (kLineManager != null) {
             kLineManager.perform5BaudInit(address);
@@ -379,6 +621,8 @@ public class UsbService extends Service {
     }
 
     public boolean isConnected() {
+        Transport t = transport;
+        if (t != null && !(t instanceof UsbTransport)) return t.isOpen();
         return connection != null && serialPort != null && serialPortConnected;
     }
 
@@ -2,40 +2,44 @@ package com.kimboflash;
 
 import android.util.Log;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import com.kimboflash.transport.StreamTransport;
+
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 /**
- * Stub Wi-Fi serial service for K-Line adapter.
+ * Wi-Fi (TCP) serial service for K-Line adapter.
+ * Sending, receiving and timeouts come from {@link StreamTransport}.
  */
-public class WifiSerialService {
+public class WifiSerialService extends StreamTransport {
     private static final String TAG = "WifiSerialSvc";
+    private static final int CONNECT_TIMEOUT_MS = 3000;
     private Socket socket;
-    private InputStream in;
-    private OutputStream out;
 
+    public WifiSerialService() {
+        super(TAG);
+    }
+
+    /** Connects to the adapter at {@code host:port}; blocks, so call it off the UI thread. */
     public boolean connect(String host, int port) {
         try {
-            socket = new Socket(host, port);
-            in = socket.getInputStream();
-            out = socket.getOutputStream();
+            socket = new Socket();
+            // Diagnostic frames are tiny; don't let Nagle hold them back
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            attach(socket.getInputStream(), socket.getOutputStream());
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Wi-Fi connect failed", e);
+            close();
             return false;
         }
     }
 
-    public void write(byte[] data) throws Exception {
-        if (out != null) out.write(data);
-    }
-
-    public void read(UsbSerialInterface.UsbReadCallback callback) {
-        // stub: implement read handling from in stream
-    }
-
+    @Override
     public void close() {
+        super.close();
         try { if (socket != null) socket.close(); } catch (Exception e) { }
+        socket = null;
     }
 }
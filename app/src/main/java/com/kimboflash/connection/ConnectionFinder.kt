@@ -0,0 +1,160 @@
+package com.kimboflash.connection
+
+import android.bluetooth.BluetoothAdapter
+import android.content.Context
+import android.hardware.usb.UsbManager
+import android.util.Log
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+/**
+ * Finds a diagnostic adapter by probing USB, bonded Bluetooth devices and
+ * Wi-Fi endpoints at the same time.
+ *
+ * Every probe runs on its own pool thread with its own timeout. The adapter
+ * of the most recently used [ConnectionProfile] wins as soon as its probe
+ * reports it, without waiting for the rest; otherwise the best adapter
+ * found once all probes finish is returned (known before new, then USB,
+ * Bluetooth, Wi-Fi). Found adapters come back as profiles carrying the
+ * cached baud rate, init method and ECU address where there is one.
+ */
+class ConnectionFinder(private val context: Context, private val store: ConnectionProfileStore) {
+    companion object {
+        private const val TAG = "ConnectionFinder"
+        /** FTDI, Silicon Labs CP210x, WCH CH340. */
+        val USB_VIDS = intArrayOf(0x0403, 0x10C4, 0x1A86)
+        val BLUETOOTH_NAMES = listOf("MyKwpAdapter", "ELM", "OBD")
+        const val DEFAULT_WIFI_ENDPOINT = "192.168.0.10:35000"
+        const val WIFI_TIMEOUT_MS = 300
+        const val DEFAULT_TIMEOUT_MS = 1000L
+
+        private val pool = Executors.newCachedThreadPool { r ->
+            Thread(r, "adapter-probe").apply { isDaemon = true }
+        }
+    }
+
+    private class Probe(val kind: ConnectionProfile.Kind, val body: () -> List<ConnectionProfile>)
+
+    /** Result of one probe, as soon as it finishes. */
+    fun interface ProbeListener {
+        /** Called on a probe thread, or with an empty list for a probe that timed out. */
+        fun onProbed(kind: ConnectionProfile.Kind, found: List<ConnectionProfile>)
+    }
+
+    /**
+     * Runs all probes in parallel; blocks at most [timeoutMs], so call it
+     * off the main thread. Null when no adapter answered.
+     */
+    @JvmOverloads
+    fun find(timeoutMs: Long = DEFAULT_TIMEOUT_MS): ConnectionProfile? {
+        val preferred = store.latest()
+        val found = ArrayList<ConnectionProfile>()
+        var winner: ConnectionProfile? = null
+        runProbes(wifiEndpoints(), timeoutMs) { _, result ->
+            // Last known good adapter: no need to wait for the others
+            winner = result.firstOrNull { it.adapterId == preferred?.adapterId }
+            found.addAll(result)
+            winner != null
+        }
+        return winner ?: found.minWithOrNull(compareBy<ConnectionProfile>({ it.lastUsed == 0L }, { it.kind.ordinal }, { -it.lastUsed }))
+    }
+
+    /**
+     * Runs the USB and Bluetooth probes plus one per Wi-Fi [endpoint] in
+     * parallel and hands each result to [listener] as it comes in, for
+     * screens that show adapters while the rest are still being probed.
+     * Blocks until every probe has reported, at most [timeoutMs].
+     */
+    fun scan(endpoints: List<String>, timeoutMs: Long, listener: ProbeListener) {
+        runProbes(endpoints, timeoutMs) { kind, result ->
+            listener.onProbed(kind, result)
+            false
+        }
+    }
+
+    /**
+     * Probe pool shared by [find] and [scan]: [onResult] sees every probe
+     * once and returns true to stop early. Probes still running at the
+     * deadline are cancelled and reported as finding nothing.
+     */
+    private fun runProbes(
+        endpoints: List<String>,
+        timeoutMs: Long,
+        onResult: (ConnectionProfile.Kind, List<ConnectionProfile>) -> Boolean
+    ) {
+        val probes = ArrayList<Probe>()
+        probes.add(Probe(ConnectionProfile.Kind.USB) { probeUsb() })
+        probes.add(Probe(ConnectionProfile.Kind.BLUETOOTH) { probeBluetooth() })
+        for (endpoint in endpoints) probes.add(Probe(ConnectionProfile.Kind.WIFI) { probeWifi(endpoint) })
+
+        val completion = ExecutorCompletionService<List<ConnectionProfile>>(pool)
+        val running = HashMap<Future<List<ConnectionProfile>>, ConnectionProfile.Kind>()
+        for (p in probes) running[completion.submit { p.body() }] = p.kind
+        val deadline = System.nanoTime() + timeoutMs * 1_000_000L
+        try {
+            while (running.isNotEmpty()) {
+                val left = deadline - System.nanoTime()
+                if (left <= 0L) break
+                val done = completion.poll(left, TimeUnit.NANOSECONDS) ?: break
+                val kind = running.remove(done) ?: continue
+                val result = try { done.get() } catch (e: Exception) {
+                    Log.w(TAG, "Probe failed", e)
+                    emptyList()
+                }
+                if (onResult(kind, result)) return
+            }
+            for (kind in running.values) onResult(kind, emptyList())
+        } finally {
+            running.keys.forEach { it.cancel(true) }
+        }
+    }
+
+    /** Cached settings for [adapterId] on a freshly found adapter, or defaults. */
+    private fun profileFor(adapterId: String, kind: ConnectionProfile.Kind, endpoint: String): ConnectionProfile =
+        store.find(adapterId)?.copy(endpoint = endpoint) ?: ConnectionProfile(adapterId, kind, endpoint)
+
+    fun probeUsb(): List<ConnectionProfile> {
+        val manager = context.getSystemService(Context.USB_SERVICE) as? UsbManager ?: return emptyList()
+        return manager.deviceList.values.filter { it.vendorId in USB_VIDS }.map { d ->
+            // The serial number needs device permission on Android 10+
+            val serial = try { d.serialNumber } catch (_: SecurityException) { null }
+            val id = "usb:%04x:%04x:%s".format(d.vendorId, d.productId, serial ?: "")
+            profileFor(id, ConnectionProfile.Kind.USB, d.deviceName)
+        }
+    }
+
+    fun probeBluetooth(): List<ConnectionProfile> {
+        val adapter = BluetoothAdapter.getDefaultAdapter() ?: return emptyList()
+        return try {
+            if (!adapter.isEnabled) return emptyList()
+            adapter.bondedDevices.filter { dev ->
+                val name = dev.name ?: ""
+                BLUETOOTH_NAMES.any { name.contains(it, true) } || store.find("bt:${dev.address}") != null
+            }.map { profileFor("bt:${it.address}", ConnectionProfile.Kind.BLUETOOTH, it.address) }
+        } catch (e: SecurityException) {
+            Log.w(TAG, "No Bluetooth permission", e)
+            emptyList()
+        }
+    }
+
+    /** Whether something accepts TCP connections at [endpoint] ("host:port"). */
+    fun probeWifi(endpoint: String): List<ConnectionProfile> {
+        val host = endpoint.substringBeforeLast(':')
+        val port = endpoint.substringAfterLast(':').toIntOrNull() ?: return emptyList()
+        return try {
+            Socket().use { it.connect(InetSocketAddress(host, port), WIFI_TIMEOUT_MS) }
+            listOf(profileFor("wifi:$endpoint", ConnectionProfile.Kind.WIFI, endpoint))
+        } catch (_: Exception) {
+            emptyList()
+        }
+    }
+
+    /** Endpoints of known Wi-Fi adapters, most recent first, then [configured] ones. */
+    @JvmOverloads
+    fun wifiEndpoints(configured: List<String> = listOf(DEFAULT_WIFI_ENDPOINT)): List<String> =
+        (store.all().filter { it.kind == ConnectionProfile.Kind.WIFI }.map { it.endpoint } + configured).distinct()
+}
@@ -0,0 +1,66 @@
+package com.kimboflash.connection
+
+import com.kimboflash.protocol.KLineInit
+import com.kimboflash.transport.UsbTransport
+
+/**
+ * What worked the last time a given adapter (and car) was connected: the
+ * link, the line speed, the init method, how a USB cable drives the K-Line
+ * and the ECU address. Tried first on the next connect so a known setup
+ * skips discovery and the slow 5-baud wake-up.
+ */
+data class ConnectionProfile(
+    /** Stable adapter identity: "usb:vid:pid:serial", "bt:MAC" or "wifi:host:port". */
+    val adapterId: String,
+    val kind: Kind,
+    /** USB device name, Bluetooth MAC or host:port. */
+    val endpoint: String,
+    val baud: Int = KLineInit.KLINE_BAUD,
+    /** Null until an init has succeeded over this adapter. */
+    val initMethod: KLineInit.Method? = null,
+    val ecuAddress: Int = 0x12,
+    /** Set once the car identified itself; a second lookup key next to [adapterId]. */
+    val vin: String? = null,
+    /** Wall-clock time of the last successful connect. */
+    val lastUsed: Long = 0L,
+    /** K-Line control of a USB cable; ignored for Bluetooth and Wi-Fi. */
+    val lineMode: UsbTransport.LineMode = UsbTransport.LineMode.BREAK,
+    val lineInverted: Boolean = false
+) {
+    enum class Kind { USB, BLUETOOTH, WIFI }
+
+    companion object {
+        private const val FIELDS = 10
+        /** Lines written before the line mode was stored. */
+        private const val OLD_FIELDS = 8
+
+        /** Parses a line written by [encode]; null if it is malformed. */
+        fun decode(line: String): ConnectionProfile? {
+            val f = line.split('\t')
+            if (f.size != FIELDS && f.size != OLD_FIELDS) return null
+            return try {
+                ConnectionProfile(
+                    adapterId = f[0],
+                    kind = Kind.valueOf(f[1]),
+                    endpoint = f[2],
+                    baud = f[3].toInt(),
+                    initMethod = if (f[4].isEmpty()) null else KLineInit.Method.valueOf(f[4]),
+                    ecuAddress = f[5].toInt(16),
+                    vin = f[6].ifEmpty { null },
+                    lastUsed = f[7].toLong(),
+                    lineMode = if (f.size > OLD_FIELDS) UsbTransport.LineMode.valueOf(f[8]) else UsbTransport.LineMode.BREAK,
+                    lineInverted = f.size > OLD_FIELDS && f[9] == "1"
+                )
+            } catch (_: IllegalArgumentException) {
+                null
+            }
+        }
+    }
+
+    /** One tab-separated line; none of the fields can contain tabs. */
+    fun encode(): String = listOf(
+        adapterId, kind.name, endpoint, baud.toString(), initMethod?.name ?: "",
+        Integer.toHexString(ecuAddress), vin ?: "", lastUsed.toString(),
+        lineMode.name, if (lineInverted) "1" else "0"
+    ).joinToString("\t")
+}
@@ -0,0 +1,63 @@
+package com.kimboflash.connection
+
+import android.content.Context
+import android.util.Log
+import java.io.File
+
+/**
+ * Persists [ConnectionProfile]s in filesDir, one line per adapter, and looks
+ * them up by adapter id or VIN. The file is tiny and read once; every
+ * [save] rewrites it through a temp file so a crash never leaves it torn.
+ */
+class ConnectionProfileStore(context: Context) {
+    companion object {
+        private const val TAG = "ConnectionProfiles"
+        private const val FILE = "connection_profiles.tsv"
+        /** Oldest profiles beyond this are dropped on save. */
+        private const val MAX_PROFILES = 32
+    }
+
+    private val file = File(context.filesDir, FILE)
+    private val profiles = LinkedHashMap<String, ConnectionProfile>()
+
+    init {
+        if (file.exists()) {
+            try {
+                file.forEachLine { line ->
+                    ConnectionProfile.decode(line)?.let { profiles[it.adapterId] = it }
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Ignoring unreadable profile file", e)
+            }
+        }
+    }
+
+    @Synchronized
+    fun find(adapterId: String): ConnectionProfile? = profiles[adapterId]
+
+    @Synchronized
+    fun findByVin(vin: String): ConnectionProfile? =
+        profiles.values.filter { it.vin == vin }.maxByOrNull { it.lastUsed }
+
+    /** The most recently used profile, i.e. the adapter to try first. */
+    @Synchronized
+    fun latest(): ConnectionProfile? = profiles.values.maxByOrNull { it.lastUsed }
+
+    @Synchronized
+    fun all(): List<ConnectionProfile> = profiles.values.sortedByDescending { it.lastUsed }
+
+    @Synchronized
+    fun save(profile: ConnectionProfile) {
+        profiles[profile.adapterId] = profile
+        if (profiles.size > MAX_PROFILES) {
+            profiles.values.minByOrNull { it.lastUsed }?.let { profiles.remove(it.adapterId) }
+        }
+        try {
+            val tmp = File(file.path + ".tmp")
+            tmp.writeText(profiles.values.joinToString("\n") { it.encode() })
+            tmp.renameTo(file)
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not save connection profile", e)
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.kimboflash.defs
+
+import android.content.Context
+import android.util.Log
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+/**
+ * Compiles the bundled definitions under assets/defs into a binary cache in
+ * filesDir and maps it back read-only.
+ *
+ * The numeric columns and patch data of each [DefinitionIndex] are views
+ * into the mapping, so a start copies none of them onto the heap; only the
+ * string tables are decoded. A mapping stays valid after its cache file is
+ * replaced, as the old file lives on until it is unmapped.
+ *
+ * One instance per process ([get]); loading is serialised and its result
+ * kept, so screens opened in quick succession neither compile twice nor race
+ * on the manifest.
+ *
+ * Each asset is compiled once per content hash; the hash itself is remembered
+ * per app version in a small manifest so normal starts neither re-parse nor
+ * re-hash the XML.
+ *
+ * File layout (big-endian): magic, version, definition count, then per
+ * definition a string table (offsets + UTF-8 blob), the header fields and one
+ * fixed-width column per [DefinitionIndex] field.
+ */
+class DefinitionCache private constructor(private val context: Context) {
+    companion object {
+        private const val TAG = "DefinitionCache"
+        private const val ASSET_ROOT = "defs"
+        private const val MAGIC = 0x4B464443 // "KFDC"
+        /** 2: RomRaider region sizes from <filesize>. */
+        private const val FORMAT_VERSION = 2
+        private const val MANIFEST = "manifest.txt"
+
+        @Volatile
+        private var instance: DefinitionCache? = null
+
+        /** The process-wide cache. */
+        @JvmStatic
+        fun get(context: Context): DefinitionCache =
+            instance ?: synchronized(this) {
+                instance ?: DefinitionCache(context.applicationContext).also { instance = it }
+            }
+    }
+
+    private val dir = File(context.filesDir, "defcache").apply { mkdirs() }
+    private val manifest = HashMap<String, String>()
+    private var loaded: Map<String, List<DefinitionIndex>>? = null
+    private val versionKey: String by lazy {
+        val info = context.packageManager.getPackageInfo(context.packageName, 0)
+        "${info.versionName}-${info.lastUpdateTime}"
+    }
+
+    init {
+        readManifest()
+    }
+
+    /** Every definition asset below assets/defs, e.g. "defs/ms43/MS43ECU.xml". */
+    fun listAssets(): List<String> {
+        val out = ArrayList<String>()
+        fun walk(path: String) {
+            val children = context.assets.list(path) ?: return
+            if (children.isEmpty()) {
+                if (path.endsWith(".xdf", true) || path.endsWith(".xml", true)) out.add(path)
+                return
+            }
+            for (c in children) walk("$path/$c")
+        }
+        walk(ASSET_ROOT)
+        return out
+    }
+
+    /** Loads every bundled definition, compiling those that are not cached yet; later calls reuse the result. */
+    @Synchronized
+    fun loadAll(): Map<String, List<DefinitionIndex>> =
+        loaded ?: listAssets().associateWith { load(it) }.also { loaded = it }
+
+    /** Returns the definitions of [assetPath], from the cache when possible. */
+    @Synchronized
+    fun load(assetPath: String): List<DefinitionIndex> {
+        val hash = manifest[assetPath]?.let { entry ->
+            if (entry.substringBefore('\t') == versionKey) entry.substringAfter('\t') else null
+        } ?: hashAsset(assetPath).also {
+            manifest[assetPath] = "$versionKey\t$it"
+            writeManifest()
+        }
+
+        val file = File(dir, "$hash.kfd")
+        if (file.exists()) {
+            try {
+                return read(map(file))
+            } catch (e: Exception) {
+                Log.w(TAG, "Discarding unreadable cache for $assetPath", e)
+                file.delete()
+            }
+        }
+
+        val defs = context.assets.open(assetPath).buffered().use { input ->
+            if (assetPath.endsWith(".xdf", true)) listOf(XdfLoader.load(input))
+            else RomRaiderLoader.load(input)
+        }
+        write(file, defs)
+        Log.i(TAG, "Compiled $assetPath (${defs.size} definitions)")
+        return defs
+    }
+
+    private fun map(file: File): ByteBuffer =
+        RandomAccessFile(file, "r").use { it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length()) }
+
+    private fun hashAsset(assetPath: String): String {
+        val md = MessageDigest.getInstance("SHA-1")
+        val buf = ByteArray(64 * 1024)
+        context.assets.open(assetPath).use { input ->
+            while (true) {
+                val n = input.read(buf)
+                if (n < 0) break
+                md.update(buf, 0, n)
+            }
+        }
+        return md.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private fun readManifest() {
+        val f = File(dir, MANIFEST)
+        if (!f.exists()) return
+        f.forEachLine { line ->
+            val tab = line.indexOf('\t')
+            if (tab > 0) manifest[line.substring(0, tab)] = line.substring(tab + 1)
+        }
+    }
+
+    private fun writeManifest() {
+        val tmp = File(dir, "$MANIFEST.tmp")
+        tmp.printWriter().use { w -> for ((k, v) in manifest) w.println("$k\t$v") }
+        tmp.renameTo(File(dir, MANIFEST))
+    }
+
+    // ---- writer ----
+
+    private fun write(file: File, defs: List<DefinitionIndex>) {
+        val tmp = File(dir, file.name + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 64 * 1024)).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(FORMAT_VERSION)
+            out.writeInt(defs.size)
+            for (d in defs) writeDefinition(out, d)
+        }
+        if (!tmp.renameTo(file)) Log.w(TAG, "Could not move cache into place: $file")
+    }
+
+    private fun writeDefinition(out: DataOutputStream, d: DefinitionIndex) {
+        val strings = StringTable()
+        val defTitle = strings.id(d.defTitle)
+        val xmlId = strings.id(d.xmlId)
+        val idString = strings.id(d.idString)
+        val categories = IntArray(d.categories.size) { strings.id(d.categories[it]) }
+        val equations = IntArray(d.equations.size) { strings.id(d.equations[it]) }
+        val titles = IntArray(d.size) { strings.id(d.titles[it]) }
+        val entryNames = IntArray(d.entryCount) { strings.id(d.entryNames[it]) }
+
+        strings.writeTo(out)
+        out.writeInt(defTitle)
+        out.writeInt(d.baseOffset)
+        out.writeInt(d.regionSize)
+        out.writeInt(xmlId)
+        out.writeInt(d.idAddress)
+        out.writeInt(idString)
+        writeInts(out, categories)
+        writeInts(out, equations)
+
+        out.writeInt(d.size)
+        writeBytes(out, d.kinds)
+        writeBytes(out, d.elementBits)
+        for (col in arrayOf(
+            d.uniqueIds, IntBuffer.wrap(titles), d.categoryIds, d.addresses, d.flagBits, d.rowCounts,
+            d.colCounts, d.equationIds, d.inverseEquationIds, d.patchFirstEntry, d.patchEntryCounts
+        )) writeColumn(out, col)
+
+        out.writeInt(d.entryCount)
+        for (col in arrayOf(IntBuffer.wrap(entryNames), d.entryAddresses, d.entrySizes, d.entryPatchOffsets, d.entryBaseOffsets)) {
+            writeColumn(out, col)
+        }
+        out.writeInt(d.dataPool.limit())
+        writeBytes(out, d.dataPool)
+    }
+
+    private fun writeColumn(out: DataOutputStream, col: IntBuffer) {
+        for (i in 0 until col.limit()) out.writeInt(col.get(i))
+    }
+
+    private fun writeBytes(out: DataOutputStream, col: ByteBuffer) {
+        for (i in 0 until col.limit()) out.write(col.get(i).toInt())
+    }
+
+    private fun writeInts(out: DataOutputStream, values: IntArray) {
+        out.writeInt(values.size)
+        for (v in values) out.writeInt(v)
+    }
+
+    private class StringTable {
+        private val ids = HashMap<String, Int>()
+        private val bytes = ArrayList<ByteArray>()
+
+        fun id(s: String?): Int {
+            if (s == null) return DefinitionIndex.NONE
+            return ids.getOrPut(s) {
+                bytes.add(s.toByteArray(Charsets.UTF_8))
+                bytes.size - 1
+            }
+        }
+
+        fun writeTo(out: DataOutputStream) {
+            out.writeInt(bytes.size)
+            var offset = 0
+            for (b in bytes) {
+                out.writeInt(offset)
+                offset += b.size
+            }
+            out.writeInt(offset)
+            for (b in bytes) out.write(b)
+        }
+    }
+
+    // ---- reader ----
+
+    private fun read(buf: ByteBuffer): List<DefinitionIndex> {
+        require(buf.getInt() == MAGIC) { "Bad magic" }
+        require(buf.getInt() == FORMAT_VERSION) { "Unsupported cache version" }
+        val count = buf.getInt()
+        return List(count) { readDefinition(buf) }
+    }
+
+    private fun readDefinition(buf: ByteBuffer): DefinitionIndex {
+        val strings = readStrings(buf)
+        fun str(id: Int): String? = if (id == DefinitionIndex.NONE) null else strings[id]
+
+        val defTitle = str(buf.getInt()) ?: ""
+        val baseOffset = buf.getInt()
+        val regionSize = buf.getInt()
+        val xmlId = str(buf.getInt())
+        val idAddress = buf.getInt()
+        val idString = str(buf.getInt())
+        val categories = readInts(buf, buf.getInt()).let { ids -> Array(ids.size) { str(ids[it]) } }
+        val equations = readInts(buf, buf.getInt()).let { ids -> Array(ids.size) { strings[ids[it]] } }
+
+        val n = buf.getInt()
+        val kinds = byteView(buf, n)
+        val bits = byteView(buf, n)
+        val uniqueIds = intView(buf, n)
+        val titles = readInts(buf, n).let { ids -> Array(n) { strings[ids[it]] } }
+        val categoryIds = intView(buf, n)
+        val addresses = intView(buf, n)
+        val flags = intView(buf, n)
+        val rows = intView(buf, n)
+        val cols = intView(buf, n)
+        val eq = intView(buf, n)
+        val inv = intView(buf, n)
+        val patchFirst = intView(buf, n)
+        val patchCounts = intView(buf, n)
+
+        val e = buf.getInt()
+        val entryNames = readInts(buf, e).let { ids -> Array(e) { strings[ids[it]] } }
+        val entryAddresses = intView(buf, e)
+        val entrySizes = intView(buf, e)
+        val entryPatch = intView(buf, e)
+        val entryBase = intView(buf, e)
+        val pool = byteView(buf, buf.getInt())
+
+        return DefinitionIndex(
+            defTitle, baseOffset, regionSize, xmlId, idAddress, idString, categories, equations,
+            kinds, uniqueIds, titles, categoryIds, addresses, bits, flags, rows, cols, eq, inv,
+            patchFirst, patchCounts, entryNames, entryAddresses, entrySizes, entryPatch, entryBase, pool
+        )
+    }
+
+    private fun readStrings(buf: ByteBuffer): Array<String> {
+        val count = buf.getInt()
+        val offsets = readInts(buf, count + 1)
+        val blob = readBytes(buf, offsets[count])
+        return Array(count) { String(blob, offsets[it], offsets[it + 1] - offsets[it], Charsets.UTF_8) }
+    }
+
+    private fun readInts(buf: ByteBuffer, n: Int): IntArray {
+        val out = IntArray(n)
+        buf.asIntBuffer().get(out)
+        buf.position(buf.position() + n * 4)
+        return out
+    }
+
+    private fun readBytes(buf: ByteBuffer, n: Int): ByteArray {
+        val out = ByteArray(n)
+        buf.get(out)
+        return out
+    }
+
+    /** The next [n] ints as a read-only view into [buf]; nothing is copied. */
+    private fun intView(buf: ByteBuffer, n: Int): IntBuffer {
+        val view = buf.slice()
+        view.limit(n * 4)
+        buf.position(buf.position() + n * 4)
+        return view.asIntBuffer().asReadOnlyBuffer()
+    }
+
+    /** The next [n] bytes as a read-only view into [buf]. */
+    private fun byteView(buf: ByteBuffer, n: Int): ByteBuffer {
+        val view = buf.slice()
+        view.limit(n)
+        buf.position(buf.position() + n)
+        return view.slice().asReadOnlyBuffer()
+    }
+}
@@ -0,0 +1,216 @@
+package com.kimboflash.defs
+
+import com.kimboflash.rom.RomImage
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+
+/**
+ * Compact, read-only index of one ECU definition: a TunerPro XDF or a single
+ * concrete <rom> of a RomRaider XML file.
+ *
+ * Records (tables, constants and patches) are stored column-wise and
+ * addressed by record number, so a 3.5 MB MS43 XDF costs a few hundred KB
+ * instead of a full DOM tree. The numeric columns and the patch data pool are
+ * buffers: heap-wrapped arrays when freshly parsed, read-only views into the
+ * memory-mapped file when loaded by [DefinitionCache], which writes the same
+ * columns to disk. Only the names are decoded onto the heap.
+ */
+class DefinitionIndex internal constructor(
+    val defTitle: String,
+    /** File offset added to every EMBEDDEDDATA address (BASEOFFSET); 0 for RomRaider. */
+    val baseOffset: Int,
+    /** Image size the definition was written for: the XDF region or RomRaider <filesize>; 0 if unknown. */
+    val regionSize: Int,
+    /** RomRaider xmlid, or null for XDFs. */
+    val xmlId: String?,
+    /** RomRaider internalidaddress, or [NONE]. */
+    val idAddress: Int,
+    /** RomRaider internalidstring, or null. */
+    val idString: String?,
+    /** Category names indexed by CATEGORY index (CATEGORYMEM category - 1). */
+    val categories: Array<String?>,
+    /** Distinct MATH / scaling equations; records refer to these by id. */
+    val equations: Array<String>,
+    internal val kinds: ByteBuffer,
+    internal val uniqueIds: IntBuffer,
+    internal val titles: Array<String>,
+    internal val categoryIds: IntBuffer,
+    internal val addresses: IntBuffer,
+    internal val elementBits: ByteBuffer,
+    internal val flagBits: IntBuffer,
+    internal val rowCounts: IntBuffer,
+    internal val colCounts: IntBuffer,
+    internal val equationIds: IntBuffer,
+    /** RomRaider to_byte equation ids; all [NONE] for XDFs. */
+    internal val inverseEquationIds: IntBuffer,
+    internal val patchFirstEntry: IntBuffer,
+    internal val patchEntryCounts: IntBuffer,
+    internal val entryNames: Array<String>,
+    internal val entryAddresses: IntBuffer,
+    internal val entrySizes: IntBuffer,
+    internal val entryPatchOffsets: IntBuffer,
+    internal val entryBaseOffsets: IntBuffer,
+    /** Raw patchdata/basedata bytes of all XDFPATCHENTRY elements. */
+    internal val dataPool: ByteBuffer
+) {
+    companion object {
+        const val KIND_TABLE: Byte = 0
+        const val KIND_CONSTANT: Byte = 1
+        const val KIND_PATCH: Byte = 2
+
+        const val NONE = -1
+
+        // EMBEDDEDDATA mmedtypeflags bits
+        const val FLAG_SIGNED = 0x01
+        const val FLAG_LSB_FIRST = 0x02
+        const val FLAG_COLUMN_MAJOR = 0x04
+        const val FLAG_FLOAT = 0x10000
+    }
+
+    private val byTitle: HashMap<String, Int> = HashMap(titles.size * 2)
+
+    init {
+        for (i in titles.indices) if (!byTitle.containsKey(titles[i])) byTitle[titles[i]] = i
+    }
+
+    val size: Int get() = kinds.limit()
+
+    val entryCount: Int get() = entryAddresses.limit()
+
+    fun kind(record: Int): Byte = kinds.get(record)
+    fun uniqueId(record: Int): Int = uniqueIds.get(record)
+    fun title(record: Int): String = titles[record]
+    fun categoryId(record: Int): Int = categoryIds.get(record)
+    fun category(record: Int): String? = categoryIds.get(record).let { if (it in categories.indices) categories[it] else null }
+
+    /** Address relative to the XDF; add [baseOffset] for the file offset, or [NONE]. */
+    fun address(record: Int): Int = addresses.get(record)
+    fun fileOffset(record: Int): Int = addresses.get(record).let { if (it == NONE) NONE else it + baseOffset }
+    fun elementSizeBits(record: Int): Int = elementBits.get(record).toInt()
+    fun typeFlags(record: Int): Int = flagBits.get(record)
+    fun rows(record: Int): Int = rowCounts.get(record)
+    fun cols(record: Int): Int = colCounts.get(record)
+    fun equationId(record: Int): Int = equationIds.get(record)
+    fun equation(record: Int): String? = equationIds.get(record).let { if (it == NONE) null else equations[it] }
+    fun inverseEquationId(record: Int): Int = inverseEquationIds.get(record)
+
+    /** Compiled [equations], shared process-wide through [ExpressionCache]; null where one does not parse. */
+    val scalings: Array<CompiledExpression?> by lazy {
+        Array(equations.size) { ExpressionCache.compile(equations[it]) }
+    }
+
+    /** Compiled MATH / scaling expression of [record]; identity when it has none, null when it does not parse. */
+    fun scaling(record: Int): CompiledExpression? =
+        equationIds.get(record).let { if (it == NONE) ExpressionCache.IDENTITY else scalings[it] }
+
+    /** False if the scaling of [record] did not parse: its values can only be shown raw. */
+    fun isScaled(record: Int): Boolean = scaling(record) != null
+
+    /**
+     * False if [record] must not be written back: its scaling, or the RomRaider
+     * to_byte conversion it has, did not parse, or a linear scaling without a
+     * to_byte conversion cannot be inverted (a zero factor).
+     */
+    fun isWritable(record: Int): Boolean {
+        val scaling = scaling(record) ?: return false
+        val inverse = inverseEquationIds.get(record)
+        if (inverse != NONE) return scalings[inverse] != null
+        return scaling !is Linear || scaling.isInvertible
+    }
+
+    /**
+     * Raw value to store for the physical value [y] of [record]: through its
+     * to_byte conversion when it has one, else by inverting a linear scaling.
+     * Null when the record is not [isWritable] or its scaling is not linear.
+     */
+    fun rawValue(record: Int, y: Double): Double? {
+        if (!isWritable(record)) return null
+        val inverse = inverseEquationIds.get(record)
+        if (inverse != NONE) return scalings[inverse]?.eval(y)?.takeIf { it.isFinite() }
+        return (scaling(record) as? Linear)?.invert(y)
+    }
+
+    /**
+     * Decodes all rows x cols cells of [record] from [image] into [out]. Returns
+     * false if the record is unscaled ([isScaled]): [out] then holds raw values.
+     */
+    fun readValues(record: Int, image: ByteArray, out: DoubleArray): Boolean {
+        val scaling = scaling(record)
+        (scaling ?: ExpressionCache.IDENTITY).applyTo(
+            image, fileOffset(record), out, 0, rows(record) * cols(record),
+            elementSizeBits(record), isSigned(record), isLittleEndian(record)
+        )
+        return scaling != null
+    }
+
+    /**
+     * Decodes [record] straight from a (mapped) [image]; [scratch] must hold
+     * rows x cols x element size bytes and is reused across calls. Returns false
+     * (and raw values) like the array variant for unscaled records.
+     */
+    fun readValues(record: Int, image: RomImage, out: DoubleArray, scratch: ByteArray): Boolean {
+        val count = rows(record) * cols(record)
+        val bits = elementSizeBits(record)
+        image.read(fileOffset(record), scratch, 0, count * bits / 8)
+        val scaling = scaling(record)
+        (scaling ?: ExpressionCache.IDENTITY).applyTo(scratch, 0, out, 0, count, bits, isSigned(record), isLittleEndian(record))
+        return scaling != null
+    }
+
+    fun isLittleEndian(record: Int): Boolean = flagBits.get(record) and FLAG_LSB_FIRST != 0
+    fun isSigned(record: Int): Boolean = flagBits.get(record) and FLAG_SIGNED != 0
+
+    /** First record with this title, or [NONE]. */
+    fun find(title: String): Int = byTitle[title] ?: NONE
+
+    /** Records belonging to the category with the given name. */
+    fun recordsInCategory(name: String): IntArray {
+        val id = categories.indexOf(name)
+        if (id < 0) return IntArray(0)
+        var n = 0
+        for (i in 0 until size) if (categoryIds.get(i) == id) n++
+        val out = IntArray(n)
+        n = 0
+        for (i in 0 until size) if (categoryIds.get(i) == id) out[n++] = i
+        return out
+    }
+
+    // Patch entries are only present for KIND_PATCH records.
+    fun firstPatchEntry(record: Int): Int = patchFirstEntry.get(record)
+    fun patchEntryCount(record: Int): Int = patchEntryCounts.get(record)
+    fun entryName(entry: Int): String = entryNames[entry]
+    fun entryAddress(entry: Int): Int = entryAddresses.get(entry)
+    fun entrySize(entry: Int): Int = entrySizes.get(entry)
+    fun hasBaseData(entry: Int): Boolean = entryBaseOffsets.get(entry) != NONE
+    fun entryFileOffset(entry: Int): Int = entryAddresses.get(entry) + baseOffset
+
+    /** True if the image currently holds the patchdata of [entry]; compared in place. */
+    fun isPatched(entry: Int, image: RomImage): Boolean =
+        image.regionEquals(entryFileOffset(entry), pool(entryPatchOffsets.get(entry), entrySizes.get(entry)))
+
+    /** True if the image holds the basedata of [entry]; false if it has none. */
+    fun isOriginal(entry: Int, image: RomImage): Boolean = hasBaseData(entry) &&
+        image.regionEquals(entryFileOffset(entry), pool(entryBaseOffsets.get(entry), entrySizes.get(entry)))
+
+    /** Bulk-writes the patchdata (or basedata for [revert]) of [entry] into [image]. */
+    fun writeEntry(entry: Int, image: RomImage, revert: Boolean = false) =
+        image.write(entryFileOffset(entry), pool(if (revert) entryBaseOffsets.get(entry) else entryPatchOffsets.get(entry), entrySizes.get(entry)))
+
+    /** Copies the patchdata bytes of [entry] into [dst] at [dstOffset]. */
+    fun copyPatchData(entry: Int, dst: ByteArray, dstOffset: Int = 0) {
+        pool(entryPatchOffsets.get(entry), entrySizes.get(entry)).get(dst, dstOffset, entrySizes.get(entry))
+    }
+
+    /** Copies the basedata bytes of [entry] into [dst] at [dstOffset]; entry must have base data. */
+    fun copyBaseData(entry: Int, dst: ByteArray, dstOffset: Int = 0) {
+        pool(entryBaseOffsets.get(entry), entrySizes.get(entry)).get(dst, dstOffset, entrySizes.get(entry))
+    }
+
+    /** View of [length] bytes of [dataPool] from [offset]; no copy. */
+    private fun pool(offset: Int, length: Int): ByteBuffer {
+        val view = dataPool.duplicate()
+        view.limit(offset + length)
+        view.position(offset)
+        return view.slice()
+    }
+}
@@ -0,0 +1,177 @@
+package com.kimboflash.defs
+
+import com.kimboflash.rom.RomImage
+
+/**
+ * Works out which bundled definition belongs to a ROM image.
+ *
+ * Signatures come from every loaded definition: RomRaider roms give an exact
+ * internalidaddress/internalidstring pair, XDFs only name their software
+ * version (430056, 430069, 0110C6, ...) in the title or file name, so they
+ * match the version string anywhere in an image of their region size.
+ *
+ * All distinct id strings are compiled into one Aho-Corasick automaton and
+ * the image is scanned once, so the cost is O(image size) however many
+ * definitions there are.
+ */
+class EcuIdentifier(definitions: Map<String, List<DefinitionIndex>>) {
+    companion object {
+        /** Any-position signature (XDFs) */
+        private const val ANYWHERE = -1
+
+        private val MS43_VERSION = Regex("43\\d{4}")
+        // "01100C6" in some XDF titles is the same software as "0110C6"
+        private val MS42_VERSION = Regex("0110+([0-9A-F]{2})(?![0-9A-F])")
+
+        /** Software version named in an XDF title or file name, e.g. "430069" or "0110C6". */
+        fun versionOf(text: String): String? {
+            MS43_VERSION.find(text)?.let { return it.value }
+            MS42_VERSION.find(text)?.let { return "0110" + it.groupValues[1] }
+            return null
+        }
+
+        fun isMs43(version: String): Boolean = version.startsWith("43")
+        fun isMs42(version: String): Boolean = version.startsWith("0110")
+    }
+
+    class Match(
+        val assetPath: String,
+        val definition: DefinitionIndex,
+        val version: String,
+        /** Where the id was found in the image. */
+        val offset: Int,
+        /** True for a RomRaider id at its exact address, false for an XDF version found by search. */
+        val exact: Boolean
+    ) {
+        val isPatchlist: Boolean get() = definition.defTitle.contains("Patchlist", true)
+    }
+
+    private class Signature(val assetPath: String, val definition: DefinitionIndex, val pattern: Int, val offset: Int, val imageSize: Int)
+
+    private val patterns = ArrayList<String>()
+    private val signatures = ArrayList<Signature>()
+
+    // Automaton: full 256-way transition table per state
+    private var next = IntArray(0)
+    private var fail = IntArray(0)
+    /** Pattern ending in each state (or -1), plus a link to the next state that also ends one. */
+    private var output = IntArray(0)
+    private var outputLink = IntArray(0)
+
+    init {
+        val ids = HashMap<String, Int>()
+        fun patternId(s: String): Int = ids.getOrPut(s) { patterns.add(s); patterns.size - 1 }
+
+        for ((path, defs) in definitions) {
+            for (d in defs) {
+                val id = d.idString
+                if (id != null && d.idAddress != DefinitionIndex.NONE) {
+                    // A 64 KB partial and a full image can carry the same id at the same address
+                    signatures.add(Signature(path, d, patternId(id), d.idAddress, d.regionSize))
+                } else {
+                    val version = versionOf(d.defTitle) ?: versionOf(path.substringAfterLast('/')) ?: continue
+                    signatures.add(Signature(path, d, patternId(version), ANYWHERE, d.regionSize))
+                }
+            }
+        }
+        build()
+    }
+
+    private fun build() {
+        var states = 1
+        for (p in patterns) states += p.length
+        next = IntArray(states * 256) { -1 }
+        fail = IntArray(states)
+        output = IntArray(states) { -1 }
+        outputLink = IntArray(states) { -1 }
+
+        var count = 1
+        for ((id, p) in patterns.withIndex()) {
+            var s = 0
+            for (ch in p) {
+                val c = ch.code and 0xFF
+                if (next[s * 256 + c] < 0) next[s * 256 + c] = count++
+                s = next[s * 256 + c]
+            }
+            output[s] = id
+        }
+
+        // Breadth-first: fill failure links and complete the transition table
+        val queue = IntArray(count)
+        var head = 0
+        var tail = 0
+        for (c in 0 until 256) {
+            val t = next[c]
+            if (t < 0) next[c] = 0 else { fail[t] = 0; queue[tail++] = t }
+        }
+        while (head < tail) {
+            val s = queue[head++]
+            val f = fail[s]
+            outputLink[s] = if (output[f] >= 0) f else outputLink[f]
+            for (c in 0 until 256) {
+                val t = next[s * 256 + c]
+                if (t < 0) {
+                    next[s * 256 + c] = next[f * 256 + c]
+                } else {
+                    fail[t] = next[f * 256 + c]
+                    queue[tail++] = t
+                }
+            }
+        }
+    }
+
+    /** Definitions matching [image], best first: exact ids, then the right region size, patchlists last. */
+    fun identify(image: RomImage): List<Match> {
+        // Offsets at which each pattern ends up in the image
+        val hits = Array(patterns.size) { ArrayList<Int>(2) }
+        val chunk = ByteArray(64 * 1024)
+        var state = 0
+        var base = 0
+        while (base < image.size) {
+            val n = minOf(chunk.size, image.size - base)
+            image.read(base, chunk, 0, n)
+            for (i in 0 until n) {
+                state = next[state * 256 + (chunk[i].toInt() and 0xFF)]
+                var s = if (output[state] >= 0) state else outputLink[state]
+                while (s >= 0) {
+                    val p = output[s]
+                    hits[p].add(base + i - patterns[p].length + 1)
+                    s = outputLink[s]
+                }
+            }
+            base += n
+        }
+
+        val matches = ArrayList<Match>()
+        for (sig in signatures) {
+            val found = hits[sig.pattern]
+            if (found.isEmpty()) continue
+            if (sig.imageSize != 0 && !fitsRegion(image.size, sig.imageSize)) continue
+            if (sig.offset != ANYWHERE) {
+                if (sig.offset in found) matches.add(Match(sig.assetPath, sig.definition, patterns[sig.pattern], sig.offset, true))
+            } else {
+                matches.add(Match(sig.assetPath, sig.definition, patterns[sig.pattern], found[0], false))
+            }
+        }
+        matches.sortWith(compareBy({ it.isPatchlist }, { !it.exact }))
+        return matches
+    }
+
+    /**
+     * True if an image of [size] bytes is the file a REGION of [regionSize]
+     * describes. Some XDFs give the last address instead of the length
+     * (MS42_01100AD_ENG_512KB.xdf: size="0x7FFFF"), so the next power of two
+     * is accepted as well; flash dumps always have one.
+     */
+    private fun fitsRegion(size: Int, regionSize: Int): Boolean =
+        size == regionSize || size == regionSize + 1 ||
+            (regionSize and (regionSize - 1) != 0 && size == Integer.highestOneBit(regionSize) shl 1)
+
+    /** The definition to edit [image] with, preferring a full XDF over a RomRaider rom. */
+    fun bestDefinition(image: RomImage): Match? {
+        val matches = identify(image).filter { !it.isPatchlist }
+        // An exact RomRaider id confirms the version; use the XDF for it when there is one
+        val version = matches.firstOrNull()?.version ?: return null
+        return matches.firstOrNull { !it.exact && it.version == version } ?: matches.first()
+    }
+}
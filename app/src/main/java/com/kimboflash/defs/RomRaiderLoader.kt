@@ -0,0 +1,218 @@
+package com.kimboflash.defs
+
+import android.util.Xml
+import org.xmlpull.v1.XmlPullParser
+import java.io.InputStream
+
+/**
+ * Streaming loader for RomRaider ECU definition XML (MS42/MS43 "ECU Definitions").
+ *
+ * Every <rom> with an internalidstring becomes one [DefinitionIndex]; tables
+ * are resolved against the rom's base chain so a concrete rom only needs to
+ * list storage addresses. Axis sub-tables and switch states are skipped.
+ *
+ * RomRaider storage addresses are offsets into the image file the rom was
+ * written for (a 64 KB partial read or the full 512 KB), so the base offset
+ * is always 0; the region size is the rom's <filesize>.
+ */
+object RomRaiderLoader {
+
+    fun load(input: InputStream): List<DefinitionIndex> {
+        val parser = Xml.newPullParser()
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false)
+        parser.setInput(input, null)
+        return resolve(readRoms(parser))
+    }
+
+    private class RawTable(val name: String) {
+        var category: String? = null
+        var storageType: String? = null
+        var endian: String? = null
+        var sizeX: String? = null
+        var sizeY: String? = null
+        var address: String? = null
+        var expression: String? = null
+        var toByte: String? = null
+
+        fun mergeFrom(base: RawTable) {
+            if (category == null) category = base.category
+            if (storageType == null) storageType = base.storageType
+            if (endian == null) endian = base.endian
+            if (sizeX == null) sizeX = base.sizeX
+            if (sizeY == null) sizeY = base.sizeY
+            if (address == null) address = base.address
+            if (expression == null) expression = base.expression
+            if (toByte == null) toByte = base.toByte
+        }
+    }
+
+    private class RawRom {
+        var base: String? = null
+        var xmlId: String? = null
+        var idAddress: String? = null
+        var idString: String? = null
+        /** <filesize> in bytes, 0 if the rom does not state it. */
+        var fileSize = 0
+        val tables = LinkedHashMap<String, RawTable>()
+    }
+
+    private fun readRoms(p: XmlPullParser): List<RawRom> {
+        val roms = ArrayList<RawRom>()
+        var rom: RawRom? = null
+        var table: RawTable? = null
+        var tableDepth = 0
+        var event = p.eventType
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                when (p.name) {
+                    "rom" -> rom = RawRom().also {
+                        it.base = p.getAttributeValue(null, "base")
+                        roms.add(it)
+                    }
+                    "xmlid" -> rom?.xmlId = p.nextText().trim()
+                    "internalidaddress" -> rom?.idAddress = p.nextText().trim()
+                    "internalidstring" -> rom?.idString = p.nextText().trim()
+                    "filesize" -> rom?.fileSize = parseFileSize(p.nextText().trim())
+                    "table" -> {
+                        tableDepth++
+                        // Only top-level tables are indexed; nested ones are axes
+                        if (tableDepth == 1 && rom != null) {
+                            val name = p.getAttributeValue(null, "name")
+                            if (name != null) {
+                                val t = RawTable(name).apply {
+                                    category = p.getAttributeValue(null, "category")
+                                    storageType = p.getAttributeValue(null, "storagetype")
+                                    endian = p.getAttributeValue(null, "endian")
+                                    sizeX = p.getAttributeValue(null, "sizex")
+                                    sizeY = p.getAttributeValue(null, "sizey")
+                                    address = p.getAttributeValue(null, "storageaddress")
+                                }
+                                rom.tables[name] = t
+                                table = t
+                            }
+                        }
+                    }
+                    "scaling" -> if (tableDepth == 1) table?.let {
+                        it.expression = p.getAttributeValue(null, "expression")
+                        it.toByte = p.getAttributeValue(null, "to_byte")
+                    }
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                when (p.name) {
+                    "table" -> if (--tableDepth == 0) table = null
+                    "rom" -> rom = null
+                }
+            }
+            event = p.next()
+        }
+        return roms
+    }
+
+    private fun resolve(roms: List<RawRom>): List<DefinitionIndex> {
+        val byXmlId = HashMap<String, RawRom>()
+        for (r in roms) r.xmlId?.let { byXmlId[it] = r }
+
+        val out = ArrayList<DefinitionIndex>()
+        for (rom in roms) {
+            if (rom.idString == null) continue
+            val merged = LinkedHashMap<String, RawTable>()
+            var current: RawRom? = rom
+            var fileSize = 0
+            var guard = 0
+            while (current != null && guard++ < 16) {
+                if (fileSize == 0) fileSize = current.fileSize
+                for ((name, t) in current.tables) {
+                    val existing = merged[name]
+                    if (existing == null) merged[name] = RawTable(name).also { it.mergeFrom(t) }
+                    else existing.mergeFrom(t)
+                }
+                current = current.base?.let { byXmlId[it] }
+            }
+            out.add(build(rom, merged.values, fileSize))
+        }
+        return out
+    }
+
+    private fun build(rom: RawRom, tables: Collection<RawTable>, fileSize: Int): DefinitionIndex {
+        val categoryIds = HashMap<String, Int>()
+        val categoryNames = ArrayList<String?>()
+        val equationIds = HashMap<String, Int>()
+        val equations = ArrayList<String>()
+
+        fun intern(map: HashMap<String, Int>, list: ArrayList<String>, s: String?): Int {
+            if (s == null) return DefinitionIndex.NONE
+            return map.getOrPut(s) { list.add(s); list.size - 1 }
+        }
+
+        val withAddress = tables.filter { it.address != null }
+        val n = withAddress.size
+        val kinds = ByteArray(n) { DefinitionIndex.KIND_TABLE }
+        val titles = Array(n) { withAddress[it].name }
+        val cats = IntArray(n)
+        val addresses = IntArray(n)
+        val bits = ByteArray(n)
+        val flags = IntArray(n)
+        val rows = IntArray(n)
+        val cols = IntArray(n)
+        val eq = IntArray(n)
+        val inv = IntArray(n)
+
+        for (i in 0 until n) {
+            val t = withAddress[i]
+            cats[i] = t.category?.let { c ->
+                categoryIds.getOrPut(c) { categoryNames.add(c); categoryNames.size - 1 }
+            } ?: DefinitionIndex.NONE
+            addresses[i] = parseAddress(t.address)
+            val type = t.storageType ?: "uint8"
+            bits[i] = when {
+                type.endsWith("32") || type == "float" -> 32
+                type.endsWith("16") -> 16
+                else -> 8
+            }.toByte()
+            var f = 0
+            if (type.startsWith("int")) f = f or DefinitionIndex.FLAG_SIGNED
+            if (type == "float") f = f or DefinitionIndex.FLAG_FLOAT
+            if (t.endian == "little") f = f or DefinitionIndex.FLAG_LSB_FIRST
+            flags[i] = f
+            rows[i] = XdfLoader.parseNumber(t.sizeY, 1)
+            cols[i] = XdfLoader.parseNumber(t.sizeX, 1)
+            eq[i] = intern(equationIds, equations, t.expression)
+            inv[i] = intern(equationIds, equations, t.toByte)
+        }
+
+        val empty = IntArray(0)
+        return DefinitionIndex(
+            rom.xmlId ?: rom.idString!!, 0, fileSize,
+            rom.xmlId, parseAddress(rom.idAddress), rom.idString,
+            categoryNames.toTypedArray(), equations.toTypedArray(),
+            bytes(kinds), ints(IntArray(n)), titles, ints(cats), ints(addresses), bytes(bits), ints(flags),
+            ints(rows), ints(cols), ints(eq), ints(inv), ints(IntArray(n)), ints(IntArray(n)),
+            emptyArray(), ints(empty), ints(empty), ints(empty), ints(empty), bytes(ByteArray(0))
+        )
+    }
+
+    /** "64kb", "512kb" or a plain byte count; 0 if unreadable. */
+    private fun parseFileSize(s: String): Int {
+        val lower = s.lowercase()
+        return try {
+            when {
+                lower.endsWith("kb") -> lower.dropLast(2).trim().toInt() * 1024
+                lower.endsWith("mb") -> lower.dropLast(2).trim().toInt() * 1024 * 1024
+                else -> lower.toInt()
+            }
+        } catch (_: NumberFormatException) {
+            0
+        }
+    }
+
+    /** RomRaider addresses are hex with or without the 0x prefix. */
+    private fun parseAddress(s: String?): Int {
+        if (s.isNullOrEmpty()) return DefinitionIndex.NONE
+        val digits = if (s.startsWith("0x") || s.startsWith("0X")) s.substring(2) else s
+        return try {
+            digits.toLong(16).toInt()
+        } catch (_: NumberFormatException) {
+            DefinitionIndex.NONE
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.kimboflash.defs
+
+import android.util.Log
+
+/**
+ * A parsed, constant-folded XDF MATH / RomRaider scaling expression in x.
+ *
+ * Evaluation never allocates. Affine formulas (the vast majority, e.g.
+ * "0.02*x+9.8039217e-009" or "X/32") compile to [Linear], everything else to
+ * a small pre-built node tree.
+ */
+abstract class CompiledExpression {
+    abstract fun eval(x: Double): Double
+
+    /** Converts unsigned 8-bit raw values: out[i] = f(raw[i]). */
+    fun applyTo(raw: ByteArray, out: DoubleArray) =
+        applyTo(raw, 0, out, 0, minOf(raw.size, out.size), 8, false, false)
+
+    /**
+     * Converts [count] raw elements of [elementBits] starting at [rawOffset]
+     * into [out] starting at [outOffset].
+     */
+    open fun applyTo(
+        raw: ByteArray, rawOffset: Int, out: DoubleArray, outOffset: Int, count: Int,
+        elementBits: Int, signed: Boolean, littleEndian: Boolean
+    ) {
+        val step = elementBits / 8
+        var p = rawOffset
+        for (i in 0 until count) {
+            out[outOffset + i] = eval(readRaw(raw, p, elementBits, signed, littleEndian).toDouble())
+            p += step
+        }
+    }
+}
+
+/** f(x) = a * x + b; covers identity and every folded linear formula. */
+class Linear(val a: Double, val b: Double) : CompiledExpression() {
+    override fun eval(x: Double): Double = a * x + b
+
+    /** False for a constant formula such as "0.000000 * X+ -0.000000": every raw value maps to the same physical one. */
+    val isInvertible: Boolean get() = a != 0.0 && a.isFinite() && b.isFinite()
+
+    /**
+     * Raw value for a physical value, as used when writing tables back; null
+     * when the formula is not [isInvertible] or [y] has no finite raw value.
+     */
+    fun invert(y: Double): Double? {
+        if (!isInvertible) return null
+        val x = (y - b) / a
+        return if (x.isFinite()) x else null
+    }
+
+    override fun applyTo(
+        raw: ByteArray, rawOffset: Int, out: DoubleArray, outOffset: Int, count: Int,
+        elementBits: Int, signed: Boolean, littleEndian: Boolean
+    ) {
+        if (elementBits == 8) {
+            // Hot path for 8-bit maps: no per-element width dispatch
+            for (i in 0 until count) {
+                val v = raw[rawOffset + i].toInt()
+                out[outOffset + i] = a * (if (signed) v else v and 0xFF) + b
+            }
+            return
+        }
+        val step = elementBits / 8
+        var p = rawOffset
+        for (i in 0 until count) {
+            out[outOffset + i] = a * readRaw(raw, p, elementBits, signed, littleEndian) + b
+            p += step
+        }
+    }
+}
+
+private class TreeExpression(private val root: Node) : CompiledExpression() {
+    override fun eval(x: Double): Double = root.eval(x)
+}
+
+internal fun readRaw(raw: ByteArray, p: Int, bits: Int, signed: Boolean, littleEndian: Boolean): Long {
+    return when (bits) {
+        8 -> if (signed) raw[p].toLong() else (raw[p].toInt() and 0xFF).toLong()
+        16 -> {
+            val v = if (littleEndian) (raw[p].toInt() and 0xFF) or ((raw[p + 1].toInt() and 0xFF) shl 8)
+            else ((raw[p].toInt() and 0xFF) shl 8) or (raw[p + 1].toInt() and 0xFF)
+            if (signed) v.toShort().toLong() else v.toLong()
+        }
+        32 -> {
+            var v = 0L
+            for (i in 0 until 4) {
+                val b = raw[p + if (littleEndian) 3 - i else i].toLong() and 0xFF
+                v = (v shl 8) or b
+            }
+            if (signed) v.toInt().toLong() else v
+        }
+        else -> throw IllegalArgumentException("Unsupported element size: $bits")
+    }
+}
+
+// ---- expression tree ----
+
+internal abstract class Node {
+    abstract fun eval(x: Double): Double
+}
+
+private class Const(val value: Double) : Node() {
+    override fun eval(x: Double) = value
+}
+
+private object Var : Node() {
+    override fun eval(x: Double) = x
+}
+
+private class Neg(val n: Node) : Node() {
+    override fun eval(x: Double) = -n.eval(x)
+}
+
+private class Bin(val op: Char, val l: Node, val r: Node) : Node() {
+    override fun eval(x: Double): Double {
+        val a = l.eval(x)
+        val b = r.eval(x)
+        return when (op) {
+            '+' -> a + b
+            '-' -> a - b
+            '*' -> a * b
+            else -> a / b
+        }
+    }
+}
+
+/** RomRaider BitWise(mask, value, op): 1 = AND, 2 = OR, 3 = XOR. */
+private class BitWise(val mask: Long, val n: Node, val op: Int) : Node() {
+    override fun eval(x: Double): Double {
+        val v = n.eval(x).toLong()
+        return when (op) {
+            2 -> v or mask
+            3 -> v xor mask
+            else -> v and mask
+        }.toDouble()
+    }
+}
+
+private class Parser(private val s: String) {
+    private var pos = 0
+
+    fun parse(): Node {
+        val n = expr()
+        skipSpace()
+        if (pos != s.length) fail("Unexpected '${s[pos]}'")
+        return n
+    }
+
+    private fun expr(): Node {
+        var n = term()
+        while (true) {
+            skipSpace()
+            val c = peek()
+            if (c != '+' && c != '-') return n
+            pos++
+            n = Bin(c, n, term())
+        }
+    }
+
+    private fun term(): Node {
+        var n = unary()
+        while (true) {
+            skipSpace()
+            val c = peek()
+            if (c != '*' && c != '/') return n
+            pos++
+            n = Bin(c, n, unary())
+        }
+    }
+
+    private fun unary(): Node {
+        skipSpace()
+        return when (peek()) {
+            '-' -> { pos++; Neg(unary()) }
+            '+' -> { pos++; unary() }
+            else -> primary()
+        }
+    }
+
+    private fun primary(): Node {
+        skipSpace()
+        val c = peek()
+        when {
+            c == '(' -> {
+                pos++
+                val n = expr()
+                expect(')')
+                return n
+            }
+            c.isDigit() || c == '.' -> return Const(number())
+            c.isLetter() -> {
+                val start = pos
+                while (pos < s.length && s[pos].isLetterOrDigit()) pos++
+                val name = s.substring(start, pos)
+                if (name.equals("x", true)) return Var
+                if (name.equals("BitWise", true)) {
+                    expect('(')
+                    val mask = expr()
+                    expect(',')
+                    val value = expr()
+                    expect(',')
+                    val op = expr()
+                    expect(')')
+                    return BitWise(mask.eval(0.0).toLong(), value, op.eval(0.0).toInt())
+                }
+                fail("Unknown identifier '$name'")
+            }
+        }
+        fail("Unexpected end of expression")
+    }
+
+    private fun number(): Double {
+        val start = pos
+        while (pos < s.length && (s[pos].isDigit() || s[pos] == '.')) pos++
+        if (pos < s.length && (s[pos] == 'e' || s[pos] == 'E')) {
+            pos++
+            if (pos < s.length && (s[pos] == '+' || s[pos] == '-')) pos++
+            while (pos < s.length && s[pos].isDigit()) pos++
+        }
+        return s.substring(start, pos).toDouble()
+    }
+
+    private fun expect(c: Char) {
+        skipSpace()
+        if (peek() != c) fail("Expected '$c'")
+        pos++
+    }
+
+    private fun peek(): Char = if (pos < s.length) s[pos] else '\u0000'
+
+    private fun skipSpace() {
+        while (pos < s.length && s[pos].isWhitespace()) pos++
+    }
+
+    private fun fail(msg: String): Nothing =
+        throw IllegalArgumentException("$msg at $pos in \"$s\"")
+}
+
+// ---- folding ----
+
+/** Returns (a, b) if [n] is a*x + b, else null. */
+private fun affine(n: Node): DoubleArray? = when (n) {
+    is Const -> doubleArrayOf(0.0, n.value)
+    is Var -> doubleArrayOf(1.0, 0.0)
+    is Neg -> affine(n.n)?.let { doubleArrayOf(-it[0], -it[1]) }
+    is Bin -> {
+        val l = affine(n.l)
+        val r = affine(n.r)
+        if (l == null || r == null) null
+        else when (n.op) {
+            '+' -> doubleArrayOf(l[0] + r[0], l[1] + r[1])
+            '-' -> doubleArrayOf(l[0] - r[0], l[1] - r[1])
+            '*' -> when {
+                l[0] == 0.0 -> doubleArrayOf(l[1] * r[0], l[1] * r[1])
+                r[0] == 0.0 -> doubleArrayOf(l[0] * r[1], l[1] * r[1])
+                else -> null
+            }
+            else -> if (r[0] == 0.0) doubleArrayOf(l[0] / r[1], l[1] / r[1]) else null
+        }
+    }
+    else -> null
+}
+
+/** Replaces every x-free subtree with its value. */
+private fun fold(n: Node): Node = when (n) {
+    is Neg -> fold(n.n).let { if (it is Const) Const(-it.value) else Neg(it) }
+    is Bin -> {
+        val l = fold(n.l)
+        val r = fold(n.r)
+        if (l is Const && r is Const) Const(Bin(n.op, l, r).eval(0.0)) else Bin(n.op, l, r)
+    }
+    is BitWise -> fold(n.n).let { if (it is Const) Const(BitWise(n.mask, it, n.op).eval(0.0)) else BitWise(n.mask, it, n.op) }
+    else -> n
+}
+
+/**
+ * Process-wide cache of compiled expressions, keyed by the equation text so
+ * thousands of tables sharing "1.0*X" share one evaluator. Equations that do
+ * not parse compile to null (and are remembered as such): showing raw values
+ * as physical ones, or writing through a wrong scaling, is worse than
+ * marking the table unscaled.
+ */
+object ExpressionCache {
+    private const val TAG = "ExpressionCache"
+
+    val IDENTITY = Linear(1.0, 0.0)
+
+    private val compiled = HashMap<String, CompiledExpression?>()
+
+    /** The evaluator for [equation], or null if it does not parse. */
+    @Synchronized
+    fun compile(equation: String): CompiledExpression? {
+        if (compiled.containsKey(equation)) return compiled[equation]
+        val e = try {
+            val tree = fold(Parser(equation).parse())
+            val ab = affine(tree)
+            when {
+                ab == null -> TreeExpression(tree)
+                ab[0] == 1.0 && ab[1] == 0.0 -> IDENTITY
+                else -> Linear(ab[0], ab[1])
+            }
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Unparsable expression \"$equation\": ${e.message}")
+            null
+        }
+        compiled[equation] = e
+        return e
+    }
+
+    @Synchronized
+    fun size(): Int = compiled.size
+}
@@ -0,0 +1,272 @@
+package com.kimboflash.defs
+
+import android.util.Xml
+import org.xmlpull.v1.XmlPullParser
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+
+/**
+ * Single-pass streaming loader for TunerPro XDF files.
+ *
+ * Walks the document with an [XmlPullParser] and keeps only the fields the app
+ * needs (title, category, EMBEDDEDDATA address/size/counts, MATH equation and
+ * XDFPATCHENTRY data). Descriptions, labels and DALINKs are skipped without
+ * being materialised.
+ */
+object XdfLoader {
+
+    fun load(input: InputStream): DefinitionIndex {
+        val parser = Xml.newPullParser()
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false)
+        parser.setInput(input, "UTF-8")
+        return Builder().parse(parser)
+    }
+
+    internal fun parseNumber(s: String?, default: Int): Int {
+        if (s.isNullOrEmpty()) return default
+        return try {
+            if (s.startsWith("0x") || s.startsWith("0X")) s.substring(2).toLong(16).toInt()
+            else s.toInt()
+        } catch (_: NumberFormatException) {
+            default
+        }
+    }
+
+    private class Builder {
+        var defTitle = ""
+        var baseOffset = 0
+        var regionSize = 0
+        var categories = arrayOfNulls<String>(64)
+        var defaultBits = 8
+        var defaultFlags = 0
+
+        val equationIds = HashMap<String, Int>()
+        val equations = ArrayList<String>()
+
+        val kinds = ByteList()
+        val uniqueIds = IntList()
+        val titles = ArrayList<String>()
+        val categoryIds = IntList()
+        val addresses = IntList()
+        val elementBits = ByteList()
+        val typeFlags = IntList()
+        val rowCounts = IntList()
+        val colCounts = IntList()
+        val eqIds = IntList()
+        val patchFirst = IntList()
+        val patchCounts = IntList()
+
+        val entryNames = ArrayList<String>()
+        val entryAddresses = IntList()
+        val entrySizes = IntList()
+        val entryPatch = IntList()
+        val entryBase = IntList()
+        val pool = ByteList(16 * 1024)
+
+        // State of the record currently being read
+        var inRecord = false
+        var axis: String? = null
+        var title = ""
+        var category = DefinitionIndex.NONE
+        var address = DefinitionIndex.NONE
+        var bits = 0
+        var flags = 0
+        var rows = 0
+        var cols = 0
+        var axisRows = 0
+        var axisCols = 0
+        var eq = DefinitionIndex.NONE
+
+        fun parse(p: XmlPullParser): DefinitionIndex {
+            var event = p.eventType
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) startTag(p)
+                else if (event == XmlPullParser.END_TAG) endTag(p.name)
+                event = p.next()
+            }
+            return build()
+        }
+
+        private fun startTag(p: XmlPullParser) {
+            when (p.name) {
+                "XDFTABLE" -> beginRecord(DefinitionIndex.KIND_TABLE, p)
+                "XDFCONSTANT" -> beginRecord(DefinitionIndex.KIND_CONSTANT, p)
+                "XDFPATCH" -> beginRecord(DefinitionIndex.KIND_PATCH, p)
+                "XDFAXIS" -> axis = p.getAttributeValue(null, "id")
+                "title" -> if (inRecord && axis == null) title = p.nextText().trim()
+                "deftitle" -> defTitle = p.nextText().trim()
+                "BASEOFFSET" -> {
+                    val off = parseNumber(p.getAttributeValue(null, "offset"), 0)
+                    baseOffset = if (p.getAttributeValue(null, "subtract") == "1") -off else off
+                }
+                "REGION" -> if (regionSize == 0) regionSize = parseNumber(p.getAttributeValue(null, "size"), 0)
+                "DEFAULTS" -> {
+                    defaultBits = parseNumber(p.getAttributeValue(null, "datasizeinbits"), 8)
+                    defaultFlags = 0
+                    if (p.getAttributeValue(null, "signed") == "1") defaultFlags = defaultFlags or DefinitionIndex.FLAG_SIGNED
+                    if (p.getAttributeValue(null, "lsbfirst") == "1") defaultFlags = defaultFlags or DefinitionIndex.FLAG_LSB_FIRST
+                }
+                "CATEGORY" -> if (!inRecord) {
+                    val idx = parseNumber(p.getAttributeValue(null, "index"), -1)
+                    if (idx >= 0) {
+                        if (idx >= categories.size) categories = categories.copyOf(maxOf(idx + 1, categories.size * 2))
+                        categories[idx] = p.getAttributeValue(null, "name")
+                    }
+                }
+                "CATEGORYMEM" -> if (inRecord && category == DefinitionIndex.NONE) {
+                    // CATEGORYMEM is 1-based relative to CATEGORY index
+                    category = parseNumber(p.getAttributeValue(null, "category"), 0) - 1
+                }
+                "EMBEDDEDDATA" -> if (inRecord && (axis == null || axis == "z")) {
+                    address = parseNumber(p.getAttributeValue(null, "mmedaddress"), DefinitionIndex.NONE)
+                    bits = parseNumber(p.getAttributeValue(null, "mmedelementsizebits"), defaultBits)
+                    flags = parseNumber(p.getAttributeValue(null, "mmedtypeflags"), defaultFlags)
+                    rows = parseNumber(p.getAttributeValue(null, "mmedrowcount"), 0)
+                    cols = parseNumber(p.getAttributeValue(null, "mmedcolcount"), 0)
+                }
+                "indexcount" -> if (inRecord) {
+                    val n = parseNumber(p.nextText().trim(), 0)
+                    if (axis == "x") axisCols = n else if (axis == "y") axisRows = n
+                }
+                "MATH" -> if (inRecord && (axis == null || axis == "z")) {
+                    eq = equationId(p.getAttributeValue(null, "equation"))
+                }
+                "XDFPATCHENTRY" -> if (inRecord) addPatchEntry(p)
+            }
+        }
+
+        private fun endTag(name: String) {
+            when (name) {
+                "XDFAXIS" -> axis = null
+                "XDFTABLE", "XDFCONSTANT", "XDFPATCH" -> if (inRecord) endRecord()
+            }
+        }
+
+        private fun beginRecord(kind: Byte, p: XmlPullParser) {
+            inRecord = true
+            axis = null
+            title = ""
+            category = DefinitionIndex.NONE
+            address = DefinitionIndex.NONE
+            bits = defaultBits
+            flags = defaultFlags
+            rows = 0
+            cols = 0
+            axisRows = 0
+            axisCols = 0
+            eq = DefinitionIndex.NONE
+            kinds.add(kind)
+            uniqueIds.add(parseNumber(p.getAttributeValue(null, "uniqueid"), 0))
+            patchFirst.add(entryAddresses.size)
+        }
+
+        private fun endRecord() {
+            val kind = kinds[kinds.size - 1]
+            titles.add(title)
+            categoryIds.add(category)
+            addresses.add(address)
+            elementBits.add(bits.toByte())
+            typeFlags.add(flags)
+            if (kind == DefinitionIndex.KIND_CONSTANT) {
+                rowCounts.add(1)
+                colCounts.add(1)
+            } else {
+                rowCounts.add(if (rows > 0) rows else maxOf(axisRows, 1))
+                colCounts.add(if (cols > 0) cols else maxOf(axisCols, 1))
+            }
+            eqIds.add(eq)
+            patchCounts.add(entryAddresses.size - patchFirst[patchFirst.size - 1])
+            inRecord = false
+        }
+
+        private fun addPatchEntry(p: XmlPullParser) {
+            val size = parseNumber(p.getAttributeValue(null, "datasize"), 0)
+            entryNames.add(p.getAttributeValue(null, "name") ?: "")
+            entryAddresses.add(parseNumber(p.getAttributeValue(null, "address"), 0))
+            entrySizes.add(size)
+            entryPatch.add(pool.appendHex(p.getAttributeValue(null, "patchdata"), size))
+            val base = p.getAttributeValue(null, "basedata")
+            entryBase.add(if (base.isNullOrEmpty()) DefinitionIndex.NONE else pool.appendHex(base, size))
+        }
+
+        private fun equationId(equation: String?): Int {
+            if (equation == null) return DefinitionIndex.NONE
+            return equationIds.getOrPut(equation) {
+                equations.add(equation)
+                equations.size - 1
+            }
+        }
+
+        fun build(): DefinitionIndex {
+            var lastCategory = categories.size
+            while (lastCategory > 0 && categories[lastCategory - 1] == null) lastCategory--
+            return DefinitionIndex(
+                defTitle, baseOffset, regionSize, null, DefinitionIndex.NONE, null,
+                categories.copyOf(lastCategory),
+                equations.toTypedArray(),
+                bytes(kinds.toArray()), ints(uniqueIds.toArray()), titles.toTypedArray(),
+                ints(categoryIds.toArray()), ints(addresses.toArray()), bytes(elementBits.toArray()),
+                ints(typeFlags.toArray()), ints(rowCounts.toArray()), ints(colCounts.toArray()), ints(eqIds.toArray()),
+                ints(IntArray(kinds.size) { DefinitionIndex.NONE }),
+                ints(patchFirst.toArray()), ints(patchCounts.toArray()),
+                entryNames.toTypedArray(), ints(entryAddresses.toArray()), ints(entrySizes.toArray()),
+                ints(entryPatch.toArray()), ints(entryBase.toArray()), bytes(pool.toArray())
+            )
+        }
+    }
+}
+
+/** Heap columns for [DefinitionIndex], which takes buffers so the cache can hand it file views. */
+internal fun ints(values: IntArray): IntBuffer = IntBuffer.wrap(values)
+
+internal fun bytes(values: ByteArray): ByteBuffer = ByteBuffer.wrap(values)
+
+/** Growable int array without boxing; used while streaming definitions. */
+internal class IntList(capacity: Int = 256) {
+    private var data = IntArray(capacity)
+    var size = 0
+        private set
+
+    fun add(v: Int) {
+        if (size == data.size) data = data.copyOf(size * 2)
+        data[size++] = v
+    }
+
+    operator fun get(i: Int): Int = data[i]
+
+    fun toArray(): IntArray = data.copyOf(size)
+}
+
+/** Growable byte array; [appendHex] decodes XDF hex strings in place. */
+internal class ByteList(capacity: Int = 256) {
+    private var data = ByteArray(capacity)
+    var size = 0
+        private set
+
+    private fun ensure(extra: Int) {
+        if (size + extra > data.size) data = data.copyOf(maxOf(size + extra, data.size * 2))
+    }
+
+    fun add(v: Byte) {
+        ensure(1)
+        data[size++] = v
+    }
+
+    operator fun get(i: Int): Byte = data[i]
+
+    /** Appends [count] bytes decoded from [hex] (zero padded if short) and returns their offset. */
+    fun appendHex(hex: String?, count: Int): Int {
+        ensure(count)
+        val start = size
+        val len = hex?.length ?: 0
+        for (i in 0 until count) {
+            data[size++] = if (2 * i + 1 < len) {
+                ((Character.digit(hex!![2 * i], 16) shl 4) or Character.digit(hex[2 * i + 1], 16)).toByte()
+            } else 0
+        }
+        return start
+    }
+
+    fun toArray(): ByteArray = data.copyOf(size)
+}
@@ -0,0 +1,374 @@
+package com.kimboflash.gauge
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Path
+import android.graphics.RectF
+import android.os.Build
+import android.util.AttributeSet
+import android.util.Log
+import android.view.SurfaceHolder
+import android.view.SurfaceView
+import android.view.WindowManager
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Dashboard of dial gauges plus a scrolling chart, drawn on its own
+ * "gauge-render" thread.
+ *
+ * Samples arrive through a [SampleQueue]; once per display refresh the
+ * render thread drains it into the latest values and a fixed ring of
+ * [HISTORY] samples per channel, then draws one frame. However fast the
+ * logger runs, the screen is drawn at most at the refresh rate, and the
+ * chart folds the samples of each pixel column into a min/max pair. Paths,
+ * rectangles, paints and the text buffer are allocated when the layout
+ * changes, never per frame; numbers are formatted into a char array.
+ */
+class GaugeView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null
+) : SurfaceView(context, attrs), SurfaceHolder.Callback {
+    companion object {
+        private const val TAG = "GaugeView"
+        /** Samples per channel kept for the chart. */
+        const val HISTORY = 512
+        /** Channels drawn in the chart: the first ones bound. */
+        const val CHART_CHANNELS = 4
+        private const val ARC_START = 135f
+        private const val ARC_SWEEP = 270f
+        /** Share of the height used by the chart. */
+        private const val CHART_HEIGHT = 0.28f
+        private val CHART_COLORS = intArrayOf(0xFF4FC3F7.toInt(), 0xFFFFB74D.toInt(), 0xFF81C784.toInt(), 0xFFE57373.toInt())
+    }
+
+    /** What a gauge shows; the range is the dial's and the chart's scale. */
+    class Channel(val name: String, val units: String, val min: Float, val max: Float, val decimals: Int)
+
+    /** Everything the render thread needs for one set of channels; replaced as a whole by [bind]. */
+    private class Config(val channels: Array<Channel>, val queue: SampleQueue) {
+        val latest = FloatArray(channels.size) { Float.NaN }
+        val scratch = FloatArray(channels.size)
+        /** Channel-major ring: history[c * HISTORY + i]. */
+        val history = FloatArray(channels.size * HISTORY)
+        var head = 0
+        var count = 0
+    }
+
+    @Volatile
+    private var config: Config? = null
+    @Volatile
+    private var surfaceWidth = 0
+    @Volatile
+    private var surfaceHeight = 0
+    private var renderer: RenderThread? = null
+
+    /** Logger throughput shown in the corner; set by the owner, e.g. once a second. */
+    @Volatile
+    var samplesPerSecond = 0.0
+
+    init {
+        holder.addCallback(this)
+    }
+
+    /** Shows [channels], fed by [queue] (one queue column per channel). */
+    fun bind(channels: List<Channel>, queue: SampleQueue) {
+        require(queue.channels == channels.size) { "Queue has ${queue.channels} columns for ${channels.size} channels" }
+        config = Config(channels.toTypedArray(), queue)
+    }
+
+    override fun surfaceCreated(holder: SurfaceHolder) {
+        renderer = RenderThread(holder, refreshRate()).also { it.start() }
+    }
+
+    override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
+        surfaceWidth = width
+        surfaceHeight = height
+    }
+
+    override fun surfaceDestroyed(holder: SurfaceHolder) {
+        renderer?.let {
+            it.running = false
+            LockSupport.unpark(it)
+            // The surface must not be drawn on once this returns
+            it.join()
+        }
+        renderer = null
+    }
+
+    @Suppress("DEPRECATION")
+    private fun refreshRate(): Float {
+        val wm = context.getSystemService(Context.WINDOW_SERVICE) as? WindowManager
+        val rate = wm?.defaultDisplay?.refreshRate ?: 60f
+        return if (rate >= 10f) rate else 60f
+    }
+
+    private inner class RenderThread(private val holder: SurfaceHolder, refreshRate: Float) : Thread("gauge-render") {
+        @Volatile
+        var running = true
+
+        private val frameNanos = (1_000_000_000L / refreshRate).toLong()
+
+        // Layout, rebuilt when the size or the channels change
+        private var laidOut: Config? = null
+        private var laidOutWidth = 0
+        private var laidOutHeight = 0
+        private var dials = emptyArray<RectF>()
+        private var labels = emptyArray<String>()
+        private var chart = RectF()
+        private var chartPaths = emptyArray<Path>()
+        private var textSize = 0f
+
+        private val background = Paint().apply { color = Color.BLACK }
+        private val arcTrack = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            style = Paint.Style.STROKE
+            color = 0xFF333333.toInt()
+            strokeCap = Paint.Cap.ROUND
+        }
+        private val arcValue = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            style = Paint.Style.STROKE
+            color = 0xFF4FC3F7.toInt()
+            strokeCap = Paint.Cap.ROUND
+        }
+        private val valueText = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            color = Color.WHITE
+            textAlign = Paint.Align.CENTER
+        }
+        private val labelText = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            color = 0xFFAAAAAA.toInt()
+            textAlign = Paint.Align.CENTER
+        }
+        private val statusText = Paint(Paint.ANTI_ALIAS_FLAG).apply { color = 0xFF888888.toInt() }
+        private val gridPaint = Paint().apply { color = 0xFF222222.toInt() }
+        private val linePaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+            style = Paint.Style.STROKE
+            strokeWidth = 2f
+        }
+        private val chars = CharArray(32)
+
+        // Frame rate actually drawn, over the last second
+        private var fps = 0.0
+        private var fpsStart = 0L
+        private var fpsFrames = 0
+
+        override fun run() {
+            var next = System.nanoTime()
+            fpsStart = next
+            while (running) {
+                val cfg = config
+                var changed = cfg != null && drain(cfg)
+                if (cfg !== laidOut || surfaceWidth != laidOutWidth || surfaceHeight != laidOutHeight) {
+                    layout(cfg)
+                    changed = true
+                }
+                if (changed) draw(cfg)
+
+                next += frameNanos
+                val now = System.nanoTime()
+                // Skip frames we are already late for rather than drawing them back to back
+                if (next < now) next = now + frameNanos
+                LockSupport.parkNanos(this, next - now)
+            }
+        }
+
+        /** Moves every queued frame into the latest values and the history; true if there was one. */
+        private fun drain(cfg: Config): Boolean {
+            val n = cfg.channels.size
+            var any = false
+            while (cfg.queue.poll(cfg.scratch) >= 0L) {
+                System.arraycopy(cfg.scratch, 0, cfg.latest, 0, n)
+                for (c in 0 until n) cfg.history[c * HISTORY + cfg.head] = cfg.scratch[c]
+                cfg.head = (cfg.head + 1) % HISTORY
+                if (cfg.count < HISTORY) cfg.count++
+                any = true
+            }
+            return any
+        }
+
+        private fun layout(cfg: Config?) {
+            laidOut = cfg
+            laidOutWidth = surfaceWidth
+            laidOutHeight = surfaceHeight
+            val w = laidOutWidth.toFloat()
+            val h = laidOutHeight.toFloat()
+            val channels = cfg?.channels ?: emptyArray()
+            val n = channels.size
+            if (n == 0 || w <= 0f || h <= 0f) {
+                dials = emptyArray()
+                return
+            }
+            val gaugesHeight = h * (1f - CHART_HEIGHT)
+            // Grid with cells as close to square as the area allows
+            var cols = 1
+            while (cols < n && (w / cols) > gaugesHeight / Math.ceil(n / cols.toDouble()).toFloat()) cols++
+            val rows = Math.ceil(n / cols.toDouble()).toInt()
+            val cellW = w / cols
+            val cellH = gaugesHeight / rows
+            val side = minOf(cellW, cellH) * 0.8f
+            textSize = side * 0.18f
+            arcTrack.strokeWidth = side * 0.08f
+            arcValue.strokeWidth = side * 0.08f
+            valueText.textSize = textSize
+            labelText.textSize = textSize * 0.6f
+            statusText.textSize = textSize * 0.6f
+            dials = Array(n) { i ->
+                val cx = (i % cols + 0.5f) * cellW
+                val cy = (i / cols + 0.5f) * cellH - labelText.textSize * 0.5f
+                RectF(cx - side / 2, cy - side / 2, cx + side / 2, cy + side / 2)
+            }
+            // Names cut to the cell width once, so drawing never measures text
+            labels = Array(n) { i ->
+                val name = channels[i].name
+                val fit = labelText.breakText(name, true, cellW * 0.95f, null)
+                name.substring(0, fit)
+            }
+            chart = RectF(0f, gaugesHeight, w, h)
+            chartPaths = Array(minOf(CHART_CHANNELS, n)) { Path() }
+        }
+
+        private fun draw(cfg: Config?) {
+            val canvas = try {
+                if (Build.VERSION.SDK_INT >= 26) holder.lockHardwareCanvas() else holder.lockCanvas()
+            } catch (e: IllegalStateException) {
+                Log.w(TAG, "Surface not ready", e)
+                null
+            } ?: return
+            try {
+                canvas.drawRect(0f, 0f, laidOutWidth.toFloat(), laidOutHeight.toFloat(), background)
+                if (cfg != null && dials.isNotEmpty()) {
+                    drawGauges(canvas, cfg)
+                    drawChart(canvas, cfg)
+                }
+                drawStatus(canvas)
+            } finally {
+                holder.unlockCanvasAndPost(canvas)
+            }
+        }
+
+        private fun drawGauges(canvas: Canvas, cfg: Config) {
+            for (i in dials.indices) {
+                val ch = cfg.channels[i]
+                val v = cfg.latest[i]
+                val dial = dials[i]
+                canvas.drawArc(dial, ARC_START, ARC_SWEEP, false, arcTrack)
+                if (!v.isNaN()) {
+                    val span = ch.max - ch.min
+                    val f = if (span > 0f) ((v - ch.min) / span).coerceIn(0f, 1f) else 0f
+                    if (f > 0f) canvas.drawArc(dial, ARC_START, ARC_SWEEP * f, false, arcValue)
+                }
+                val n = format(v, ch.decimals)
+                canvas.drawText(chars, 0, n, dial.centerX(), dial.centerY() + textSize * 0.35f, valueText)
+                canvas.drawText(ch.units, dial.centerX(), dial.bottom - labelText.textSize * 0.5f, labelText)
+                canvas.drawText(labels[i], dial.centerX(), dial.bottom + labelText.textSize * 1.2f, labelText)
+            }
+        }
+
+        private fun drawChart(canvas: Canvas, cfg: Config) {
+            val r = chart
+            canvas.drawLine(r.left, r.top, r.right, r.top, gridPaint)
+            canvas.drawLine(r.left, r.centerY(), r.right, r.centerY(), gridPaint)
+            val count = cfg.count
+            if (count < 2) return
+            val columns = maxOf(1, r.width().toInt())
+            // Oldest sample on the left; several samples per pixel collapse to their min and max
+            val perColumn = maxOf(1, (count + columns - 1) / columns)
+            val start = (cfg.head - count + HISTORY) % HISTORY
+            val step = r.width() / ((count - 1) / perColumn).coerceAtLeast(1)
+            for (c in chartPaths.indices) {
+                val ch = cfg.channels[c]
+                val span = if (ch.max > ch.min) ch.max - ch.min else 1f
+                val path = chartPaths[c]
+                path.rewind()
+                val base = c * HISTORY
+                var x = r.left
+                var first = true
+                var i = 0
+                while (i < count) {
+                    var lo = Float.MAX_VALUE
+                    var hi = -Float.MAX_VALUE
+                    val end = minOf(count, i + perColumn)
+                    for (k in i until end) {
+                        val v = cfg.history[base + (start + k) % HISTORY]
+                        if (v.isNaN()) continue
+                        if (v < lo) lo = v
+                        if (v > hi) hi = v
+                    }
+                    if (lo <= hi) {
+                        val yLo = r.bottom - ((lo - ch.min) / span).coerceIn(0f, 1f) * r.height()
+                        val yHi = r.bottom - ((hi - ch.min) / span).coerceIn(0f, 1f) * r.height()
+                        if (first) path.moveTo(x, yLo) else path.lineTo(x, yLo)
+                        if (yHi != yLo) path.lineTo(x, yHi)
+                        first = false
+                    }
+                    x += step
+                    i = end
+                }
+                linePaint.color = CHART_COLORS[c % CHART_COLORS.size]
+                canvas.drawPath(path, linePaint)
+            }
+        }
+
+        private fun drawStatus(canvas: Canvas) {
+            fpsFrames++
+            val now = System.nanoTime()
+            if (now - fpsStart >= 1_000_000_000L) {
+                fps = fpsFrames * 1e9 / (now - fpsStart)
+                fpsStart = now
+                fpsFrames = 0
+            }
+            val y = laidOutHeight - statusText.textSize * 0.5f
+            var n = format(fps.toFloat(), 0)
+            n = append(n, " fps  ")
+            n = appendNumber(n, samplesPerSecond.toFloat(), 0)
+            n = append(n, " samples/s")
+            canvas.drawText(chars, 0, n, statusText.textSize * 0.5f, y, statusText)
+        }
+
+        /** Writes [v] with [decimals] into [chars] from the start; returns the length. */
+        private fun format(v: Float, decimals: Int): Int = appendNumber(0, v, decimals)
+
+        private fun appendNumber(at: Int, v: Float, decimals: Int): Int {
+            var n = at
+            if (v.isNaN() || v.isInfinite()) return append(n, "--")
+            var scale = 1L
+            for (i in 0 until decimals) scale *= 10
+            val x = Math.round(Math.abs(v.toDouble()) * scale)
+            if (v < 0f && x != 0L) chars[n++] = '-'
+            val whole = x / scale
+            var frac = x % scale
+            // Integer part, written backwards then reversed in place
+            val first = n
+            var w = whole
+            do {
+                chars[n++] = '0' + (w % 10).toInt()
+                w /= 10
+            } while (w > 0 && n < chars.size - decimals - 1)
+            var a = first
+            var b = n - 1
+            while (a < b) {
+                val t = chars[a]; chars[a] = chars[b]; chars[b] = t
+                a++; b--
+            }
+            if (decimals > 0) {
+                chars[n++] = '.'
+                var div = scale / 10
+                while (div > 0) {
+                    chars[n++] = '0' + (frac / div).toInt()
+                    frac %= div
+                    div /= 10
+                }
+            }
+            return n
+        }
+
+        private fun append(at: Int, s: String): Int {
+            var n = at
+            for (ch in s) {
+                if (n == chars.size) break
+                chars[n++] = ch
+            }
+            return n
+        }
+    }
+}
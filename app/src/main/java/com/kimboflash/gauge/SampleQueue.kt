@@ -0,0 +1,63 @@
+package com.kimboflash.gauge
+
+import com.kimboflash.logger.LoggerEngine
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lock-free single-producer, single-consumer queue of logger frames.
+ *
+ * The logger thread [offer]s each frame and the render thread [poll]s them;
+ * neither ever blocks or allocates. Frames are copied into a preallocated
+ * ring of [capacity] rows (rounded up to a power of two). The two indices
+ * are only ever advanced by their own thread and published with lazySet, so
+ * a row is fully written before the consumer can see it. When the renderer
+ * falls behind, new frames are dropped and counted rather than stalling the
+ * protocol thread.
+ */
+class SampleQueue(val channels: Int, capacity: Int) : LoggerEngine.Listener {
+    private val size = Integer.highestOneBit(maxOf(capacity, 2) - 1) shl 1
+    private val mask = size - 1
+    private val times = LongArray(size)
+    private val values = FloatArray(size * channels)
+
+    /** Next row to read; written by the consumer only. */
+    private val head = AtomicLong()
+    /** Next row to write; written by the producer only. */
+    private val tail = AtomicLong()
+
+    @Volatile
+    var dropped = 0L
+        private set
+
+    override fun onFrame(timeNanos: Long, values: DoubleArray) {
+        offer(timeNanos, values)
+    }
+
+    /** Copies one frame in; false (and counted in [dropped]) if the queue is full. */
+    fun offer(timeNanos: Long, frame: DoubleArray): Boolean {
+        val t = tail.get()
+        if (t - head.get() >= size) {
+            dropped++
+            return false
+        }
+        val row = (t and mask.toLong()).toInt()
+        times[row] = timeNanos
+        val base = row * channels
+        for (c in 0 until channels) values[base + c] = frame[c].toFloat()
+        tail.lazySet(t + 1)
+        return true
+    }
+
+    /** Copies the oldest frame into [out] and returns its time, or -1 if the queue is empty. */
+    fun poll(out: FloatArray): Long {
+        val h = head.get()
+        if (h == tail.get()) return -1L
+        val row = (h and mask.toLong()).toInt()
+        System.arraycopy(values, row * channels, out, 0, channels)
+        val time = times[row]
+        head.lazySet(h + 1)
+        return time
+    }
+
+    val isEmpty: Boolean get() = head.get() == tail.get()
+}
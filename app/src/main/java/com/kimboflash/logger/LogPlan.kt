@@ -0,0 +1,297 @@
+package com.kimboflash.logger
+
+import com.kimboflash.defs.CompiledExpression
+import com.kimboflash.defs.ExpressionCache
+import com.kimboflash.defs.Linear
+import com.kimboflash.defs.readRaw
+import com.kimboflash.protocol.KLineInit
+import com.kimboflash.protocol.RequestScheduler
+
+/**
+ * The DS2 requests that read a set of [LoggerParam]s once ("one frame"),
+ * and the precompiled decoder for their answers.
+ *
+ * On K-Line every request costs far more than the bytes it returns: the
+ * request and the answer's framing, P3min before it and the adapter's
+ * latency, about 80 byte times at 10400 baud. So all parameters of a block
+ * (the switch block 0x0B/0x04) share one request, and memory parameters are
+ * cut into as few memory reads (0x06) as pay off: a shortest-path pass over
+ * the parameters sorted by address reads through any gap cheaper than a
+ * request of its own, up to [MAX_READ] bytes per read.
+ *
+ * MS43 430069 can also return a "telegram": a list of RAM addresses
+ * uploaded once (0x0B/0x02), after which the short request 0x0B/0x01 answers
+ * with all of their bytes in the uploaded order. The layout of the upload
+ * (three address bytes and one length byte per entry, in one frame) is
+ * assumed, not confirmed against an MS43, so the answer to a telegram read
+ * is only decoded when its length is exactly the one the entries add up to
+ * (see [answerMatches]). In telegram mode the memory
+ * parameters are laid out in one such answer, so a frame costs one request
+ * instead of several reads, and only parameters that do not fit fall back
+ * to memory reads.
+ *
+ * Only parameters the definition declares as 0x0B/0x01 go into the
+ * telegram; those declared 0x06/0x00 are always memory reads. Outside
+ * telegram mode 0x0B/0x01 parameters are read with 0x06 at their RAM
+ * address, which returns the same bytes: 0x0B/0x01 on its own only answers
+ * once a telegram has been uploaded, and that upload is MS43 430069 only.
+ *
+ * Decoding works on flat per-slot arrays (payload offset, width, bit, scale
+ * and offset of affine conversions) and never allocates.
+ */
+class LogPlan private constructor(
+    /** The parameters in the caller's order; decoded values use the same indices. */
+    val params: Array<LoggerParam>,
+    internal val sids: IntArray,
+    internal val data: Array<ByteArray>,
+    /** Slots of request r run from slotStart[r] until slotStart[r + 1]. */
+    private val slotStart: IntArray,
+    /** Parameter index decoded by each slot. */
+    private val order: IntArray,
+    private val offsets: IntArray,
+    private val widths: IntArray,
+    private val bits: IntArray,
+    private val flags: IntArray,
+    private val scaleA: DoubleArray,
+    private val scaleB: DoubleArray,
+    /** Conversions that are not affine, else null. */
+    private val trees: Array<CompiledExpression?>,
+    /** Request and answer bytes on the wire per frame. */
+    val wireBytes: Int,
+    /** Data of the [TELEGRAM_GROUP] request that defines the telegram, or null without one. */
+    internal val telegramDefinition: ByteArray?,
+    /** Exact answer length (status byte included) per request, or -1 where it is not checked. */
+    private val answerLengths: IntArray
+) {
+    companion object {
+        const val MEMORY_GROUP = 0x06
+        /** MS43 telegram service: subgroup [TELEGRAM_DEFINE] uploads the entries, [TELEGRAM_READ] reads them. */
+        const val TELEGRAM_GROUP = 0x0B
+        const val TELEGRAM_READ = 0x01
+        const val TELEGRAM_DEFINE = 0x02
+        /** Entries of a telegram definition: three address bytes and a length each, in one frame (assumed layout). */
+        const val MAX_TELEGRAM_ENTRIES = 62
+        private const val MAX_TELEGRAM_ENTRY = 0xFF
+        /** Largest DS2 answer payload after the status byte. */
+        const val MAX_READ = 251
+        /** Address, length, 0x06, 0x00, three address bytes, count and checksum. */
+        private const val READ_REQUEST_BYTES = 9
+        /** Address, length, status byte and checksum of an answer. */
+        private const val ANSWER_OVERHEAD = 4
+        /** Data of a DS2 answer follows the status byte. */
+        private const val DATA_OFFSET = 1
+
+        private const val FLAG_SIGNED = 1
+        private const val FLAG_LITTLE_ENDIAN = 2
+
+        /**
+         * Plans [params] for a line at [baud] with the scheduler's [timing]. With
+         * [telegram], memory parameters go into one telegram as far as it holds
+         * them (MS43 430069 only) and the rest into memory reads.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun build(
+            params: List<LoggerParam>,
+            timing: RequestScheduler.Timing = RequestScheduler.Timing.DEFAULT,
+            baud: Int = KLineInit.KLINE_BAUD,
+            telegram: Boolean = false
+        ): LogPlan {
+            val requests = ArrayList<Request>()
+            var setup: ByteArray? = null
+
+            // Blocks: one request per group/subgroup, every value sliced from the answer
+            val blocks = LinkedHashMap<Int, Request>()
+            for ((i, p) in params.withIndex()) {
+                if (!p.isBlock) continue
+                val key = (p.group shl 8) or p.subgroup
+                blocks.getOrPut(key) {
+                    Request(p.group, byteArrayOf(p.subgroup.toByte()), 5 + ANSWER_OVERHEAD + p.groupSize)
+                        .also { requests.add(it) }
+                }.slots.add(Slot(i, DATA_OFFSET + p.address))
+            }
+
+            var mem = params.indices.filter { !params[it].isBlock }
+                .sortedBy { params[it].address.toLong() and 0xFFFFFFFFL }
+
+            // Telegram: overlapping and adjacent addresses share an entry; the answer is
+            // the entries' bytes back to back, so no gap is ever read
+            if (telegram && mem.any { params[it].isTelegram }) {
+                val entries = ArrayList<IntArray>()
+                val read = Request(TELEGRAM_GROUP, byteArrayOf(TELEGRAM_READ.toByte()), 5 + ANSWER_OVERHEAD)
+                val rest = ArrayList<Int>()
+                var length = 0
+                var runStart = -1
+                var runEnd = -1
+                for (k in mem) {
+                    val p = params[k]
+                    if (!p.isTelegram) {
+                        rest.add(k)
+                        continue
+                    }
+                    val end = p.address + p.bytes
+                    val extends = runStart >= 0 && p.address <= runEnd && end - runStart <= MAX_TELEGRAM_ENTRY
+                    val grow = if (extends) maxOf(0, end - runEnd) else p.bytes
+                    if (length + grow > MAX_READ || (!extends && entries.size == MAX_TELEGRAM_ENTRIES)) {
+                        rest.add(k)
+                        continue
+                    }
+                    if (extends) {
+                        runEnd = maxOf(runEnd, end)
+                    } else {
+                        runStart = p.address
+                        runEnd = end
+                        // Entry: start address, length, offset in the answer
+                        entries.add(intArrayOf(runStart, 0, length))
+                    }
+                    length += grow
+                    val entry = entries[entries.size - 1]
+                    entry[1] = runEnd - runStart
+                    read.slots.add(Slot(k, DATA_OFFSET + entry[2] + p.address - runStart))
+                }
+                val define = ByteArray(1 + 4 * entries.size)
+                define[0] = TELEGRAM_DEFINE.toByte()
+                for ((e, entry) in entries.withIndex()) {
+                    define[1 + 4 * e] = (entry[0] ushr 16).toByte()
+                    define[2 + 4 * e] = (entry[0] ushr 8).toByte()
+                    define[3 + 4 * e] = entry[0].toByte()
+                    define[4 + 4 * e] = entry[1].toByte()
+                }
+                setup = define
+                read.answerLength = DATA_OFFSET + length
+                read.wireBytes += length
+                requests.add(0, read)
+                mem = rest
+            }
+
+            // Memory: optimal split of the address-sorted parameters into reads
+            val n = mem.size
+            val requestCost = READ_REQUEST_BYTES + ANSWER_OVERHEAD + (timing.p3MinMs + timing.latencyMs) * baud / 10_000
+            val cost = LongArray(n + 1)
+            val cut = IntArray(n + 1)
+            for (i in 1..n) {
+                cost[i] = Long.MAX_VALUE
+                val last = params[mem[i - 1]]
+                var end = 0
+                for (j in i downTo 1) {
+                    val first = params[mem[j - 1]]
+                    end = maxOf(end, first.address + first.bytes)
+                    val span = end - first.address
+                    // Stay within one 64 KB page of the 24-bit address space
+                    if (span > MAX_READ || (first.address ushr 16) != (last.address ushr 16)) break
+                    val c = cost[j - 1] + requestCost + span
+                    if (c < cost[i]) {
+                        cost[i] = c
+                        cut[i] = j - 1
+                    }
+                }
+            }
+            val reads = ArrayList<Request>()
+            var i = n
+            while (i > 0) {
+                val from = cut[i]
+                val start = params[mem[from]].address
+                var end = start
+                for (k in from until i) end = maxOf(end, params[mem[k]].address + params[mem[k]].bytes)
+                val len = end - start
+                val r = Request(
+                    MEMORY_GROUP,
+                    byteArrayOf(0, (start ushr 16).toByte(), (start ushr 8).toByte(), start.toByte(), len.toByte()),
+                    READ_REQUEST_BYTES + ANSWER_OVERHEAD + len
+                )
+                for (k in from until i) r.slots.add(Slot(mem[k], DATA_OFFSET + params[mem[k]].address - start))
+                reads.add(r)
+                i = from
+            }
+            reads.reverse()
+            requests.addAll(reads)
+
+            val slots = requests.sumOf { it.slots.size }
+            val slotStart = IntArray(requests.size + 1)
+            val order = IntArray(slots)
+            val offsets = IntArray(slots)
+            val widths = IntArray(slots)
+            val bits = IntArray(slots)
+            val flags = IntArray(slots)
+            val scaleA = DoubleArray(slots)
+            val scaleB = DoubleArray(slots)
+            val trees = arrayOfNulls<CompiledExpression>(slots)
+            var s = 0
+            for ((r, req) in requests.withIndex()) {
+                slotStart[r] = s
+                for (slot in req.slots) {
+                    val p = params[slot.param]
+                    order[s] = slot.param
+                    offsets[s] = slot.offset
+                    widths[s] = p.bytes * 8
+                    bits[s] = p.bit
+                    flags[s] = (if (p.signed) FLAG_SIGNED else 0) or (if (p.littleEndian) FLAG_LITTLE_ENDIAN else 0)
+                    when (val e = ExpressionCache.compile(p.expression)) {
+                        is Linear -> { scaleA[s] = e.a; scaleB[s] = e.b }
+                        // Unparsable conversion: the value reads as NaN, never as raw bytes
+                        null -> { scaleA[s] = Double.NaN; scaleB[s] = Double.NaN }
+                        else -> trees[s] = e
+                    }
+                    s++
+                }
+            }
+            slotStart[requests.size] = s
+
+            return LogPlan(
+                params.toTypedArray(),
+                IntArray(requests.size) { requests[it].sid },
+                Array(requests.size) { requests[it].data },
+                slotStart, order, offsets, widths, bits, flags, scaleA, scaleB, trees,
+                requests.sumOf { it.wireBytes }, setup,
+                IntArray(requests.size) { requests[it].answerLength }
+            )
+        }
+    }
+
+    private class Slot(val param: Int, val offset: Int)
+
+    private class Request(val sid: Int, val data: ByteArray, var wireBytes: Int) {
+        val slots = ArrayList<Slot>()
+        var answerLength = -1
+    }
+
+    /** Requests per frame. */
+    val requestCount: Int get() = sids.size
+
+    /** True if the ECU has to be sent the telegram definition before the first frame. */
+    val usesTelegram: Boolean get() = telegramDefinition != null
+
+    val size: Int get() = params.size
+
+    /**
+     * False if [payload] is not as long as request [request] must answer; only
+     * checked for the telegram read, whose layout is assumed. A mismatch means
+     * the ECU built the telegram differently and its bytes cannot be trusted.
+     */
+    fun answerMatches(request: Int, payload: ByteArray): Boolean {
+        val expected = answerLengths[request]
+        return expected < 0 || payload.size == expected
+    }
+
+    /**
+     * Decodes the answer to request [request] (status byte first) into [out],
+     * indexed like [params]. Values a missing or short answer does not cover
+     * become NaN, as do all of them if the answer fails [answerMatches].
+     */
+    fun decode(request: Int, payload: ByteArray?, out: DoubleArray) {
+        val valid = payload != null && answerMatches(request, payload)
+        for (s in slotStart[request] until slotStart[request + 1]) {
+            val off = offsets[s]
+            val width = widths[s]
+            if (!valid || off + width / 8 > payload!!.size) {
+                out[order[s]] = Double.NaN
+                continue
+            }
+            val bit = bits[s]
+            val raw = if (bit >= 0) ((payload[off].toInt() ushr bit) and 1).toLong()
+            else readRaw(payload, off, width, flags[s] and FLAG_SIGNED != 0, flags[s] and FLAG_LITTLE_ENDIAN != 0)
+            val tree = trees[s]
+            out[order[s]] = if (tree == null) scaleA[s] * raw + scaleB[s] else tree.eval(raw.toDouble())
+        }
+    }
+}
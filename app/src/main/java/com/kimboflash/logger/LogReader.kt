@@ -0,0 +1,281 @@
+package com.kimboflash.logger
+
+import android.util.Log
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.io.Writer
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.text.DecimalFormat
+import java.text.DecimalFormatSymbols
+import java.util.Locale
+import java.util.zip.Inflater
+
+/**
+ * Reads a log written by [LogWriter] through [FileChannel.map].
+ *
+ * Opening only reads the header and the time index, so it takes the same
+ * time for a 30-minute log as for a short one. Rows are addressed by their
+ * global number; [seek] finds the block by binary search over the index and
+ * the row by binary search within it, and only that block is inflated. The
+ * last inflated block is kept, so stepping through neighbouring rows costs
+ * nothing extra. A log whose writer never closed it (app killed) has no
+ * index; it is rebuilt by walking the block headers.
+ */
+class LogReader(val file: File) : Closeable {
+    companion object {
+        private const val TAG = "LogReader"
+    }
+
+    class Column(val id: String, val name: String, val units: String, val format: String)
+
+    private val raf = RandomAccessFile(file, "r")
+    private val map: MappedByteBuffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+
+    /** Wall-clock time the log was started, in ms since the epoch. */
+    val startMillis: Long
+    val columns: List<Column>
+
+    private val blockFirst: LongArray
+    private val blockLast: LongArray
+    private val blockOffset: LongArray
+    /** Global number of each block's first row; one extra entry holds the total. */
+    private val blockStartRow: LongArray
+
+    // Last inflated block
+    private val inflater = Inflater()
+    private var packed = ByteArray(0)
+    private var raw = ByteArray(0)
+    private var cached = -1
+    private var times = LongArray(LogWriter.BLOCK_FRAMES)
+    private var values: FloatArray
+    // load() decodes into these and swaps them in only once the block is complete
+    private var nextTimes = LongArray(LogWriter.BLOCK_FRAMES)
+    private var nextValues: FloatArray
+
+    init {
+        val header = DataInputStream(BufferInput(map))
+        if (header.readInt() != LogWriter.MAGIC) throw IOException("${file.name} is not a log file")
+        val version = header.readInt()
+        if (version != LogWriter.VERSION) throw IOException("Unsupported log version $version")
+        startMillis = header.readLong()
+        val n = header.readInt()
+        columns = List(n) { Column(header.readUTF(), header.readUTF(), header.readUTF(), header.readUTF()) }
+        values = FloatArray(LogWriter.BLOCK_FRAMES * n)
+        nextValues = FloatArray(LogWriter.BLOCK_FRAMES * n)
+        val dataStart = map.position()
+
+        val size = map.limit()
+        val indexAt = if (size - dataStart >= LogWriter.TRAILER &&
+            map.getInt(size - 4) == LogWriter.END_MAGIC) map.getLong(size - LogWriter.TRAILER) else -1L
+        if (indexAt >= dataStart && indexAt <= size - LogWriter.TRAILER - 8 &&
+            map.getInt(indexAt.toInt()) == LogWriter.INDEX_MAGIC) {
+            val count = map.getInt(indexAt.toInt() + 4)
+            blockFirst = LongArray(count)
+            blockLast = LongArray(count)
+            blockOffset = LongArray(count)
+            blockStartRow = LongArray(count + 1)
+            var p = indexAt.toInt() + 8
+            for (i in 0 until count) {
+                blockFirst[i] = map.getLong(p)
+                blockLast[i] = map.getLong(p + 8)
+                blockOffset[i] = map.getLong(p + 16)
+                blockStartRow[i + 1] = blockStartRow[i] + map.getInt(p + 24)
+                p += 28
+            }
+        } else {
+            Log.w(TAG, "${file.name} has no index, scanning blocks")
+            val offsets = ArrayList<Long>()
+            var p = dataStart
+            while (p + LogWriter.BLOCK_HEADER <= size && map.getInt(p) == LogWriter.BLOCK_MAGIC) {
+                val next = p + LogWriter.BLOCK_HEADER + map.getInt(p + 28)
+                // A block cut short by the crash is dropped
+                if (next > size) break
+                offsets.add(p.toLong())
+                p = next
+            }
+            val count = offsets.size
+            blockFirst = LongArray(count)
+            blockLast = LongArray(count)
+            blockOffset = LongArray(count)
+            blockStartRow = LongArray(count + 1)
+            for (i in 0 until count) {
+                val o = offsets[i].toInt()
+                blockOffset[i] = o.toLong()
+                blockFirst[i] = map.getLong(o + 8)
+                blockLast[i] = map.getLong(o + 16)
+                blockStartRow[i + 1] = blockStartRow[i] + map.getInt(o + 4)
+            }
+        }
+    }
+
+    val rowCount: Long get() = blockStartRow[blockStartRow.size - 1]
+
+    /** Time of the last row, in µs since the log was started. */
+    val durationMicros: Long get() = if (blockLast.isEmpty()) 0L else blockLast[blockLast.size - 1]
+
+    /** First row at or after [timeMicros] (µs since the start), or [rowCount] if there is none. */
+    fun seek(timeMicros: Long): Long {
+        // First block whose last row is not before the time
+        var lo = 0
+        var hi = blockLast.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (blockLast[mid] < timeMicros) lo = mid + 1 else hi = mid
+        }
+        if (lo == blockLast.size) return rowCount
+        if (blockFirst[lo] >= timeMicros) return blockStartRow[lo]
+        load(lo)
+        var a = 0
+        var b = rows(lo)
+        while (a < b) {
+            val mid = (a + b) ushr 1
+            if (times[mid] < timeMicros) a = mid + 1 else b = mid
+        }
+        return blockStartRow[lo] + a
+    }
+
+    /** Time of [row] in µs since the start. */
+    fun time(row: Long): Long {
+        val r = locate(row)
+        return times[r]
+    }
+
+    fun value(row: Long, column: Int): Float {
+        val r = locate(row)
+        return values[column * LogWriter.BLOCK_FRAMES + r]
+    }
+
+    /** Copies all columns of [row] into [out]; returns the row's time. */
+    fun read(row: Long, out: FloatArray): Long {
+        val r = locate(row)
+        for (c in columns.indices) out[c] = values[c * LogWriter.BLOCK_FRAMES + r]
+        return times[r]
+    }
+
+    /**
+     * Writes the rows from [fromMicros] up to and including [toMicros] as CSV
+     * (time in seconds, then one column per parameter in its own number
+     * format). The first row is found with [seek]; blocks are inflated one at
+     * a time.
+     */
+    @JvmOverloads
+    fun exportCsv(out: Writer, fromMicros: Long = 0L, toMicros: Long = Long.MAX_VALUE) {
+        val symbols = DecimalFormatSymbols(Locale.US)
+        val formats = columns.map { c ->
+            try { DecimalFormat(c.format, symbols) } catch (_: IllegalArgumentException) { DecimalFormat("0.###", symbols) }
+        }
+        val seconds = DecimalFormat("0.000", symbols)
+        val line = StringBuilder(16 * (columns.size + 1))
+        line.append("Time (s)")
+        for (c in columns) line.append(',').append(c.name.replace(',', ' ')).append(" (").append(c.units).append(')')
+        out.write(line.append('\n').toString())
+        val row = FloatArray(columns.size)
+        var r = seek(fromMicros)
+        while (r < rowCount) {
+            val time = read(r, row)
+            if (time > toMicros) break
+            line.setLength(0)
+            line.append(seconds.format(time / 1e6))
+            for (c in columns.indices) {
+                line.append(',')
+                if (!row[c].isNaN()) line.append(formats[c].format(row[c].toDouble()))
+            }
+            out.write(line.append('\n').toString())
+            r++
+        }
+        out.flush()
+    }
+
+    private fun rows(block: Int): Int = (blockStartRow[block + 1] - blockStartRow[block]).toInt()
+
+    /** Inflates the block holding [row] and returns the row's index within it. */
+    private fun locate(row: Long): Int {
+        if (row < 0 || row >= rowCount) throw IndexOutOfBoundsException("Row $row of $rowCount")
+        if (cached >= 0 && row >= blockStartRow[cached] && row < blockStartRow[cached + 1]) {
+            return (row - blockStartRow[cached]).toInt()
+        }
+        var lo = 0
+        var hi = blockOffset.size - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (blockStartRow[mid] <= row) lo = mid else hi = mid - 1
+        }
+        load(lo)
+        return (row - blockStartRow[lo]).toInt()
+    }
+
+    /**
+     * Inflates [block] into the spare arrays and swaps them in only once it
+     * decoded completely, so a damaged block leaves the cached one intact.
+     */
+    private fun load(block: Int) {
+        if (block == cached) return
+        val o = blockOffset[block].toInt()
+        val rows = map.getInt(o + 4)
+        val rawLength = map.getInt(o + 24)
+        val packedLength = map.getInt(o + 28)
+        if (rows < 0 || rows > LogWriter.BLOCK_FRAMES || rawLength != rows * 4 * (1 + columns.size) ||
+            packedLength < 0 || packedLength > map.limit() - o - LogWriter.BLOCK_HEADER) {
+            throw IOException("Block $block of ${file.name} is damaged")
+        }
+        if (packed.size < packedLength) packed = ByteArray(packedLength)
+        if (raw.size < rawLength) raw = ByteArray(rawLength)
+        val src = map.duplicate()
+        src.position(o + LogWriter.BLOCK_HEADER)
+        src.get(packed, 0, packedLength)
+        inflater.reset()
+        inflater.setInput(packed, 0, packedLength)
+        var n = 0
+        while (n < rawLength && !inflater.finished()) {
+            val got = inflater.inflate(raw, n, rawLength - n)
+            if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break
+            n += got
+        }
+        if (n != rawLength) throw IOException("Block $block of ${file.name} is damaged")
+
+        val buf = ByteBuffer.wrap(raw, 0, rawLength)
+        val t2 = nextTimes
+        val v2 = nextValues
+        var t = blockFirst[block]
+        for (r in 0 until rows) {
+            t += buf.int
+            t2[r] = t
+        }
+        for (c in columns.indices) {
+            var prev = 0
+            val base = c * LogWriter.BLOCK_FRAMES
+            for (r in 0 until rows) {
+                prev = prev xor buf.int
+                v2[base + r] = java.lang.Float.intBitsToFloat(prev)
+            }
+        }
+        nextTimes = times
+        nextValues = values
+        times = t2
+        values = v2
+        cached = block
+    }
+
+    override fun close() {
+        inflater.end()
+        raf.close()
+    }
+
+    /** Reads the mapped header through [DataInputStream] without copying the file. */
+    private class BufferInput(private val buf: ByteBuffer) : InputStream() {
+        override fun read(): Int = if (buf.hasRemaining()) buf.get().toInt() and 0xFF else -1
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (!buf.hasRemaining()) return -1
+            val n = minOf(len, buf.remaining())
+            buf.get(b, off, n)
+            return n
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.kimboflash.logger
+
+import com.kimboflash.protocol.KLineInit
+import com.kimboflash.protocol.RequestScheduler
+
+/**
+ * Splits the logged parameters into rate tiers, each read by its own
+ * [LogPlan], and decides per cycle which tiers [LoggerEngine] reads.
+ *
+ * Parameters without a rate, or asking for [FAST_RATE_HZ] or more, form the
+ * fast tier, read every cycle. The others are grouped by rate, rounded up
+ * to a power of two (1/4 Hz ... 2 Hz); a slow tier is due once per period.
+ * Slow tiers only get [SLOW_SHARE] of the bus: each cycle earns that share
+ * of its duration as credit, and a due tier runs, most overdue first, when
+ * there is credit left for it. Tier costs are measured (exponential average
+ * of the round trip of all its requests), so the split follows the real line
+ * speed and adapter latency. Slow channels therefore slip under load rather
+ * than the fast ones, and values keep their last reading in between.
+ */
+class LogSchedule private constructor(
+    /** All parameters; frames use the same indices. */
+    val params: Array<LoggerParam>,
+    internal val tiers: Array<Tier>
+) {
+    companion object {
+        /** Rates from here up are read every cycle. */
+        const val FAST_RATE_HZ = 4.0
+        /** Bus share slow tiers may take while a fast tier exists. */
+        const val SLOW_SHARE = 0.3
+        /** Weight of a new round-trip measurement in a tier's cost. */
+        private const val COST_SMOOTHING = 0.2
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+
+        /** Rates for the MS43 logger definition's slow channels; everything else is read every cycle. */
+        private val MS43_RATES = mapOf(
+            // Temperatures, battery voltage and ambient pressure
+            "P2" to 1.0, "P4" to 1.0, "P11" to 1.0, "P17" to 1.0, "P24" to 0.25,
+            // Adaptations and fuel quality only move over minutes
+            "E19" to 0.25, "E20" to 0.25, "E21" to 0.25, "E22" to 0.25, "E24" to 0.25, "E99" to 0.25
+        )
+        /** Switches ("S0" ...) all come in the one block request; twice a second is plenty. */
+        private const val MS43_SWITCH_RATE = 2.0
+
+        /** Default target rates for [params] of the bundled MS43 logger definition. */
+        @JvmStatic
+        fun ms43Rates(params: List<LoggerParam>): Map<String, Double> {
+            val out = HashMap<String, Double>()
+            for (p in params) {
+                val rate = MS43_RATES[p.id] ?: if (p.isBlock) MS43_SWITCH_RATE else continue
+                out[p.id] = rate
+            }
+            return out
+        }
+
+        /**
+         * Plans [params] with target [rates] (Hz by ecuparam id; missing or 0 means
+         * every cycle). [telegram] applies to the fast tier.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun build(
+            params: List<LoggerParam>,
+            rates: Map<String, Double> = emptyMap(),
+            timing: RequestScheduler.Timing = RequestScheduler.Timing.DEFAULT,
+            baud: Int = KLineInit.KLINE_BAUD,
+            telegram: Boolean = false
+        ): LogSchedule {
+            require(params.isNotEmpty()) { "Nothing to log" }
+            // Period in ns per tier, 0 for the fast tier; sorted so the fast tier comes first
+            val byPeriod = sortedMapOf<Long, ArrayList<Int>>()
+            for ((i, p) in params.withIndex()) {
+                val rate = rates[p.id] ?: 0.0
+                val period = if (rate <= 0.0 || rate >= FAST_RATE_HZ) 0L else {
+                    val exp = Math.ceil(Math.log(rate) / Math.log(2.0)).toInt().coerceIn(-2, 1)
+                    if (exp >= 0) NANOS_PER_SECOND shr exp else NANOS_PER_SECOND shl -exp
+                }
+                byPeriod.getOrPut(period) { ArrayList() }.add(i)
+            }
+            val tiers = byPeriod.map { (period, columns) ->
+                val subset = columns.map { params[it] }
+                val reads = LogPlan.build(subset, timing, baud)
+                val plan = if (telegram && period == 0L) LogPlan.build(subset, timing, baud, true) else reads
+                Tier(plan, if (plan !== reads) reads else null, columns.toIntArray(), period, estimate(plan, timing, baud))
+            }
+            return LogSchedule(params.toTypedArray(), tiers.toTypedArray())
+        }
+
+        /** One fast tier holding all of [plan], with [fallback] for a refused telegram. */
+        @JvmStatic
+        @JvmOverloads
+        fun of(plan: LogPlan, fallback: LogPlan? = null): LogSchedule =
+            LogSchedule(plan.params, arrayOf(Tier(plan, fallback, IntArray(plan.size) { it }, 0L,
+                estimate(plan, RequestScheduler.Timing.DEFAULT, KLineInit.KLINE_BAUD))))
+
+        /** Round trip of [plan] before anything was measured: bytes on the wire plus P3 and latency per request. */
+        private fun estimate(plan: LogPlan, timing: RequestScheduler.Timing, baud: Int): Long =
+            plan.wireBytes * 10L * NANOS_PER_SECOND / baud +
+                plan.requestCount * (timing.p3MinMs + timing.latencyMs) * 1_000_000L
+    }
+
+    internal class Tier(
+        var plan: LogPlan,
+        /** Memory-read plan of the same parameters, if [plan] uses a telegram. */
+        val fallback: LogPlan?,
+        /** Schedule-wide parameter index of each of the tier's parameters. */
+        val columns: IntArray,
+        /** 0 for every cycle. */
+        val periodNanos: Long,
+        var costNanos: Long
+    ) {
+        val values = DoubleArray(columns.size)
+        var nextDue = 0L
+        var defined = false
+
+        fun measured(nanos: Long) {
+            costNanos += ((nanos - costNanos) * COST_SMOOTHING).toLong()
+        }
+    }
+
+    private var credit = 0L
+    private var lastCycle = 0L
+
+    val size: Int get() = params.size
+
+    /** Most requests one cycle can queue, for sizing the engine's in-flight array. */
+    internal val maxRequests: Int
+        get() = tiers.sumOf { maxOf(it.plan.requestCount, it.fallback?.requestCount ?: 0) }
+
+    /** Target rate of each tier in Hz, 0 for the fast tier. */
+    fun tierRates(): DoubleArray = DoubleArray(tiers.size) {
+        if (tiers[it].periodNanos == 0L) 0.0 else NANOS_PER_SECOND.toDouble() / tiers[it].periodNanos
+    }
+
+    /**
+     * Fills [out] with the tiers to read in the cycle starting at [now] and returns
+     * how many; 0 means nothing is due before [nextDue].
+     */
+    internal fun select(now: Long, out: IntArray): Int {
+        val fast = tiers[0].periodNanos == 0L
+        if (lastCycle != 0L) {
+            credit += ((now - lastCycle) * SLOW_SHARE).toLong()
+            // Do not save up for a burst after an idle spell
+            val cap = tiers.maxOf { it.costNanos }
+            if (credit > cap) credit = cap
+        }
+        lastCycle = now
+        var n = 0
+        if (fast) out[n++] = 0
+        while (true) {
+            var pick = -1
+            for (t in (if (fast) 1 else 0) until tiers.size) {
+                val tier = tiers[t]
+                if (tier.nextDue > now) continue
+                if (pick < 0 || tier.nextDue < tiers[pick].nextDue) pick = t
+            }
+            if (pick < 0) break
+            // Without a fast tier every due tier runs; otherwise only within the slow share
+            if (fast && credit < 0) break
+            out[n++] = pick
+            credit -= tiers[pick].costNanos
+            val tier = tiers[pick]
+            // A tier that fell behind counts its next period from now instead of catching up
+            tier.nextDue = if (tier.nextDue + tier.periodNanos > now) tier.nextDue + tier.periodNanos else now + tier.periodNanos
+        }
+        return n
+    }
+
+    /** When the earliest slow tier is due; only meaningful without a fast tier. */
+    internal fun nextDue(): Long = tiers.minOf { it.nextDue }
+}
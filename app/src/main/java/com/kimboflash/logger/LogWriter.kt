@@ -0,0 +1,221 @@
+package com.kimboflash.logger
+
+import android.util.Log
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.zip.Deflater
+
+/**
+ * Records [LoggerEngine] frames into a columnar log file that [LogReader]
+ * opens without parsing it.
+ *
+ * Frames are collected into blocks of [BLOCK_FRAMES] rows, stored column by
+ * column: the time column as microsecond deltas, every parameter column as
+ * float bits XORed with the row before, which leaves mostly zero bytes for
+ * slowly changing values. Each block is deflated on the "log-writer" thread
+ * while the next one fills, so the logger thread only copies numbers.
+ * [close] appends the time index (first and last time, offset and row count
+ * per block) and a trailer pointing at it.
+ *
+ * File layout (big-endian):
+ * - header: [MAGIC], [VERSION], wall-clock start, column count, then id,
+ *   name, units and format of each column (modified UTF-8)
+ * - blocks: [BLOCK_MAGIC], rows, first and last time (µs), raw length,
+ *   compressed length, deflated columns
+ * - index: [INDEX_MAGIC], block count, per block first/last time, offset, rows
+ * - trailer: index offset, [END_MAGIC]
+ */
+class LogWriter(val file: File, params: List<LoggerParam>) : LoggerEngine.Listener, Closeable {
+    companion object {
+        private const val TAG = "LogWriter"
+        const val MAGIC = 0x4B464C47 // "KFLG"
+        const val VERSION = 1
+        const val BLOCK_MAGIC = 0x424C4B31 // "BLK1"
+        const val INDEX_MAGIC = 0x49445831 // "IDX1"
+        const val END_MAGIC = 0x454E4431 // "END1"
+        /** Rows per block: a few seconds to a minute of driving, depending on the frame rate. */
+        const val BLOCK_FRAMES = 256
+        /** Bytes of a block header. */
+        const val BLOCK_HEADER = 32
+        /** Bytes of the trailer. */
+        const val TRAILER = 12
+    }
+
+    private class Block(columns: Int) {
+        val times = LongArray(BLOCK_FRAMES)
+        /** Column-major: values[column * BLOCK_FRAMES + row]. */
+        val values = FloatArray(BLOCK_FRAMES * columns)
+        var rows = 0
+    }
+
+    private val columns = params.size
+    private val raf = RandomAccessFile(file, "rw")
+    private val baseNanos = System.nanoTime()
+    private val io = Executors.newSingleThreadExecutor { r -> Thread(r, "log-writer").apply { isDaemon = true } }
+
+    private var filling = Block(columns)
+    private var spare = Block(columns)
+    private var pending: Future<*>? = null
+
+    // Written on the log-writer thread only
+    private val raw = ByteBuffer.allocate(4 * BLOCK_FRAMES * (1 + columns))
+    private var packed = ByteArray(raw.capacity() + raw.capacity() / 1000 + 64)
+    private val header = ByteBuffer.allocate(BLOCK_HEADER)
+    private val deflater = Deflater(Deflater.BEST_SPEED)
+    private var position = 0L
+    private var blocks = 0
+    private var indexFirst = LongArray(64)
+    private var indexLast = LongArray(64)
+    private var indexOffset = LongArray(64)
+    private var indexRows = IntArray(64)
+
+    @Volatile
+    var frames = 0L
+        private set
+    @Volatile
+    var bytesWritten = 0L
+        private set
+    /** False once closed or after a write error. */
+    @Volatile
+    var isRecording = true
+        private set
+    private var closed = false
+
+    init {
+        raf.setLength(0)
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeLong(System.currentTimeMillis())
+            out.writeInt(columns)
+            for (p in params) {
+                out.writeUTF(p.id)
+                out.writeUTF(p.name)
+                out.writeUTF(p.units)
+                out.writeUTF(p.format)
+            }
+        }
+        raf.write(bytes.toByteArray())
+        position = raf.filePointer
+        bytesWritten = position
+    }
+
+    override fun onFrame(timeNanos: Long, values: DoubleArray) {
+        if (!isRecording) return
+        val b = filling
+        val row = b.rows
+        b.times[row] = (timeNanos - baseNanos) / 1000
+        for (c in 0 until columns) b.values[c * BLOCK_FRAMES + row] = values[c].toFloat()
+        b.rows = row + 1
+        frames++
+        if (b.rows == BLOCK_FRAMES) submit()
+    }
+
+    /** Hands the filled block to the writer thread and continues in the spare one. */
+    private fun submit() {
+        // The spare block is free again once its previous write has finished
+        try {
+            pending?.get()
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Stopped recording ${file.name}", e.cause)
+            isRecording = false
+            return
+        }
+        val full = filling
+        filling = spare
+        spare = full
+        filling.rows = 0
+        pending = io.submit { write(full) }
+    }
+
+    private fun write(b: Block) {
+        val rows = b.rows
+        raw.clear()
+        var prevTime = b.times[0]
+        for (r in 0 until rows) {
+            raw.putInt((b.times[r] - prevTime).toInt())
+            prevTime = b.times[r]
+        }
+        for (c in 0 until columns) {
+            var prev = 0
+            val base = c * BLOCK_FRAMES
+            for (r in 0 until rows) {
+                val bits = java.lang.Float.floatToRawIntBits(b.values[base + r])
+                raw.putInt(bits xor prev)
+                prev = bits
+            }
+        }
+        val rawLength = raw.position()
+        deflater.reset()
+        deflater.setInput(raw.array(), 0, rawLength)
+        deflater.finish()
+        var packedLength = 0
+        while (!deflater.finished()) {
+            if (packedLength == packed.size) packed = packed.copyOf(packed.size * 2)
+            packedLength += deflater.deflate(packed, packedLength, packed.size - packedLength)
+        }
+
+        header.clear()
+        header.putInt(BLOCK_MAGIC).putInt(rows).putLong(b.times[0]).putLong(b.times[rows - 1])
+            .putInt(rawLength).putInt(packedLength)
+        raf.seek(position)
+        raf.write(header.array(), 0, BLOCK_HEADER)
+        raf.write(packed, 0, packedLength)
+
+        if (blocks == indexFirst.size) {
+            val size = blocks * 2
+            indexFirst = indexFirst.copyOf(size)
+            indexLast = indexLast.copyOf(size)
+            indexOffset = indexOffset.copyOf(size)
+            indexRows = indexRows.copyOf(size)
+        }
+        indexFirst[blocks] = b.times[0]
+        indexLast[blocks] = b.times[rows - 1]
+        indexOffset[blocks] = position
+        indexRows[blocks] = rows
+        blocks++
+        position += BLOCK_HEADER + packedLength
+        bytesWritten = position
+    }
+
+    private fun writeIndex() {
+        val index = ByteBuffer.allocate(8 + blocks * 28 + TRAILER)
+        index.putInt(INDEX_MAGIC).putInt(blocks)
+        for (i in 0 until blocks) {
+            index.putLong(indexFirst[i]).putLong(indexLast[i]).putLong(indexOffset[i]).putInt(indexRows[i])
+        }
+        index.putLong(position).putInt(END_MAGIC)
+        raf.seek(position)
+        raf.write(index.array(), 0, index.position())
+        bytesWritten = position + index.position()
+    }
+
+    /** Writes the last partial block and the index; the logger must not deliver frames concurrently. */
+    override fun close() {
+        if (closed) return
+        closed = true
+        isRecording = false
+        try {
+            pending?.get()
+            val last = filling
+            io.submit {
+                if (last.rows > 0) write(last)
+                writeIndex()
+            }.get()
+        } catch (e: Exception) {
+            Log.e(TAG, "Could not finish ${file.name}", e)
+        } finally {
+            io.shutdown()
+            deflater.end()
+            raf.close()
+        }
+    }
+}
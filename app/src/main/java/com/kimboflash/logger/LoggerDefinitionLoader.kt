@@ -0,0 +1,135 @@
+package com.kimboflash.logger
+
+import android.util.Xml
+import com.kimboflash.transport.LineSettings
+import org.xmlpull.v1.XmlPullParser
+import java.io.InputStream
+
+/**
+ * Streaming loader for the DS2 part of a RomRaider logger definition, such
+ * as the bundled "MS43 logger_METRIC_EN_v1.0.0.xml".
+ *
+ * Every <ecuparam> lists its address per ECU software id; only the address
+ * for [load]'s ecuId is kept, and parameters without one are dropped. Of
+ * the <conversion>s the first, i.e. the file's primary unit, is used. The
+ * DS2 <protocol>'s serial format comes back with them in [Definition].
+ */
+object LoggerDefinitionLoader {
+    /** MS43 430069, the software the telegram addresses were written for. */
+    const val MS43_430069 = "7551615"
+    const val MS43_LOGGER_ASSET = "defs/ms43/MS43 logger_METRIC_EN_v1.0.0.xml"
+
+    private class RawParam(val id: String, val name: String, val group: Int, val subgroup: Int, val groupSize: Int) {
+        var address: Int = -1
+        var bit = -1
+        var storageType: String? = null
+        var endian: String? = null
+        var units = ""
+        var expression: String? = null
+        var format = "0"
+        var gaugeMin = 0.0
+        var gaugeMax = 0.0
+    }
+
+    /** What [loadDefinition] read: the parameters and the line format to log at. */
+    class Definition(
+        val params: List<LoggerParam>,
+        /** From the DS2 <protocol> element; null if it declares no baud rate. */
+        val line: LineSettings?
+    )
+
+    /** Parameters of [ecuId] in file order; a null [ecuId] takes each parameter's first address. */
+    fun load(input: InputStream, ecuId: String?): List<LoggerParam> = loadDefinition(input, ecuId).params
+
+    /** Like [load], plus the serial format the DS2 protocol is declared with. */
+    fun loadDefinition(input: InputStream, ecuId: String?): Definition {
+        val p = Xml.newPullParser()
+        p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false)
+        p.setInput(input, null)
+
+        val out = ArrayList<LoggerParam>()
+        var protocol: String? = null
+        var line: LineSettings? = null
+        var param: RawParam? = null
+        var ecuMatches = false
+        var event = p.eventType
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                when (p.name) {
+                    "protocol" -> {
+                        protocol = p.getAttributeValue(null, "id")
+                        if (protocol == "DS2") line = lineSettings(p)
+                    }
+                    "ecuparam" -> if (protocol == "DS2") param = RawParam(
+                        p.getAttributeValue(null, "id") ?: "",
+                        p.getAttributeValue(null, "name") ?: "",
+                        parseInt(p.getAttributeValue(null, "group")),
+                        parseInt(p.getAttributeValue(null, "subgroup")),
+                        p.getAttributeValue(null, "groupsize")?.let { parseInt(it) } ?: 0
+                    )
+                    "ecu" -> ecuMatches = param?.address == -1 &&
+                        (ecuId == null || p.getAttributeValue(null, "id")?.split(',')?.any { it.trim() == ecuId } == true)
+                    "address" -> if (ecuMatches) param?.let {
+                        it.bit = p.getAttributeValue(null, "bit")?.let { b -> parseInt(b) } ?: -1
+                        it.address = parseInt(p.nextText())
+                    }
+                    "conversion" -> param?.let {
+                        if (it.expression == null) {
+                            it.expression = p.getAttributeValue(null, "expr") ?: "x"
+                            it.storageType = p.getAttributeValue(null, "storagetype")
+                            it.endian = p.getAttributeValue(null, "endian")
+                            it.units = p.getAttributeValue(null, "units") ?: ""
+                            it.format = p.getAttributeValue(null, "format") ?: "0"
+                            it.gaugeMin = p.getAttributeValue(null, "gauge_min")?.toDoubleOrNull() ?: 0.0
+                            it.gaugeMax = p.getAttributeValue(null, "gauge_max")?.toDoubleOrNull() ?: 0.0
+                        }
+                    }
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                when (p.name) {
+                    "ecu" -> ecuMatches = false
+                    "ecuparam" -> {
+                        param?.let { build(it)?.let { lp -> out.add(lp) } }
+                        param = null
+                    }
+                }
+            }
+            event = p.next()
+        }
+        return Definition(out, line)
+    }
+
+    /** baud, databits, stopbits and parity of a <protocol>, e.g. 9600 8E1 for DS2. */
+    private fun lineSettings(p: XmlPullParser): LineSettings? {
+        val baud = p.getAttributeValue(null, "baud")?.let { parseInt(it) } ?: return null
+        val parity = p.getAttributeValue(null, "parity")?.let { parseInt(it) } ?: 0
+        return LineSettings(
+            baud,
+            p.getAttributeValue(null, "databits")?.let { parseInt(it) } ?: 8,
+            p.getAttributeValue(null, "stopbits")?.let { parseInt(it) } ?: 1,
+            LineSettings.Parity.values().getOrElse(parity) { LineSettings.Parity.NONE }
+        )
+    }
+
+    private fun build(r: RawParam): LoggerParam? {
+        if (r.address < 0 || r.expression == null) return null
+        // RomRaider's default storage is one unsigned byte
+        val type = r.storageType ?: "uint8"
+        val bytes = when (type) {
+            "int8", "uint8" -> 1
+            "int16", "uint16" -> 2
+            "int32", "uint32" -> 4
+            else -> return null
+        }
+        return LoggerParam(
+            r.id, r.name, r.group, r.subgroup, r.groupSize, r.address, r.bit,
+            if (r.bit >= 0) 1 else bytes, !type.startsWith("u"), r.endian == "little",
+            r.units, r.expression!!, r.format, r.gaugeMin, r.gaugeMax
+        )
+    }
+
+    private fun parseInt(s: String?): Int {
+        val t = s?.trim() ?: return 0
+        return if (t.startsWith("0x", true)) t.substring(2).toLong(16).toInt() else t.toInt()
+    }
+}
@@ -0,0 +1,200 @@
+package com.kimboflash.logger
+
+import android.util.Log
+import com.kimboflash.protocol.NegativeResponseException
+import com.kimboflash.protocol.RequestScheduler
+import com.kimboflash.protocol.ResponseFuture
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Reads a [LogSchedule] over and over, as fast as the line allows.
+ *
+ * Each cycle asks the schedule which tiers are due (the fast tier always,
+ * slow tiers as their rate and the bus allow), queues all of their requests
+ * on the [RequestScheduler] at once, so they go out back to back with
+ * nothing but P3min between them, and decodes the answers into one reused
+ * value array. Values of tiers not read in a cycle keep their last reading;
+ * each tier's measured round trip is fed back into the schedule. The
+ * listener gets the array per cycle on the logger thread and must copy what
+ * it keeps. A failed request only blanks its own values (NaN) for that
+ * cycle.
+ *
+ * A telegram plan uploads its definition before its first read and again
+ * whenever the telegram read is rejected (the ECU forgets it on a new
+ * session). If the definition itself is rejected, or a telegram read comes
+ * back at another length than the definition adds up to (its layout is
+ * assumed), the tier continues with its fallback, the same parameters
+ * planned for memory reads.
+ *
+ * [samplesPerSecond] (values read per second) and [framesPerSecond] are
+ * measured over the last [RATE_WINDOW_MS].
+ */
+class LoggerEngine(
+    private val scheduler: RequestScheduler,
+    val schedule: LogSchedule,
+    private val listener: Listener
+) : AutoCloseable {
+    companion object {
+        private const val TAG = "LoggerEngine"
+        const val RATE_WINDOW_MS = 1000L
+        /** How long [close] waits for the frame being delivered. */
+        private const val STOP_TIMEOUT_MS = 500L
+    }
+
+    /** Reads all of [plan] every cycle; [fallback] replaces a refused telegram. */
+    @JvmOverloads
+    constructor(scheduler: RequestScheduler, plan: LogPlan, listener: Listener, fallback: LogPlan? = null) :
+        this(scheduler, LogSchedule.of(plan, fallback), listener)
+
+    fun interface Listener {
+        /** [values] is indexed like [LogSchedule.params] and only valid during the call. */
+        fun onFrame(timeNanos: Long, values: DoubleArray)
+    }
+
+    private val values = DoubleArray(schedule.size) { Double.NaN }
+    private val inFlight = arrayOfNulls<ResponseFuture>(schedule.maxRequests)
+    private val selected = IntArray(schedule.tiers.size)
+
+    @Volatile
+    private var running = true
+
+    @Volatile
+    var frames = 0L
+        private set
+    /** Requests that failed or timed out. */
+    @Volatile
+    var errors = 0L
+        private set
+    @Volatile
+    var framesPerSecond = 0.0
+        private set
+    @Volatile
+    var samplesPerSecond = 0.0
+        private set
+
+    private val thread: Thread
+
+    init {
+        val t = Thread({ run() }, "logger")
+        t.isDaemon = true
+        thread = t
+        t.start()
+    }
+
+    private fun run() {
+        var windowStart = System.nanoTime()
+        var windowFrames = 0
+        var windowSamples = 0L
+        try {
+            while (running) {
+                val start = System.nanoTime()
+                val n = schedule.select(start, selected)
+                if (n == 0) {
+                    LockSupport.parkNanos(this, schedule.nextDue() - start)
+                    continue
+                }
+                var ready = true
+                for (k in 0 until n) {
+                    val tier = schedule.tiers[selected[k]]
+                    if (tier.plan.usesTelegram && !tier.defined) {
+                        tier.defined = defineTelegram(tier)
+                        ready = ready && tier.defined
+                    }
+                }
+                if (!ready) continue
+
+                var q = 0
+                for (k in 0 until n) {
+                    val plan = schedule.tiers[selected[k]].plan
+                    for (r in 0 until plan.requestCount) inFlight[q++] = scheduler.submit(plan.sids[r], plan.data[r])
+                }
+                q = 0
+                var tierStart = start
+                for (k in 0 until n) {
+                    val tier = schedule.tiers[selected[k]]
+                    val plan = tier.plan
+                    for (r in 0 until plan.requestCount) {
+                        val payload = try {
+                            inFlight[q++]!!.get()
+                        } catch (e: ExecutionException) {
+                            errors++
+                            if (plan.usesTelegram && plan.sids[r] == LogPlan.TELEGRAM_GROUP &&
+                                e.cause is NegativeResponseException) tier.defined = false
+                            null
+                        }
+                        if (payload != null && !plan.answerMatches(r, payload)) {
+                            errors++
+                            useFallback(tier, "Telegram answer of ${payload.size} bytes does not match its definition", null)
+                        }
+                        plan.decode(r, payload, tier.values)
+                    }
+                    // Requests run in queue order, so each tier's round trip starts where the last ended
+                    val end = System.nanoTime()
+                    tier.measured(end - tierStart)
+                    tierStart = end
+                    val columns = tier.columns
+                    for (i in columns.indices) values[columns[i]] = tier.values[i]
+                    windowSamples += columns.size
+                }
+                if (!running) break
+                listener.onFrame(start, values)
+                frames++
+                windowFrames++
+
+                val now = System.nanoTime()
+                val elapsed = now - windowStart
+                if (elapsed >= RATE_WINDOW_MS * 1_000_000L) {
+                    framesPerSecond = windowFrames * 1e9 / elapsed
+                    samplesPerSecond = windowSamples * 1e9 / elapsed
+                    windowStart = now
+                    windowFrames = 0
+                    windowSamples = 0L
+                }
+            }
+        } catch (_: InterruptedException) {
+        } catch (_: CancellationException) {
+        } catch (e: RuntimeException) {
+            Log.e(TAG, "Logger stopped", e)
+        }
+        for (f in inFlight) f?.cancel(false)
+    }
+
+    /** Uploads the telegram of [tier]; true once the ECU accepted it. */
+    private fun defineTelegram(tier: LogSchedule.Tier): Boolean {
+        try {
+            scheduler.submit(LogPlan.TELEGRAM_GROUP, tier.plan.telegramDefinition!!).get()
+            return true
+        } catch (e: ExecutionException) {
+            errors++
+            if (e.cause !is NegativeResponseException) return false
+            useFallback(tier, "Telegram refused", e.cause)
+            return false
+        }
+    }
+
+    /** Switches [tier] to memory reads, or stops the logger if it has none. */
+    private fun useFallback(tier: LogSchedule.Tier, reason: String, cause: Throwable?) {
+        val fallback = tier.fallback
+        if (fallback != null) {
+            Log.w(TAG, "$reason, falling back to memory reads")
+            tier.plan = fallback
+        } else {
+            Log.e(TAG, reason, cause)
+            running = false
+        }
+    }
+
+    val isRunning: Boolean get() = running && thread.isAlive
+
+    /**
+     * Stops after the request on the line; queued requests of the current frame are
+     * dropped. Returns once the listener is no longer called, so it can be closed next.
+     */
+    override fun close() {
+        running = false
+        thread.interrupt()
+        if (Thread.currentThread() !== thread) thread.join(STOP_TIMEOUT_MS)
+    }
+}
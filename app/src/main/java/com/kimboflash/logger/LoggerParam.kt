@@ -0,0 +1,42 @@
+package com.kimboflash.logger
+
+/**
+ * One loggable ECU value from a RomRaider logger definition, resolved for a
+ * single ECU: where to read it and how to turn the raw bytes into units.
+ */
+class LoggerParam(
+    /** RomRaider id, e.g. "P8". */
+    val id: String,
+    val name: String,
+    /**
+     * DS2 request bytes: 0x06/0x00 reads memory, 0x0B/0x04 returns the switch block,
+     * 0x0B/0x01 is a memory value meant for the telegram (see [LogPlan]).
+     */
+    val group: Int,
+    val subgroup: Int,
+    /** Size of the block answered by [group]/[subgroup]; 0 when [address] is a memory address. */
+    val groupSize: Int,
+    /** Memory address, or the byte offset within the block. */
+    val address: Int,
+    /** Bit of the byte at [address] for on/off values, else -1. */
+    val bit: Int,
+    /** 1, 2 or 4. */
+    val bytes: Int,
+    val signed: Boolean,
+    val littleEndian: Boolean,
+    val units: String,
+    /** RomRaider conversion in x, e.g. "x*0.00488". */
+    val expression: String,
+    /** DecimalFormat pattern, e.g. "0.00". */
+    val format: String,
+    val gaugeMin: Double,
+    val gaugeMax: Double
+) {
+    val isBlock: Boolean get() = groupSize > 0
+
+    /** A memory value the definition reads through the telegram rather than 0x06. */
+    val isTelegram: Boolean get() =
+        !isBlock && group == LogPlan.TELEGRAM_GROUP && subgroup == LogPlan.TELEGRAM_READ
+
+    override fun toString(): String = "$id $name"
+}
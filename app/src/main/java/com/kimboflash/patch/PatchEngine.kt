@@ -0,0 +1,206 @@
+package com.kimboflash.patch
+
+import com.kimboflash.defs.DefinitionIndex
+import com.kimboflash.rom.RomImage
+import java.util.Arrays
+
+/**
+ * Applies the XDFPATCH records of a community patchlist (e.g.
+ * Siemens_MS43_MS430069_Community_Patchlist_v2.9.2.xdf) to a [RomImage].
+ *
+ * All patch entries are indexed once by file offset. Applying a set of
+ * patches first checks every entry (bounds, basedata, overlaps with other
+ * selected patches) without touching the image, then writes each entry with a
+ * single bulk copy; if anything fails midway the bytes saved beforehand are
+ * written back so the image is never left half-patched.
+ */
+class PatchEngine(val definition: DefinitionIndex) {
+
+    enum class State { ORIGINAL, APPLIED, MODIFIED }
+
+    /** One entry that would be (or was) written. */
+    class Change(val patch: String, val entry: String, val offset: Int, val length: Int, val alreadyDone: Boolean)
+
+    /** Outcome of [apply] / [revert]; nothing was written unless [ok] and not a dry run. */
+    class Report(val changes: List<Change>, val problems: List<String>, val dryRun: Boolean) {
+        val ok: Boolean get() = problems.isEmpty()
+    }
+
+    /** Record numbers of every XDFPATCH in the definition. */
+    val patches: IntArray
+
+    // Interval index over all entries, sorted by start offset
+    private val starts: IntArray
+    private val ends: IntArray
+    private val entries: IntArray
+    private val owners: IntArray
+    /** maxEnd[i] = max(ends[0..i]), lets [entriesAt] stop early. */
+    private val maxEnd: IntArray
+
+    init {
+        val d = definition
+        var n = 0
+        for (r in 0 until d.size) if (d.kind(r) == DefinitionIndex.KIND_PATCH) n++
+        patches = IntArray(n)
+        n = 0
+        for (r in 0 until d.size) if (d.kind(r) == DefinitionIndex.KIND_PATCH) patches[n++] = r
+
+        val count = d.entryCount
+        val owner = IntArray(count) { DefinitionIndex.NONE }
+        for (r in patches) {
+            val first = d.firstPatchEntry(r)
+            for (e in first until first + d.patchEntryCount(r)) owner[e] = r
+        }
+        // Sort entries by offset via packed (offset << 32 | entry) keys
+        val keys = LongArray(count) { (d.entryFileOffset(it).toLong() shl 32) or it.toLong() }
+        Arrays.sort(keys)
+        starts = IntArray(count)
+        ends = IntArray(count)
+        entries = IntArray(count)
+        owners = IntArray(count)
+        maxEnd = IntArray(count)
+        for (i in 0 until count) {
+            val e = (keys[i] and 0xFFFFFFFFL).toInt()
+            entries[i] = e
+            owners[i] = owner[e]
+            starts[i] = d.entryFileOffset(e)
+            ends[i] = starts[i] + d.entrySize(e)
+            maxEnd[i] = if (i == 0) ends[i] else maxOf(maxEnd[i - 1], ends[i])
+        }
+    }
+
+    fun title(patch: Int): String = definition.title(patch)
+
+    /** First patch with this title, or [DefinitionIndex.NONE]. */
+    fun find(title: String): Int =
+        definition.find(title).let { if (it != DefinitionIndex.NONE && definition.kind(it) == DefinitionIndex.KIND_PATCH) it else DefinitionIndex.NONE }
+
+    /** Whether [patch] is fully applied, fully original, or neither. */
+    fun state(image: RomImage, patch: Int): State {
+        val d = definition
+        val first = d.firstPatchEntry(patch)
+        var applied = true
+        var original = true
+        for (e in first until first + d.patchEntryCount(patch)) {
+            if (!inBounds(image, e)) return State.MODIFIED
+            if (applied && !d.isPatched(e, image)) applied = false
+            if (original && !d.isOriginal(e, image)) original = false
+            if (!applied && !original) return State.MODIFIED
+        }
+        return if (applied) State.APPLIED else State.ORIGINAL
+    }
+
+    /** Entries (by entry number) overlapping [offset] .. [offset] + [length]. */
+    fun entriesAt(offset: Int, length: Int): IntArray {
+        val end = offset + length
+        // Entries starting at or after end cannot overlap
+        var hi = Arrays.binarySearch(starts, end)
+        if (hi < 0) hi = -hi - 1 else while (hi > 0 && starts[hi - 1] == end) hi--
+        val out = ArrayList<Int>()
+        var i = hi - 1
+        while (i >= 0 && maxEnd[i] > offset) {
+            if (ends[i] > offset) out.add(entries[i])
+            i--
+        }
+        return out.toIntArray()
+    }
+
+    /**
+     * Pairs of selected patches whose entries overlap, found in one sweep over
+     * the sorted index.
+     */
+    fun conflicts(selected: IntArray): List<Pair<Int, Int>> {
+        val wanted = HashSet<Int>()
+        for (p in selected) wanted.add(p)
+        val out = ArrayList<Pair<Int, Int>>()
+        var reach = Int.MIN_VALUE
+        var reachOwner = DefinitionIndex.NONE
+        for (i in starts.indices) {
+            val o = owners[i]
+            if (o !in wanted) continue
+            if (starts[i] < reach && o != reachOwner) {
+                val pair = Pair(minOf(o, reachOwner), maxOf(o, reachOwner))
+                if (pair !in out) out.add(pair)
+            }
+            if (ends[i] > reach) {
+                reach = ends[i]
+                reachOwner = o
+            }
+        }
+        return out
+    }
+
+    /** Applies [selected] patches atomically, or only reports what would change when [dryRun]. */
+    fun apply(image: RomImage, selected: IntArray, dryRun: Boolean = false): Report =
+        run(image, selected, revert = false, dryRun = dryRun)
+
+    /** Restores the basedata of [selected] patches; patches without basedata cannot be reverted. */
+    fun revert(image: RomImage, selected: IntArray, dryRun: Boolean = false): Report =
+        run(image, selected, revert = true, dryRun = dryRun)
+
+    private fun run(image: RomImage, selected: IntArray, revert: Boolean, dryRun: Boolean): Report {
+        val d = definition
+        val changes = ArrayList<Change>()
+        val problems = ArrayList<String>()
+
+        for ((a, b) in conflicts(selected)) problems.add("\"${title(a)}\" overlaps \"${title(b)}\"")
+
+        var undoSize = 0
+        for (p in selected) {
+            if (d.kind(p) != DefinitionIndex.KIND_PATCH) {
+                problems.add("Record $p is not a patch")
+                continue
+            }
+            val first = d.firstPatchEntry(p)
+            for (e in first until first + d.patchEntryCount(p)) {
+                val name = "${title(p)} / ${d.entryName(e)}"
+                if (!inBounds(image, e)) {
+                    problems.add("$name lies outside the image")
+                    continue
+                }
+                val done = if (revert) d.isOriginal(e, image) else d.isPatched(e, image)
+                if (!done) {
+                    when {
+                        !d.hasBaseData(e) && revert -> problems.add("$name has no original data to restore")
+                        revert && !d.isPatched(e, image) -> problems.add("$name does not contain the patch")
+                        !revert && d.hasBaseData(e) && !d.isOriginal(e, image) -> problems.add("$name does not match the expected original data")
+                    }
+                    undoSize += d.entrySize(e)
+                }
+                changes.add(Change(title(p), d.entryName(e), d.entryFileOffset(e), d.entrySize(e), done))
+            }
+        }
+
+        if (dryRun || problems.isNotEmpty()) return Report(changes, problems, dryRun)
+
+        // Save the bytes about to be overwritten, then write entry by entry
+        val undo = ByteArray(undoSize)
+        val written = ArrayList<Int>()
+        var pos = 0
+        try {
+            for (p in selected) {
+                val first = d.firstPatchEntry(p)
+                for (e in first until first + d.patchEntryCount(p)) {
+                    if (if (revert) d.isOriginal(e, image) else d.isPatched(e, image)) continue
+                    image.read(d.entryFileOffset(e), undo, pos, d.entrySize(e))
+                    pos += d.entrySize(e)
+                    written.add(e)
+                    d.writeEntry(e, image, revert)
+                }
+            }
+        } catch (e: RuntimeException) {
+            for (i in written.indices.reversed()) {
+                val entry = written[i]
+                pos -= d.entrySize(entry)
+                image.write(d.entryFileOffset(entry), undo, pos, d.entrySize(entry))
+            }
+            throw e
+        }
+        return Report(changes, problems, false)
+    }
+
+    private fun inBounds(image: RomImage, entry: Int): Boolean {
+        val offset = definition.entryFileOffset(entry)
+        return offset >= 0 && offset + definition.entrySize(entry) <= image.size
+    }
+}
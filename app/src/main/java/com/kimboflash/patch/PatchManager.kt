@@ -1,24 +1,46 @@
 package com.kimboflash.patch
 
-import java.io.FileInputStream
-import java.io.FileOutputStream
+import com.kimboflash.defs.DefinitionIndex
+import com.kimboflash.defs.EcuIdentifier
+import com.kimboflash.rom.ChecksumEngine
+import com.kimboflash.rom.ChecksumProfile
+import com.kimboflash.rom.RomImage
 
 class PatchManager {
     enum class EcuType { MS42, MS43, UNKNOWN }
 
-    private lateinit var data: ByteArray
+    private lateinit var image: RomImage
     private var ecuType: EcuType = EcuType.UNKNOWN
+    private var checksums: ChecksumEngine? = null
 
-    fun loadBin(input: FileInputStream) {
-        data = input.readBytes()
-        ecuType = identifyEcu(data)
+    /**
+     * Edits are applied in place on [image]; nothing is copied onto the heap.
+     * [definition] is the one [EcuIdentifier] picked for the image; it decides
+     * the ECU type and the checksum layout.
+     */
+    fun load(image: RomImage, definition: DefinitionIndex? = null) {
+        checksums?.detach()
+        this.image = image
+        ecuType = identifyEcu(definition)
+        val profile = definition?.let { ChecksumProfile.fromDefinition(it) } ?: profileFor(ecuType, image.size)
+        checksums = ChecksumEngine(image, profile)
     }
 
-    private fun identifyEcu(data: ByteArray): EcuType {
-        val versionByte = data[0x1234]  // adjust offset
-        return when (versionByte.toInt()) {
-            in 0x10..0x1F -> EcuType.MS42
-            in 0x20..0x2F -> EcuType.MS43
+    /** Incremental checksum state of the loaded image, e.g. for a live "valid" indicator. */
+    fun checksums(): ChecksumEngine? = checksums
+
+    private fun profileFor(type: EcuType, size: Int): ChecksumProfile = when {
+        type == EcuType.MS43 && size >= 0x80000 -> ChecksumProfile.MS43_512K
+        type == EcuType.MS42 && size >= 0x80000 -> ChecksumProfile.MS42_512K
+        else -> ChecksumProfile.wholeImage(size)
+    }
+
+    private fun identifyEcu(definition: DefinitionIndex?): EcuType {
+        val version = definition?.let { it.idString ?: EcuIdentifier.versionOf(it.defTitle) }
+        return when {
+            version == null -> EcuType.UNKNOWN
+            EcuIdentifier.isMs42(version) -> EcuType.MS42
+            EcuIdentifier.isMs43(version) -> EcuType.MS43
             else -> EcuType.UNKNOWN
         }
     }
@@ -27,61 +49,83 @@ class PatchManager {
         if (!enabled || ecuType != EcuType.MS42) return
         val rpmOffset = 0x2345
         val igOffset = 0x3456
-        data[rpmOffset] = 0xFF.toByte()
-        data[igOffset] = 0xF0.toByte()
+        image.setUint8(rpmOffset, 0xFF)
+        image.setUint8(igOffset, 0xF0)
     }
 
     fun applyIgnitionCutMs42(enabled: Boolean) {
         if (!enabled || ecuType != EcuType.MS42) return
         val offset = 0x4567
-        data[offset] = 0x01
+        image.setUint8(offset, 0x01)
     }
 
     fun applyIgnitionCutMs43(enabled: Boolean) {
         if (!enabled || ecuType != EcuType.MS43) return
         val offset = 0x4567
-        data[offset] = 0x01
+        image.setUint8(offset, 0x01)
     }
 
     fun applyLaunchControl(enabled: Boolean) {
         if (!enabled) return
         val offset = 0x5678
-        data[offset] = 0x01
+        image.setUint8(offset, 0x01)
     }
 
     fun applyNoLiftShift(enabled: Boolean) {
         if (!enabled) return
         val offset = 0x6789
-        data[offset] = 0x01
+        image.setUint8(offset, 0x01)
     }
 
     fun applyRollingAntiLag(enabled: Boolean) {
         if (!enabled) return
         val offset = 0x789A
-        data[offset] = 0x01
+        image.setUint8(offset, 0x01)
     }
 
     fun applyIgnitionAdvance(value: Int) {
         val offset = 0x8901
-        data[offset] = value.toByte()
+        image.setUint8(offset, value)
     }
 
     fun applyFuelMixture(value: Int) {
         val offset = 0x9012
-        data[offset] = value.toByte()
+        image.setUint8(offset, value)
+    }
+
+    /**
+     * Applies patches from a community patchlist by title, all or nothing.
+     * Unknown titles are reported instead of being skipped silently.
+     */
+    fun applyPatchlist(engine: PatchEngine, titles: List<String>, dryRun: Boolean = false): PatchEngine.Report {
+        val records = titles.map { engine.find(it) }
+        val missing = titles.filterIndexed { i, _ -> records[i] == DefinitionIndex.NONE }
+        if (missing.isNotEmpty()) {
+            return PatchEngine.Report(emptyList(), missing.map { "Unknown patch \"$it\"" }, dryRun)
+        }
+        return engine.apply(image, records.toIntArray(), dryRun)
     }
 
-    fun saveBin(output: FileOutputStream) {
-        recalculateChecksum(data)
-        output.write(data)
+    /**
+     * Flushes a mapped image back to its file, fixing the checksums first when
+     * their layout is verified. Otherwise the whole-image sum this app has
+     * always written is stored instead, and false is returned: the image then
+     * needs checking with a tool that knows the real layout.
+     */
+    fun save(): Boolean {
+        val engine = checksums
+        val fixed = engine != null && engine.canFix
+        if (fixed) engine!!.fix() else recalculateChecksum(image)
+        image.flush()
+        return fixed
     }
 
-    private fun recalculateChecksum(data: ByteArray) {
+    /** 16-bit byte sum of everything but the last word, stored big-endian in it. */
+    private fun recalculateChecksum(image: RomImage) {
         var sum = 0
-        for (i in 0 until data.size - 2) {
-            sum = (sum + data[i].toUByte().toInt()) and 0xFFFF
+        for (i in 0 until image.size - 2) {
+            sum = (sum + image.uint8(i)) and 0xFFFF
         }
-        data[data.size - 2] = ((sum shr 8) and 0xFF).toByte()
-        data[data.size - 1] = (sum and 0xFF).toByte()
+        image.setUint16(image.size - 2, sum, littleEndian = false)
     }
-}
\ No newline at end of file
+}
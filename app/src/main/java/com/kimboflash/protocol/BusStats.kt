@@ -0,0 +1,202 @@
+package com.kimboflash.protocol
+
+import java.io.Writer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Counters for everything that crosses the diagnostic line: adapter bytes,
+ * protocol frames, retries, timeouts, negative responses by code, and the
+ * request-to-response latency of every service id in a [LatencyHistogram].
+ *
+ * Bus utilisation is the share of wall time the K-Line carried frames: each
+ * request and answer adds its bytes' time on the wire (10 bits per byte at
+ * the line speed it went out at, 11 with a parity bit), and a [Snapshot] divides that by the time
+ * since [reset]. Adapter bytes include the K-Line echo, so they are counted
+ * apart and not used for utilisation.
+ *
+ * All recording methods are safe from any thread and allocate nothing,
+ * except the first latency of a service id, which creates its histogram;
+ * the counters can stay on in production. [DEFAULT] is shared by every
+ * transport, scheduler and flash session of the app.
+ */
+class BusStats {
+    companion object {
+        @JvmField
+        val DEFAULT = BusStats()
+        private const val CODES = 256
+    }
+
+    private val latency = AtomicReferenceArray<LatencyHistogram>(CODES)
+    private val nrcCounts = AtomicLongArray(CODES)
+
+    private val bytesOut = AtomicLong()
+    private val bytesIn = AtomicLong()
+    private val framesOut = AtomicLong()
+    private val framesIn = AtomicLong()
+    private val retries = AtomicLong()
+    private val timeouts = AtomicLong()
+    private val negativeResponses = AtomicLong()
+    private val wireNanos = AtomicLong()
+
+    @Volatile
+    private var startNanos = System.nanoTime()
+    @Volatile
+    private var startMillis = System.currentTimeMillis()
+
+    /** [n] bytes written to the adapter. */
+    fun bytesOut(n: Int) {
+        bytesOut.addAndGet(n.toLong())
+    }
+
+    /** [n] bytes read from the adapter, echo included. */
+    fun bytesIn(n: Int) {
+        bytesIn.addAndGet(n.toLong())
+    }
+
+    /** A request frame of [bytes], as encoded on the line, went out at [baud]. */
+    @JvmOverloads
+    fun frameSent(bytes: Int, baud: Int, bitsPerByte: Int = 10) {
+        framesOut.incrementAndGet()
+        wireNanos.addAndGet(wireTime(bytes, baud, bitsPerByte))
+    }
+
+    /** A frame of [bytes] from the ECU came in at [baud]. */
+    @JvmOverloads
+    fun frameReceived(bytes: Int, baud: Int, bitsPerByte: Int = 10) {
+        framesIn.incrementAndGet()
+        wireNanos.addAndGet(wireTime(bytes, baud, bitsPerByte))
+    }
+
+    /** Service [sid] was answered [nanos] after its request went out. */
+    fun response(sid: Int, nanos: Long) {
+        val i = sid and 0xFF
+        var h = latency.get(i)
+        if (h == null) {
+            latency.compareAndSet(i, null, LatencyHistogram())
+            h = latency.get(i)
+        }
+        h.record(nanos)
+    }
+
+    fun negativeResponse(code: Int) {
+        negativeResponses.incrementAndGet()
+        nrcCounts.incrementAndGet(code and 0xFF)
+    }
+
+    fun retry() {
+        retries.incrementAndGet()
+    }
+
+    fun timeout() {
+        timeouts.incrementAndGet()
+    }
+
+    /** Latency histogram of [sid], or null before its first answer. */
+    fun latency(sid: Int): LatencyHistogram? = latency.get(sid and 0xFF)
+
+    /** Starts counting afresh; utilisation is measured from here. */
+    fun reset() {
+        for (i in 0 until CODES) {
+            latency.get(i)?.reset()
+            nrcCounts.set(i, 0L)
+        }
+        bytesOut.set(0L)
+        bytesIn.set(0L)
+        framesOut.set(0L)
+        framesIn.set(0L)
+        retries.set(0L)
+        timeouts.set(0L)
+        negativeResponses.set(0L)
+        wireNanos.set(0L)
+        startNanos = System.nanoTime()
+        startMillis = System.currentTimeMillis()
+    }
+
+    /** Copies the current counts; allocates, so meant for screens and export, not the hot path. */
+    fun snapshot(): Snapshot {
+        val sids = ArrayList<Int>()
+        val summaries = ArrayList<LatencyHistogram.Summary>()
+        for (i in 0 until CODES) {
+            val h = latency.get(i) ?: continue
+            if (h.count == 0L) continue
+            sids.add(i)
+            summaries.add(h.summary())
+        }
+        val nrcs = LongArray(CODES) { nrcCounts.get(it) }
+        return Snapshot(
+            startMillis, System.nanoTime() - startNanos,
+            bytesOut.get(), bytesIn.get(), framesOut.get(), framesIn.get(),
+            retries.get(), timeouts.get(), negativeResponses.get(), wireNanos.get(),
+            sids.toIntArray(), summaries.toTypedArray(), nrcs
+        )
+    }
+
+    private fun wireTime(bytes: Int, baud: Int, bitsPerByte: Int): Long =
+        if (baud <= 0) 0L else bytes * bitsPerByte * 1_000_000_000L / baud
+
+    /** The counters at one point in time. */
+    class Snapshot internal constructor(
+        /** Wall clock at the last [reset]. */
+        val sinceMillis: Long,
+        val elapsedNanos: Long,
+        val bytesOut: Long,
+        val bytesIn: Long,
+        val framesOut: Long,
+        val framesIn: Long,
+        val retries: Long,
+        val timeouts: Long,
+        val negativeResponses: Long,
+        /** Time the K-Line carried frames. */
+        val wireNanos: Long,
+        /** Service ids with at least one answer, ascending; [latencies] uses the same indices. */
+        val sids: IntArray,
+        val latencies: Array<LatencyHistogram.Summary>,
+        /** Negative responses by code. */
+        val nrcCounts: LongArray
+    ) {
+        /** Share of the time since [sinceMillis] the line was busy, 0..1. */
+        val utilisation: Double get() = if (elapsedNanos <= 0L) 0.0 else minOf(1.0, wireNanos.toDouble() / elapsedNanos)
+
+        /** Utilisation between [earlier] and this snapshot, e.g. over the last second. */
+        fun utilisationSince(earlier: Snapshot): Double {
+            val dt = elapsedNanos - earlier.elapsedNanos
+            if (dt <= 0L || earlier.sinceMillis != sinceMillis) return utilisation
+            return minOf(1.0, (wireNanos - earlier.wireNanos).toDouble() / dt).coerceAtLeast(0.0)
+        }
+
+        /** Plain-text report, one line per counter and service id; for sharing or a file. */
+        fun writeTo(out: Writer) {
+            val since = SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(Date(sinceMillis))
+            out.write("Bus statistics since $since (%.1f s)\n".format(Locale.US, elapsedNanos / 1e9))
+            out.write("Utilisation    %.1f %%\n".format(Locale.US, utilisation * 100))
+            out.write("Frames out/in  $framesOut / $framesIn\n")
+            out.write("Bytes out/in   $bytesOut / $bytesIn\n")
+            out.write("Retries        $retries\n")
+            out.write("Timeouts       $timeouts\n")
+            out.write("Negative       $negativeResponses\n")
+            for (code in nrcCounts.indices) {
+                if (nrcCounts[code] != 0L) out.write("  code %02X      %d\n".format(Locale.US, code, nrcCounts[code]))
+            }
+            out.write("\nSID  count     mean ms   p50 ms   p90 ms   p99 ms   max ms\n")
+            for (i in sids.indices) {
+                val s = latencies[i]
+                out.write("%02X   %-8d %8.1f %8.1f %8.1f %8.1f %8.1f\n".format(
+                    Locale.US, sids[i], s.count, s.meanMicros / 1e3, s.p50Micros / 1e3,
+                    s.p90Micros / 1e3, s.p99Micros / 1e3, s.maxMicros / 1e3
+                ))
+            }
+            out.flush()
+        }
+
+        override fun toString(): String {
+            val w = java.io.StringWriter()
+            writeTo(w)
+            return w.toString()
+        }
+    }
+}
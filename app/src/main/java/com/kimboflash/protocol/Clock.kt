@@ -0,0 +1,14 @@
+package com.kimboflash.protocol
+
+/**
+ * Monotonic time source in nanoseconds. Protocol timeouts read it through
+ * this interface so tests can step time instead of sleeping.
+ */
+fun interface Clock {
+    fun nanoTime(): Long
+
+    companion object {
+        @JvmField
+        val SYSTEM = Clock { System.nanoTime() }
+    }
+}
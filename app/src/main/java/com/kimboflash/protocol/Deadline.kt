@@ -0,0 +1,31 @@
+package com.kimboflash.protocol
+
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Waits for a [System.nanoTime] deadline more precisely than Thread.sleep.
+ *
+ * Parking can overshoot by a millisecond or more, so the wait parks until
+ * [SPIN_NANOS] before the deadline and yields in a loop for the rest.
+ */
+object Deadline {
+    /** How close to the deadline parking stops and spinning takes over. */
+    private const val SPIN_NANOS = 1_500_000L
+
+    const val NANOS_PER_MS = 1_000_000L
+
+    @JvmStatic
+    @Throws(InterruptedException::class)
+    fun sleepUntil(deadlineNanos: Long) {
+        while (true) {
+            val left = deadlineNanos - System.nanoTime()
+            if (left <= 0L) return
+            if (Thread.interrupted()) throw InterruptedException()
+            if (left > SPIN_NANOS) LockSupport.parkNanos(left - SPIN_NANOS) else Thread.yield()
+        }
+    }
+
+    /** The deadline [ms] milliseconds from now. */
+    @JvmStatic
+    fun after(ms: Long): Long = System.nanoTime() + ms * NANOS_PER_MS
+}
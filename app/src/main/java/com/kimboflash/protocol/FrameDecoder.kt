@@ -0,0 +1,352 @@
+package com.kimboflash.protocol
+
+import com.kimboflash.CommService
+import java.nio.ByteBuffer
+
+/**
+ * Cuts the continuous K-Line byte stream into complete frames, however the
+ * adapter happens to chunk it.
+ *
+ * [Format.KWP2000] frames follow ISO 14230-2: a format byte whose top two
+ * bits say whether target/source addresses follow and whose low six bits
+ * carry the payload length, or 0 when a separate length byte follows the
+ * header; a sum checksum closes the frame. [Format.DS2] frames are
+ * address, total length, payload and an XOR checksum.
+ *
+ * Bytes are copied once, from the transport's buffer into a fixed assembly
+ * buffer; frames are handed to the [Sink] as views into it. A bad checksum
+ * or an impossible header drops one byte and parsing resyncs on the next.
+ * K-Line adapters hear their own transmission, so the bytes registered with
+ * [expectEcho] are swallowed before parsing.
+ */
+class FrameDecoder @JvmOverloads constructor(
+    val format: Format,
+    private val sink: Sink,
+    /**
+     * Longest silence inside a frame before the partial frame is dropped.
+     * ISO 14230 allows 20 ms between bytes; the default leaves room for USB
+     * and Bluetooth delivering a frame in chunks.
+     */
+    private val interByteTimeoutMs: Long = DEFAULT_INTER_BYTE_MS,
+    /** Time source for [interByteTimeoutMs]. */
+    private val clock: Clock = Clock.SYSTEM
+) : CommService.FrameListener {
+    companion object {
+        const val DEFAULT_INTER_BYTE_MS = 50L
+        /** Format byte, two address bytes, length byte, 255 payload bytes and checksum. */
+        const val MAX_FRAME = 260
+        private const val CAPACITY = 1024
+
+        /**
+         * Frames service [sid] with [data] into [out] the way [FrameDecoder]
+         * reads it back; returns the frame length. KWP2000 frames use physical
+         * addressing from [source] to [target], DS2 frames only [target].
+         */
+        @JvmStatic
+        fun encode(format: Format, target: Int, source: Int, sid: Int, data: ByteArray, out: ByteArray): Int {
+            var i = header(format, target, source, 1 + data.size, out)
+            out[i++] = sid.toByte()
+            System.arraycopy(data, 0, out, i, data.size)
+            return checksum(format, out, i + data.size)
+        }
+
+        /** Like the other [encode], for a payload (service id first) already in [payload] at [offset]. */
+        @JvmStatic
+        fun encode(format: Format, target: Int, source: Int, payload: ByteArray, offset: Int, length: Int, out: ByteArray): Int {
+            val i = header(format, target, source, length, out)
+            System.arraycopy(payload, offset, out, i, length)
+            return checksum(format, out, i + length)
+        }
+
+        /** Writes the header for a payload of [len] bytes; returns where the payload goes. */
+        private fun header(format: Format, target: Int, source: Int, len: Int, out: ByteArray): Int {
+            var i = 0
+            when (format) {
+                Format.KWP2000 -> {
+                    // Lengths above 63 need the separate length byte
+                    out[i++] = (if (len <= 0x3F) 0x80 or len else 0x80).toByte()
+                    out[i++] = target.toByte()
+                    out[i++] = source.toByte()
+                    if (len > 0x3F) out[i++] = len.toByte()
+                }
+                Format.DS2 -> {
+                    out[i++] = target.toByte()
+                    out[i++] = (len + 3).toByte()
+                }
+            }
+            return i
+        }
+
+        /** Appends the checksum over the first [n] bytes of [out]; returns the frame length. */
+        private fun checksum(format: Format, out: ByteArray, n: Int): Int {
+            var cs = 0
+            when (format) {
+                Format.KWP2000 -> for (k in 0 until n) cs += out[k].toInt()
+                Format.DS2 -> for (k in 0 until n) cs = cs xor out[k].toInt()
+            }
+            out[n] = cs.toByte()
+            return n + 1
+        }
+    }
+
+    enum class Format { KWP2000, DS2 }
+
+    fun interface Sink {
+        /** [frame] is only valid for the duration of the call. */
+        fun onFrame(frame: Frame)
+    }
+
+    /** One decoded frame: a view into the decoder's buffer. */
+    class Frame internal constructor(
+        /** Buffer holding the frame; only [offset] until offset + [length] belongs to it. */
+        val data: ByteArray
+    ) {
+        var offset = 0
+            internal set
+        /** Whole frame including header and checksum. */
+        var length = 0
+            internal set
+        /** Start of the payload (service id first) in [data]. */
+        var payloadOffset = 0
+            internal set
+        var payloadLength = 0
+            internal set
+        /** Target address (the DS2 address byte); -1 when the header has none. */
+        var target = -1
+            internal set
+        /** Source address; -1 when the header has none. */
+        var source = -1
+            internal set
+
+        /** Service id of the payload, e.g. 0x58 or 0x7F. */
+        val sid: Int get() = data[payloadOffset].toInt() and 0xFF
+
+        val isNegative: Boolean get() = sid == 0x7F
+
+        /** Payload byte [index] (0 is the service id), unsigned. */
+        operator fun get(index: Int): Int = data[payloadOffset + index].toInt() and 0xFF
+
+        /** Copy of the payload for consumers that keep it past the callback. */
+        fun payload(): ByteArray = data.copyOfRange(payloadOffset, payloadOffset + payloadLength)
+    }
+
+    private val buf = ByteArray(CAPACITY)
+    private var start = 0
+    private var end = 0
+    private var lastByteNanos = 0L
+    private val frame = Frame(buf)
+
+    /** Bytes of our own transmission still expected back; guarded by itself. */
+    private val echo = ByteArray(MAX_FRAME)
+    private var echoLength = 0
+    private var echoMatched = 0
+
+    /** When false, [expectEcho] is ignored (adapters that filter their own echo). */
+    @Volatile
+    var suppressEcho = true
+
+    @Volatile
+    var frames = 0L
+        private set
+    @Volatile
+    var checksumErrors = 0L
+        private set
+    /** Bytes thrown away while resyncing or after an inter-byte timeout. */
+    @Volatile
+    var discardedBytes = 0L
+        private set
+
+    /**
+     * Registers [length] bytes about to be written, so their echo is not
+     * taken for a response. Call before the write.
+     */
+    fun expectEcho(data: ByteArray, offset: Int, length: Int) {
+        if (!suppressEcho) return
+        synchronized(echo) {
+            echoLength = minOf(length, echo.size)
+            echoMatched = 0
+            System.arraycopy(data, offset, echo, 0, echoLength)
+        }
+    }
+
+    /** ByteBuffer variant of [expectEcho]; does not move the buffer's position. */
+    fun expectEcho(data: ByteBuffer) {
+        if (!suppressEcho) return
+        synchronized(echo) {
+            echoLength = minOf(data.remaining(), echo.size)
+            echoMatched = 0
+            data.duplicate().get(echo, 0, echoLength)
+        }
+    }
+
+    /** Forgets partial frames and pending echo, e.g. after a reconnect or baud change. */
+    fun reset() {
+        synchronized(echo) {
+            echoLength = 0
+            echoMatched = 0
+        }
+        synchronized(buf) {
+            start = 0
+            end = 0
+        }
+    }
+
+    override fun onReceived(data: ByteBuffer) {
+        synchronized(buf) {
+            expireStale()
+            while (data.hasRemaining()) {
+                if (skipEcho(data.get(data.position()))) {
+                    data.get()
+                    continue
+                }
+                // No echo pending past this point, so the rest goes in bulk
+                val run = minOf(data.remaining(), room())
+                data.get(buf, end, run)
+                end += run
+                drain()
+            }
+        }
+    }
+
+    /** Feeds [length] bytes of [data], for callers holding plain arrays. */
+    fun accept(data: ByteArray, offset: Int, length: Int) {
+        synchronized(buf) {
+            expireStale()
+            var i = offset
+            val stop = offset + length
+            while (i < stop) {
+                if (skipEcho(data[i])) {
+                    i++
+                    continue
+                }
+                val run = minOf(stop - i, room())
+                System.arraycopy(data, i, buf, end, run)
+                end += run
+                i += run
+                drain()
+            }
+        }
+    }
+
+    /**
+     * True when [b] is the next expected echo byte. On a mismatch the echo is
+     * abandoned and the bytes matched so far go back into the stream, as they
+     * were the start of a real frame after all.
+     */
+    private fun skipEcho(b: Byte): Boolean = synchronized(echo) {
+        if (echoMatched >= echoLength) return false
+        if (echo[echoMatched] == b) {
+            echoMatched++
+            return true
+        }
+        room()
+        System.arraycopy(echo, 0, buf, end, echoMatched)
+        end += echoMatched
+        echoLength = 0
+        echoMatched = 0
+        false
+    }
+
+    /** Drops a partial frame the sender has gone quiet on. */
+    private fun expireStale() {
+        val now = clock.nanoTime()
+        if (end > start && now - lastByteNanos > interByteTimeoutMs * 1_000_000L) {
+            discardedBytes += (end - start).toLong()
+            start = 0
+            end = 0
+        }
+        lastByteNanos = now
+    }
+
+    /** Free space at the end of [buf], compacting the partial frame to the front if needed. */
+    private fun room(): Int {
+        if (end + MAX_FRAME > buf.size && start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start)
+            end -= start
+            start = 0
+        }
+        return buf.size - end
+    }
+
+    /** Emits every complete frame in the buffer. */
+    private fun drain() {
+        while (end > start) {
+            val avail = end - start
+            val total = frameLength(start, avail)
+            if (total < 0) break
+            if (total == 0 || (avail >= total && !checksumOk(start, total))) {
+                if (total != 0) checksumErrors++
+                discardedBytes++
+                start++
+                continue
+            }
+            if (avail < total) break
+            emit(start, total)
+            start += total
+        }
+        if (start == end) {
+            start = 0
+            end = 0
+        }
+    }
+
+    /** Total frame length from the header at [s]; -1 while the header is incomplete, 0 if invalid. */
+    private fun frameLength(s: Int, avail: Int): Int = when (format) {
+        Format.KWP2000 -> {
+            val fmt = buf[s].toInt() and 0xFF
+            val header = if (fmt and 0xC0 != 0) 3 else 1
+            val inline = fmt and 0x3F
+            when {
+                inline != 0 -> header + inline + 1
+                avail <= header -> -1
+                else -> {
+                    val len = buf[s + header].toInt() and 0xFF
+                    if (len == 0) 0 else header + 1 + len + 1
+                }
+            }
+        }
+        Format.DS2 -> {
+            if (avail < 2) -1
+            else {
+                val len = buf[s + 1].toInt() and 0xFF
+                // Address, length, at least one payload byte and the checksum
+                if (len < 4) 0 else len
+            }
+        }
+    }
+
+    private fun checksumOk(s: Int, total: Int): Boolean {
+        var cs = 0
+        val last = s + total - 1
+        when (format) {
+            Format.KWP2000 -> for (i in s until last) cs += buf[i].toInt()
+            Format.DS2 -> for (i in s until last) cs = cs xor buf[i].toInt()
+        }
+        return (cs and 0xFF) == (buf[last].toInt() and 0xFF)
+    }
+
+    private fun emit(s: Int, total: Int) {
+        val f = frame
+        f.offset = s
+        f.length = total
+        when (format) {
+            Format.KWP2000 -> {
+                val fmt = buf[s].toInt() and 0xFF
+                val addressed = fmt and 0xC0 != 0
+                val header = (if (addressed) 3 else 1) + (if (fmt and 0x3F == 0) 1 else 0)
+                f.target = if (addressed) buf[s + 1].toInt() and 0xFF else -1
+                f.source = if (addressed) buf[s + 2].toInt() and 0xFF else -1
+                f.payloadOffset = s + header
+                f.payloadLength = total - header - 1
+            }
+            Format.DS2 -> {
+                f.target = buf[s].toInt() and 0xFF
+                f.source = -1
+                f.payloadOffset = s + 2
+                f.payloadLength = total - 3
+            }
+        }
+        frames++
+        sink.onFrame(f)
+    }
+}
@@ -0,0 +1,118 @@
+package com.kimboflash.protocol
+
+import com.kimboflash.CommService
+import java.nio.ByteBuffer
+
+/**
+ * Blocking request/answer exchange for code that runs one request at a time
+ * on its own thread, such as flashing and ROM reads.
+ *
+ * Requests are framed with [FrameDecoder.encode] and registered as echo;
+ * everything read back goes through a [FrameDecoder], so an answer split
+ * over several adapter reads, or arriving in the same read as the next one,
+ * still comes out as exactly one payload. KWP2000 frames not addressed to
+ * the tester are skipped, and "response pending" (0x7F xx 0x78) extends the
+ * wait instead of counting as the answer.
+ *
+ * Every exchange is timed per service id into [stats], with the frame
+ * lengths as they cross the line.
+ */
+class FramedChannel @JvmOverloads constructor(
+    private val svc: CommService,
+    val format: FrameDecoder.Format = FrameDecoder.Format.KWP2000,
+    private val target: Int = ECU_ADDRESS,
+    private val source: Int = TESTER_ADDRESS,
+    private val stats: BusStats = BusStats.DEFAULT
+) : FrameDecoder.Sink {
+    companion object {
+        const val ECU_ADDRESS = 0x12
+        const val TESTER_ADDRESS = 0xF1
+        /** Extra wait granted by each "response pending" (ISO 14230 P2* max). */
+        private const val PENDING_MS = 5000L
+    }
+
+    private val decoder = FrameDecoder(format, this)
+    private val tx = ByteArray(FrameDecoder.MAX_FRAME)
+    private val body = ByteArray(FrameDecoder.MAX_FRAME)
+    private val rx = ByteBuffer.allocate(FrameDecoder.MAX_FRAME * 2)
+    /** Payloads decoded but not yet returned by [receive]. */
+    private val answers = ArrayDeque<ByteArray>()
+
+    /** Line speed the frames go out at, for the utilisation figures. */
+    @Volatile
+    var baud = 10400
+
+    private var requestSid = 0
+    private var requestNanos = 0L
+
+    /** Frames and sends [payload] (service id first). */
+    fun send(payload: ByteArray) {
+        send(payload, 0, payload.size)
+    }
+
+    /** Frames and sends the remaining bytes of [payload], e.g. a prepared transfer slot; the position is not moved. */
+    fun send(payload: ByteBuffer) {
+        val n = payload.remaining()
+        payload.duplicate().get(body, 0, n)
+        send(body, 0, n)
+    }
+
+    private fun send(payload: ByteArray, offset: Int, length: Int) {
+        val n = FrameDecoder.encode(format, target, source, payload, offset, length, tx)
+        // Whatever is left over belongs to an earlier exchange
+        answers.clear()
+        decoder.expectEcho(tx, 0, n)
+        requestSid = payload[offset].toInt() and 0xFF
+        requestNanos = System.nanoTime()
+        if (!svc.write(ByteBuffer.wrap(tx, 0, n))) throw RuntimeException("Write failed")
+        stats.frameSent(n, baud)
+    }
+
+    /** Payload of the next answer (service id first); empty after [timeoutMs] without one. */
+    @JvmOverloads
+    fun receive(timeoutMs: Long = CommService.DEFAULT_TIMEOUT_MS): ByteArray {
+        var deadline = System.nanoTime() + timeoutMs * 1_000_000L
+        while (true) {
+            val resp = answers.removeFirstOrNull()
+            if (resp != null) {
+                if (resp.size >= 3 && resp[0].toInt() and 0xFF == 0x7F && resp[2].toInt() and 0xFF == 0x78) {
+                    deadline = System.nanoTime() + PENDING_MS * 1_000_000L
+                    continue
+                }
+                stats.response(requestSid, System.nanoTime() - requestNanos)
+                if (resp.size >= 3 && resp[0].toInt() and 0xFF == 0x7F) stats.negativeResponse(resp[2].toInt())
+                return resp
+            }
+            val left = (deadline - System.nanoTime()) / 1_000_000L
+            if (left <= 0 || !svc.isOpen) break
+            rx.clear()
+            if (svc.read(rx, left) == 0) continue
+            rx.flip()
+            decoder.onReceived(rx)
+        }
+        stats.timeout()
+        return ByteArray(0)
+    }
+
+    /** [send] then [receive]. */
+    @JvmOverloads
+    fun request(payload: ByteArray, timeoutMs: Long = CommService.DEFAULT_TIMEOUT_MS): ByteArray {
+        send(payload)
+        return receive(timeoutMs)
+    }
+
+    /** Switches the adapter's line speed; partial frames from the old speed are dropped. */
+    fun setBaudRate(baud: Int): Boolean {
+        decoder.reset()
+        answers.clear()
+        if (!svc.setBaudRate(baud)) return false
+        this.baud = baud
+        return true
+    }
+
+    override fun onFrame(frame: FrameDecoder.Frame) {
+        if (frame.source != -1 && frame.target != source) return
+        stats.frameReceived(frame.length, baud)
+        answers.addLast(frame.payload())
+    }
+}
@@ -0,0 +1,292 @@
+package com.kimboflash.protocol
+
+import android.util.Log
+import com.kimboflash.CommService
+import java.nio.ByteBuffer
+
+/**
+ * Wakes an ECU on the K-Line with the ISO 14230-2 fast init or the ISO
+ * 9141 / 14230 5-baud init.
+ *
+ * Line edges are scheduled on absolute [System.nanoTime] deadlines with
+ * [Deadline]'s park/spin wait, so one late edge does not push back the
+ * rest. Each edge is timestamped around the line-control call; the cost of
+ * that call (a USB control transfer, typically 1-2 ms) is measured and
+ * later edges are issued that much early. Failed attempts are retried with
+ * the refined lead and, on the 5-baud path, at 9600 baud when the sync byte
+ * came back garbled.
+ *
+ * Adapters without line control fall back to UART tricks: fast init sends
+ * 0x00 at 360 baud (nine low bits, 25 ms) and 5-baud init writes the
+ * address at 5 baud. The transport must be in raw read mode (no frame
+ * listener) for the duration.
+ */
+class KLineInit(private val svc: CommService) {
+    companion object {
+        private const val TAG = "KLineInit"
+        const val KLINE_BAUD = 10400
+        /** Some ISO 9141 ECUs answer the 5-baud address at 9600 instead. */
+        private const val ALT_BAUD = 9600
+        const val DEFAULT_ATTEMPTS = 3
+
+        private const val US = 1_000L
+        private const val MS = 1_000_000L
+        /** W5 / idle time before any init. */
+        private const val IDLE_NANOS = 300 * MS
+        /** Fast init TiniL and TWuP. */
+        private const val WAKEUP_LOW_NANOS = 25 * MS
+        private const val WAKEUP_NANOS = 50 * MS
+        private const val FIVE_BAUD_BIT_NANOS = 200 * MS
+        /** W1max: sync byte after the address. */
+        private const val W1_NANOS = 300 * MS
+        /** W2max/W3max: between sync and key bytes. */
+        private const val W2_NANOS = 20 * MS
+        /** W4: before and after the inverted key byte (25-50 ms). */
+        private const val W4_NANOS = 30 * MS
+        private const val W4_MAX_NANOS = 50 * MS
+        /** Extra allowance on every receive deadline for adapter buffering. */
+        private const val ADAPTER_SLACK_NANOS = 30 * MS
+        /** P2max plus slack for the StartCommunication response. */
+        private const val START_COMM_TIMEOUT_NANOS = 50 * MS + ADAPTER_SLACK_NANOS
+
+        /** 0x00 at this rate keeps the line low for 9 bits, i.e. 25 ms. */
+        private const val BREAK_BAUD = 360
+        private const val START_COMMUNICATION = 0x81
+        private const val SYNC = 0x55
+    }
+
+    enum class Method { FAST, FIVE_BAUD }
+
+    class Result(
+        val success: Boolean,
+        val method: Method,
+        val attempts: Int,
+        /** KB1 in the low byte, KB2 in the next; -1 if none were received. */
+        val keyBytes: Int,
+        val baud: Int,
+        /** Measured wake-up low pulse (fast init) or first low run of the address (5-baud). */
+        val lowMicros: Long,
+        /** Largest distance of an edge from its scheduled time. */
+        val maxEdgeErrorMicros: Long,
+        val elapsedMs: Long,
+        val message: String
+    ) {
+        override fun toString() =
+            "$method ${if (success) "ok" else "failed"} after $attempts attempt(s) in $elapsedMs ms at $baud baud, " +
+                "low $lowMicros us, edge error $maxEdgeErrorMicros us: $message"
+    }
+
+    /** Measured half-cost of one line-control call; edges are issued this much early. */
+    @Volatile
+    var edgeLeadNanos = 0L
+        private set
+
+    private val rx = ByteBuffer.allocate(256)
+    private val tx = ByteArray(FrameDecoder.MAX_FRAME)
+    private val one = ByteArray(1)
+    private var callNanos = 0L
+    private var calls = 0
+    private var maxEdgeError = 0L
+
+    /** Payload of the last StartCommunication answer, copied out of the decoder. */
+    private val reply = ByteArray(8)
+    private var replyLength = -1
+    private val decoder = FrameDecoder(FrameDecoder.Format.KWP2000, FrameDecoder.Sink { f ->
+        if (replyLength < 0 && (f.sid == START_COMMUNICATION + 0x40 || (f.isNegative && f.payloadLength >= 2 && f[1] == START_COMMUNICATION))) {
+            replyLength = minOf(f.payloadLength, reply.size)
+            System.arraycopy(f.data, f.payloadOffset, reply, 0, replyLength)
+        }
+    })
+
+    /**
+     * Fast init followed by StartCommunication from [source] to [target].
+     * Success needs the positive response (0xC1 with key bytes).
+     */
+    @JvmOverloads
+    fun fastInit(target: Int, source: Int = RequestScheduler.TESTER_ADDRESS, attempts: Int = DEFAULT_ATTEMPTS): Result {
+        val t0 = System.nanoTime()
+        val lineControl = svc.setKLineLow(false)
+        var lowNanos = 0L
+        var message = "no response"
+        for (attempt in 1..attempts) {
+            startAttempt()
+            svc.setBaudRate(KLINE_BAUD)
+            Deadline.sleepUntil(System.nanoTime() + IDLE_NANOS)
+            flushInput()
+
+            val fall = System.nanoTime()
+            if (lineControl) {
+                val down = drive(true, fall)
+                val up = drive(false, down + WAKEUP_LOW_NANOS)
+                lowNanos = up - down
+                Deadline.sleepUntil(down + WAKEUP_NANOS)
+            } else {
+                svc.setBaudRate(BREAK_BAUD)
+                one[0] = 0
+                svc.write(ByteBuffer.wrap(one))
+                // Start bit, eight zero bits and the stop bit, then back to the line speed
+                Deadline.sleepUntil(fall + 10 * 1_000_000_000L / BREAK_BAUD)
+                svc.setBaudRate(KLINE_BAUD)
+                lowNanos = WAKEUP_LOW_NANOS
+                Deadline.sleepUntil(fall + WAKEUP_NANOS)
+            }
+            finishAttempt()
+            // The wake-up pattern reads back as a break or a zero byte
+            flushInput()
+
+            val n = FrameDecoder.encode(FrameDecoder.Format.KWP2000, target, source, START_COMMUNICATION, ByteArray(0), tx)
+            val frame = ByteBuffer.wrap(tx, 0, n)
+            decoder.reset()
+            decoder.expectEcho(frame)
+            replyLength = -1
+            svc.write(frame)
+            val deadline = System.nanoTime() + n * 10L * 1_000_000_000L / KLINE_BAUD + START_COMM_TIMEOUT_NANOS
+            while (replyLength < 0 && readInto(deadline)) {
+                decoder.onReceived(rx)
+            }
+            if (replyLength >= 1 && reply[0].toInt() and 0xFF == START_COMMUNICATION + 0x40) {
+                val kb = if (replyLength >= 3) (reply[1].toInt() and 0xFF) or ((reply[2].toInt() and 0xFF) shl 8) else -1
+                return result(true, Method.FAST, attempt, kb, KLINE_BAUD, lowNanos, t0, "StartCommunication accepted")
+            }
+            message = if (replyLength > 0) "StartCommunication rejected" else "no response"
+            Log.d(TAG, "Fast init attempt $attempt: $message, low ${lowNanos / US} us, lead ${edgeLeadNanos / US} us")
+        }
+        return result(false, Method.FAST, attempts, -1, KLINE_BAUD, lowNanos, t0, message)
+    }
+
+    /**
+     * 5-baud init of [address]: the address at 5 baud, then sync (0x55) and
+     * key bytes from the ECU, the inverted KB2 from us and the inverted
+     * address from the ECU.
+     */
+    @JvmOverloads
+    fun fiveBaudInit(address: Int, attempts: Int = DEFAULT_ATTEMPTS): Result {
+        val t0 = System.nanoTime()
+        val lineControl = svc.setKLineLow(false)
+        var baud = KLINE_BAUD
+        var startBitNanos = 0L
+        var message = "no sync byte"
+        for (attempt in 1..attempts) {
+            startAttempt()
+            svc.setBaudRate(baud)
+            Deadline.sleepUntil(System.nanoTime() + IDLE_NANOS)
+
+            val end: Long
+            startBitNanos = 0L
+            if (lineControl) {
+                // Start bit, eight data bits LSB first (0 = low), stop bit
+                val start = System.nanoTime()
+                var prevEdge = drive(true, start)
+                var low = true
+                for (bit in 1..9) {
+                    val wantLow = bit <= 8 && (address shr (bit - 1)) and 1 == 0
+                    if (wantLow == low) continue
+                    val edge = drive(wantLow, start + bit * FIVE_BAUD_BIT_NANOS)
+                    if (low && startBitNanos == 0L) startBitNanos = edge - prevEdge
+                    prevEdge = edge
+                    low = wantLow
+                }
+                if (startBitNanos == 0L) startBitNanos = prevEdge - start
+                end = start + 10 * FIVE_BAUD_BIT_NANOS
+            } else {
+                svc.setBaudRate(5)
+                one[0] = address.toByte()
+                val start = System.nanoTime()
+                svc.write(ByteBuffer.wrap(one))
+                startBitNanos = FIVE_BAUD_BIT_NANOS
+                end = start + 10 * FIVE_BAUD_BIT_NANOS
+                Deadline.sleepUntil(end)
+                svc.setBaudRate(baud)
+            }
+            finishAttempt()
+            flushInput()
+
+            val sync = readByte(end + W1_NANOS + ADAPTER_SLACK_NANOS)
+            if (sync != SYNC) {
+                message = if (sync < 0) "no sync byte" else "sync byte 0x%02X at $baud baud".format(sync)
+                Log.d(TAG, "5-baud attempt $attempt: $message, first low ${startBitNanos / US} us")
+                // A garbled sync usually means the ECU talks at the other common rate
+                if (sync >= 0) baud = if (baud == KLINE_BAUD) ALT_BAUD else KLINE_BAUD
+                continue
+            }
+            val kb1 = readByte(System.nanoTime() + W2_NANOS + ADAPTER_SLACK_NANOS)
+            val kb2 = if (kb1 < 0) -1 else readByte(System.nanoTime() + W2_NANOS + ADAPTER_SLACK_NANOS)
+            if (kb2 < 0) {
+                message = "key bytes missing"
+                continue
+            }
+            val kb2At = System.nanoTime()
+            Deadline.sleepUntil(kb2At + W4_NANOS)
+            one[0] = kb2.inv().toByte()
+            svc.write(ByteBuffer.wrap(one))
+            var answer = readByte(System.nanoTime() + W4_MAX_NANOS + ADAPTER_SLACK_NANOS)
+            // Our own inverted KB2 comes back first on echoing adapters
+            if (answer == one[0].toInt() and 0xFF) answer = readByte(System.nanoTime() + W4_MAX_NANOS + ADAPTER_SLACK_NANOS)
+            if (answer == address.inv() and 0xFF) {
+                return result(true, Method.FIVE_BAUD, attempt, kb1 or (kb2 shl 8), baud, startBitNanos, t0, "key bytes %02X %02X".format(kb1, kb2))
+            }
+            message = if (answer < 0) "no inverted address" else "inverted address 0x%02X".format(answer)
+            Log.d(TAG, "5-baud attempt $attempt: $message")
+        }
+        return result(false, Method.FIVE_BAUD, attempts, -1, baud, startBitNanos, t0, message)
+    }
+
+    /**
+     * Drives the line at [at] (early by [edgeLeadNanos]) and returns when the
+     * edge happened: the midpoint of the control call.
+     */
+    private fun drive(low: Boolean, at: Long): Long {
+        Deadline.sleepUntil(at - edgeLeadNanos)
+        val before = System.nanoTime()
+        svc.setKLineLow(low)
+        val after = System.nanoTime()
+        callNanos += after - before
+        calls++
+        val edge = (before + after) / 2
+        maxEdgeError = maxOf(maxEdgeError, Math.abs(edge - at))
+        return edge
+    }
+
+    private fun startAttempt() {
+        callNanos = 0L
+        calls = 0
+        maxEdgeError = 0L
+    }
+
+    /** Refines the lead from this attempt's control calls. */
+    private fun finishAttempt() {
+        if (calls > 0) edgeLeadNanos = callNanos / calls / 2
+    }
+
+    private fun result(ok: Boolean, method: Method, attempts: Int, kb: Int, baud: Int, lowNanos: Long, t0: Long, message: String): Result {
+        val r = Result(ok, method, attempts, kb, baud, lowNanos / US, maxEdgeError / US, (System.nanoTime() - t0) / MS, message)
+        Log.i(TAG, r.toString())
+        return r
+    }
+
+    /** Discards whatever the transport has buffered (line noise, our own edges). */
+    private fun flushInput() {
+        rx.clear()
+        while (svc.read(rx, 0) > 0) rx.clear()
+        rx.clear()
+        rx.limit(0)
+    }
+
+    /** Refills [rx] for reading; false once [deadline] passes without data. */
+    private fun readInto(deadline: Long): Boolean {
+        val left = (deadline - System.nanoTime()) / MS
+        if (left <= 0L) return false
+        rx.clear()
+        val n = svc.read(rx, left)
+        rx.flip()
+        return n > 0 || System.nanoTime() < deadline
+    }
+
+    /** Next received byte, or -1 once [deadline] passes. */
+    private fun readByte(deadline: Long): Int {
+        while (!rx.hasRemaining()) {
+            if (!readInto(deadline)) return -1
+        }
+        return rx.get().toInt() and 0xFF
+    }
+}
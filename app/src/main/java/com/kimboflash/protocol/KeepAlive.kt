@@ -0,0 +1,114 @@
+package com.kimboflash.protocol
+
+import android.util.Log
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Keeps a diagnostic or programming session open with TesterPresent (0x3E).
+ *
+ * The ECU falls back to its default session once the bus has been quiet for
+ * S3, so a TesterPresent goes out only when nothing else has been exchanged
+ * for [fraction] of it; any real request already resets the ECU's timer.
+ * Keepalives are queued on the [RequestScheduler] like every other request
+ * and only while it is idle, so they never cut into an exchange.
+ *
+ * TesterPresent is a KWP2000 service, so the scheduler must run in
+ * [FrameDecoder.Format.KWP2000]. Only a positive 0x7E, or a negative answer
+ * other than serviceNotSupported, shows that the session is still open.
+ */
+class KeepAlive @JvmOverloads constructor(
+    private val scheduler: RequestScheduler,
+    /** ECU session timeout; ISO 14230 P3max / S3 is 5 s. */
+    s3Ms: Long = DEFAULT_S3_MS,
+    fraction: Double = DEFAULT_FRACTION,
+    private val listener: Listener? = null
+) : AutoCloseable {
+    companion object {
+        private const val TAG = "KeepAlive"
+        const val DEFAULT_S3_MS = 5000L
+        const val DEFAULT_FRACTION = 0.4
+        private const val TESTER_PRESENT = 0x3E
+        /** serviceNotSupported: an ECU back in its default session may answer this. */
+        private const val NRC_SERVICE_NOT_SUPPORTED = 0x11
+        /** Re-check interval while other requests keep the bus busy. */
+        private const val BUSY_POLL_NANOS = 100 * Deadline.NANOS_PER_MS
+    }
+
+    fun interface Listener {
+        /** The ECU stopped answering TesterPresent; the session has to be re-initialised. */
+        fun onSessionLost(error: Throwable)
+    }
+
+    private val intervalNanos = (s3Ms * fraction).toLong() * Deadline.NANOS_PER_MS
+
+    @Volatile
+    private var running = true
+
+    @Volatile
+    var sent = 0L
+        private set
+    @Volatile
+    var failures = 0L
+        private set
+
+    private val thread: Thread
+
+    init {
+        require(fraction > 0.0 && fraction < 1.0) { "Keepalive fraction $fraction must be below 1" }
+        require(scheduler.format == FrameDecoder.Format.KWP2000) { "TesterPresent needs a KWP2000 session, not ${scheduler.format}" }
+        val t = Thread({ run() }, "kline-keepalive")
+        t.isDaemon = true
+        thread = t
+        t.start()
+    }
+
+    private fun run() {
+        while (running) {
+            val left = scheduler.lastActivityNanos + intervalNanos - System.nanoTime()
+            if (left > 0L) {
+                LockSupport.parkNanos(this, left)
+                continue
+            }
+            // Real traffic in the queue refreshes the ECU's timer once it runs
+            if (scheduler.pending > 0) {
+                LockSupport.parkNanos(this, BUSY_POLL_NANOS)
+                continue
+            }
+            val response = scheduler.submit(TESTER_PRESENT)
+            sent++
+            try {
+                response.get()
+            } catch (_: InterruptedException) {
+                break
+            } catch (e: ExecutionException) {
+                when (val cause = e.cause) {
+                    // Any other refusal still comes from the open session
+                    is NegativeResponseException -> if (cause.code == NRC_SERVICE_NOT_SUPPORTED) {
+                        failures++
+                        Log.w(TAG, "TesterPresent not supported, session closed")
+                        listener?.onSessionLost(cause)
+                    }
+                    is IOException -> {
+                        Log.d(TAG, "Scheduler gone, stopping keepalive")
+                        break
+                    }
+                    else -> {
+                        failures++
+                        Log.w(TAG, "TesterPresent unanswered", cause)
+                        listener?.onSessionLost(cause ?: e)
+                    }
+                }
+            }
+        }
+        running = false
+    }
+
+    val isRunning: Boolean get() = running
+
+    override fun close() {
+        running = false
+        thread.interrupt()
+    }
+}
@@ -0,0 +1,101 @@
+package com.kimboflash.protocol
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free latency histogram with a fixed relative error, in the manner
+ * of HdrHistogram.
+ *
+ * Values are counted in microseconds. Below [SUB_COUNT] µs every value has
+ * its own bucket; above, each power of two is split into [SUB_COUNT] / 2
+ * buckets, so a bucket is never wider than about 3% of its value and
+ * percentiles keep that precision from 1 µs up to [MAX_MICROS]. Recording
+ * is one increment of a preallocated counter plus the sum and maximum,
+ * from any thread, without locks or allocation.
+ */
+class LatencyHistogram {
+    companion object {
+        private const val SUB_BITS = 6
+        private const val SUB_COUNT = 1 shl SUB_BITS
+        private const val SUB_HALF = SUB_COUNT / 2
+        /** Longest latency told apart (about 18 minutes); longer ones count as this. */
+        const val MAX_MICROS = (1L shl 30) - 1
+        private val BUCKETS = index(MAX_MICROS) + 1
+
+        internal fun index(micros: Long): Int {
+            if (micros < SUB_COUNT) return micros.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1)
+            return (shift * SUB_HALF + (micros ushr shift)).toInt()
+        }
+
+        /** Smallest value counted in bucket [index]. */
+        internal fun lowerBound(index: Int): Long {
+            if (index < SUB_COUNT) return index.toLong()
+            val shift = index / SUB_HALF - 1
+            return (index % SUB_HALF + SUB_HALF).toLong() shl shift
+        }
+    }
+
+    /** Count, mean and percentiles at one point in time, in microseconds. */
+    class Summary(
+        val count: Long,
+        val meanMicros: Long,
+        val p50Micros: Long,
+        val p90Micros: Long,
+        val p99Micros: Long,
+        val maxMicros: Long
+    )
+
+    private val counts = AtomicLongArray(BUCKETS)
+    private val total = AtomicLong()
+    private val sum = AtomicLong()
+    private val max = AtomicLong()
+
+    fun record(nanos: Long) {
+        val micros = (nanos / 1000L).coerceIn(0L, MAX_MICROS)
+        counts.incrementAndGet(index(micros))
+        total.incrementAndGet()
+        sum.addAndGet(micros)
+        while (true) {
+            val m = max.get()
+            if (micros <= m || max.compareAndSet(m, micros)) break
+        }
+    }
+
+    val count: Long get() = total.get()
+
+    /**
+     * Highest value of the bucket holding the [percentile]th value, in µs; 0 when
+     * empty. Buckets are read one by one, so values recorded meanwhile may or may
+     * not be included.
+     */
+    fun percentileMicros(percentile: Double): Long {
+        var n = 0L
+        for (i in 0 until BUCKETS) n += counts.get(i)
+        if (n == 0L) return 0L
+        val rank = maxOf(1L, Math.ceil(percentile / 100.0 * n).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += counts.get(i)
+            if (seen >= rank) return minOf(lowerBound(i + 1) - 1, max.get())
+        }
+        return max.get()
+    }
+
+    fun summary(): Summary {
+        val n = total.get()
+        return Summary(
+            n, if (n == 0L) 0L else sum.get() / n,
+            percentileMicros(50.0), percentileMicros(90.0), percentileMicros(99.0), max.get()
+        )
+    }
+
+    /** Clears all counts; values recorded concurrently may survive. */
+    fun reset() {
+        for (i in 0 until BUCKETS) counts.set(i, 0L)
+        total.set(0L)
+        sum.set(0L)
+        max.set(0L)
+    }
+}
@@ -0,0 +1,7 @@
+package com.kimboflash.protocol
+
+import java.io.IOException
+
+/** The ECU answered service [sid] with 0x7F and response code [code], or with DS2 status [code]. */
+class NegativeResponseException(val sid: Int, val code: Int) :
+    IOException("Service %02X rejected with code %02X".format(sid, code))
@@ -0,0 +1,281 @@
+package com.kimboflash.protocol
+
+import android.util.Log
+import com.kimboflash.CommService
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Runs KWP2000 requests over a K-Line transport one at a time, matching
+ * each response to its request.
+ *
+ * K-Line is half duplex and the ECU answers one request at a time, so a
+ * single worker thread frames each queued request, waits out P3min since
+ * the bus last went quiet, writes it and waits up to P2max for the answer.
+ * A frame answers the request in flight when its service id is the request
+ * id + 0x40, or 0x7F followed by the request id. "Response pending" (0x78)
+ * stretches the wait to P2*max, "busy" (0x21) and silence are retried, and
+ * anything else fails the request's [ResponseFuture]. DS2 answers carry no
+ * service id: any frame from the ECU answers the request in flight, with a
+ * status byte of 0xA0 (acknowledged), 0xA1 (busy) or a rejection.
+ *
+ * The scheduler owns the transport's frame listener while it runs; raw
+ * bytes are still passed on to [tap], e.g. for a UI log. Frames, retries,
+ * negative responses and each answer's latency also go to [stats].
+ */
+class RequestScheduler @JvmOverloads constructor(
+    private val svc: CommService,
+    val format: FrameDecoder.Format,
+    /** ECU address: KWP2000 target byte, or the DS2 address byte. */
+    private val target: Int,
+    private val source: Int = TESTER_ADDRESS,
+    private val tap: CommService.FrameListener? = null,
+    private val stats: BusStats = BusStats.DEFAULT
+) : CommService.FrameListener, AutoCloseable {
+    companion object {
+        private const val TAG = "RequestScheduler"
+        const val TESTER_ADDRESS = 0xF1
+        /** Extra attempts after a timeout or busy answer. */
+        private const val RETRIES = 2
+        private const val NRC_BUSY = 0x21
+        private const val NRC_PENDING = 0x78
+        private const val DS2_ACK = 0xA0
+        private const val DS2_BUSY = 0xA1
+        private val EMPTY = ByteArray(0)
+    }
+
+    /** ISO 14230-2 timing in milliseconds; [DEFAULT] is the standard's default set. */
+    class Timing(
+        /** Longest wait for the start of a response after the request. */
+        val p2MaxMs: Long,
+        /** P2*max: longest wait after a "response pending" answer. */
+        val p2ExtendedMs: Long,
+        /** Shortest gap between a response and the next request. */
+        val p3MinMs: Long,
+        /** Added to P2max for the adapter's own delay (USB/Bluetooth/TCP bridging). */
+        val latencyMs: Long
+    ) {
+        companion object {
+            @JvmField
+            val DEFAULT = Timing(50, 5000, 55, 20)
+        }
+    }
+
+    @Volatile
+    var timing = Timing.DEFAULT
+    /** Current line speed, to allow for the time the request takes on the wire. */
+    @Volatile
+    var baud = 10400
+    /** Start, data, parity and stop bits per byte at [baud]; 11 for DS2 logging at 8E1. */
+    @Volatile
+    var bitsPerByte = 10
+
+    private val decoder = FrameDecoder(format, FrameDecoder.Sink { onFrame(it) })
+    private val queue = LinkedBlockingQueue<ResponseFuture>()
+    private val tx = ByteArray(FrameDecoder.MAX_FRAME)
+    private val txView = ByteBuffer.wrap(tx)
+
+    @Volatile
+    private var inFlight: ResponseFuture? = null
+    @Volatile
+    private var responseDeadline = 0L
+    @Volatile
+    private var busy = false
+    @Volatile
+    private var running = true
+
+    /** [System.nanoTime] at which the bus last went quiet (end of a response or timeout). */
+    @Volatile
+    var lastActivityNanos = System.nanoTime()
+        private set
+
+    @Volatile
+    var requests = 0L
+        private set
+    @Volatile
+    var timeouts = 0L
+        private set
+    @Volatile
+    var retries = 0L
+        private set
+    @Volatile
+    var negativeResponses = 0L
+        private set
+    /** Frames that answered nothing in flight, e.g. late answers to a timed-out request. */
+    @Volatile
+    var unmatchedFrames = 0L
+        private set
+
+    private val worker: Thread
+
+    init {
+        svc.setFrameListener(this)
+        val t = Thread({ run() }, "kline-scheduler")
+        t.isDaemon = true
+        worker = t
+        t.start()
+    }
+
+    /** Queues service [sid] with [data]; the future completes with the positive response payload. */
+    @JvmOverloads
+    fun submit(sid: Int, data: ByteArray = EMPTY): ResponseFuture {
+        require(data.size + 1 <= maxPayload()) { "Request of ${data.size + 1} bytes does not fit one frame" }
+        val f = ResponseFuture(sid and 0xFF, data)
+        queue.add(f)
+        if (!running && queue.remove(f)) f.fail(IOException("Scheduler closed"))
+        return f
+    }
+
+    /** True while a request is on the line or waiting for its answer. */
+    val isBusy: Boolean get() = inFlight != null
+
+    /** Requests queued or in flight. */
+    val pending: Int get() = queue.size + (if (inFlight != null) 1 else 0)
+
+    override fun onReceived(data: ByteBuffer) {
+        val pos = data.position()
+        decoder.onReceived(data)
+        if (tap != null) {
+            data.position(pos)
+            tap.onReceived(data)
+        }
+    }
+
+    private fun onFrame(frame: FrameDecoder.Frame) {
+        stats.frameReceived(frame.length, baud, bitsPerByte)
+        val f = inFlight
+        if (f == null) {
+            unmatchedFrames++
+            return
+        }
+        if (format == FrameDecoder.Format.DS2) {
+            onDs2Frame(f, frame)
+            return
+        }
+        when {
+            frame.isNegative && frame.payloadLength >= 3 && frame[1] == f.sid -> when (frame[2]) {
+                NRC_PENDING -> {
+                    responseDeadline = Deadline.after(timing.p2ExtendedMs)
+                    return
+                }
+                NRC_BUSY -> busy = true
+                else -> {
+                    negativeResponses++
+                    stats.negativeResponse(frame[2])
+                    f.fail(NegativeResponseException(f.sid, frame[2]))
+                }
+            }
+            frame.sid == (f.sid + 0x40) and 0xFF -> f.complete(frame.payload())
+            else -> {
+                unmatchedFrames++
+                return
+            }
+        }
+        LockSupport.unpark(worker)
+    }
+
+    private fun onDs2Frame(f: ResponseFuture, frame: FrameDecoder.Frame) {
+        if (frame.target != target) {
+            unmatchedFrames++
+            return
+        }
+        when (frame.sid) {
+            DS2_ACK -> f.complete(frame.payload())
+            DS2_BUSY -> busy = true
+            else -> {
+                negativeResponses++
+                stats.negativeResponse(frame.sid)
+                f.fail(NegativeResponseException(f.sid, frame.sid))
+            }
+        }
+        LockSupport.unpark(worker)
+    }
+
+    private fun run() {
+        try {
+            while (running) {
+                val f = queue.take()
+                // Cancelled while queued
+                if (f.isDone) continue
+                execute(f)
+            }
+        } catch (_: InterruptedException) {
+        }
+        inFlight?.fail(IOException("Scheduler closed"))
+        while (true) {
+            val f = queue.poll() ?: break
+            f.fail(IOException("Scheduler closed"))
+        }
+    }
+
+    private fun execute(f: ResponseFuture) {
+        var attempt = 0
+        while (true) {
+            Deadline.sleepUntil(lastActivityNanos + timing.p3MinMs * Deadline.NANOS_PER_MS)
+            val n = FrameDecoder.encode(format, target, source, f.sid, f.data, tx)
+            txView.clear()
+            txView.limit(n)
+            decoder.expectEcho(txView)
+            busy = false
+            // P2 runs from the last request byte on the wire
+            responseDeadline = System.nanoTime() + wireNanos(n) + (timing.p2MaxMs + timing.latencyMs) * Deadline.NANOS_PER_MS
+            inFlight = f
+            val sentAt = System.nanoTime()
+            if (!svc.write(txView)) {
+                inFlight = null
+                lastActivityNanos = System.nanoTime()
+                f.fail(IOException("Write failed"))
+                return
+            }
+            requests++
+            stats.frameSent(n, baud, bitsPerByte)
+
+            while (!f.isDone && !busy) {
+                val left = responseDeadline - System.nanoTime()
+                if (left <= 0L) break
+                LockSupport.parkNanos(this, left)
+                if (!running) throw InterruptedException()
+            }
+            inFlight = null
+            lastActivityNanos = System.nanoTime()
+            if (f.isDone) {
+                if (!f.isCancelled) stats.response(f.sid, lastActivityNanos - sentAt)
+                return
+            }
+
+            if (attempt++ >= RETRIES) {
+                if (busy) {
+                    negativeResponses++
+                    stats.negativeResponse(NRC_BUSY)
+                    f.fail(NegativeResponseException(f.sid, NRC_BUSY))
+                } else {
+                    timeouts++
+                    stats.timeout()
+                    f.fail(TimeoutException("No response to service %02X".format(f.sid)))
+                }
+                return
+            }
+            retries++
+            stats.retry()
+            Log.d(TAG, "Retrying service %02X (%s)".format(f.sid, if (busy) "busy" else "timeout"))
+        }
+    }
+
+    private fun wireNanos(bytes: Int): Long = bytes * bitsPerByte * 1_000_000_000L / baud
+
+    private fun maxPayload(): Int = when (format) {
+        FrameDecoder.Format.KWP2000 -> 255
+        FrameDecoder.Format.DS2 -> 252
+    }
+
+    /** Fails everything pending and hands the transport back to [tap]. */
+    override fun close() {
+        if (!running) return
+        running = false
+        worker.interrupt()
+        svc.setFrameListener(tap)
+    }
+}
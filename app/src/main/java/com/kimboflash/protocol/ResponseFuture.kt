@@ -0,0 +1,90 @@
+package com.kimboflash.protocol
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Pending answer to one request queued on a [RequestScheduler].
+ *
+ * Stands in for CompletableFuture, which needs API 24: besides blocking
+ * [get], callers can register a [Listener] that runs once the response
+ * payload (positive service id first) or the failure is known. Failures are
+ * [NegativeResponseException], [TimeoutException] or an IOException from
+ * the transport.
+ */
+class ResponseFuture internal constructor(
+    /** Service id of the request. */
+    val sid: Int,
+    internal val data: ByteArray
+) : Future<ByteArray> {
+    fun interface Listener {
+        /** Exactly one of [response] and [error] is non-null; runs on the protocol or scheduler thread. */
+        fun onComplete(response: ByteArray?, error: Throwable?)
+    }
+
+    private val done = CountDownLatch(1)
+    private var listeners: ArrayList<Listener>? = null
+    @Volatile
+    private var result: ByteArray? = null
+    @Volatile
+    private var error: Throwable? = null
+
+    /** Runs [listener] when this completes, or right away if it already has. */
+    fun whenComplete(listener: Listener): ResponseFuture {
+        synchronized(this) {
+            if (done.count > 0) {
+                (listeners ?: ArrayList<Listener>(1).also { listeners = it }).add(listener)
+                return this
+            }
+        }
+        listener.onComplete(result, error)
+        return this
+    }
+
+    internal fun complete(response: ByteArray): Boolean = finish(response, null)
+
+    internal fun fail(e: Throwable): Boolean = finish(null, e)
+
+    private fun finish(response: ByteArray?, e: Throwable?): Boolean {
+        val toRun: List<Listener>?
+        synchronized(this) {
+            if (done.count == 0L) return false
+            result = response
+            error = e
+            done.countDown()
+            toRun = listeners
+            listeners = null
+        }
+        toRun?.forEach { it.onComplete(response, e) }
+        return true
+    }
+
+    /** Drops the request if it has not been answered yet; a request already on the line is not recalled. */
+    override fun cancel(mayInterruptIfRunning: Boolean): Boolean =
+        fail(CancellationException("Service %02X cancelled".format(sid)))
+
+    override fun isCancelled(): Boolean = error is CancellationException
+
+    override fun isDone(): Boolean = done.count == 0L
+
+    override fun get(): ByteArray {
+        done.await()
+        return value()
+    }
+
+    override fun get(timeout: Long, unit: TimeUnit): ByteArray {
+        if (!done.await(timeout, unit)) throw TimeoutException("No response to service %02X".format(sid))
+        return value()
+    }
+
+    private fun value(): ByteArray {
+        val e = error
+        if (e is CancellationException) throw e
+        if (e != null) throw ExecutionException(e)
+        return result!!
+    }
+}
@@ -0,0 +1,233 @@
+package com.kimboflash.rom
+
+/**
+ * Keeps the checksums of a [RomImage] up to date while it is being edited.
+ *
+ * Every region is split into [BLOCK_SIZE] byte blocks with a partial result
+ * per block. A write only touches the blocks it overlaps: additive sums are
+ * re-summed for that block and the total adjusted by the difference, CRC
+ * blocks are just marked dirty. Reading a CRC re-runs the dirty blocks and
+ * folds the per-block results with a precomputed shift operator, so the cost
+ * is bounded by the number of blocks rather than the size of the section.
+ *
+ * [verifyAll] recomputes everything from scratch to cross-check the
+ * incremental state.
+ *
+ * Writes outside every region are counted in [uncoveredWrites]: whatever
+ * protects those bytes is not modelled, so the image no longer counts as
+ * valid. [fix] refuses unverified profiles rather than write checksums the
+ * ECU may reject.
+ */
+class ChecksumEngine(private val image: RomImage, val profile: ChecksumProfile) : RomImage.WriteListener {
+    companion object {
+        const val BLOCK_SIZE = 256
+    }
+
+    /** Result of one checksum: what is stored in the image and what it should be. */
+    class Status(val region: ChecksumRegion, val stored: Long, val computed: Long) {
+        val isValid: Boolean get() = stored == computed
+    }
+
+    private val states = profile.regions.map { RegionState(it) }
+    private val previous = image.writeListener
+
+    /** Writes since attaching that touched no checksum region. */
+    var uncoveredWrites = 0
+        private set
+
+    /** True if [fix] may write checksums, i.e. the profile is verified. */
+    val canFix: Boolean get() = profile.verified
+
+    init {
+        for (s in states) s.rebuild()
+        image.writeListener = this
+    }
+
+    override fun onWrite(offset: Int, length: Int) {
+        var covered = false
+        for (s in states) covered = s.onWrite(offset, length) || covered
+        if (!covered) uncoveredWrites++
+        previous?.onWrite(offset, length)
+    }
+
+    /** Current checksum values, from the incremental state. */
+    fun status(): List<Status> = states.map { Status(it.region, it.stored(), it.value()) }
+
+    /** True if every stored checksum matches the image contents and nothing outside them was edited. */
+    fun isValid(): Boolean = uncoveredWrites == 0 && states.all { it.stored() == it.value() }
+
+    /** Writes all checksums into the image, in profile order; only for a verified profile. */
+    fun fix() {
+        check(profile.verified) { "Checksum layout \"${profile.name}\" is not verified" }
+        for (s in states) s.store(s.value())
+    }
+
+    /**
+     * Recomputes every region from scratch and compares against the
+     * incremental state; returns the names of regions that disagreed.
+     */
+    fun verifyAll(): List<String> {
+        val mismatched = ArrayList<String>()
+        for (s in states) {
+            val incremental = s.value()
+            s.rebuild()
+            if (s.value() != incremental) mismatched.add(s.region.name)
+        }
+        return mismatched
+    }
+
+    /** Detaches from the image, restoring any listener that was there before. */
+    fun detach() {
+        if (image.writeListener === this) image.writeListener = previous
+    }
+
+    private inner class RegionState(val region: ChecksumRegion) {
+        private val blocks = (region.end - region.start + BLOCK_SIZE - 1) / BLOCK_SIZE
+        private val partial = LongArray(blocks)
+        private var total = 0L
+        private val dirty = BooleanArray(blocks)
+        private var anyDirty = false
+        private val crc = if (region.kind == ChecksumRegion.Kind.CRC16) Crc16(region.poly) else null
+        private val scratch = ByteArray(BLOCK_SIZE)
+
+        fun rebuild() {
+            total = 0
+            for (b in 0 until blocks) {
+                partial[b] = computeBlock(b)
+                total += partial[b]
+                dirty[b] = false
+            }
+            anyDirty = false
+        }
+
+        /** Updates the blocks [offset]..+[length] overlaps; false if none. */
+        fun onWrite(offset: Int, length: Int): Boolean {
+            val from = maxOf(offset, region.start)
+            val to = minOf(offset + length, region.end)
+            if (from >= to) return offset < region.storeOffset + region.storeLength && offset + length > region.storeOffset
+            for (b in (from - region.start) / BLOCK_SIZE..(to - 1 - region.start) / BLOCK_SIZE) {
+                if (crc != null) {
+                    dirty[b] = true
+                    anyDirty = true
+                } else {
+                    val v = computeBlock(b)
+                    total += v - partial[b]
+                    partial[b] = v
+                }
+            }
+            return true
+        }
+
+        fun value(): Long = when (region.kind) {
+            ChecksumRegion.Kind.SUM8 -> total and 0xFFFF
+            ChecksumRegion.Kind.SUM16 -> total and 0xFFFFFFFFL
+            ChecksumRegion.Kind.CRC16 -> crcValue().toLong()
+        }
+
+        fun stored(): Long = when (region.kind) {
+            ChecksumRegion.Kind.SUM16 -> {
+                val lo = image.uint16(region.storeOffset, region.littleEndian).toLong()
+                val hi = image.uint16(region.storeOffset + 2, region.littleEndian).toLong()
+                lo or (hi shl 16)
+            }
+            else -> image.uint16(region.storeOffset, region.littleEndian).toLong()
+        }
+
+        fun store(value: Long) {
+            image.setUint16(region.storeOffset, (value and 0xFFFF).toInt(), region.littleEndian)
+            if (region.kind == ChecksumRegion.Kind.SUM16) {
+                image.setUint16(region.storeOffset + 2, (value ushr 16).toInt() and 0xFFFF, region.littleEndian)
+            }
+        }
+
+        private fun blockLength(b: Int): Int =
+            minOf(BLOCK_SIZE, region.end - region.start - b * BLOCK_SIZE)
+
+        private fun computeBlock(b: Int): Long {
+            val len = blockLength(b)
+            image.read(region.start + b * BLOCK_SIZE, scratch, 0, len)
+            return when (region.kind) {
+                ChecksumRegion.Kind.SUM8 -> {
+                    var s = 0L
+                    for (i in 0 until len) s += scratch[i].toInt() and 0xFF
+                    s
+                }
+                ChecksumRegion.Kind.SUM16 -> {
+                    var s = 0L
+                    var i = 0
+                    while (i + 1 < len) {
+                        val lo = scratch[i].toInt() and 0xFF
+                        val hi = scratch[i + 1].toInt() and 0xFF
+                        s += if (region.littleEndian) lo or (hi shl 8) else (lo shl 8) or hi
+                        i += 2
+                    }
+                    s
+                }
+                // Register after feeding the block into a zeroed CRC
+                ChecksumRegion.Kind.CRC16 -> crc!!.update(0, scratch, len).toLong()
+            }
+        }
+
+        private fun crcValue(): Int {
+            val c = crc!!
+            if (anyDirty) {
+                for (b in 0 until blocks) if (dirty[b]) {
+                    partial[b] = computeBlock(b)
+                    dirty[b] = false
+                }
+                anyDirty = false
+            }
+            // CRC is linear over GF(2): reg(after block) = shift(reg) xor block(0)
+            var reg = region.init
+            for (b in 0 until blocks) {
+                reg = c.shift(reg, blockLength(b)) xor partial[b].toInt()
+            }
+            return reg
+        }
+    }
+}
+
+/** Table-driven, non-reflected CRC16 plus the zero-feed operator used to combine blocks. */
+internal class Crc16(poly: Int) {
+    private val table = IntArray(256) { i ->
+        var r = i shl 8
+        repeat(8) { r = if (r and 0x8000 != 0) (r shl 1) xor poly else r shl 1 }
+        r and 0xFFFF
+    }
+
+    /** Column images of "feed BLOCK_SIZE zero bytes", one per register bit. */
+    private val fullBlock = zeroOperator(ChecksumEngine.BLOCK_SIZE)
+    private var tailLength = -1
+    private var tailBlock = IntArray(16)
+
+    fun update(reg: Int, data: ByteArray, length: Int): Int {
+        var r = reg
+        for (i in 0 until length) {
+            r = ((r shl 8) xor table[((r ushr 8) xor data[i].toInt()) and 0xFF]) and 0xFFFF
+        }
+        return r
+    }
+
+    /** Register after feeding [length] zero bytes starting from [reg]. */
+    fun shift(reg: Int, length: Int): Int {
+        val op = when (length) {
+            ChecksumEngine.BLOCK_SIZE -> fullBlock
+            tailLength -> tailBlock
+            else -> zeroOperator(length).also { tailBlock = it; tailLength = length }
+        }
+        var out = 0
+        var bits = reg
+        var i = 0
+        while (bits != 0) {
+            if (bits and 1 != 0) out = out xor op[i]
+            bits = bits ushr 1
+            i++
+        }
+        return out
+    }
+
+    private fun zeroOperator(length: Int): IntArray {
+        val zeros = ByteArray(length)
+        return IntArray(16) { bit -> update(1 shl bit, zeros, length) }
+    }
+}
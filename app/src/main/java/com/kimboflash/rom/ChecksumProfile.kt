@@ -0,0 +1,105 @@
+package com.kimboflash.rom
+
+import com.kimboflash.defs.DefinitionIndex
+
+/**
+ * One checksum: the bytes [start] until [end] (exclusive) and where the result
+ * is stored. [storeOffset] must lie outside [start]..[end].
+ */
+class ChecksumRegion(
+    val name: String,
+    val kind: Kind,
+    val start: Int,
+    val end: Int,
+    val storeOffset: Int,
+    val littleEndian: Boolean = true,
+    /** CRC16 polynomial and initial register, ignored for additive sums. */
+    val poly: Int = 0x1021,
+    val init: Int = 0xFFFF
+) {
+    enum class Kind {
+        /** 16-bit sum of all bytes, stored as one word. */
+        SUM8,
+        /** 32-bit sum of 16-bit words, stored as two words (low word first). */
+        SUM16,
+        /** Non-reflected CRC16 with [poly]/[init], stored as one word. */
+        CRC16
+    }
+
+    val storeLength: Int get() = if (kind == Kind.SUM16) 4 else 2
+}
+
+/**
+ * The checksum layout of one ECU software variant.
+ *
+ * Only a [verified] layout (ranges and algorithms checked against images the
+ * ECU accepts) may be used to write checksums; an unverified one can still
+ * tell whether the stored words match its guess, nothing more.
+ */
+class ChecksumProfile(
+    val name: String,
+    val regions: List<ChecksumRegion>,
+    val verified: Boolean = false
+) {
+    companion object {
+        // Calibration section of the 512 KB images (XDF BASEOFFSET)
+        private const val MS43_CAL_BASE = 0x70000
+        private const val MS42_CAL_BASE = 0x48000
+
+        /**
+         * MS43 512 KB: additive monitor checksum (cal_mon_cks_1/2 at +0x2FFC)
+         * and the calibration CRC (cal_cks at +0x3FE0). The monitor words are
+         * fixed first because they lie inside the CRC range.
+         *
+         * Unverified: only the store addresses come from the XDF. The ranges
+         * end at the stored words, but calibration tables reach about 0x7EE0A,
+         * so the real ranges (and the CRC parameters) are not known here.
+         */
+        val MS43_512K = ChecksumProfile(
+            "MS43 512K", listOf(
+                ChecksumRegion("cal_mon_cks", ChecksumRegion.Kind.SUM16, MS43_CAL_BASE, MS43_CAL_BASE + 0x2FFC, MS43_CAL_BASE + 0x2FFC),
+                ChecksumRegion("cal_cks", ChecksumRegion.Kind.CRC16, MS43_CAL_BASE, MS43_CAL_BASE + 0x3FE0, MS43_CAL_BASE + 0x3FE0)
+            )
+        )
+
+        /**
+         * MS42 512 KB: code_chksum_ke at +0x46E over the calibration header.
+         * Unverified: tables reach about 0x4F83C, far past the assumed range.
+         */
+        val MS42_512K = ChecksumProfile(
+            "MS42 512K", listOf(
+                ChecksumRegion("code_chksum_ke", ChecksumRegion.Kind.SUM8, MS42_CAL_BASE, MS42_CAL_BASE + 0x46E, MS42_CAL_BASE + 0x46E)
+            )
+        )
+
+        /** Plain byte sum over the whole image into its last word, for unidentified images; a guess. */
+        fun wholeImage(size: Int) = ChecksumProfile(
+            "Whole image", listOf(
+                ChecksumRegion("image_sum", ChecksumRegion.Kind.SUM8, 0, size - 2, size - 2, littleEndian = false)
+            )
+        )
+
+        /**
+         * Builds the profile from the "Checksums" category of an XDF. The XDF
+         * only gives where each checksum is stored; the covered range is taken
+         * as the definition's base offset up to the checksum word, like
+         * [MS43_512K] and [MS42_512K], so the profile is unverified.
+         */
+        fun fromDefinition(def: DefinitionIndex): ChecksumProfile? {
+            val regions = ArrayList<ChecksumRegion>()
+            var crc: ChecksumRegion? = null
+            for (r in def.recordsInCategory("Checksums")) {
+                val store = def.fileOffset(r)
+                if (store == DefinitionIndex.NONE) continue
+                val le = def.isLittleEndian(r)
+                when (def.title(r)) {
+                    "cal_cks" -> crc = ChecksumRegion("cal_cks", ChecksumRegion.Kind.CRC16, def.baseOffset, store, store, le)
+                    "cal_mon_cks_1" -> regions.add(ChecksumRegion("cal_mon_cks", ChecksumRegion.Kind.SUM16, def.baseOffset, store, store, le))
+                    "code_chksum_ke" -> regions.add(ChecksumRegion("code_chksum_ke", ChecksumRegion.Kind.SUM8, def.baseOffset, store, store, le))
+                }
+            }
+            crc?.let { regions.add(it) }
+            return if (regions.isEmpty()) null else ChecksumProfile(def.defTitle, regions)
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.kimboflash.rom
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * An ECU flash image addressed by file offset.
+ *
+ * Normally backed by a [MappedByteBuffer] over the .bin on disk, so edits go
+ * straight to the page cache and several images can stay open side by side
+ * without living on the Java heap. [wrap] gives a heap-backed image for data
+ * that did not come from a file (e.g. a ROM read from the ECU).
+ *
+ * A document picked through the storage framework has no path to open
+ * read-write, only a descriptor; [map] with a [FileDescriptor] maps it
+ * copy-on-write and [flush] writes the touched range back through it.
+ *
+ * All multi-byte accessors take the byte order explicitly: MS42/MS43 tables
+ * are little-endian (C167), but some XDF entries are flagged big-endian.
+ */
+class RomImage private constructor(
+    private val buf: ByteBuffer,
+    /** Backing file when mapped, null for heap images. */
+    val file: File?,
+    /** Closed with the image: the file or descriptor the mapping came from. */
+    private val owner: Closeable?,
+    /** Where [flush] writes the touched range of a copy-on-write mapping. */
+    private val sink: FileChannel? = null
+) : Closeable {
+
+    companion object {
+        /** Maps [file] read-write (or read-only) without copying it onto the heap. */
+        fun map(file: File, writable: Boolean = true): RomImage {
+            val raf = RandomAccessFile(file, if (writable) "rw" else "r")
+            val mode = if (writable) FileChannel.MapMode.READ_WRITE else FileChannel.MapMode.READ_ONLY
+            val mapped = raf.channel.map(mode, 0, raf.length())
+            return RomImage(mapped, file, raf)
+        }
+
+        /**
+         * Maps the document open on [fd] (e.g. ParcelFileDescriptor.fileDescriptor,
+         * opened "rw") without a copy into cacheDir. A descriptor only yields
+         * stream channels, which cannot map read-write, so the mapping is
+         * private and [flush] writes the touched bytes back through [fd].
+         * [owner] is closed with the image.
+         */
+        fun map(fd: FileDescriptor, owner: Closeable? = null): RomImage {
+            val channel = FileInputStream(fd).channel
+            val mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size())
+            return RomImage(mapped, null, owner, FileOutputStream(fd).channel)
+        }
+
+        /** Heap-backed image sharing [bytes]; writes are visible in the array. */
+        fun wrap(bytes: ByteArray): RomImage = RomImage(ByteBuffer.wrap(bytes), null, null)
+
+        /** Heap-backed image of [size] zero bytes. */
+        fun allocate(size: Int): RomImage = wrap(ByteArray(size))
+    }
+
+    val size: Int get() = buf.capacity()
+
+    val isMapped: Boolean get() = buf is MappedByteBuffer
+
+    // Bytes written since the last flush, for write-back through [sink]
+    private var dirtyStart = Int.MAX_VALUE
+    private var dirtyEnd = 0
+
+    val isReadOnly: Boolean get() = buf.isReadOnly
+
+    /** Optional listener told about every write, e.g. an incremental checksum. */
+    var writeListener: WriteListener? = null
+
+    fun interface WriteListener {
+        /** [offset] .. [offset] + [length] were just overwritten. */
+        fun onWrite(offset: Int, length: Int)
+    }
+
+    fun uint8(offset: Int): Int = buf.get(offset).toInt() and 0xFF
+
+    fun int8(offset: Int): Int = buf.get(offset).toInt()
+
+    fun uint16(offset: Int, littleEndian: Boolean = true): Int {
+        val b0 = buf.get(offset).toInt() and 0xFF
+        val b1 = buf.get(offset + 1).toInt() and 0xFF
+        return if (littleEndian) b0 or (b1 shl 8) else (b0 shl 8) or b1
+    }
+
+    fun int16(offset: Int, littleEndian: Boolean = true): Int =
+        uint16(offset, littleEndian).toShort().toInt()
+
+    fun uint32(offset: Int, littleEndian: Boolean = true): Long {
+        val lo = uint16(offset, littleEndian).toLong()
+        val hi = uint16(offset + 2, littleEndian).toLong()
+        return if (littleEndian) lo or (hi shl 16) else (lo shl 16) or hi
+    }
+
+    fun setUint8(offset: Int, value: Int) {
+        buf.put(offset, value.toByte())
+        touched(offset, 1)
+    }
+
+    fun setUint16(offset: Int, value: Int, littleEndian: Boolean = true) {
+        val lo = value.toByte()
+        val hi = (value shr 8).toByte()
+        buf.put(offset, if (littleEndian) lo else hi)
+        buf.put(offset + 1, if (littleEndian) hi else lo)
+        touched(offset, 2)
+    }
+
+    private fun touched(offset: Int, length: Int) {
+        if (sink != null) {
+            dirtyStart = minOf(dirtyStart, offset)
+            dirtyEnd = maxOf(dirtyEnd, offset + length)
+        }
+        writeListener?.onWrite(offset, length)
+    }
+
+    /** Copies [length] bytes at [offset] into [dst]. */
+    fun read(offset: Int, dst: ByteArray, dstOffset: Int = 0, length: Int = dst.size - dstOffset) {
+        val view = buf.duplicate()
+        view.position(offset)
+        view.get(dst, dstOffset, length)
+    }
+
+    /** Bulk-writes [length] bytes of [src] at [offset]. */
+    fun write(offset: Int, src: ByteArray, srcOffset: Int = 0, length: Int = src.size - srcOffset) {
+        val view = buf.duplicate()
+        view.position(offset)
+        view.put(src, srcOffset, length)
+        touched(offset, length)
+    }
+
+    /** Bulk-writes the remaining bytes of [src] at [offset]; [src]'s position is left alone. */
+    fun write(offset: Int, src: ByteBuffer) {
+        val length = src.remaining()
+        val view = buf.duplicate()
+        view.position(offset)
+        view.put(src.duplicate())
+        touched(offset, length)
+    }
+
+    /** True if the bytes at [offset] equal the remaining bytes of [expected]. */
+    fun regionEquals(offset: Int, expected: ByteBuffer): Boolean =
+        slice(offset, expected.remaining()) == expected
+
+    /** True if the [length] bytes at [offset] equal [expected] from [expectedOffset]. */
+    fun regionEquals(offset: Int, expected: ByteArray, expectedOffset: Int = 0, length: Int = expected.size - expectedOffset): Boolean {
+        val a = slice(offset, length)
+        val b = ByteBuffer.wrap(expected, expectedOffset, length)
+        return a == b
+    }
+
+    /** Read-only view of [length] bytes at [offset]; shares storage with the image. */
+    fun slice(offset: Int, length: Int): ByteBuffer {
+        val view = buf.asReadOnlyBuffer()
+        view.position(offset)
+        view.limit(offset + length)
+        return view.slice()
+    }
+
+    /** Streams the whole image to [out] in chunks, without a full heap copy. */
+    fun copyTo(out: OutputStream) {
+        val chunk = ByteArray(16 * 1024)
+        var offset = 0
+        while (offset < size) {
+            val n = minOf(chunk.size, size - offset)
+            read(offset, chunk, 0, n)
+            out.write(chunk, 0, n)
+            offset += n
+        }
+    }
+
+    /** Flushes pending writes of a mapped image to its file. */
+    fun flush() {
+        val out = sink
+        if (out == null) {
+            (buf as? MappedByteBuffer)?.force()
+            return
+        }
+        if (dirtyStart >= dirtyEnd) return
+        val range = buf.duplicate()
+        range.limit(dirtyEnd)
+        range.position(dirtyStart)
+        var position = dirtyStart.toLong()
+        while (range.hasRemaining()) position += out.write(range, position)
+        out.force(false)
+        dirtyStart = Int.MAX_VALUE
+        dirtyEnd = 0
+    }
+
+    override fun close() {
+        flush()
+        owner?.close()
+    }
+}
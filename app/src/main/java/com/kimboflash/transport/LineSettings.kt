@@ -0,0 +1,31 @@
+package com.kimboflash.transport
+
+import com.kimboflash.protocol.KLineInit
+
+/**
+ * UART format of an adapter: speed, data bits, stop bits and parity. K-Line
+ * diagnostics run 10400 8N1, while DS2 logging as declared in RomRaider's
+ * logger definitions runs 9600 8E1.
+ */
+data class LineSettings @JvmOverloads constructor(
+    val baud: Int,
+    val dataBits: Int = 8,
+    val stopBits: Int = 1,
+    val parity: Parity = Parity.NONE
+) {
+    /** In the order of RomRaider's parity attribute: 0 none, 1 odd, 2 even. */
+    enum class Parity { NONE, ODD, EVEN }
+
+    companion object {
+        @JvmField
+        val KLINE = LineSettings(KLineInit.KLINE_BAUD)
+    }
+
+    /** Bits on the wire per byte: start bit, data, parity and stop bits. */
+    val bitsPerByte: Int get() = 1 + dataBits + (if (parity == Parity.NONE) 0 else 1) + stopBits
+
+    /** Same format at another speed. */
+    fun withBaud(baud: Int): LineSettings = copy(baud = baud)
+
+    override fun toString(): String = "$baud $dataBits${parity.name[0]}$stopBits"
+}
@@ -0,0 +1,133 @@
+package com.kimboflash.transport
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Lock-free single-producer/single-consumer byte ring between a transport's
+ * receive thread and the one thread that consumes its bytes. Rings are
+ * pooled so reconnecting does not allocate.
+ *
+ * The producer never blocks: when the consumer falls behind by more than
+ * the capacity, new bytes are dropped and counted in [dropped]. An idle
+ * consumer parks and is unparked by the next write.
+ */
+class ReceiveRing private constructor(val capacity: Int) {
+    companion object {
+        /** Power of two, so positions wrap with a mask. */
+        const val DEFAULT_CAPACITY = 8 * 1024
+        private const val POOL_SIZE = 4
+
+        private val pool = ArrayList<ReceiveRing>(POOL_SIZE)
+
+        /** A cleared ring of [DEFAULT_CAPACITY], reused from the pool when possible. */
+        fun acquire(): ReceiveRing = synchronized(pool) {
+            if (pool.isEmpty()) ReceiveRing(DEFAULT_CAPACITY) else pool.removeAt(pool.size - 1)
+        }
+
+        /** Returns [ring] to the pool; neither side may use it afterwards. */
+        fun release(ring: ReceiveRing) {
+            ring.clear()
+            synchronized(pool) { if (pool.size < POOL_SIZE) pool.add(ring) }
+        }
+    }
+
+    private val buf = ByteArray(capacity)
+    private val mask = capacity - 1
+    /** Total bytes consumed; written by the consumer only. */
+    private val head = AtomicLong()
+    /** Total bytes produced; written by the producer only. */
+    private val tail = AtomicLong()
+    @Volatile
+    private var waiter: Thread? = null
+    @Volatile
+    private var cancelled = false
+
+    @Volatile
+    var dropped = 0L
+        private set
+
+    /** Producer side: appends [length] bytes of [src]; returns how many fit. */
+    fun write(src: ByteArray, offset: Int, length: Int): Int {
+        val t = tail.get()
+        val n = minOf(length, capacity - (t - head.get()).toInt())
+        if (n > 0) {
+            val at = (t and mask.toLong()).toInt()
+            val first = minOf(n, capacity - at)
+            System.arraycopy(src, offset, buf, at, first)
+            if (n > first) System.arraycopy(src, offset + first, buf, 0, n - first)
+            // Volatile store publishes the bytes before the waiter is checked
+            tail.set(t + n)
+            waiter?.let { LockSupport.unpark(it) }
+        }
+        if (n < length) dropped += (length - n).toLong()
+        return n
+    }
+
+    /**
+     * Consumer side: moves up to dst.remaining() bytes into [dst], waiting at
+     * most [timeoutMs] for the first one. Returns the byte count, 0 on timeout,
+     * interrupt or [cancel].
+     */
+    fun read(dst: ByteBuffer, timeoutMs: Long): Int {
+        val h = head.get()
+        val t = await(h, timeoutMs)
+        val n = minOf((t - h).toInt(), dst.remaining())
+        val at = (h and mask.toLong()).toInt()
+        val first = minOf(n, capacity - at)
+        dst.put(buf, at, first)
+        if (n > first) dst.put(buf, 0, n - first)
+        head.set(h + n)
+        return n
+    }
+
+    /** Array variant of [read]: up to [length] bytes into [dst] at [offset]. */
+    fun read(dst: ByteArray, offset: Int, length: Int, timeoutMs: Long): Int {
+        val h = head.get()
+        val t = await(h, timeoutMs)
+        val n = minOf((t - h).toInt(), length)
+        val at = (h and mask.toLong()).toInt()
+        val first = minOf(n, capacity - at)
+        System.arraycopy(buf, at, dst, offset, first)
+        if (n > first) System.arraycopy(buf, 0, dst, offset + first, n - first)
+        head.set(h + n)
+        return n
+    }
+
+    /** Current tail once it has moved past [h], or [h] on timeout, interrupt or cancel. */
+    private fun await(h: Long, timeoutMs: Long): Long {
+        if (cancelled) return h
+        var t = tail.get()
+        if (t != h) return t
+        val deadline = System.nanoTime() + timeoutMs * 1_000_000L
+        waiter = Thread.currentThread()
+        try {
+            while (true) {
+                t = tail.get()
+                if (t != h) return t
+                val left = deadline - System.nanoTime()
+                if (left <= 0L || cancelled || Thread.currentThread().isInterrupted) return h
+                LockSupport.parkNanos(this, left)
+            }
+        } finally {
+            waiter = null
+        }
+    }
+
+    /** Makes a waiting and every later [read] return 0 at once, so the ring can be released. */
+    fun cancel() {
+        cancelled = true
+        waiter?.let { LockSupport.unpark(it) }
+    }
+
+    fun available(): Int = (tail.get() - head.get()).toInt()
+
+    /** Only while neither side is active, e.g. on release. */
+    fun clear() {
+        head.set(0)
+        tail.set(0)
+        dropped = 0
+        cancelled = false
+    }
+}
@@ -0,0 +1,90 @@
+package com.kimboflash.transport
+
+import android.util.Log
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * [Transport] over a socket's input/output streams (Bluetooth SPP, Wi-Fi
+ * TCP). One receive thread per connection reads into a reused array.
+ *
+ * Stream writes cannot be abandoned halfway, so the write timeout is not
+ * enforced here; the receive side honours every read timeout.
+ */
+open class StreamTransport(private val name: String) : Transport() {
+    @Volatile
+    private var input: InputStream? = null
+    @Volatile
+    private var output: OutputStream? = null
+    private var reader: Thread? = null
+    private var writeScratch = ByteArray(256)
+
+    override val isOpen: Boolean get() = output != null
+
+    override val threadName: String get() = name
+
+    /** Starts using [input]/[output] of a freshly connected socket. */
+    protected fun attach(input: InputStream, output: OutputStream) {
+        detach()
+        this.input = input
+        this.output = output
+        opened()
+        reader = Thread({ receiveLoop(input) }, "$name-rx").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    private fun receiveLoop(stream: InputStream) {
+        val buf = ByteArray(1024)
+        try {
+            while (true) {
+                val n = stream.read(buf)
+                if (n < 0) break
+                if (n > 0) deliver(buf, 0, n)
+            }
+        } catch (e: IOException) {
+            if (input === stream) Log.w(name, "Receive failed", e)
+        }
+        if (input === stream) {
+            Log.i(name, "Connection closed by peer")
+            detach()
+        }
+    }
+
+    override fun writeBytes(data: ByteBuffer, timeoutMs: Long): Boolean {
+        val out = output ?: return false
+        return try {
+            val n = data.remaining()
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), n)
+                data.position(data.limit())
+            } else {
+                if (writeScratch.size < n) writeScratch = ByteArray(n)
+                data.get(writeScratch, 0, n)
+                out.write(writeScratch, 0, n)
+            }
+            out.flush()
+            true
+        } catch (e: IOException) {
+            Log.w(name, "Write failed", e)
+            false
+        }
+    }
+
+    /** Stops the receive thread and closes the streams; the owner closes its socket. */
+    protected fun detach() {
+        val i = input
+        val o = output
+        input = null
+        output = null
+        reader = null
+        try { i?.close() } catch (_: IOException) { }
+        try { o?.close() } catch (_: IOException) { }
+        closed()
+    }
+
+    override fun close() = detach()
+}
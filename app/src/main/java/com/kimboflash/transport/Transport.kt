@@ -0,0 +1,179 @@
+package com.kimboflash.transport
+
+import com.kimboflash.CommService
+import com.kimboflash.protocol.BusStats
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Shared part of every [CommService] implementation.
+ *
+ * The receive thread only copies bytes into a pooled lock-free
+ * [ReceiveRing] via [deliver]. They are consumed either by [read] or, while
+ * a [CommService.FrameListener] is registered, by a dedicated protocol thread
+ * that hands them to the listener; never both, as the ring has exactly one
+ * consumer. Neither path allocates per chunk.
+ *
+ * The protocol thread lives as long as the link and idles while no listener
+ * is set, so switching listeners never waits for a thread; a chunk already
+ * taken from the ring still goes to the listener it was taken for. Every
+ * consumer holds [consumer] while it takes bytes, which is what keeps the
+ * ring single-consumer across a switch.
+ *
+ * Subclasses only move bytes: they call [deliver] from their receive thread
+ * and implement [writeBytes]. Bytes in both directions are counted in
+ * [stats].
+ */
+abstract class Transport : CommService {
+    companion object {
+        /** How long the protocol thread waits for bytes before re-checking for shutdown. */
+        private const val DISPATCH_POLL_MS = 100L
+    }
+
+    @Volatile
+    private var listener: CommService.FrameListener? = null
+    @Volatile
+    private var ring: ReceiveRing? = null
+    @Volatile
+    private var dispatcher: Thread? = null
+
+    /** Held by whoever is taking bytes out of the ring. */
+    private val consumer = Any()
+    /** Receive threads currently inside [deliver]. */
+    private val delivering = AtomicInteger()
+    /** Guards starting the protocol thread; not the write lock, which a slow write may hold. */
+    private val dispatcherLock = Any()
+
+    private val discardScratch = ByteArray(256)
+
+    /** Adapter byte counters; [BusStats.DEFAULT] unless set before opening. */
+    @Volatile
+    var stats: BusStats = BusStats.DEFAULT
+
+    /** Name prefix of the protocol thread. */
+    protected open val threadName: String get() = javaClass.simpleName
+
+    /** Subclasses call this once the link is up. */
+    protected fun opened() {
+        if (ring == null) ring = ReceiveRing.acquire()
+        if (listener != null) startDispatcher()
+    }
+
+    /**
+     * Subclasses call this when the link goes down, preferably after their
+     * receive thread has stopped; returns the ring to the pool. A [deliver]
+     * still running is waited for, so the ring is never pooled while the
+     * producer writes into it.
+     */
+    protected fun closed() {
+        val r = ring
+        ring = null
+        stopDispatcher()
+        if (r == null) return
+        r.cancel()
+        while (delivering.get() != 0) Thread.yield()
+        synchronized(consumer) { ReceiveRing.release(r) }
+    }
+
+    /** Bytes dropped because nobody was reading fast enough. */
+    val droppedBytes: Long get() = ring?.dropped ?: 0L
+
+    /** Queues bytes just received; called on the receive thread. */
+    fun deliver(data: ByteArray, offset: Int, length: Int) {
+        stats.bytesIn(length)
+        // Counted before the ring is looked up, so closed() cannot miss a write in progress
+        delivering.incrementAndGet()
+        try {
+            ring?.write(data, offset, length)
+        } finally {
+            delivering.decrementAndGet()
+        }
+    }
+
+    /** Writes the remaining bytes of [data]; called with the transport's write lock held. */
+    protected abstract fun writeBytes(data: ByteBuffer, timeoutMs: Long): Boolean
+
+    override fun write(data: ByteBuffer, timeoutMs: Long): Boolean {
+        if (!isOpen) return false
+        val n = data.remaining()
+        val ok = synchronized(this) { writeBytes(data, timeoutMs) }
+        if (ok) stats.bytesOut(n)
+        return ok
+    }
+
+    /** Throws while a listener is registered; the protocol thread owns the ring then. */
+    override fun read(dst: ByteBuffer, timeoutMs: Long): Int {
+        check(listener == null) { "read() while a frame listener is registered" }
+        return synchronized(consumer) { ring?.read(dst, timeoutMs) ?: 0 }
+    }
+
+    /** Array variant of [read]; throws while a listener is registered. */
+    override fun receive(dst: ByteArray, offset: Int, length: Int): Int {
+        check(listener == null) { "receive() while a frame listener is registered" }
+        return synchronized(consumer) { ring?.read(dst, offset, length, CommService.DEFAULT_TIMEOUT_MS) ?: 0 }
+    }
+
+    /** Drops bytes queued for [read], e.g. ones that arrived at the old speed before a baud change. */
+    protected fun discardReceived() {
+        if (listener != null) return
+        synchronized(consumer) {
+            val r = ring ?: return
+            while (r.read(discardScratch, 0, discardScratch.size, 0L) > 0) {
+            }
+        }
+    }
+
+    /** Never blocks: the protocol thread picks the new listener up with its next chunk. */
+    override fun setFrameListener(listener: CommService.FrameListener?) {
+        this.listener = listener
+        if (listener == null) return
+        val d = dispatcher
+        if (d == null) startDispatcher() else LockSupport.unpark(d)
+    }
+
+    override fun send(data: ByteArray) {
+        write(ByteBuffer.wrap(data))
+    }
+
+    /** Allocates per call; protocol code uses [receive] with its own array. */
+    override fun receiveBytes(): ByteArray {
+        val buf = ByteArray(ReceiveRing.DEFAULT_CAPACITY)
+        return buf.copyOf(receive(buf, 0, buf.size))
+    }
+
+    private fun startDispatcher() {
+        synchronized(dispatcherLock) {
+            if (dispatcher != null || ring == null) return
+            val t = Thread({ dispatch() }, "$threadName-protocol")
+            t.isDaemon = true
+            // Assigned before start: the loop runs only while it is the current dispatcher
+            dispatcher = t
+            t.start()
+        }
+    }
+
+    /** Tells the protocol thread to finish; does not wait for it. */
+    private fun stopDispatcher() {
+        val d = dispatcher ?: return
+        dispatcher = null
+        d.interrupt()
+    }
+
+    private fun dispatch() {
+        val view = ByteBuffer.allocate(ReceiveRing.DEFAULT_CAPACITY)
+        val self = Thread.currentThread()
+        while (dispatcher === self) {
+            val l = listener
+            if (l == null) {
+                LockSupport.parkNanos(this, DISPATCH_POLL_MS * 1_000_000L)
+                continue
+            }
+            view.clear()
+            val n = synchronized(consumer) { ring?.read(view, DISPATCH_POLL_MS) ?: 0 }
+            if (n == 0) continue
+            view.flip()
+            l.onReceived(view)
+        }
+    }
+}
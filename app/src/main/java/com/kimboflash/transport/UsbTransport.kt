@@ -0,0 +1,88 @@
+package com.kimboflash.transport
+
+import android.util.Log
+import com.felhr.usbserial.UsbSerialDevice
+import java.nio.ByteBuffer
+
+/**
+ * [Transport] over a felhr [UsbSerialDevice]. The owning UsbService keeps the
+ * port's read callback and forwards every chunk through [deliver].
+ *
+ * The port queues writes internally and returns immediately, so the write
+ * timeout never comes into play.
+ */
+class UsbTransport(private val port: UsbSerialDevice) : Transport() {
+    companion object {
+        private const val TAG = "UsbTransport"
+        private const val MAX_CACHED = 512
+    }
+
+    /**
+     * How this cable drives the K-Line. BREAK holds TXD low, which works on
+     * plain KKL cables; DTR and RTS are for cables with the transceiver on a
+     * modem signal; NONE leaves line control off, so K-Line inits fall back
+     * to their UART tricks.
+     */
+    enum class LineMode { BREAK, DTR, RTS, NONE }
+
+    /** BREAK by default, as most cables tie TXD to the K-Line; set from the adapter's profile. */
+    @Volatile
+    var lineMode = LineMode.BREAK
+    /** Set for cables whose transceiver pulls the K-Line low on a released signal. */
+    @Volatile
+    var lineInverted = false
+
+    @Volatile
+    private var open = true
+    /** Exact-length write arrays by size, since the port takes whole arrays only. */
+    private val writeArrays = arrayOfNulls<ByteArray>(MAX_CACHED + 1)
+
+    init {
+        opened()
+    }
+
+    override val isOpen: Boolean get() = open
+
+    override fun writeBytes(data: ByteBuffer, timeoutMs: Long): Boolean {
+        val n = data.remaining()
+        // The port copies into its own write buffer, so the arrays can be reused right away
+        val bytes = if (n <= MAX_CACHED) writeArrays[n] ?: ByteArray(n).also { writeArrays[n] = it } else ByteArray(n)
+        data.get(bytes)
+        port.write(bytes)
+        return true
+    }
+
+    /**
+     * Reprograms the UART; bytes still queued from the old speed are dropped,
+     * as they would only be misread at the new one.
+     */
+    override fun setBaudRate(baud: Int): Boolean = try {
+        port.setBaudRate(baud)
+        discardReceived()
+        true
+    } catch (e: Exception) {
+        Log.e(TAG, "Error setting baud rate to $baud", e)
+        false
+    }
+
+    override fun setKLineLow(low: Boolean): Boolean = try {
+        val level = low != lineInverted
+        when (lineMode) {
+            LineMode.DTR -> port.setDTR(level)
+            LineMode.RTS -> port.setRTS(level)
+            // TXD itself drives the line on plain KKL cables; a break holds it low
+            LineMode.BREAK -> port.setBreak(low)
+            LineMode.NONE -> {}
+        }
+        lineMode != LineMode.NONE
+    } catch (e: Exception) {
+        Log.e(TAG, "Line control via $lineMode failed", e)
+        false
+    }
+
+    /** Called by the owner when the port is closed; the port itself is closed there. */
+    override fun close() {
+        open = false
+        closed()
+    }
+}
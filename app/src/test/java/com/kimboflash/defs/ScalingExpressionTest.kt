@@ -0,0 +1,99 @@
+package com.kimboflash.defs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ScalingExpressionTest {
+    private fun linear(equation: String): Linear {
+        val e = ExpressionCache.compile(equation)
+        assertTrue("$equation compiled to $e", e is Linear)
+        return e as Linear
+    }
+
+    @Test
+    fun foldsAffineFormulasToLinear() {
+        val a = linear("0.02*x+9.8039217e-009")
+        assertEquals(0.02, a.a, 0.0)
+        assertEquals(9.8039217e-9, a.b, 0.0)
+
+        val b = linear("X/32")
+        assertEquals(1.0 / 32, b.a, 0.0)
+        assertEquals(0.0, b.b, 0.0)
+
+        // Constant subexpressions and unary minus fold away
+        val c = linear("(x - 40) * (3 / 4) + -(2)")
+        assertEquals(0.75, c.a, 1e-12)
+        assertEquals(-32.0, c.b, 1e-12)
+        assertEquals((100.0 - 40) * 0.75 - 2, c.eval(100.0), 1e-12)
+    }
+
+    @Test
+    fun sharesIdentityAndCachedEvaluators() {
+        assertSame(ExpressionCache.IDENTITY, ExpressionCache.compile("1.0*X"))
+        assertSame(ExpressionCache.IDENTITY, ExpressionCache.compile("x"))
+        assertSame(ExpressionCache.compile("x*0.00488"), ExpressionCache.compile("x*0.00488"))
+    }
+
+    @Test
+    fun keepsNonLinearFormulasAsTrees() {
+        val square = ExpressionCache.compile("x*x/2")
+        assertNotNull(square)
+        assertFalse(square is Linear)
+        assertEquals(50.0, square!!.eval(10.0), 0.0)
+
+        val reciprocal = ExpressionCache.compile("1000/x")
+        assertFalse(reciprocal is Linear)
+        assertEquals(4.0, reciprocal!!.eval(250.0), 0.0)
+
+        // RomRaider BitWise: 1 = AND, 2 = OR, 3 = XOR
+        assertEquals(0x0F.toDouble(), ExpressionCache.compile("BitWise(15, x, 1)")!!.eval(0xFF.toDouble()), 0.0)
+        assertEquals(0xF3.toDouble(), ExpressionCache.compile("BitWise(240, x, 2)")!!.eval(0x03.toDouble()), 0.0)
+        assertEquals(0xF0.toDouble(), ExpressionCache.compile("BitWise(255, x, 3)")!!.eval(0x0F.toDouble()), 0.0)
+    }
+
+    @Test
+    fun unparsableFormulasCompileToNull() {
+        assertNull(ExpressionCache.compile("x*"))
+        assertNull(ExpressionCache.compile("log(x)"))
+        assertNull(ExpressionCache.compile("(x+1"))
+        assertNull(ExpressionCache.compile("x 2"))
+    }
+
+    @Test
+    fun invertsLinearFormulas() {
+        val e = linear("0.75*X-48")
+        assertTrue(e.isInvertible)
+        for (raw in intArrayOf(0, 1, 64, 255)) {
+            assertEquals(raw.toDouble(), e.invert(e.eval(raw.toDouble()))!!, 1e-9)
+        }
+    }
+
+    @Test
+    fun constantFormulaIsNotInvertible() {
+        val e = linear("0.000000 * X+ -0.000000")
+        assertFalse(e.isInvertible)
+        assertNull(e.invert(0.0))
+        assertNull(e.invert(12.5))
+        // Finite formula, but no finite raw value for an infinite physical one
+        assertNull(linear("X/32").invert(Double.POSITIVE_INFINITY))
+    }
+
+    @Test
+    fun appliesToSignedAndWideElements() {
+        val e = linear("x/2")
+        val out = DoubleArray(2)
+        e.applyTo(byteArrayOf(0xFE.toByte(), 0x10), 0, out, 0, 2, 8, true, false)
+        assertEquals(-1.0, out[0], 0.0)
+        assertEquals(8.0, out[1], 0.0)
+        // One 16-bit element, big-endian then little-endian
+        e.applyTo(byteArrayOf(0x01, 0x02), 0, out, 0, 1, 16, false, false)
+        assertEquals(0x0102 / 2.0, out[0], 0.0)
+        e.applyTo(byteArrayOf(0x01, 0x02), 0, out, 0, 1, 16, false, true)
+        assertEquals(0x0201 / 2.0, out[0], 0.0)
+    }
+}
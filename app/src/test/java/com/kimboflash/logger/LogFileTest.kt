@@ -0,0 +1,102 @@
+package com.kimboflash.logger
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+import java.io.StringWriter
+
+class LogFileTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val params = listOf(param("P1", "Engine speed", "rpm", "0"), param("P2", "Lambda", "-", "0.00"))
+
+    /** Rows spanning two full blocks and a partial third. */
+    private val rows = 2 * LogWriter.BLOCK_FRAMES + 40
+
+    private fun param(id: String, name: String, units: String, format: String) =
+        LoggerParam(id, name, 0x06, 0x00, 0, 0xE000, -1, 1, false, true, units, "x", format, 0.0, 1.0)
+
+    private fun lambda(i: Int) = if (i % 7 == 0) Double.NaN else i * 0.5
+
+    /** Writes [rows] frames 10 ms apart and closes the log. */
+    private fun record(): File {
+        val file = folder.newFile("run.kflg")
+        val start = System.nanoTime() + 1_000_000_000L
+        LogWriter(file, params).use { w ->
+            val values = DoubleArray(2)
+            for (i in 0 until rows) {
+                values[0] = i.toDouble()
+                values[1] = lambda(i)
+                w.onFrame(start + i * 10_000_000L, values)
+            }
+        }
+        return file
+    }
+
+    private fun assertRows(reader: LogReader, count: Int) {
+        assertEquals(count.toLong(), reader.rowCount)
+        val t0 = reader.time(0)
+        val row = FloatArray(2)
+        for (i in 0 until count) {
+            assertEquals(t0 + i * 10_000L, reader.read(i.toLong(), row))
+            assertEquals(i.toFloat(), row[0], 0f)
+            assertEquals(lambda(i).toFloat(), row[1], 0f)
+        }
+    }
+
+    @Test
+    fun roundTripsEveryRow() {
+        LogReader(record()).use { reader ->
+            assertEquals(listOf("P1", "P2"), reader.columns.map { it.id })
+            assertRows(reader, rows)
+        }
+    }
+
+    @Test
+    fun seeksAcrossBlocks() {
+        LogReader(record()).use { reader ->
+            val t0 = reader.time(0)
+            assertEquals(0L, reader.seek(Long.MIN_VALUE))
+            // Exact hits and times between rows, in the first, a middle and the last block
+            for (i in intArrayOf(0, 255, 256, 300, rows - 1)) {
+                assertEquals(i.toLong(), reader.seek(t0 + i * 10_000L))
+                assertEquals(i + 1L, reader.seek(t0 + i * 10_000L + 1))
+            }
+            assertEquals(rows.toLong(), reader.seek(Long.MAX_VALUE))
+        }
+    }
+
+    @Test
+    fun exportsTimeWindowAsCsv() {
+        LogReader(record()).use { reader ->
+            val t0 = reader.time(0)
+            val out = StringWriter()
+            reader.exportCsv(out, t0 + 250 * 10_000L, t0 + 260 * 10_000L)
+            val lines = out.toString().trimEnd().split('\n')
+            assertEquals("Time (s),Engine speed (rpm),Lambda (-)", lines[0])
+            assertEquals(1 + 11, lines.size)
+            assertTrue(lines[1], lines[1].endsWith(",250,125.00"))
+            // Row 252 is a NaN lambda: left empty
+            assertTrue(lines[3], lines[3].endsWith(",252,"))
+        }
+    }
+
+    @Test
+    fun recoversLogWithoutIndex() {
+        val file = record()
+        val blocks = (rows + LogWriter.BLOCK_FRAMES - 1) / LogWriter.BLOCK_FRAMES
+        val indexBytes = 8L + blocks * 28 + LogWriter.TRAILER
+        // As if the app was killed before close() wrote the index
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - indexBytes) }
+        LogReader(file).use { assertRows(it, rows) }
+
+        // A last block cut short is dropped, the ones before it survive
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 5) }
+        LogReader(file).use { assertRows(it, 2 * LogWriter.BLOCK_FRAMES) }
+    }
+}
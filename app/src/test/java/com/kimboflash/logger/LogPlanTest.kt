@@ -0,0 +1,121 @@
+package com.kimboflash.logger
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LogPlanTest {
+    private fun memory(id: String, address: Int, bytes: Int = 1, expression: String = "x") =
+        LoggerParam(id, id, LogPlan.MEMORY_GROUP, 0x00, 0, address, -1, bytes, false, false, "", expression, "0", 0.0, 1.0)
+
+    private fun telegram(id: String, address: Int, bytes: Int = 1) =
+        LoggerParam(id, id, LogPlan.TELEGRAM_GROUP, LogPlan.TELEGRAM_READ, 0, address, -1, bytes, false, false, "", "x", "0", 0.0, 1.0)
+
+    private fun block(id: String, offset: Int, bit: Int = -1) =
+        LoggerParam(id, id, 0x0B, 0x04, 8, offset, bit, 1, false, false, "", "x", "0", 0.0, 1.0)
+
+    /** An answer: status byte, then [data]. */
+    private fun answer(vararg data: Int) = ByteArray(1 + data.size) { if (it == 0) 0xA0.toByte() else data[it - 1].toByte() }
+
+    private fun decode(plan: LogPlan, request: Int, payload: ByteArray?) =
+        DoubleArray(plan.size).also { plan.decode(request, payload, it) }
+
+    @Test
+    fun readsNearbyAddressesInOneRequest() {
+        val plan = LogPlan.build(listOf(memory("P3", 0xE004), memory("P1", 0xE000), memory("P2", 0xE001, 2, "x*0.5")))
+        assertEquals(1, plan.requestCount)
+        assertFalse(plan.usesTelegram)
+        assertEquals(LogPlan.MEMORY_GROUP, plan.sids[0])
+        assertArrayEquals(byteArrayOf(0, 0x00, 0xE0.toByte(), 0x00, 5), plan.data[0])
+        // Read request, answer overhead and the five bytes 0xE000..0xE004
+        assertEquals(9 + 4 + 5, plan.wireBytes)
+
+        // Values come back in the order the parameters were given
+        val out = decode(plan, 0, answer(0x10, 0x01, 0x02, 0xFF, 0x20))
+        assertArrayEquals(doubleArrayOf(32.0, 16.0, 0x0102 * 0.5), out, 0.0)
+    }
+
+    @Test
+    fun splitsFarApartAddresses() {
+        // Further apart than one read covers, and on another 64 KB page
+        val plan = LogPlan.build(listOf(memory("P1", 0xE000), memory("P2", 0xE200), memory("P3", 0x1E000)))
+        assertEquals(3, plan.requestCount)
+        // Each answer only fills the values its request covers
+        assertArrayEquals(doubleArrayOf(7.0, 0.0, 0.0), decode(plan, 0, answer(7)), 0.0)
+        assertArrayEquals(doubleArrayOf(0.0, 8.0, 0.0), decode(plan, 1, answer(8)), 0.0)
+        assertArrayEquals(byteArrayOf(0, 0x01, 0xE0.toByte(), 0x00, 1), plan.data[2])
+    }
+
+    @Test
+    fun missingOrShortAnswersDecodeAsNaN() {
+        val plan = LogPlan.build(listOf(memory("P1", 0xE000), memory("P2", 0xE001, 2), memory("P3", 0xE010, 1, "not a formula")))
+        assertEquals(1, plan.requestCount)
+        assertTrue(decode(plan, 0, null).all { it.isNaN() })
+
+        // Only P1 is covered by a cut-short answer
+        val short = decode(plan, 0, answer(5, 1))
+        assertEquals(5.0, short[0], 0.0)
+        assertTrue(short[1].isNaN())
+        assertTrue(short[2].isNaN())
+
+        // An unparsable conversion never shows the raw byte
+        val full = decode(plan, 0, answer(*IntArray(17) { it }))
+        assertEquals(0x0102.toDouble(), full[1], 0.0)
+        assertTrue(full[2].isNaN())
+    }
+
+    @Test
+    fun slicesBlockValuesFromOneRequest() {
+        val plan = LogPlan.build(listOf(block("S1", 5, 3), memory("P1", 0xE000), block("S2", 2)))
+        assertEquals(2, plan.requestCount)
+        assertEquals(0x0B, plan.sids[0])
+        assertArrayEquals(byteArrayOf(0x04), plan.data[0])
+
+        val out = decode(plan, 0, answer(0, 0, 0x42, 0, 0, 0x08, 0, 0))
+        assertEquals(1.0, out[0], 0.0)
+        assertEquals(0x42.toDouble(), out[2], 0.0)
+    }
+
+    @Test
+    fun packsTelegramEntries() {
+        val params = listOf(telegram("T1", 0xD000, 2), memory("M1", 0xE000), telegram("T2", 0xD001), telegram("T3", 0xD010))
+        val plan = LogPlan.build(params, telegram = true)
+        assertTrue(plan.usesTelegram)
+        assertEquals(2, plan.requestCount)
+        assertEquals(LogPlan.TELEGRAM_GROUP, plan.sids[0])
+        assertArrayEquals(byteArrayOf(LogPlan.TELEGRAM_READ.toByte()), plan.data[0])
+        // T1 and T2 overlap and share an entry; T3 gets its own
+        assertArrayEquals(
+            byteArrayOf(LogPlan.TELEGRAM_DEFINE.toByte(), 0x00, 0xD0.toByte(), 0x00, 2, 0x00, 0xD0.toByte(), 0x10, 1),
+            plan.telegramDefinition
+        )
+
+        assertTrue(plan.answerMatches(0, answer(1, 2, 3)))
+        assertFalse(plan.answerMatches(0, answer(1, 2, 3, 4)))
+        // A telegram built differently by the ECU is not trusted at all
+        val wrong = decode(plan, 0, answer(1, 2, 3, 4))
+        assertTrue(wrong[0].isNaN() && wrong[2].isNaN() && wrong[3].isNaN())
+
+        val out = decode(plan, 0, answer(0x12, 0x34, 0x56))
+        assertEquals(0x1234.toDouble(), out[0], 0.0)
+        assertEquals(0x34.toDouble(), out[2], 0.0)
+        assertEquals(0x56.toDouble(), out[3], 0.0)
+    }
+
+    @Test
+    fun telegramParamsFallBackToMemoryReads() {
+        val params = listOf(telegram("T1", 0xD000, 2), telegram("T2", 0xD010), memory("M1", 0xE000))
+        val plan = LogPlan.build(params)
+        assertFalse(plan.usesTelegram)
+        assertNull(plan.telegramDefinition)
+        assertEquals(2, plan.requestCount)
+        assertEquals(LogPlan.MEMORY_GROUP, plan.sids[0])
+        assertEquals(LogPlan.MEMORY_GROUP, plan.sids[1])
+
+        // Memory parameters alone never use the telegram
+        assertFalse(LogPlan.build(listOf(memory("M1", 0xE000)), telegram = true).usesTelegram)
+    }
+}
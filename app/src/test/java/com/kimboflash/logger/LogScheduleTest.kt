@@ -0,0 +1,126 @@
+package com.kimboflash.logger
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LogScheduleTest {
+    private val second = 1_000_000_000L
+
+    private fun param(id: String, address: Int, group: Int = LogPlan.MEMORY_GROUP, subgroup: Int = 0x00) =
+        LoggerParam(id, id, group, subgroup, 0, address, -1, 1, false, false, "", "x", "0", 0.0, 1.0)
+
+    private fun telegram(id: String, address: Int) = param(id, address, LogPlan.TELEGRAM_GROUP, LogPlan.TELEGRAM_READ)
+
+    @Test
+    fun groupsParamsByRate() {
+        val params = listOf(param("P1", 0xE000), param("P2", 0xE001), param("P3", 0xE002), param("P4", 0xE003),
+            param("P5", 0xE004), param("P6", 0xE005))
+        // 4 Hz and up is every cycle; the others round up to a power of two, at least 1/4 Hz
+        val rates = mapOf("P2" to 1.0, "P3" to 0.3, "P4" to LogSchedule.FAST_RATE_HZ, "P5" to 0.9, "P6" to 0.01)
+        val schedule = LogSchedule.build(params, rates)
+
+        assertArrayEquals(doubleArrayOf(0.0, 1.0, 0.5, 0.25), schedule.tierRates(), 0.0)
+        assertArrayEquals(intArrayOf(0, 3), schedule.tiers[0].columns)
+        assertArrayEquals(intArrayOf(1, 4), schedule.tiers[1].columns)
+        assertArrayEquals(intArrayOf(2), schedule.tiers[2].columns)
+        assertArrayEquals(intArrayOf(5), schedule.tiers[3].columns)
+        // Frames keep the order the parameters were given in
+        assertEquals(params.map { it.id }, schedule.params.map { it.id })
+        assertEquals(6, schedule.size)
+    }
+
+    @Test
+    fun withoutRatesEverythingIsFast() {
+        val schedule = LogSchedule.build(listOf(param("P1", 0xE000), param("P2", 0xE100)))
+        assertArrayEquals(doubleArrayOf(0.0), schedule.tierRates(), 0.0)
+        assertEquals(2, schedule.tiers[0].plan.size)
+
+        val plan = LogPlan.build(listOf(param("P1", 0xE000)))
+        val single = LogSchedule.of(plan)
+        assertSame(plan, single.tiers[0].plan)
+        assertArrayEquals(doubleArrayOf(0.0), single.tierRates(), 0.0)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun refusesEmptySelection() {
+        LogSchedule.build(emptyList())
+    }
+
+    @Test
+    fun telegramOnlyForFastTier() {
+        val params = listOf(telegram("T1", 0xD000), telegram("T2", 0xD001), telegram("T3", 0xD002))
+        val schedule = LogSchedule.build(params, mapOf("T3" to 1.0), telegram = true)
+
+        val fast = schedule.tiers[0]
+        assertTrue(fast.plan.usesTelegram)
+        // Memory reads of the same parameters, for an ECU that refuses the telegram
+        assertFalse(fast.fallback!!.usesTelegram)
+        assertEquals(fast.plan.size, fast.fallback!!.size)
+
+        val slow = schedule.tiers[1]
+        assertFalse(slow.plan.usesTelegram)
+        assertNull(slow.fallback)
+        assertEquals(maxOf(fast.plan.requestCount, fast.fallback!!.requestCount) + slow.plan.requestCount, schedule.maxRequests)
+    }
+
+    @Test
+    fun slowTiersRunOncePerPeriodWithoutFastTier() {
+        val schedule = LogSchedule.build(listOf(param("P1", 0xE000), param("P2", 0xE100)), mapOf("P1" to 1.0, "P2" to 0.25))
+        val out = IntArray(2)
+        val start = 10 * second
+
+        // Both are due at first, in tier order
+        assertEquals(2, schedule.select(start, out))
+        assertArrayEquals(intArrayOf(0, 1), out)
+        assertEquals(0, schedule.select(start + second / 2, out))
+        assertEquals(start + second, schedule.nextDue())
+
+        assertEquals(1, schedule.select(start + second, out))
+        assertEquals(0, out[0])
+        assertEquals(2, schedule.select(start + 4 * second, out))
+    }
+
+    @Test
+    fun fastTierRunsEveryCycle() {
+        val schedule = LogSchedule.build(listOf(param("P1", 0xE000), param("P2", 0xE100)), mapOf("P2" to 1.0))
+        val out = IntArray(2)
+        val start = 10 * second
+        val cycle = second / 10
+        var slowReads = 0
+        // Ten seconds of 100 ms cycles; the slow tier costs less than its 30 % share of a second
+        for (i in 0 until 100) {
+            val n = schedule.select(start + i * cycle, out)
+            assertEquals(0, out[0])
+            if (n == 2) {
+                assertEquals(1, out[1])
+                slowReads++
+            }
+        }
+        assertEquals(10, slowReads)
+    }
+
+    @Test
+    fun slowTiersSlipUnderLoad() {
+        val schedule = LogSchedule.build(listOf(param("P1", 0xE000), param("P2", 0xE100)), mapOf("P2" to 2.0))
+        // One round trip of the slow tier measured at 10 s pulls its cost estimate up to about 2 s
+        schedule.tiers[1].measured(10 * second)
+        assertTrue(schedule.tiers[1].costNanos > 2 * second)
+
+        val out = IntArray(2)
+        val start = 10 * second
+        val cycle = second / 10
+        val reads = ArrayList<Int>()
+        for (i in 0 until 100) {
+            val n = schedule.select(start + i * cycle, out)
+            assertEquals(0, out[0])
+            if (n == 2) reads.add(i)
+        }
+        // 2 Hz asked for, but 30 % of each 100 ms cycle only pays for it every 70 cycles
+        assertEquals(listOf(0, 70), reads)
+    }
+}
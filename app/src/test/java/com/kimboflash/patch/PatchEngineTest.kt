@@ -0,0 +1,172 @@
+package com.kimboflash.patch
+
+import com.kimboflash.defs.DefinitionIndex
+import com.kimboflash.defs.bytes
+import com.kimboflash.defs.ints
+import com.kimboflash.rom.RomImage
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class PatchEngineTest {
+    private class Entry(val patch: Int, val name: String, val address: Int, val data: ByteArray, val base: ByteArray?)
+
+    private val base = 0x10
+    private val size = 0x100
+
+    // Record 0 is a table, the others patches; "Overlap" shares a byte with "Launch"
+    private val titles = arrayOf("Table", "Launch", "Limiter", "Overlap", "No base")
+    private val entries = listOf(
+        Entry(1, "Enable", 0x00, bytesOf(0xAA, 0xBB), bytesOf(0x00, 0x00)),
+        Entry(1, "Rpm", 0x20, bytesOf(0xCC), bytesOf(0x00)),
+        Entry(2, "Max", 0x40, bytesOf(0x11, 0x22), bytesOf(0x00, 0x00)),
+        Entry(3, "Flag", 0x01, bytesOf(0xDD, 0xEE), bytesOf(0x00, 0x00)),
+        Entry(4, "Code", 0x60, bytesOf(0x77), null)
+    )
+
+    private val launch = 1
+    private val limiter = 2
+    private val overlap = 3
+    private val noBase = 4
+
+    private fun bytesOf(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    private fun definition(): DefinitionIndex {
+        val n = titles.size
+        val pool = ByteArrayOutputStream()
+        val patchOffsets = IntArray(entries.size)
+        val baseOffsets = IntArray(entries.size)
+        for ((i, e) in entries.withIndex()) {
+            patchOffsets[i] = pool.size()
+            pool.write(e.data)
+            baseOffsets[i] = if (e.base == null) DefinitionIndex.NONE else pool.size().also { pool.write(e.base) }
+        }
+        val first = IntArray(n) { r -> entries.indexOfFirst { it.patch == r } }
+        val counts = IntArray(n) { r -> entries.count { it.patch == r } }
+        return DefinitionIndex(
+            "Test patchlist", base, size - base, null, DefinitionIndex.NONE, null,
+            arrayOf(), arrayOf(),
+            bytes(ByteArray(n) { if (it == 0) DefinitionIndex.KIND_TABLE else DefinitionIndex.KIND_PATCH }),
+            ints(IntArray(n) { it }), titles, ints(IntArray(n) { DefinitionIndex.NONE }),
+            ints(IntArray(n) { if (it == 0) 0x80 else DefinitionIndex.NONE }),
+            bytes(ByteArray(n) { 8 }), ints(IntArray(n)), ints(IntArray(n) { 1 }), ints(IntArray(n) { 1 }),
+            ints(IntArray(n) { DefinitionIndex.NONE }), ints(IntArray(n) { DefinitionIndex.NONE }),
+            ints(first), ints(counts),
+            entries.map { it.name }.toTypedArray(),
+            ints(entries.map { it.address }.toIntArray()),
+            ints(entries.map { it.data.size }.toIntArray()),
+            ints(patchOffsets), ints(baseOffsets),
+            bytes(pool.toByteArray())
+        )
+    }
+
+    private val engine = PatchEngine(definition())
+
+    private fun at(image: RomImage, offset: Int, length: Int) = ByteArray(length).also { image.read(offset, it) }
+
+    @Test
+    fun indexesPatchesAndEntries() {
+        assertArrayEquals(intArrayOf(launch, limiter, overlap, noBase), engine.patches)
+        assertEquals(limiter, engine.find("Limiter"))
+        assertEquals(DefinitionIndex.NONE, engine.find("Table"))
+        assertEquals(DefinitionIndex.NONE, engine.find("Missing"))
+        // File offsets: byte 0x11 is in both "Launch / Enable" and "Overlap / Flag"
+        assertEquals(setOf(0, 3), engine.entriesAt(base + 0x01, 1).toSet())
+        assertEquals(setOf(3), engine.entriesAt(base + 0x02, 1).toSet())
+        assertEquals(0, engine.entriesAt(base + 0x03, 0x1D).size)
+    }
+
+    @Test
+    fun appliesAndReverts() {
+        val image = RomImage.allocate(size)
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, launch))
+
+        val applied = engine.apply(image, intArrayOf(launch))
+        assertTrue(applied.problems.toString(), applied.ok)
+        assertEquals(2, applied.changes.size)
+        assertFalse(applied.changes.any { it.alreadyDone })
+        assertArrayEquals(bytesOf(0xAA, 0xBB), at(image, base, 2))
+        assertArrayEquals(bytesOf(0xCC), at(image, base + 0x20, 1))
+        assertEquals(PatchEngine.State.APPLIED, engine.state(image, launch))
+
+        // Applying again changes nothing
+        assertTrue(engine.apply(image, intArrayOf(launch)).changes.all { it.alreadyDone })
+
+        assertTrue(engine.revert(image, intArrayOf(launch)).ok)
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, launch))
+        assertArrayEquals(ByteArray(size), at(image, 0, size))
+    }
+
+    @Test
+    fun conflictingPatchesLeaveImageUntouched() {
+        val image = RomImage.allocate(size)
+        assertEquals(listOf(Pair(launch, overlap)), engine.conflicts(intArrayOf(overlap, launch)))
+        assertTrue(engine.conflicts(intArrayOf(launch, limiter)).isEmpty())
+
+        val report = engine.apply(image, intArrayOf(launch, overlap))
+        assertFalse(report.ok)
+        assertEquals(1, report.problems.size)
+        assertArrayEquals(ByteArray(size), at(image, 0, size))
+    }
+
+    @Test
+    fun refusesUnexpectedOriginalData() {
+        val image = RomImage.allocate(size)
+        image.setUint8(base + 0x41, 0x99)
+        assertEquals(PatchEngine.State.MODIFIED, engine.state(image, limiter))
+
+        // One bad entry keeps the good ones of the same run from being written too
+        val report = engine.apply(image, intArrayOf(launch, limiter))
+        assertFalse(report.ok)
+        assertEquals(1, report.problems.size)
+        assertArrayEquals(bytesOf(0x00, 0x99), at(image, base + 0x40, 2))
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, launch))
+    }
+
+    @Test
+    fun dryRunWritesNothing() {
+        val image = RomImage.allocate(size)
+        var writes = 0
+        image.writeListener = RomImage.WriteListener { _, _ -> writes++ }
+
+        val report = engine.apply(image, intArrayOf(launch, limiter), dryRun = true)
+        assertTrue(report.ok)
+        assertTrue(report.dryRun)
+        assertEquals(3, report.changes.size)
+        assertEquals(0, writes)
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, launch))
+    }
+
+    @Test
+    fun rollsBackWhenAWriteFails() {
+        val image = RomImage.allocate(size)
+        var writes = 0
+        // The second entry lands in the image, then the write fails
+        image.writeListener = RomImage.WriteListener { _, _ -> if (++writes == 2) throw IllegalStateException("write failed") }
+
+        try {
+            engine.apply(image, intArrayOf(launch, limiter))
+            fail("Expected the write failure to propagate")
+        } catch (e: IllegalStateException) {
+            assertEquals("write failed", e.message)
+        }
+        assertArrayEquals(ByteArray(size), at(image, 0, size))
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, launch))
+        assertEquals(PatchEngine.State.ORIGINAL, engine.state(image, limiter))
+    }
+
+    @Test
+    fun patchWithoutOriginalDataCannotBeReverted() {
+        val image = RomImage.allocate(size)
+        assertTrue(engine.apply(image, intArrayOf(noBase)).ok)
+        assertEquals(PatchEngine.State.APPLIED, engine.state(image, noBase))
+
+        val report = engine.revert(image, intArrayOf(noBase))
+        assertFalse(report.ok)
+        assertEquals(0x77, image.uint8(base + 0x60))
+    }
+}
@@ -0,0 +1,158 @@
+package com.kimboflash.protocol
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class FrameDecoderTest {
+    private val payloads = ArrayList<ByteArray>()
+    private val targets = ArrayList<Int>()
+
+    /** Stepped by hand, so the inter-byte timeout does not depend on how fast the test runs. */
+    private var now = 0L
+
+    private fun decoder(format: FrameDecoder.Format, interByteMs: Long = FrameDecoder.DEFAULT_INTER_BYTE_MS) =
+        FrameDecoder(format, FrameDecoder.Sink {
+            payloads.add(it.payload())
+            targets.add(it.target)
+        }, interByteMs, Clock { now })
+
+    private fun advanceMs(ms: Long) {
+        now += ms * Deadline.NANOS_PER_MS
+    }
+
+    private fun frame(format: FrameDecoder.Format, sid: Int, vararg data: Int, target: Int = 0x12): ByteArray {
+        val out = ByteArray(FrameDecoder.MAX_FRAME)
+        val n = FrameDecoder.encode(format, target, 0xF1, sid, ByteArray(data.size) { data[it].toByte() }, out)
+        return out.copyOf(n)
+    }
+
+    private fun bytes(vararg b: Int) = ByteArray(b.size) { b[it].toByte() }
+
+    @Test
+    fun decodesShortKwpFrame() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        val f = frame(FrameDecoder.Format.KWP2000, 0x61, 0x01, 0x02, target = 0xF1)
+        d.accept(f, 0, f.size)
+        assertEquals(1, payloads.size)
+        assertArrayEquals(bytes(0x61, 0x01, 0x02), payloads[0])
+        assertEquals(0xF1, targets[0])
+    }
+
+    @Test
+    fun decodesKwpFrameWithLengthByte() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        val data = IntArray(100) { it }
+        val f = frame(FrameDecoder.Format.KWP2000, 0x63, *data)
+        assertEquals(0x80, f[0].toInt() and 0xFF)
+        assertEquals(101, f[3].toInt())
+        d.accept(f, 0, f.size)
+        assertEquals(1, payloads.size)
+        assertEquals(101, payloads[0].size)
+        assertEquals(99, payloads[0][100].toInt())
+    }
+
+    @Test
+    fun reassemblesFrameSplitAcrossReads() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        val f = frame(FrameDecoder.Format.KWP2000, 0x50, 0x81)
+        for (i in f.indices) {
+            d.onReceived(ByteBuffer.wrap(f, i, 1))
+            assertEquals(if (i == f.size - 1) 1 else 0, payloads.size)
+        }
+        assertArrayEquals(bytes(0x50, 0x81), payloads[0])
+    }
+
+    @Test
+    fun splitsFramesJoinedInOneRead() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        val joined = frame(FrameDecoder.Format.KWP2000, 0x50, 0x81) + frame(FrameDecoder.Format.KWP2000, 0x7E)
+        d.accept(joined, 0, joined.size)
+        assertEquals(2, payloads.size)
+        assertArrayEquals(bytes(0x7E), payloads[1])
+    }
+
+    @Test
+    fun resyncsOnNextByteAfterBadHeader() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        // 0xC1 announces a one-byte payload, but the checksum over what follows fails
+        val data = bytes(0xC1) + frame(FrameDecoder.Format.KWP2000, 0x7E)
+        d.accept(data, 0, data.size)
+        assertEquals(1, payloads.size)
+        assertArrayEquals(bytes(0x7E), payloads[0])
+        assertEquals(1L, d.discardedBytes)
+        assertEquals(1L, d.checksumErrors)
+    }
+
+    @Test
+    fun dropsFrameWithBadChecksumAndKeepsNext() {
+        val d = decoder(FrameDecoder.Format.KWP2000, interByteMs = 5)
+        val bad = frame(FrameDecoder.Format.KWP2000, 0x61, 0x01)
+        bad[bad.size - 1]++
+        d.accept(bad, 0, bad.size)
+        assertEquals(0, payloads.size)
+        assertEquals(1L, d.checksumErrors)
+        // What is left of the bad frame is dropped once the line goes quiet
+        advanceMs(30)
+        val good = frame(FrameDecoder.Format.KWP2000, 0x61, 0x02)
+        d.accept(good, 0, good.size)
+        assertEquals(1, payloads.size)
+        assertArrayEquals(bytes(0x61, 0x02), payloads[0])
+    }
+
+    @Test
+    fun swallowsOwnEcho() {
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        val request = frame(FrameDecoder.Format.KWP2000, 0x21, 0x01)
+        d.expectEcho(request, 0, request.size)
+        val line = request + frame(FrameDecoder.Format.KWP2000, 0x61, 0x01, target = 0xF1)
+        d.accept(line, 0, line.size)
+        assertEquals(1, payloads.size)
+        assertEquals(0x61, payloads[0][0].toInt())
+    }
+
+    @Test
+    fun dropsPartialFrameAfterInterByteTimeout() {
+        val d = decoder(FrameDecoder.Format.KWP2000, interByteMs = 5)
+        val f = frame(FrameDecoder.Format.KWP2000, 0x61, 0x01)
+        d.accept(f, 0, 2)
+        advanceMs(30)
+        d.accept(f, 2, f.size - 2)
+        assertEquals(0, payloads.size)
+        advanceMs(30)
+        d.accept(f, 0, f.size)
+        assertEquals(1, payloads.size)
+    }
+
+    @Test
+    fun keepsPartialFrameWithinInterByteTimeout() {
+        val d = decoder(FrameDecoder.Format.KWP2000, interByteMs = 5)
+        val f = frame(FrameDecoder.Format.KWP2000, 0x61, 0x01)
+        d.accept(f, 0, 2)
+        advanceMs(5)
+        d.accept(f, 2, f.size - 2)
+        assertEquals(1, payloads.size)
+        assertEquals(0L, d.discardedBytes)
+    }
+
+    @Test
+    fun decodesDs2Frame() {
+        val d = decoder(FrameDecoder.Format.DS2)
+        val f = frame(FrameDecoder.Format.DS2, 0xA0, 0x12, 0x34)
+        assertEquals(f.size, f[1].toInt())
+        d.accept(f, 0, f.size)
+        assertEquals(1, payloads.size)
+        assertArrayEquals(bytes(0xA0, 0x12, 0x34), payloads[0])
+        assertEquals(0x12, targets[0])
+    }
+
+    @Test
+    fun encodesPayloadFromArrayOffset() {
+        val out = ByteArray(FrameDecoder.MAX_FRAME)
+        val n = FrameDecoder.encode(FrameDecoder.Format.KWP2000, 0x12, 0xF1, bytes(0xFF, 0x36, 0x01, 0xAA), 1, 3, out)
+        val d = decoder(FrameDecoder.Format.KWP2000)
+        d.accept(out, 0, n)
+        assertArrayEquals(bytes(0x36, 0x01, 0xAA), payloads[0])
+    }
+}
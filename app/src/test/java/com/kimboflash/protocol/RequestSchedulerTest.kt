@@ -0,0 +1,182 @@
+package com.kimboflash.protocol
+
+import com.kimboflash.CommService
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class RequestSchedulerTest {
+    /**
+     * K-Line stand-in: every write is echoed back, then answered with the
+     * frames [answer] returns for it, all on the writing thread.
+     */
+    private class FakeLine(val format: FrameDecoder.Format) : CommService {
+        val writes = ArrayList<ByteArray>()
+        var answer: (Int) -> List<ByteArray> = { emptyList() }
+        private var listener: CommService.FrameListener? = null
+
+        override val isOpen = true
+
+        override fun write(data: ByteBuffer, timeoutMs: Long): Boolean {
+            val bytes = ByteArray(data.remaining())
+            data.get(bytes)
+            writes.add(bytes)
+            listener?.onReceived(ByteBuffer.wrap(bytes))
+            for (f in answer(writes.size)) listener?.onReceived(ByteBuffer.wrap(f))
+            return true
+        }
+
+        override fun read(dst: ByteBuffer, timeoutMs: Long) = 0
+        override fun setFrameListener(listener: CommService.FrameListener?) {
+            this.listener = listener
+        }
+        override fun close() {}
+        override fun send(data: ByteArray) {
+            write(ByteBuffer.wrap(data))
+        }
+        override fun receiveBytes() = ByteArray(0)
+
+        /** A frame from the ECU, as the scheduler expects it for [format]. */
+        fun frame(vararg payload: Int): ByteArray {
+            val out = ByteArray(FrameDecoder.MAX_FRAME)
+            val data = ByteArray(payload.size - 1) { payload[it + 1].toByte() }
+            val n = when (format) {
+                FrameDecoder.Format.KWP2000 -> FrameDecoder.encode(format, 0xF1, 0x12, payload[0], data, out)
+                FrameDecoder.Format.DS2 -> FrameDecoder.encode(format, 0x12, 0, payload[0], data, out)
+            }
+            return out.copyOf(n)
+        }
+    }
+
+    private val stats = BusStats()
+    private var scheduler: RequestScheduler? = null
+
+    private fun start(line: FakeLine): RequestScheduler =
+        RequestScheduler(line, line.format, 0x12, stats = stats).also {
+            it.timing = RequestScheduler.Timing(10, 200, 0, 0)
+            scheduler = it
+        }
+
+    @After
+    fun tearDown() {
+        scheduler?.close()
+    }
+
+    @Test
+    fun completesWithPositiveResponse() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { listOf(line.frame(0x61, 0x01, 0xAB)) }
+        val s = start(line)
+        val resp = s.submit(0x21, byteArrayOf(0x01)).get(1, TimeUnit.SECONDS)
+        assertArrayEquals(byteArrayOf(0x61, 0x01, 0xAB.toByte()), resp)
+        assertEquals(1, line.writes.size)
+        assertEquals(0L, s.retries)
+    }
+
+    @Test
+    fun ignoresFramesForOtherServices() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { listOf(line.frame(0x7E), line.frame(0x61, 0x01)) }
+        val s = start(line)
+        val resp = s.submit(0x21, byteArrayOf(0x01)).get(1, TimeUnit.SECONDS)
+        assertEquals(0x61, resp[0].toInt())
+        assertEquals(1L, s.unmatchedFrames)
+    }
+
+    @Test
+    fun failsOnNegativeResponse() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { listOf(line.frame(0x7F, 0x27, 0x35)) }
+        val s = start(line)
+        try {
+            s.submit(0x27, byteArrayOf(0x02)).get(1, TimeUnit.SECONDS)
+            fail("Expected a negative response")
+        } catch (e: ExecutionException) {
+            val nrc = e.cause as NegativeResponseException
+            assertEquals(0x27, nrc.sid)
+            assertEquals(0x35, nrc.code)
+        }
+        assertEquals(1L, s.negativeResponses)
+    }
+
+    @Test
+    fun waitsThroughResponsePending() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { listOf(line.frame(0x7F, 0x31, 0x78), line.frame(0x71, 0x01)) }
+        val s = start(line)
+        assertEquals(0x71, s.submit(0x31, byteArrayOf(0x01)).get(1, TimeUnit.SECONDS)[0].toInt())
+        assertEquals(1, line.writes.size)
+    }
+
+    @Test
+    fun retriesWhenBusy() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { n -> listOf(if (n == 1) line.frame(0x7F, 0x21, 0x21) else line.frame(0x61, 0x01)) }
+        val s = start(line)
+        assertEquals(0x61, s.submit(0x21, byteArrayOf(0x01)).get(1, TimeUnit.SECONDS)[0].toInt())
+        assertEquals(2, line.writes.size)
+        assertEquals(1L, s.retries)
+    }
+
+    @Test
+    fun retriesAfterSilence() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        line.answer = { n -> if (n < 3) emptyList() else listOf(line.frame(0x7E)) }
+        val s = start(line)
+        assertEquals(0x7E, s.submit(0x3E).get(1, TimeUnit.SECONDS)[0].toInt())
+        assertEquals(3, line.writes.size)
+        assertEquals(2L, s.retries)
+    }
+
+    @Test
+    fun timesOutAfterRetries() {
+        val line = FakeLine(FrameDecoder.Format.KWP2000)
+        val s = start(line)
+        try {
+            s.submit(0x3E).get(2, TimeUnit.SECONDS)
+            fail("Expected a timeout")
+        } catch (e: ExecutionException) {
+            assertTrue(e.cause is TimeoutException)
+        }
+        assertEquals(3, line.writes.size)
+        assertEquals(1L, s.timeouts)
+        assertEquals(1L, stats.snapshot().timeouts)
+    }
+
+    @Test
+    fun completesDs2RequestOnAcknowledge() {
+        val line = FakeLine(FrameDecoder.Format.DS2)
+        line.answer = { listOf(line.frame(0xA0, 0x01, 0x02)) }
+        val s = start(line)
+        assertArrayEquals(byteArrayOf(0xA0.toByte(), 0x01, 0x02), s.submit(0x04).get(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun retriesDs2Busy() {
+        val line = FakeLine(FrameDecoder.Format.DS2)
+        line.answer = { n -> listOf(if (n == 1) line.frame(0xA1) else line.frame(0xA0)) }
+        val s = start(line)
+        assertEquals(0xA0, s.submit(0x04).get(1, TimeUnit.SECONDS)[0].toInt() and 0xFF)
+        assertEquals(2, line.writes.size)
+    }
+
+    @Test
+    fun failsDs2Rejection() {
+        val line = FakeLine(FrameDecoder.Format.DS2)
+        line.answer = { listOf(line.frame(0xFF)) }
+        val s = start(line)
+        try {
+            s.submit(0x04).get(1, TimeUnit.SECONDS)
+            fail("Expected a rejection")
+        } catch (e: ExecutionException) {
+            assertEquals(0xFF, (e.cause as NegativeResponseException).code)
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.kimboflash.rom
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class ChecksumEngineTest {
+    private val size = 0x2000
+
+    // Regions are not block-aligned, so partial first and last blocks are exercised
+    private val regions = listOf(
+        ChecksumRegion("sum8", ChecksumRegion.Kind.SUM8, 0x0010, 0x0810, 0x1FF0),
+        ChecksumRegion("sum16", ChecksumRegion.Kind.SUM16, 0x0810, 0x1002, 0x1FF4, littleEndian = false),
+        ChecksumRegion("crc16", ChecksumRegion.Kind.CRC16, 0x1002, 0x1F33, 0x1FFA)
+    )
+
+    private fun image(seed: Long): RomImage {
+        val bytes = ByteArray(size)
+        Random(seed).nextBytes(bytes)
+        return RomImage.wrap(bytes)
+    }
+
+    /** Straightforward full computation of [region], independent of the engine. */
+    private fun reference(image: RomImage, region: ChecksumRegion): Long {
+        var v = 0L
+        when (region.kind) {
+            ChecksumRegion.Kind.SUM8 -> {
+                for (i in region.start until region.end) v += image.uint8(i)
+                v = v and 0xFFFF
+            }
+            ChecksumRegion.Kind.SUM16 -> {
+                var i = region.start
+                while (i + 1 < region.end) {
+                    v += image.uint16(i, region.littleEndian)
+                    i += 2
+                }
+                v = v and 0xFFFFFFFFL
+            }
+            ChecksumRegion.Kind.CRC16 -> {
+                var crc = region.init
+                for (i in region.start until region.end) {
+                    crc = crc xor (image.uint8(i) shl 8)
+                    repeat(8) { crc = if (crc and 0x8000 != 0) (crc shl 1) xor region.poly else crc shl 1 }
+                    crc = crc and 0xFFFF
+                }
+                v = crc.toLong()
+            }
+        }
+        return v
+    }
+
+    private fun assertComputed(engine: ChecksumEngine, image: RomImage) {
+        for (s in engine.status()) assertEquals(s.region.name, reference(image, s.region), s.computed)
+    }
+
+    @Test
+    fun crcMatchesCheckValue() {
+        val image = RomImage.wrap("123456789".toByteArray(Charsets.US_ASCII) + ByteArray(2))
+        val region = ChecksumRegion("check", ChecksumRegion.Kind.CRC16, 0, 9, 9, littleEndian = false)
+        val engine = ChecksumEngine(image, ChecksumProfile("check", listOf(region), verified = true))
+        // CRC-16/CCITT-FALSE check value
+        assertEquals(0x29B1L, engine.status()[0].computed)
+        engine.fix()
+        assertEquals(0x29, image.uint8(9))
+        assertEquals(0xB1, image.uint8(10))
+    }
+
+    @Test
+    fun incrementalStateMatchesFullRecompute() {
+        val image = image(1)
+        val engine = ChecksumEngine(image, ChecksumProfile("test", regions, verified = true))
+        assertComputed(engine, image)
+
+        val random = Random(2)
+        val chunk = ByteArray(3 * ChecksumEngine.BLOCK_SIZE)
+        for (round in 0 until 300) {
+            when (round % 3) {
+                0 -> image.setUint8(random.nextInt(0x1F40), random.nextInt(256))
+                1 -> image.setUint16(random.nextInt(0x1F40), random.nextInt(0x10000), random.nextBoolean())
+                else -> {
+                    // Bulk writes spanning blocks and region boundaries
+                    val length = 1 + random.nextInt(chunk.size)
+                    random.nextBytes(chunk)
+                    image.write(random.nextInt(0x1F40 - length), chunk, 0, length)
+                }
+            }
+            if (round % 25 == 0) assertComputed(engine, image)
+        }
+        assertComputed(engine, image)
+        assertTrue(engine.verifyAll().isEmpty())
+    }
+
+    @Test
+    fun fixStoresEveryChecksum() {
+        val image = image(3)
+        val engine = ChecksumEngine(image, ChecksumProfile("test", regions, verified = true))
+        assertTrue(engine.canFix)
+        assertFalse(engine.isValid())
+
+        engine.fix()
+        assertTrue(engine.isValid())
+        for (s in engine.status()) assertEquals(s.region.name, s.computed, s.stored)
+
+        image.setUint8(0x0900, image.uint8(0x0900) xor 0xFF)
+        assertFalse(engine.isValid())
+        engine.fix()
+        assertTrue(engine.isValid())
+        assertComputed(engine, image)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun unverifiedProfileCannotFix() {
+        val engine = ChecksumEngine(image(4), ChecksumProfile("guess", regions))
+        assertFalse(engine.canFix)
+        engine.fix()
+    }
+
+    @Test
+    fun writeOutsideEveryRegionInvalidates() {
+        val image = image(5)
+        val engine = ChecksumEngine(image, ChecksumProfile("test", regions, verified = true))
+        engine.fix()
+        // Stores count as covered
+        image.setUint16(0x1FF0, 0)
+        assertEquals(0, engine.uncoveredWrites)
+        engine.fix()
+        assertTrue(engine.isValid())
+
+        image.setUint8(0x1F80, 0x42)
+        assertEquals(1, engine.uncoveredWrites)
+        assertFalse(engine.isValid())
+    }
+
+    @Test
+    fun detachRestoresPreviousListener() {
+        val image = image(6)
+        var writes = 0
+        val previous = RomImage.WriteListener { _, _ -> writes++ }
+        image.writeListener = previous
+
+        val engine = ChecksumEngine(image, ChecksumProfile("test", regions))
+        image.setUint8(0x20, 1)
+        assertEquals(1, writes)
+
+        engine.detach()
+        assertSame(previous, image.writeListener)
+    }
+}
@@ -0,0 +1,109 @@
+package com.kimboflash.transport
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class ReceiveRingTest {
+    private val ring = ReceiveRing.acquire()
+    private val capacity = ring.capacity
+
+    @After
+    fun release() = ReceiveRing.release(ring)
+
+    /** Bytes counting up from [from], so any reordering or loss shows. */
+    private fun sequence(from: Int, length: Int) = ByteArray(length) { (from + it).toByte() }
+
+    @Test
+    fun wrapsAroundTheEnd() {
+        // Leave head and tail near the end of the array, then cross it
+        val lead = capacity - 100
+        assertEquals(lead, ring.write(sequence(0, lead), 0, lead))
+        assertEquals(lead, ring.read(ByteArray(lead), 0, lead, 0))
+
+        val data = sequence(lead, 300)
+        assertEquals(300, ring.write(data, 0, 300))
+        assertEquals(300, ring.available())
+        val out = ByteArray(300)
+        assertEquals(300, ring.read(out, 0, 300, 0))
+        assertArrayEquals(data, out)
+
+        // Same through the ByteBuffer variant, which may be smaller than what is waiting
+        ring.write(data, 0, 300)
+        val dst = ByteBuffer.allocate(200)
+        assertEquals(200, ring.read(dst, 0))
+        assertArrayEquals(data.copyOfRange(0, 200), dst.array())
+        dst.clear()
+        assertEquals(100, ring.read(dst, 0))
+        assertArrayEquals(data.copyOfRange(200, 300), dst.array().copyOfRange(0, 100))
+        assertEquals(0L, ring.dropped)
+    }
+
+    @Test
+    fun dropsWhatDoesNotFit() {
+        val data = sequence(0, capacity + 50)
+        assertEquals(capacity - 10, ring.write(data, 0, capacity - 10))
+        assertEquals(10, ring.write(data, capacity - 10, 60))
+        assertEquals(50L, ring.dropped)
+        assertEquals(0, ring.write(data, 0, 5))
+        assertEquals(55L, ring.dropped)
+
+        // The bytes that fit are intact; reading frees room again
+        val out = ByteArray(capacity)
+        assertEquals(capacity, ring.read(out, 0, capacity, 0))
+        assertArrayEquals(data.copyOfRange(0, capacity), out)
+        assertEquals(5, ring.write(data, 0, 5))
+        assertEquals(55L, ring.dropped)
+    }
+
+    @Test
+    fun readTimesOutWhenEmpty() {
+        assertEquals(0, ring.read(ByteArray(16), 0, 16, 0))
+        assertEquals(0, ring.read(ByteBuffer.allocate(16), 5))
+    }
+
+    @Test(timeout = 5000)
+    fun cancelReleasesReader() {
+        ring.cancel()
+        // Would wait a minute without the cancel
+        assertEquals(0, ring.read(ByteArray(16), 0, 16, 60_000))
+
+        // Cleared, as on release, the ring is usable again
+        ring.clear()
+        ring.write(sequence(0, 4), 0, 4)
+        assertEquals(4, ring.read(ByteArray(4), 0, 4, 0))
+    }
+
+    @Test(timeout = 10_000)
+    fun deliversEveryByteAcrossThreads() {
+        val total = 16 * capacity
+        val producer = Thread {
+            val chunk = ByteArray(97)
+            var sent = 0
+            while (sent < total) {
+                val n = minOf(chunk.size, total - sent)
+                for (i in 0 until n) chunk[i] = (sent + i).toByte()
+                // Resend whatever did not fit, as a transport with flow control would
+                var done = 0
+                while (done < n) {
+                    done += ring.write(chunk, done, n - done)
+                    if (done < n) Thread.yield()
+                }
+                sent += n
+            }
+        }
+        producer.start()
+
+        val out = ByteArray(251)
+        var received = 0
+        while (received < total) {
+            val n = ring.read(out, 0, out.size, 1000)
+            for (i in 0 until n) assertEquals((received + i).toByte(), out[i])
+            received += n
+        }
+        producer.join()
+        assertEquals(0, ring.available())
+    }
+}